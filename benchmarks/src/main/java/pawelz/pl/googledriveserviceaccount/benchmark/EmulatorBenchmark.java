@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import pawelz.pl.googledriveserviceaccount.config.DriveTransport;
+import pawelz.pl.googledriveserviceaccount.emulator.DriveEmulator;
+import pawelz.pl.googledriveserviceaccount.service.GoogleDriveService;
+import pawelz.pl.googledriveserviceaccount.service.ServiceFixture;
+
+/**
+ * Common state of benchmarks: a {@link DriveEmulator} with the folders
+ * "root" and "folder", and a service talking to it. Latency and failures
+ * come from the FaultInjector of the emulator. With transport "mock"
+ * requests never leave the process, "pooled" and "netHttp" go through a
+ * {@link LoopbackServer} with the pooled DriveTransport or the plain
+ * java.net transport.
+ * @author p.zachwieja
+ */
+public abstract class EmulatorBenchmark {
+
+    @Param({"mock"})
+    public String transport;
+
+    @Param({"0"})
+    public long latencyMillis;
+
+    @Param({"0"})
+    public double rateLimitRate;
+
+    @Param({"0"})
+    public double serverErrorRate;
+
+    protected DriveEmulator emulator;
+    protected ServiceFixture fixture;
+    protected GoogleDriveService service;
+    private LoopbackServer server;
+    private DriveTransport driveTransport;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        emulator = new DriveEmulator();
+        emulator.setFolders(Arrays.asList("root", "folder"));
+        emulator.init();
+        emulator.getFaults().setLatencyMillis(latencyMillis);
+        emulator.getFaults().setRateLimitRate(rateLimitRate);
+        emulator.getFaults().setServerErrorRate(serverErrorRate);
+        HttpTransport httpTransport;
+        String rootUrl = null;
+        switch (transport) {
+            case "mock":
+                httpTransport = emulator;
+                break;
+            case "pooled":
+                driveTransport = new DriveTransport();
+                driveTransport.init();
+                httpTransport = driveTransport.getTransport();
+                server = new LoopbackServer(emulator);
+                rootUrl = server.start();
+                break;
+            case "netHttp":
+                httpTransport = new NetHttpTransport();
+                server = new LoopbackServer(emulator);
+                rootUrl = server.start();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        fixture = new ServiceFixture(httpTransport, rootUrl);
+        configure();
+        service = fixture.start();
+    }
+
+    /**
+     * Adds files to the emulator store and applies benchmark parameters to
+     * the fixture before the service starts
+     */
+    protected abstract void configure();
+
+    /**
+     * Adds a file straight to the emulator store, without HTTP and faults
+     * @param id File id, null to generate one
+     * @param name File name
+     * @param parent Parent folder id
+     * @param size Size of the zero filled content
+     * @return Created file
+     */
+    protected File addFile(String id, String name, String parent, int size) {
+        return emulator.store().create(new File().setId(id).setName(name).setMimeType("application/octet-stream")
+                .setParents(new ArrayList<>(Arrays.asList(parent))), new byte[size]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        fixture.close();
+        if (server != null) {
+            server.stop();
+        }
+        if (driveTransport != null) {
+            driveTransport.shutdown();
+        }
+    }
+}
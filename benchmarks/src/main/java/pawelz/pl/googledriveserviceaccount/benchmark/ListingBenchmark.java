@@ -0,0 +1,58 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import pawelz.pl.googledriveserviceaccount.service.FieldProfiles;
+
+/**
+ * Listing a large folder as File objects and as streamed FileViews, with the
+ * same fields. Run with {@code -prof gc} to compare gc.alloc.rate.norm.
+ * @author p.zachwieja
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ListingBenchmark extends EmulatorBenchmark {
+
+    @Param({"10000", "100000"})
+    public int children;
+
+    @Param({"1000"})
+    public int pageSize;
+
+    @Override
+    protected void configure() {
+        for (int i = 0; i < children; i++) {
+            addFile(null, "child" + i + ".bin", "folder", 0);
+        }
+    }
+
+    @Benchmark
+    public void childStream(Blackhole blackhole) {
+        service.childStream("folder", FieldProfiles.LISTING, pageSize).forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    public long forEachChild(Blackhole blackhole) throws IOException {
+        return service.forEachChild("folder", pageSize, blackhole::consume);
+    }
+}
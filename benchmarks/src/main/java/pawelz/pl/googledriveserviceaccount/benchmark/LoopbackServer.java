@@ -0,0 +1,130 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loopback HTTP server answering from an in-process transport such as
+ * DriveEmulator, so the real transports and their connection pools take
+ * part in a benchmark. Requests the transport fails with an I/O error,
+ * e.g. an injected read timeout, are answered by closing the connection.
+ * @author p.zachwieja
+ */
+public class LoopbackServer {
+
+    private final MockHttpTransport target;
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String rootUrl;
+
+    /**
+     * @param target Transport to answer from
+     */
+    public LoopbackServer(MockHttpTransport target) {
+        this.target = target;
+    }
+
+    /**
+     * Starts the server
+     * @return Root URL to set on the Drive client
+     * @throws IOException when the server can not start
+     */
+    public String start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        serverExecutor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "drive-loopback");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(serverExecutor);
+        server.createContext("/", this::serve);
+        server.start();
+        rootUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+        return rootUrl;
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+            LowLevelHttpRequest request = target.buildRequest(method != null ? method : exchange.getRequestMethod(),
+                    rootUrl + exchange.getRequestURI().toString().substring(1));
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                String name = header.getKey();
+                if ("Content-Type".equalsIgnoreCase(name)) {
+                    request.setContentType(header.getValue().get(0));
+                }
+                else if ("Content-Encoding".equalsIgnoreCase(name)) {
+                    request.setContentEncoding(header.getValue().get(0));
+                }
+                else if (!"Content-Length".equalsIgnoreCase(name)) {
+                    for (String value : header.getValue()) {
+                        request.addHeader(name, value);
+                    }
+                }
+            }
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            copy(exchange.getRequestBody(), body);
+            if (body.size() > 0) {
+                request.setContentLength(body.size());
+                request.setStreamingContent(body::writeTo);
+            }
+            LowLevelHttpResponse response = request.execute();
+            for (int i = 0; i < response.getHeaderCount(); i++) {
+                exchange.getResponseHeaders().add(response.getHeaderName(i), response.getHeaderValue(i));
+            }
+            if (response.getContentType() != null) {
+                exchange.getResponseHeaders().set("Content-Type", response.getContentType());
+            }
+            InputStream content = response.getContent();
+            int status = response.getStatusCode();
+            if ((content == null) || (status == 204) || (status == 304)) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            // 0 sends the body chunked when its length is not known
+            exchange.sendResponseHeaders(status, Math.max(0, response.getContentLength()));
+            try (InputStream in = content; OutputStream out = exchange.getResponseBody()) {
+                copy(in, out);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * getFile and childList paging
+ * @author p.zachwieja
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class MetadataBenchmark extends EmulatorBenchmark {
+
+    @Param({"100", "5000"})
+    public int children;
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    @Param({"false"})
+    public boolean cache;
+
+    @Override
+    protected void configure() {
+        addFile("file", "file.bin", "root", 1024);
+        for (int i = 0; i < children; i++) {
+            addFile(null, "child" + i + ".bin", "folder", 0);
+        }
+        fixture.getService().setChildPageSize(pageSize);
+        fixture.getMetadataCache().setEnabled(cache);
+    }
+
+    @Benchmark
+    public File getFile() throws IOException {
+        return service.getFile("file", null);
+    }
+
+    @Benchmark
+    public List<File> childList() throws IOException {
+        return service.childList("folder");
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import pawelz.pl.googledriveserviceaccount.service.PermissionBatchResult;
+
+/**
+ * Granting access to many users, batched and one request per user
+ * @author p.zachwieja
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class PermissionBenchmark extends EmulatorBenchmark {
+
+    @Param({"10", "250"})
+    public int users;
+
+    @Param({"100"})
+    public int batchSize;
+
+    @Param({"4"})
+    public int parallelBatches;
+
+    private final List<String> emails = new ArrayList<>();
+
+    @Override
+    protected void configure() {
+        addFile("file", "file.bin", "root", 0);
+        fixture.getPermissionBatcher().setBatchSize(batchSize);
+        fixture.getPermissionBatcher().setParallelBatches(parallelBatches);
+        for (int i = 0; i < users; i++) {
+            emails.add("user" + i + "@gmail.com");
+        }
+    }
+
+    @Benchmark
+    public PermissionBatchResult batched() throws IOException {
+        return service.addPermissionsForUsers("file", emails, "reader", "user", false, null);
+    }
+
+    @Benchmark
+    public int oneByOne() throws IOException {
+        int result = 0;
+        for (String email : emails) {
+            result += service.addPermissionForUser("file", email, "reader", "user", false, null);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.benchmark;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import pawelz.pl.googledriveserviceaccount.service.DownloadReport;
+
+/**
+ * Upload and download of files of several sizes. Bytes per second are
+ * size divided by the reported time.
+ * @author p.zachwieja
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class TransferBenchmark extends EmulatorBenchmark {
+
+    @Param({"262144", "8388608", "67108864"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private MockMultipartFile content;
+    private File file;
+    private Path target;
+    private File uploaded;
+
+    @Override
+    protected void configure() {
+        // the direct flag alone decides how content is sent
+        fixture.getResumableUploader().setDirectUploadThreshold(0);
+        content = new MockMultipartFile("bench.bin", "bench.bin", "application/octet-stream", new byte[size]);
+        file = addFile("file", "bench.bin", "root", size);
+        try {
+            target = Files.createTempFile("download", ".bin");
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        target.toFile().deleteOnExit();
+    }
+
+    @Benchmark
+    public File upload() throws IOException {
+        uploaded = service.uploadFileOnly(direct, content, "folder", null);
+        return uploaded;
+    }
+
+    /**
+     * Drops the uploaded copy, the emulator keeps content in memory
+     */
+    @TearDown(Level.Invocation)
+    public void removeUploaded() {
+        if (uploaded != null) {
+            emulator.store().delete(uploaded.getId());
+            uploaded = null;
+        }
+    }
+
+    @Benchmark
+    public long downloadToChannel() throws IOException {
+        try (WritableByteChannel sink = Channels.newChannel(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        })) {
+            return service.downloadFile(file, sink);
+        }
+    }
+
+    @Benchmark
+    public DownloadReport downloadToPath() throws IOException {
+        return service.downloadFile(file, target);
+    }
+}
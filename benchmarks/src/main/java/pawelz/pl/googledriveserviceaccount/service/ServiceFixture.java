@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * GoogleDriveService wired by hand over a given transport, the way the
+ * Spring context wires it. Components can be configured through their
+ * getters before {@link #start()}.
+ * @author p.zachwieja
+ */
+public class ServiceFixture implements AutoCloseable {
+
+    private final HttpTransport transport;
+    private final String rootUrl;
+
+    private final GoogleDriveService service = new GoogleDriveService();
+    private final DriveRequestExecutor requestExecutor = new DriveRequestExecutor();
+    private final PermissionBatcher permissionBatcher = new PermissionBatcher();
+    private final DeleteBatcher deleteBatcher = new DeleteBatcher();
+    private final ResumableUploader resumableUploader = new ResumableUploader();
+    private final RangedDownloader rangedDownloader = new RangedDownloader();
+    private final FileMetadataCache metadataCache = new FileMetadataCache();
+    private final ContentCache contentCache = new ContentCache();
+    private final FolderTreeWalker treeWalker = new FolderTreeWalker();
+    private final DriveMetrics metrics = new DriveMetrics();
+    private final SearchIndex searchIndex = new SearchIndex();
+    private final FolderPathCache folderPaths = new FolderPathCache();
+    private final FieldProfiles fieldProfiles = new FieldProfiles();
+
+    /**
+     * @param transport Transport to send requests through
+     * @param rootUrl Root URL of the API, null for the Google one
+     */
+    public ServiceFixture(HttpTransport transport, String rootUrl) {
+        this.transport = transport;
+        this.rootUrl = rootUrl;
+        // the emulator is not quota bound, keep the client side limiter out of the measurement
+        requestExecutor.setMaxRequestsPerSecond(1000000);
+        requestExecutor.setBurst(1000000);
+        requestExecutor.setInitialBackoffMillis(10);
+        metadataCache.setEnabled(false);
+        contentCache.setEnabled(false);
+        metrics.setEnabled(false);
+        searchIndex.setEnabled(false);
+        folderPaths.setEnabled(false);
+        service.setFieldsToGet("id,webContentLink,name,webViewLink,parents,permissions");
+    }
+
+    /**
+     * Initializes components
+     * @return Service ready to use
+     * @throws IOException when the upload session directory can not be created
+     */
+    public GoogleDriveService start() throws IOException {
+        requestExecutor.init();
+        Drive.Builder builder = new Drive.Builder(transport, JacksonFactory.getDefaultInstance(), requestExecutor.wrap(null))
+                .setApplicationName("benchmark");
+        if (rootUrl != null) {
+            builder.setRootUrl(rootUrl);
+        }
+        Drive drive = builder.build();
+        permissionBatcher.drive = drive;
+        permissionBatcher.requestExecutor = requestExecutor;
+        permissionBatcher.init();
+        deleteBatcher.drive = drive;
+        deleteBatcher.requestExecutor = requestExecutor;
+        deleteBatcher.init();
+        resumableUploader.drive = drive;
+        resumableUploader.setSessionDir(Files.createTempDirectory("upload-sessions").toString());
+        resumableUploader.init();
+        rangedDownloader.drive = drive;
+        rangedDownloader.init();
+        treeWalker.drive = drive;
+        treeWalker.requestExecutor = requestExecutor;
+        treeWalker.init();
+        service.drive = drive;
+        service.permissionBatcher = permissionBatcher;
+        service.deleteBatcher = deleteBatcher;
+        service.resumableUploader = resumableUploader;
+        service.rangedDownloader = rangedDownloader;
+        service.metadataCache = metadataCache;
+        service.contentCache = contentCache;
+        service.treeWalker = treeWalker;
+        service.requestExecutor = requestExecutor;
+        service.metrics = metrics;
+        service.searchIndex = searchIndex;
+        service.folderPaths = folderPaths;
+        service.fieldProfiles = fieldProfiles;
+        service.init();
+        return service;
+    }
+
+    @Override
+    public void close() {
+        service.shutdown();
+        permissionBatcher.shutdown();
+        deleteBatcher.shutdown();
+        resumableUploader.shutdown();
+        rangedDownloader.shutdown();
+        treeWalker.shutdown();
+    }
+
+    public GoogleDriveService getService() {
+        return service;
+    }
+
+    public DriveRequestExecutor getRequestExecutor() {
+        return requestExecutor;
+    }
+
+    public PermissionBatcher getPermissionBatcher() {
+        return permissionBatcher;
+    }
+
+    public ResumableUploader getResumableUploader() {
+        return resumableUploader;
+    }
+
+    public RangedDownloader getRangedDownloader() {
+        return rangedDownloader;
+    }
+
+    public FileMetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    public ContentCache getContentCache() {
+        return contentCache;
+    }
+
+    public DriveMetrics getMetrics() {
+        return metrics;
+    }
+}
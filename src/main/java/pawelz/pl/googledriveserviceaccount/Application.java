@@ -1,16 +1,16 @@
-package pawelz.pl.googledriveserviceaccount;
-
-
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-
-@SpringBootApplication
-public class Application {
-
-
-
-    public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
-    }
-    
+package pawelz.pl.googledriveserviceaccount;
+
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+
+@SpringBootApplication
+public class Application {
+
+
+
+    public static void main(String[] args) {
+        SpringApplication.run(Application.class, args);
+    }
+    
 }
\ No newline at end of file
@@ -1,70 +1,111 @@
-package pawelz.pl.googledriveserviceaccount.config;
-
-import com.google.api.client.auth.oauth2.Credential;
-import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
-import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.DriveScopes;
-import java.io.File;
-import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-
-import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.util.Collections;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-@Configuration
-@ConfigurationProperties(prefix = "drive")
-public class DriveConfiguration {
-
-    private String emailAddress;
-    private String p12Path;
-    private String appName;
-    private static final Logger logger = LogManager.getLogger(DriveConfiguration.class);
-
-    @Bean
-    public Drive getDriveService() throws GeneralSecurityException, IOException {
-        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-        Credential credential = null;
-        try {
-            logger.debug("Path: {}",p12Path);
-            credential = getCredential(jsonFactory, httpTransport);
-        } catch (IOException | GeneralSecurityException ex) {
-            logger.error(ex.getLocalizedMessage());
-        }
-        return new Drive.Builder(httpTransport, jsonFactory, credential)
-                .setApplicationName(appName)
-                .build();
-    }
-    
-    private Credential getCredential(JsonFactory jsonFactory, HttpTransport httpTransport) throws GeneralSecurityException, IOException {
-        return new GoogleCredential.Builder()
-                .setTransport(httpTransport)
-                .setJsonFactory(jsonFactory)
-                .setServiceAccountId(emailAddress)
-                .setServiceAccountPrivateKeyFromP12File(new File(p12Path))
-                .setServiceAccountScopes(Collections.singleton(DriveScopes.DRIVE))
-                .build();
-    }
-
-    public void setEmailAddress(String emailAddress) {
-        this.emailAddress = emailAddress;
-    }
-
-    public void setP12Path(String p12Path) {
-        this.p12Path = p12Path;
-    }
-
-    public void setAppName(String appName) {
-        this.appName = appName;
-    }
-    
-    
-}
+package pawelz.pl.googledriveserviceaccount.config;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import pawelz.pl.googledriveserviceaccount.emulator.DriveEmulator;
+import pawelz.pl.googledriveserviceaccount.service.DriveAccountPool;
+import pawelz.pl.googledriveserviceaccount.service.DriveRequestExecutor;
+
+@Configuration
+@ConfigurationProperties(prefix = "drive")
+public class DriveConfiguration {
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    DriveTransport driveTransport;
+
+    @Inject
+    DriveAccountPool accountPool;
+
+    private String emailAddress;
+    private String p12Path;
+    private String appName;
+    private String jsonFactory = JacksonFactory.class.getName();
+    private static final Logger logger = LogManager.getLogger(DriveConfiguration.class);
+
+    @Bean
+    @Profile("!emulator")
+    public Drive getDriveService() throws GeneralSecurityException, IOException {
+        JsonFactory jsonFactory = getJsonFactory();
+        HttpTransport httpTransport = driveTransport.getTransport();
+        if (accountPool.isEmpty()) {
+            logger.debug("Path: {}",p12Path);
+            accountPool.add(emailAddress, getCredential(jsonFactory, httpTransport));
+        }
+        return new Drive.Builder(httpTransport, jsonFactory, requestExecutor.wrap(driveTransport.wrap(accountPool)))
+                .setApplicationName(driveTransport.applicationName(appName))
+                .build();
+    }
+    
+    /**
+     * Drive client answered by the in-memory emulator, without credentials
+     * @param emulator Emulator
+     * @return Drive client
+     */
+    @Bean
+    @Profile("emulator")
+    public Drive getEmulatedDriveService(DriveEmulator emulator) {
+        logger.info("Using Drive emulator instead of Google Drive");
+        return new Drive.Builder(emulator, getJsonFactory(), requestExecutor.wrap(driveTransport.wrap(null)))
+                .setApplicationName(driveTransport.applicationName(appName))
+                .build();
+    }
+    
+    /**
+     * JSON factory of the Drive client, set by drive.json-factory. Any Google
+     * client JsonFactory with a public no-argument constructor can be used,
+     * e.g. GsonFactory when google-http-client-gson is on the class path.
+     * @return JSON factory
+     */
+    private JsonFactory getJsonFactory() {
+        if (JacksonFactory.class.getName().equals(jsonFactory)) {
+            return JacksonFactory.getDefaultInstance();
+        }
+        try {
+            logger.info("Using JSON factory {}", jsonFactory);
+            return Class.forName(jsonFactory).asSubclass(JsonFactory.class).newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalStateException("Can not create JSON factory " + jsonFactory, e);
+        }
+    }
+    
+    private Credential getCredential(JsonFactory jsonFactory, HttpTransport httpTransport) throws GeneralSecurityException, IOException {
+        DriveAccountPool.AccountKey key = new DriveAccountPool.AccountKey();
+        key.setEmailAddress(emailAddress);
+        key.setP12Path(p12Path);
+        return DriveAccountPool.credential(key, httpTransport, jsonFactory);
+    }
+
+    public void setEmailAddress(String emailAddress) {
+        this.emailAddress = emailAddress;
+    }
+
+    public void setP12Path(String p12Path) {
+        this.p12Path = p12Path;
+    }
+
+    public void setAppName(String appName) {
+        this.appName = appName;
+    }
+
+    public void setJsonFactory(String jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+    
+    
+}
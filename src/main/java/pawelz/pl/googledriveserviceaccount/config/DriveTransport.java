@@ -0,0 +1,216 @@
+package pawelz.pl.googledriveserviceaccount.config;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * HTTP transport shared by the Drive client and its credential. By default
+ * connections are kept in a pool and reused across threads; idle and
+ * expired connections are closed in the background.
+ * ApacheHttpTransport of this client version configures the HttpClient
+ * through getParams(), so the pool is built on DefaultHttpClient.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.transport")
+@SuppressWarnings("deprecation")
+public class DriveTransport {
+
+    private boolean pooled = true;
+    private int maxConnections = 64;
+    private int maxConnectionsPerRoute = 32;
+    private int connectTimeoutMillis = 20000;
+    private int readTimeoutMillis = 60000;
+    private long keepAliveSeconds = 60;
+    private long idleTimeoutSeconds = 30;
+    private long evictionIntervalSeconds = 10;
+    private boolean staleChecking = true;
+    private boolean gzip = true;
+
+    private HttpTransport transport;
+    private PoolingClientConnectionManager connectionManager;
+    private ScheduledExecutorService evictor;
+    private static final Logger logger = LogManager.getLogger(DriveTransport.class);
+
+    @PostConstruct
+    public void init() throws GeneralSecurityException, IOException {
+        if (!pooled) {
+            transport = GoogleNetHttpTransport.newTrustedTransport();
+            return;
+        }
+        connectionManager = new PoolingClientConnectionManager(SchemeRegistryFactory.createSystemDefault());
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        DefaultHttpClient client = new DefaultHttpClient(connectionManager);
+        HttpParams params = client.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeoutMillis);
+        HttpConnectionParams.setSoTimeout(params, readTimeoutMillis);
+        HttpConnectionParams.setTcpNoDelay(params, true);
+        // a connection the server closed while it sat in the pool would fail a POST that the retry handler below
+        // does not send again, so it is checked before use on top of the idle eviction
+        HttpConnectionParams.setStaleCheckingEnabled(params, staleChecking);
+        client.setKeepAliveStrategy((response, context) -> {
+            long server = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            long max = TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+            return server > 0 ? Math.min(server, max) : max;
+        });
+        // one retry of requests that were not sent in full, and of sent idempotent ones; a POST that was sent
+        // is not retried. Of the POSTs only files.create is safe to replay, GoogleDriveService.create sends it
+        // again under its generated id; permissions.create, batches and upload session POSTs are not.
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(1, false));
+        transport = new ApacheHttpTransport(client);
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "drive-connection-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        evictor.scheduleWithFixedDelay(this::evict, evictionIntervalSeconds, evictionIntervalSeconds, TimeUnit.SECONDS);
+        logger.debug("Pooled transport: {} connections, {} per route", maxConnections, maxConnectionsPerRoute);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        if (connectionManager != null) {
+            connectionManager.shutdown();
+        }
+    }
+
+    private void evict() {
+        connectionManager.closeExpiredConnections();
+        connectionManager.closeIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS);
+        logger.trace("Connection pool: {}", connectionManager.getTotalStats());
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Wraps request initializer, applying timeouts and gzip negotiation
+     * @param delegate Initializer to run first, may be null
+     * @return Initializer
+     */
+    public HttpRequestInitializer wrap(HttpRequestInitializer delegate) {
+        return request -> {
+            if (delegate != null) {
+                delegate.initialize(request);
+            }
+            request.setConnectTimeout(connectTimeoutMillis);
+            request.setReadTimeout(readTimeoutMillis);
+            if (!gzip) {
+                request.getHeaders().setAcceptEncoding(null);
+            }
+        };
+    }
+
+    /**
+     * Google APIs send gzip compressed responses only to clients whose
+     * user agent contains "gzip"
+     * @param appName Application name
+     * @return Application name to use for the Drive client
+     */
+    public String applicationName(String appName) {
+        return gzip ? appName + " (gzip)" : appName;
+    }
+
+    private PoolStats stats() {
+        return connectionManager == null ? null : connectionManager.getTotalStats();
+    }
+
+    /**
+     * @return Connections currently used by requests
+     */
+    public int getLeasedConnections() {
+        PoolStats s = stats();
+        return s == null ? 0 : s.getLeased();
+    }
+
+    /**
+     * @return Open connections waiting in the pool
+     */
+    public int getAvailableConnections() {
+        PoolStats s = stats();
+        return s == null ? 0 : s.getAvailable();
+    }
+
+    /**
+     * @return Requests waiting for a connection
+     */
+    public int getPendingConnections() {
+        PoolStats s = stats();
+        return s == null ? 0 : s.getPending();
+    }
+
+    public int getMaxConnections() {
+        PoolStats s = stats();
+        return s == null ? 0 : s.getMax();
+    }
+
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    public void setReadTimeoutMillis(int readTimeoutMillis) {
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    public void setKeepAliveSeconds(long keepAliveSeconds) {
+        this.keepAliveSeconds = keepAliveSeconds;
+    }
+
+    public void setIdleTimeoutSeconds(long idleTimeoutSeconds) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    public void setEvictionIntervalSeconds(long evictionIntervalSeconds) {
+        this.evictionIntervalSeconds = evictionIntervalSeconds;
+    }
+
+    /**
+     * @param staleChecking Check a pooled connection before each request,
+     * about a millisecond, instead of failing a POST on one the server closed
+     */
+    public void setStaleChecking(boolean staleChecking) {
+        this.staleChecking = staleChecking;
+    }
+
+    public void setGzip(boolean gzip) {
+        this.gzip = gzip;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+/**
+ * Error answered by the emulator with Drive's JSON error body
+ * @author p.zachwieja
+ */
+public class DriveApiException extends RuntimeException {
+
+    private final int status;
+    private final String reason;
+
+    public DriveApiException(int status, String reason, String message) {
+        super(message);
+        this.status = status;
+        this.reason = reason;
+    }
+
+    static DriveApiException notFound(String what, String id) {
+        return new DriveApiException(404, "notFound", what + " not found: " + id + ".");
+    }
+
+    static DriveApiException invalid(String message) {
+        return new DriveApiException(400, "invalid", message);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.GeneratedIds;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.PermissionList;
+import com.google.api.services.drive.model.StartPageToken;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import javax.annotation.PostConstruct;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+/**
+ * In-memory Drive v3 API served as an HTTP transport, so the Drive client
+ * and everything built on it run without network access or credentials.
+ * It covers files get, list, create, update, delete and generateIds,
+ * media download with ranges, simple, multipart and resumable uploads,
+ * permissions, changes and batch requests. Before answering, every
+ * request goes through a {@link FaultInjector} which adds latency and
+ * answers some requests with 429, 503 or a read timeout.
+ * <p>
+ * The {@code q} parameter supports the usual parent, name, mimeType,
+ * trashed and fullText conditions; fullText matches substrings of the
+ * name, description and text content. Missing {@code fields} select the
+ * same defaults as Drive.
+ * @author p.zachwieja
+ */
+@Component
+@Profile("emulator")
+@ConfigurationProperties(prefix = "drive.emulator")
+public class DriveEmulator extends MockHttpTransport {
+
+    private static final Logger LOGGER = LogManager.getLogger(DriveEmulator.class);
+
+    private static final String JSON = "application/json; charset=UTF-8";
+    private static final String FILE_DEFAULT_FIELDS = "kind,id,name,mimeType";
+    private static final String LIST_DEFAULT_FIELDS = "kind,nextPageToken,incompleteSearch,files(" + FILE_DEFAULT_FIELDS + ")";
+    private static final String PERMISSION_DEFAULT_FIELDS = "kind,id,type,role";
+    private static final Pattern CONTENT_RANGE = Pattern.compile("bytes (?:(\\d+)-(\\d+)|\\*)/(\\d+|\\*)");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+    private final FaultInjector faults = new FaultInjector();
+    private final ConcurrentMap<String, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+
+    private List<String> folders = new ArrayList<>(Arrays.asList("root"));
+    private String ownerEmail = "owner@emulator.local";
+
+    private volatile DriveStore store;
+
+    /**
+     * Resumable upload in progress
+     */
+    private static class UploadSession {
+
+        private final File metadata;
+        private final String fileId;
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        UploadSession(File metadata, String fileId) {
+            this.metadata = metadata;
+            this.fileId = fileId;
+        }
+    }
+
+    /**
+     * Answer of the emulator
+     */
+    private static class Reply {
+
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        Reply(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        Reply header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    /**
+     * Creates the store and the configured folders
+     */
+    @PostConstruct
+    public void init() {
+        DriveStore s = new DriveStore(ownerEmail);
+        for (String folder : folders) {
+            s.createFolder(folder, folder);
+        }
+        sessions.clear();
+        store = s;
+        LOGGER.info("Drive emulator started with folders {}", folders);
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+        return new MockLowLevelHttpRequest(url) {
+            @Override
+            public LowLevelHttpResponse execute() throws IOException {
+                Map<String, List<String>> headers = new LinkedHashMap<>(getHeaders());
+                if (getContentType() != null) {
+                    headers.put("content-type", Arrays.asList(getContentType()));
+                }
+                Reply reply = handle(method, new GenericUrl(url), headers, body(this));
+                MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                        .setStatusCode(reply.status)
+                        .setContentType(reply.contentType);
+                reply.headers.forEach(response::addHeader);
+                if (reply.body != null) {
+                    response.setContent(reply.body).setContentLength(reply.body.length);
+                }
+                return response;
+            }
+        };
+    }
+
+    private static byte[] body(LowLevelHttpRequest request) throws IOException {
+        if (request.getStreamingContent() == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        if (!"gzip".equalsIgnoreCase(request.getContentEncoding())) {
+            return out.toByteArray();
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            return readAll(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private Reply handle(String method, GenericUrl url, Map<String, List<String>> headers, byte[] body) throws IOException {
+        requests.incrementAndGet();
+        switch (faults.next()) {
+            case RATE_LIMIT:
+                return error(new DriveApiException(429, "rateLimitExceeded", "Rate Limit Exceeded"));
+            case SERVER_ERROR:
+                return error(new DriveApiException(503, "backendError", "Backend Error"));
+            default:
+                break;
+        }
+        List<String> path = url.getPathParts();
+        if ((path.size() > 1) && "batch".equals(path.get(1))) {
+            // only the Drive batch endpoint is left, the global /batch one is shut down
+            if (!path.equals(Arrays.asList("", "batch", "drive", "v3"))) {
+                return error(DriveApiException.notFound("Batch endpoint", url.build()));
+            }
+            return batch(first(headers, "Content-Type"), body);
+        }
+        return dispatch(method, url, headers, body);
+    }
+
+    private Reply dispatch(String method, GenericUrl url, Map<String, List<String>> headers, byte[] body) throws IOException {
+        try {
+            return route(method, url, headers, body);
+        } catch (DriveApiException ex) {
+            return error(ex);
+        }
+    }
+
+    private Reply route(String method, GenericUrl url, Map<String, List<String>> headers, byte[] body) throws IOException {
+        DriveStore s = store();
+        List<String> path = url.getPathParts();
+        boolean upload = (path.size() > 1) && "upload".equals(path.get(1));
+        int files = path.indexOf("files");
+        if (files < 0) {
+            int changes = path.indexOf("changes");
+            if (changes < 0) {
+                throw DriveApiException.notFound("Resource", url.build());
+            }
+            if ((path.size() > changes + 1) && "startPageToken".equals(path.get(changes + 1))) {
+                return json(new StartPageToken().setKind("drive#startPageToken").setStartPageToken(s.startPageToken()), null);
+            }
+            return json(s.changes(param(url, "pageToken"), intParam(url, "pageSize")), param(url, "fields"));
+        }
+        String fileId = path.size() > files + 1 ? path.get(files + 1) : null;
+        if (upload) {
+            return upload(method, url, headers, body, fileId);
+        }
+        if (fileId == null) {
+            if ("POST".equals(method)) {
+                return json(s.create(parse(body, File.class), null), fields(url, FILE_DEFAULT_FIELDS));
+            }
+            return json(s.list(QueryFilter.parse(param(url, "q")), intParam(url, "pageSize"), param(url, "pageToken")),
+                    fields(url, LIST_DEFAULT_FIELDS));
+        }
+        if ("generateIds".equals(fileId)) {
+            Integer count = intParam(url, "count");
+            return json(new GeneratedIds().setSpace("drive").setIds(s.generateIds(count == null ? 10 : Math.min(1000, count)))
+                    .set("kind", "drive#generatedIds"), null);
+        }
+        if (path.size() > files + 2) {
+            if (!"permissions".equals(path.get(files + 2))) {
+                throw DriveApiException.notFound("Resource", url.build());
+            }
+            return permissions(method, url, body, fileId, path.size() > files + 3 ? path.get(files + 3) : null);
+        }
+        switch (method) {
+            case "GET":
+                if ("media".equals(param(url, "alt"))) {
+                    return media(s.content(fileId), first(headers, "Range"));
+                }
+                return json(s.get(fileId), fields(url, FILE_DEFAULT_FIELDS));
+            case "PATCH":
+                return json(s.update(fileId, parse(body, File.class), param(url, "addParents"), param(url, "removeParents"), null),
+                        fields(url, FILE_DEFAULT_FIELDS));
+            case "DELETE":
+                s.delete(fileId);
+                return new Reply(204, null, null);
+            default:
+                throw new DriveApiException(405, "methodNotAllowed", "Method " + method + " not allowed");
+        }
+    }
+
+    private Reply permissions(String method, GenericUrl url, byte[] body, String fileId, String permissionId) throws IOException {
+        DriveStore s = store();
+        if (permissionId == null) {
+            if ("POST".equals(method)) {
+                return json(s.createPermission(fileId, parse(body, Permission.class)), fields(url, PERMISSION_DEFAULT_FIELDS));
+            }
+            return json(new PermissionList().setKind("drive#permissionList").setPermissions(s.listPermissions(fileId)),
+                    fields(url, "kind,nextPageToken,permissions(" + PERMISSION_DEFAULT_FIELDS + ")"));
+        }
+        switch (method) {
+            case "GET":
+                for (Permission p : s.listPermissions(fileId)) {
+                    if (p.getId().equals(permissionId)) {
+                        return json(p, fields(url, PERMISSION_DEFAULT_FIELDS));
+                    }
+                }
+                throw DriveApiException.notFound("Permission", permissionId);
+            case "PATCH":
+                return json(s.updatePermission(fileId, permissionId, parse(body, Permission.class).getRole()),
+                        fields(url, PERMISSION_DEFAULT_FIELDS));
+            case "DELETE":
+                s.deletePermission(fileId, permissionId);
+                return new Reply(204, null, null);
+            default:
+                throw new DriveApiException(405, "methodNotAllowed", "Method " + method + " not allowed");
+        }
+    }
+
+    private Reply upload(String method, GenericUrl url, Map<String, List<String>> headers, byte[] body, String fileId) throws IOException {
+        String sessionId = param(url, "upload_id");
+        if (sessionId != null) {
+            return uploadChunk(url, first(headers, "Content-Range"), body, sessionId);
+        }
+        String uploadType = param(url, "uploadType");
+        if ("resumable".equals(uploadType)) {
+            String id = UUID.randomUUID().toString();
+            File metadata = parse(body, File.class);
+            if (metadata.getMimeType() == null) {
+                metadata.setMimeType(first(headers, "X-Upload-Content-Type"));
+            }
+            sessions.put(id, new UploadSession(metadata, fileId));
+            return new Reply(200, null, null).header("Location", url.build() + "&upload_id=" + id);
+        }
+        File metadata;
+        byte[] content;
+        if ("multipart".equals(uploadType)) {
+            List<MultipartBody.Part> parts = MultipartBody.parse(body, MultipartBody.boundary(first(headers, "Content-Type")));
+            if (parts.size() != 2) {
+                throw DriveApiException.invalid("Multipart upload needs metadata and media parts");
+            }
+            metadata = parse(parts.get(0).getBody(), File.class);
+            content = parts.get(1).getBody();
+            if (metadata.getMimeType() == null) {
+                metadata.setMimeType(parts.get(1).header("Content-Type"));
+            }
+        }
+        else {
+            metadata = new File().setMimeType(first(headers, "Content-Type"));
+            content = body;
+        }
+        return store(url, metadata, fileId, content);
+    }
+
+    private Reply uploadChunk(GenericUrl url, String contentRange, byte[] body, String sessionId) throws IOException {
+        UploadSession session = sessions.get(sessionId);
+        if (session == null) {
+            throw DriveApiException.notFound("Upload session", sessionId);
+        }
+        Matcher m = CONTENT_RANGE.matcher(contentRange == null ? "" : contentRange);
+        if (!m.matches()) {
+            throw DriveApiException.invalid("Invalid Content-Range " + contentRange);
+        }
+        byte[] content;
+        synchronized (session) {
+            long received = session.content.size();
+            if (m.group(1) != null) {
+                long from = Long.parseLong(m.group(1));
+                if (from > received) {
+                    return resumeIncomplete(received);
+                }
+                int skip = (int) (received - from);
+                if (skip < body.length) {
+                    session.content.write(body, skip, body.length - skip);
+                }
+            }
+            long total = "*".equals(m.group(3)) ? -1 : Long.parseLong(m.group(3));
+            if ((total < 0) || (session.content.size() < total)) {
+                return resumeIncomplete(session.content.size());
+            }
+            content = session.content.toByteArray();
+        }
+        sessions.remove(sessionId);
+        return store(url, session.metadata, session.fileId, content);
+    }
+
+    private static Reply resumeIncomplete(long received) {
+        Reply reply = new Reply(308, null, null);
+        return received == 0 ? reply : reply.header("Range", "bytes=0-" + (received - 1));
+    }
+
+    private Reply store(GenericUrl url, File metadata, String fileId, byte[] content) throws IOException {
+        File file = fileId == null
+                ? store().create(metadata, content)
+                : store().update(fileId, metadata, param(url, "addParents"), param(url, "removeParents"), content);
+        return json(file, fields(url, FILE_DEFAULT_FIELDS));
+    }
+
+    private static Reply media(byte[] content, String range) {
+        if (range == null) {
+            return new Reply(200, "application/octet-stream", content);
+        }
+        Matcher m = RANGE.matcher(range);
+        if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+            throw DriveApiException.invalid("Invalid Range " + range);
+        }
+        long from;
+        long to;
+        if (m.group(1).isEmpty()) {
+            from = Math.max(0, content.length - Long.parseLong(m.group(2)));
+            to = content.length - 1;
+        }
+        else {
+            from = Long.parseLong(m.group(1));
+            to = m.group(2).isEmpty() ? content.length - 1 : Math.min(content.length - 1, Long.parseLong(m.group(2)));
+        }
+        if (from >= content.length) {
+            return new Reply(416, null, null).header("Content-Range", "bytes */" + content.length);
+        }
+        return new Reply(206, "application/octet-stream", Arrays.copyOfRange(content, (int) from, (int) to + 1))
+                .header("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+    }
+
+    private Reply batch(String contentType, byte[] body) throws IOException {
+        MultipartBody response = new MultipartBody("batch_" + UUID.randomUUID().toString().replace("-", ""));
+        for (MultipartBody.Part part : MultipartBody.parse(body, MultipartBody.boundary(contentType))) {
+            MultipartBody.Part request = MultipartBody.httpMessage(part);
+            String[] line = request.getStartLine().split(" ");
+            Map<String, List<String>> headers = new LinkedHashMap<>();
+            String type = request.header("Content-Type");
+            if (type != null) {
+                headers.put("Content-Type", Arrays.asList(type));
+            }
+            String target = line[1].startsWith("/") ? "https://www.googleapis.com" + line[1] : line[1];
+            Reply reply = dispatch(line[0], new GenericUrl(target), headers, request.getBody());
+            response.addResponse(part.header("Content-ID"), reply.status, reply.contentType, reply.body);
+        }
+        return new Reply(200, response.getContentType(), response.build());
+    }
+
+    private Reply json(Object resource, String fields) throws IOException {
+        FieldMask mask = FieldMask.parse(fields);
+        Object selected = resource;
+        if (fields != null) {
+            selected = mask.apply(jsonFactory.fromString(jsonFactory.toString(resource), GenericJson.class));
+        }
+        return new Reply(200, JSON, jsonFactory.toString(selected).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Reply error(DriveApiException ex) throws IOException {
+        Map<String, Object> detail = new LinkedHashMap<>();
+        detail.put("domain", "global");
+        detail.put("reason", ex.getReason());
+        detail.put("message", ex.getMessage());
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("errors", Arrays.asList(detail));
+        error.put("code", ex.getStatus());
+        error.put("message", ex.getMessage());
+        GenericJson json = new GenericJson();
+        json.set("error", error);
+        LOGGER.debug("Answering {}: {}", ex.getStatus(), ex.getMessage());
+        return new Reply(ex.getStatus(), JSON, jsonFactory.toString(json).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private <T> T parse(byte[] body, Class<T> type) throws IOException {
+        if ((body == null) || (body.length == 0)) {
+            try {
+                return type.newInstance();
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        return jsonFactory.fromString(new String(body, StandardCharsets.UTF_8), type);
+    }
+
+    /**
+     * @return Selector of the request, the resource's defaults when not given, null for everything
+     */
+    private static String fields(GenericUrl url, String defaults) {
+        String fields = param(url, "fields");
+        if (fields == null) {
+            return defaults;
+        }
+        return "*".equals(fields.trim()) ? null : fields;
+    }
+
+    private static String param(GenericUrl url, String name) {
+        Object value = url.getFirst(name);
+        return value == null ? null : value.toString();
+    }
+
+    private static Integer intParam(GenericUrl url, String name) {
+        String value = param(url, name);
+        try {
+            return value == null ? null : Integer.valueOf(value);
+        } catch (NumberFormatException ex) {
+            throw DriveApiException.invalid("Invalid Value: " + name);
+        }
+    }
+
+    private static String first(Map<String, List<String>> headers, String name) {
+        for (Map.Entry<String, List<String>> e : headers.entrySet()) {
+            if (e.getKey().equalsIgnoreCase(name) && !e.getValue().isEmpty()) {
+                return e.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Store, created on first use when the emulator is not managed by Spring
+     */
+    public DriveStore store() {
+        if (store == null) {
+            synchronized (this) {
+                if (store == null) {
+                    init();
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @return Requests received, batches counted once
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public FaultInjector getFaults() {
+        return faults;
+    }
+
+    public List<String> getFolders() {
+        return folders;
+    }
+
+    public void setFolders(List<String> folders) {
+        this.folders = folders;
+    }
+
+    public String getOwnerEmail() {
+        return ownerEmail;
+    }
+
+    public void setOwnerEmail(String ownerEmail) {
+        this.ownerEmail = ownerEmail;
+    }
+}
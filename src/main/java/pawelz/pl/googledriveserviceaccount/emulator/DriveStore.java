@@ -0,0 +1,570 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory files, permissions and change log behind {@link DriveEmulator}.
+ * Every file is guarded by its own lock, so operations on different files
+ * do not wait for each other. Lists are ordered by id and page tokens hold
+ * the last id returned, so files created while paging do not shift pages.
+ * @author p.zachwieja
+ */
+public class DriveStore {
+
+    public static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    private static final long MAX_CHANGES = 100000;
+
+    private final ConcurrentMap<String, Entry> files = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Set<String>> children = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Change> changes = new ConcurrentSkipListMap<>();
+    private final AtomicLong changeCounter = new AtomicLong();
+    private final AtomicLong permissionIds = new AtomicLong();
+
+    private final String ownerEmail;
+
+    public DriveStore(String ownerEmail) {
+        this.ownerEmail = ownerEmail;
+    }
+
+    /**
+     * Stored file
+     */
+    public static class Entry {
+
+        private final File file;
+        private final List<Permission> permissions = new ArrayList<>();
+        private byte[] content;
+        private volatile String text = "";
+
+        Entry(File file) {
+            this.file = file;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return Lower case name, description and text content
+         */
+        public String getText() {
+            return text;
+        }
+
+        synchronized byte[] getContent() {
+            return content;
+        }
+
+        /**
+         * @param email Email address
+         * @param collection owners, writers or readers
+         * @return Whether the user has the role or a stronger one
+         */
+        public synchronized boolean hasAccess(String email, String collection) {
+            for (Permission p : permissions) {
+                if (email.equalsIgnoreCase(p.getEmailAddress())) {
+                    String role = p.getRole();
+                    switch (collection) {
+                        case "owners":
+                            return "owner".equals(role);
+                        case "writers":
+                            return "owner".equals(role) || "organizer".equals(role) || "writer".equals(role);
+                        default:
+                            return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private void index() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(file.getName() == null ? "" : file.getName());
+            if (file.getDescription() != null) {
+                sb.append('\n').append(file.getDescription());
+            }
+            if ((content != null) && isText(file.getMimeType())) {
+                sb.append('\n').append(new String(content, StandardCharsets.UTF_8));
+            }
+            text = sb.toString().toLowerCase(Locale.ROOT);
+        }
+
+        private synchronized File view() {
+            File copy = file.clone();
+            List<Permission> perms = new ArrayList<>(permissions.size());
+            for (Permission p : permissions) {
+                perms.add(p.clone());
+            }
+            return copy.setPermissions(perms);
+        }
+    }
+
+    private static boolean isText(String mimeType) {
+        return (mimeType != null) && (mimeType.startsWith("text/") || mimeType.endsWith("json") || mimeType.endsWith("xml"));
+    }
+
+    /**
+     * Creates folder with a fixed id, for the root and app folders
+     * @param id Folder id
+     * @param name Folder name
+     */
+    public void createFolder(String id, String name) {
+        File folder = new File().setId(id).setName(name).setMimeType(FOLDER_MIME_TYPE);
+        files.computeIfAbsent(id, i -> newEntry(folder, null));
+    }
+
+    /**
+     * @param metadata New file, id is generated when not set
+     * @param content Content, null for folders and empty files
+     * @return Created file
+     * @throws DriveApiException 409 when the id is taken, 404 when a parent does not exist
+     */
+    public File create(File metadata, byte[] content) {
+        File file = metadata.clone();
+        if (file.getId() == null) {
+            file.setId(newId());
+        }
+        if ((file.getParents() == null) || file.getParents().isEmpty()) {
+            file.setParents(new ArrayList<>(Collections.singletonList("root")));
+        }
+        for (String parent : file.getParents()) {
+            if (!files.containsKey(parent)) {
+                throw DriveApiException.notFound("File", parent);
+            }
+        }
+        if (file.getMimeType() == null) {
+            file.setMimeType(DEFAULT_MIME_TYPE);
+        }
+        Entry entry = newEntry(file, content);
+        if (files.putIfAbsent(file.getId(), entry) != null) {
+            throw new DriveApiException(409, "duplicate", "A file already exists with the provided ID.");
+        }
+        for (String parent : file.getParents()) {
+            childrenOf(parent).add(file.getId());
+        }
+        recordChange(file.getId(), entry);
+        return entry.view();
+    }
+
+    private Entry newEntry(File file, byte[] content) {
+        DateTime now = new DateTime(System.currentTimeMillis());
+        file.setKind("drive#file").setCreatedTime(now).setModifiedTime(now).setTrashed(false).setVersion(1L)
+                .setWebViewLink("https://drive.google.com/file/d/" + file.getId() + "/view")
+                .setWebContentLink("https://drive.google.com/uc?id=" + file.getId() + "&export=download");
+        Entry entry = new Entry(file);
+        entry.permissions.add(new Permission().setId(newPermissionId()).setType("user").setRole("owner")
+                .setEmailAddress(ownerEmail).setKind("drive#permission"));
+        setContent(entry, content);
+        return entry;
+    }
+
+    private static void setContent(Entry entry, byte[] content) {
+        entry.content = content;
+        if (content != null) {
+            entry.file.setSize((long) content.length).setMd5Checksum(md5(content));
+        }
+        entry.index();
+    }
+
+    private static String md5(byte[] content) {
+        try {
+            StringBuilder sb = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("MD5").digest(content)) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private Set<String> childrenOf(String parent) {
+        return children.computeIfAbsent(parent, p -> ConcurrentHashMap.newKeySet());
+    }
+
+    /**
+     * @param id File id
+     * @return Copy of the file with its permissions
+     * @throws DriveApiException 404 when the file does not exist
+     */
+    public File get(String id) {
+        return entry(id).view();
+    }
+
+    /**
+     * @param id File id
+     * @return Content, empty for files created without content
+     */
+    public byte[] content(String id) {
+        Entry entry = entry(id);
+        if (FOLDER_MIME_TYPE.equals(entry.file.getMimeType())) {
+            throw new DriveApiException(403, "fileNotDownloadable", "Only files with binary content can be downloaded.");
+        }
+        byte[] content = entry.getContent();
+        return content == null ? new byte[0] : content;
+    }
+
+    Entry entry(String id) {
+        Entry entry = files.get(id);
+        if (entry == null) {
+            throw DriveApiException.notFound("File", id);
+        }
+        return entry;
+    }
+
+    /**
+     * Applies patch of files.update
+     * @param id File id
+     * @param patch Fields to change
+     * @param addParents Comma separated folders to add, may be null
+     * @param removeParents Comma separated folders to remove, may be null
+     * @param content New content, null to keep
+     * @return Updated file
+     */
+    public File update(String id, File patch, String addParents, String removeParents, byte[] content) {
+        Entry entry = entry(id);
+        synchronized (entry) {
+            if (patch != null) {
+                for (Map.Entry<String, Object> field : patch.entrySet()) {
+                    if (!"id".equals(field.getKey()) && !"parents".equals(field.getKey())) {
+                        entry.file.set(field.getKey(), field.getValue());
+                    }
+                }
+            }
+            List<String> parents = new ArrayList<>(entry.file.getParents());
+            for (String parent : split(removeParents)) {
+                if (parents.remove(parent)) {
+                    Set<String> siblings = children.get(parent);
+                    if (siblings != null) {
+                        siblings.remove(id);
+                    }
+                }
+            }
+            for (String parent : split(addParents)) {
+                entry(parent);
+                if (!parents.contains(parent)) {
+                    parents.add(parent);
+                    childrenOf(parent).add(id);
+                }
+            }
+            entry.file.setParents(parents);
+            if (content != null) {
+                setContent(entry, content);
+            }
+            else {
+                entry.index();
+            }
+            entry.file.setModifiedTime(new DateTime(System.currentTimeMillis()))
+                    .setVersion(entry.file.getVersion() + 1);
+        }
+        recordChange(id, entry);
+        return entry.view();
+    }
+
+    private static List<String> split(String ids) {
+        List<String> result = new ArrayList<>();
+        if (ids != null) {
+            for (String id : ids.split(",")) {
+                if (!id.trim().isEmpty()) {
+                    result.add(id.trim());
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes file and, for folders, files left without a parent
+     * @param id File id
+     */
+    public void delete(String id) {
+        Entry entry = files.remove(id);
+        if (entry == null) {
+            throw DriveApiException.notFound("File", id);
+        }
+        recordRemoval(id);
+        for (String parent : entry.file.getParents()) {
+            Set<String> siblings = children.get(parent);
+            if (siblings != null) {
+                siblings.remove(id);
+            }
+        }
+        Set<String> orphans = children.remove(id);
+        if (orphans != null) {
+            for (String child : orphans) {
+                Entry c = files.get(child);
+                if (c == null) {
+                    continue;
+                }
+                boolean orphaned;
+                synchronized (c) {
+                    List<String> parents = new ArrayList<>(c.file.getParents());
+                    parents.remove(id);
+                    c.file.setParents(parents);
+                    orphaned = parents.isEmpty();
+                }
+                if (orphaned) {
+                    try {
+                        delete(child);
+                    } catch (DriveApiException ex) {
+                        // deleted concurrently
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param filter Query
+     * @param pageSize Page size, capped at 1000
+     * @param pageToken Token of the previous page, null for the first one
+     * @return Page of files
+     */
+    public FileList list(QueryFilter filter, Integer pageSize, String pageToken) {
+        int size = pageSize == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+        Set<String> scope = filter.parentScope();
+        Collection<String> candidates;
+        if (scope == null) {
+            candidates = files.keySet();
+        }
+        else {
+            candidates = new ArrayList<>();
+            for (String parent : scope) {
+                Set<String> ids = children.get(parent);
+                if (ids != null) {
+                    candidates.addAll(ids);
+                }
+            }
+        }
+        TreeSet<String> sorted = new TreeSet<>(candidates);
+        Set<String> page = pageToken == null ? sorted : sorted.tailSet(pageToken, false);
+        List<File> result = new ArrayList<>();
+        String last = null;
+        boolean more = false;
+        for (String id : page) {
+            Entry entry = files.get(id);
+            if ((entry == null) || !filter.test(entry)) {
+                continue;
+            }
+            if (result.size() == size) {
+                more = true;
+                break;
+            }
+            result.add(entry.view());
+            last = id;
+        }
+        FileList list = new FileList().setKind("drive#fileList").setFiles(result);
+        return more ? list.setNextPageToken(last) : list;
+    }
+
+    /**
+     * @param count Number of ids
+     * @return Ids not used by any file
+     */
+    public List<String> generateIds(int count) {
+        List<String> ids = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ids.add(newId());
+        }
+        return ids;
+    }
+
+    private static String newId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    private String newPermissionId() {
+        return String.format("%020d", permissionIds.incrementAndGet());
+    }
+
+    /**
+     * @param fileId File id
+     * @return Copies of the permissions
+     */
+    public List<Permission> listPermissions(String fileId) {
+        return entry(fileId).view().getPermissions();
+    }
+
+    /**
+     * Adds permission, or changes the role of the permission the user has
+     * @param fileId File id
+     * @param permission Permission to grant
+     * @return Granted permission
+     */
+    public Permission createPermission(String fileId, Permission permission) {
+        if ((permission.getRole() == null) || (permission.getType() == null)) {
+            throw DriveApiException.invalid("The permission role and type fields are required.");
+        }
+        Entry entry = entry(fileId);
+        Permission granted;
+        synchronized (entry) {
+            granted = find(entry, permission);
+            if (granted == null) {
+                granted = permission.clone().setId(newPermissionId()).setKind("drive#permission");
+                entry.permissions.add(granted);
+            }
+            else {
+                granted.setRole(permission.getRole());
+            }
+            granted = granted.clone();
+        }
+        recordChange(fileId, entry);
+        return granted;
+    }
+
+    private static Permission find(Entry entry, Permission permission) {
+        for (Permission p : entry.permissions) {
+            if ((permission.getEmailAddress() != null) && permission.getEmailAddress().equalsIgnoreCase(p.getEmailAddress())) {
+                return p;
+            }
+            if ((permission.getDomain() != null) && permission.getDomain().equalsIgnoreCase(p.getDomain())) {
+                return p;
+            }
+            if ("anyone".equals(permission.getType()) && "anyone".equals(p.getType())) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param fileId File id
+     * @param permissionId Permission id
+     * @param role New role
+     * @return Changed permission
+     */
+    public Permission updatePermission(String fileId, String permissionId, String role) {
+        Entry entry = entry(fileId);
+        Permission changed;
+        synchronized (entry) {
+            changed = permission(entry, permissionId).setRole(role).clone();
+        }
+        recordChange(fileId, entry);
+        return changed;
+    }
+
+    /**
+     * @param fileId File id
+     * @param permissionId Permission id
+     */
+    public void deletePermission(String fileId, String permissionId) {
+        Entry entry = entry(fileId);
+        synchronized (entry) {
+            Permission p = permission(entry, permissionId);
+            if ("owner".equals(p.getRole())) {
+                throw new DriveApiException(403, "cannotRemoveOwner", "The owner of a file cannot be removed.");
+            }
+            entry.permissions.remove(p);
+        }
+        recordChange(fileId, entry);
+    }
+
+    private static Permission permission(Entry entry, String permissionId) {
+        for (Permission p : entry.permissions) {
+            if (p.getId().equals(permissionId)) {
+                return p;
+            }
+        }
+        throw DriveApiException.notFound("Permission", permissionId);
+    }
+
+    private void recordChange(String id, Entry entry) {
+        record(new Change().setFileId(id).setRemoved(false).setFile(entry.view()));
+    }
+
+    private void recordRemoval(String id) {
+        record(new Change().setFileId(id).setRemoved(true));
+    }
+
+    /**
+     * Appends change, dropping the oldest one when the log is full
+     */
+    private void record(Change change) {
+        long n = changeCounter.incrementAndGet();
+        changes.put(n, change.setKind("drive#change").setTime(new DateTime(System.currentTimeMillis())));
+        if (n > MAX_CHANGES) {
+            changes.remove(n - MAX_CHANGES);
+        }
+    }
+
+    /**
+     * @return Token of the next change
+     */
+    public String startPageToken() {
+        return String.valueOf(changeCounter.get() + 1);
+    }
+
+    /**
+     * @param pageToken Token of the first change to return
+     * @param pageSize Page size, capped at 1000
+     * @return Page of changes, with newStartPageToken on the last page
+     */
+    public ChangeList changes(String pageToken, Integer pageSize) {
+        long from;
+        try {
+            from = Long.parseLong(pageToken);
+        } catch (NumberFormatException | NullPointerException ex) {
+            throw DriveApiException.invalid("Invalid Value: pageToken");
+        }
+        int size = pageSize == null ? DEFAULT_PAGE_SIZE : Math.max(1, Math.min(MAX_PAGE_SIZE, pageSize));
+        long last = changeCounter.get();
+        List<Change> page = new ArrayList<>();
+        Long next = null;
+        for (Map.Entry<Long, Change> e : changes.subMap(from, true, last, true).entrySet()) {
+            if (page.size() == size) {
+                next = e.getKey();
+                break;
+            }
+            page.add(e.getValue().clone());
+        }
+        ChangeList list = new ChangeList().setKind("drive#changeList").setChanges(page);
+        return next != null ? list.setNextPageToken(String.valueOf(next)) : list.setNewStartPageToken(String.valueOf(last + 1));
+    }
+
+    /**
+     * @return Number of stored files, folders included
+     */
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Drops all files and changes
+     */
+    public void clear() {
+        files.clear();
+        children.clear();
+        changes.clear();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and failures added by {@link DriveEmulator} before a request is
+ * answered. Rates are probabilities between 0 and 1 drawn for every request;
+ * with a seed the draws repeat from run to run on a single thread.
+ * @author p.zachwieja
+ */
+public class FaultInjector {
+
+    /**
+     * Outcome of the draw for one request
+     */
+    public enum Fault {
+        NONE, RATE_LIMIT, SERVER_ERROR, TIMEOUT
+    }
+
+    private long latencyMillis;
+    private long jitterMillis;
+    private double rateLimitRate;
+    private double serverErrorRate;
+    private double timeoutRate;
+    private long timeoutMillis = 1000;
+    private Random random;
+
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * Sleeps the latency and draws a fault
+     * @return Fault to answer with
+     * @throws SocketTimeoutException after timeoutMillis when a timeout is drawn
+     * @throws InterruptedIOException when interrupted while sleeping
+     */
+    public Fault next() throws SocketTimeoutException, InterruptedIOException {
+        long delay = latencyMillis;
+        if (jitterMillis > 0) {
+            delay += (long) (draw() * jitterMillis);
+        }
+        sleep(delay);
+        double d = draw();
+        if (d < rateLimitRate) {
+            rateLimited.incrementAndGet();
+            return Fault.RATE_LIMIT;
+        }
+        d -= rateLimitRate;
+        if (d < serverErrorRate) {
+            serverErrors.incrementAndGet();
+            return Fault.SERVER_ERROR;
+        }
+        d -= serverErrorRate;
+        if (d < timeoutRate) {
+            timeouts.incrementAndGet();
+            sleep(timeoutMillis);
+            throw new SocketTimeoutException("Read timed out (injected)");
+        }
+        return Fault.NONE;
+    }
+
+    private double draw() {
+        Random r = random;
+        if (r == null) {
+            return ThreadLocalRandom.current().nextDouble();
+        }
+        synchronized (r) {
+            return r.nextDouble();
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return jitterMillis;
+    }
+
+    public void setJitterMillis(long jitterMillis) {
+        this.jitterMillis = jitterMillis;
+    }
+
+    public double getRateLimitRate() {
+        return rateLimitRate;
+    }
+
+    public void setRateLimitRate(double rateLimitRate) {
+        this.rateLimitRate = rateLimitRate;
+    }
+
+    public double getServerErrorRate() {
+        return serverErrorRate;
+    }
+
+    public void setServerErrorRate(double serverErrorRate) {
+        this.serverErrorRate = serverErrorRate;
+    }
+
+    public double getTimeoutRate() {
+        return timeoutRate;
+    }
+
+    public void setTimeoutRate(double timeoutRate) {
+        this.timeoutRate = timeoutRate;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @param seed Seed of the draws, 0 for a different sequence on every run
+     */
+    public void setSeed(long seed) {
+        this.random = seed == 0 ? null : new Random(seed);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import com.google.api.client.json.GenericJson;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Partial response selector, the {@code fields} parameter, e.g.
+ * {@code nextPageToken,files(id,name,permissions(id,role))} or
+ * {@code files/id}. Unknown fields are left out instead of answering 400.
+ * @author p.zachwieja
+ */
+public class FieldMask {
+
+    private static final FieldMask ALL = new FieldMask(null);
+
+    /**
+     * Selected fields, null selects everything
+     */
+    private final Map<String, FieldMask> fields;
+
+    private FieldMask(Map<String, FieldMask> fields) {
+        this.fields = fields;
+    }
+
+    /**
+     * @param selector Value of the fields parameter, null or * selects everything
+     * @return Mask
+     */
+    public static FieldMask parse(String selector) {
+        if ((selector == null) || selector.trim().isEmpty() || "*".equals(selector.trim())) {
+            return ALL;
+        }
+        int[] pos = {0};
+        FieldMask mask = parse(selector, pos);
+        if (pos[0] < selector.length()) {
+            throw DriveApiException.invalid("Invalid field selection " + selector);
+        }
+        return mask;
+    }
+
+    private static FieldMask parse(String selector, int[] pos) {
+        Map<String, FieldMask> fields = new LinkedHashMap<>();
+        while (pos[0] < selector.length()) {
+            int start = pos[0];
+            while ((pos[0] < selector.length()) && ("(),/".indexOf(selector.charAt(pos[0])) < 0)) {
+                pos[0]++;
+            }
+            String name = selector.substring(start, pos[0]).trim();
+            if (name.isEmpty()) {
+                throw DriveApiException.invalid("Invalid field selection " + selector);
+            }
+            FieldMask nested = ALL;
+            if (pos[0] < selector.length()) {
+                char c = selector.charAt(pos[0]);
+                if (c == '(') {
+                    pos[0]++;
+                    nested = parse(selector, pos);
+                    if ((pos[0] >= selector.length()) || (selector.charAt(pos[0]) != ')')) {
+                        throw DriveApiException.invalid("Invalid field selection " + selector);
+                    }
+                    pos[0]++;
+                }
+                else if (c == '/') {
+                    pos[0]++;
+                    nested = parsePath(selector, pos);
+                }
+            }
+            fields.merge(name, nested, FieldMask::union);
+            if ((pos[0] < selector.length()) && (selector.charAt(pos[0]) == ')')) {
+                break;
+            }
+            if (pos[0] < selector.length()) {
+                pos[0]++;
+            }
+        }
+        return new FieldMask(fields);
+    }
+
+    private static FieldMask parsePath(String selector, int[] pos) {
+        int start = pos[0];
+        while ((pos[0] < selector.length()) && ("(),/".indexOf(selector.charAt(pos[0])) < 0)) {
+            pos[0]++;
+        }
+        String name = selector.substring(start, pos[0]).trim();
+        FieldMask nested = ALL;
+        if ((pos[0] < selector.length()) && (selector.charAt(pos[0]) == '/')) {
+            pos[0]++;
+            nested = parsePath(selector, pos);
+        }
+        Map<String, FieldMask> fields = new LinkedHashMap<>();
+        fields.put(name, nested);
+        return new FieldMask(fields);
+    }
+
+    private static FieldMask union(FieldMask a, FieldMask b) {
+        if ((a.fields == null) || (b.fields == null)) {
+            return ALL;
+        }
+        Map<String, FieldMask> fields = new LinkedHashMap<>(a.fields);
+        b.fields.forEach((k, v) -> fields.merge(k, v, FieldMask::union));
+        return new FieldMask(fields);
+    }
+
+    /**
+     * @param resource Resource to project
+     * @return The resource itself when everything is selected, otherwise a copy with selected fields only
+     */
+    public Object apply(Object resource) {
+        if ((fields == null) || fields.containsKey("*")) {
+            return resource;
+        }
+        if (resource instanceof Map) {
+            GenericJson result = new GenericJson();
+            Map<?, ?> map = (Map<?, ?>) resource;
+            for (Map.Entry<String, FieldMask> e : fields.entrySet()) {
+                Object value = map.get(e.getKey());
+                if (value != null) {
+                    result.set(e.getKey(), e.getValue().apply(value));
+                }
+            }
+            return result;
+        }
+        if (resource instanceof Collection) {
+            List<Object> result = new ArrayList<>();
+            for (Object item : (Collection<?>) resource) {
+                result.add(apply(item));
+            }
+            return result;
+        }
+        return resource;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads and writes multipart bodies: multipart/related uploads and
+ * multipart/mixed batches, whose parts hold whole HTTP messages
+ * @author p.zachwieja
+ */
+public class MultipartBody {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    /**
+     * Part of a multipart body, or an HTTP message inside a batch part
+     */
+    public static class Part {
+
+        private final String startLine;
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Part(String startLine, Map<String, String> headers, byte[] body) {
+            this.startLine = startLine;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        /**
+         * @return Request or status line of an HTTP message, null for plain parts
+         */
+        public String getStartLine() {
+            return startLine;
+        }
+
+        /**
+         * @param name Header name, case insensitive
+         * @return Header value, null when missing
+         */
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getText() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private final String boundary;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    /**
+     * @param boundary Boundary of the body to write
+     */
+    public MultipartBody(String boundary) {
+        this.boundary = boundary;
+    }
+
+    /**
+     * @param contentType Content type with the boundary parameter
+     * @return Boundary
+     * @throws DriveApiException 400 when there is no boundary
+     */
+    public static String boundary(String contentType) {
+        if (contentType != null) {
+            for (String param : contentType.split(";")) {
+                String p = param.trim();
+                if (p.toLowerCase(Locale.ROOT).startsWith("boundary=")) {
+                    String b = p.substring("boundary=".length());
+                    return b.startsWith("\"") && b.endsWith("\"") ? b.substring(1, b.length() - 1) : b;
+                }
+            }
+        }
+        throw DriveApiException.invalid("Missing multipart boundary in " + contentType);
+    }
+
+    /**
+     * @param body Multipart body
+     * @param boundary Boundary
+     * @return Parts in order
+     */
+    public static List<Part> parse(byte[] body, String boundary) {
+        byte[] delimiter = ("--" + boundary).getBytes(StandardCharsets.US_ASCII);
+        List<Part> parts = new ArrayList<>();
+        int start = indexOf(body, delimiter, 0);
+        while (start >= 0) {
+            int from = start + delimiter.length;
+            if ((from + 1 < body.length) && (body[from] == '-') && (body[from + 1] == '-')) {
+                break;
+            }
+            from = skipLine(body, from);
+            int end = indexOf(body, delimiter, from);
+            if (end < 0) {
+                throw DriveApiException.invalid("Unterminated multipart body");
+            }
+            int to = end;
+            if ((to >= 2) && (body[to - 2] == '\r') && (body[to - 1] == '\n')) {
+                to -= 2;
+            }
+            else if ((to >= 1) && (body[to - 1] == '\n')) {
+                to--;
+            }
+            parts.add(message(Arrays.copyOfRange(body, from, Math.max(from, to)), false));
+            start = end;
+        }
+        return parts;
+    }
+
+    /**
+     * @param part Part of a batch body
+     * @return HTTP message inside the part
+     */
+    public static Part httpMessage(Part part) {
+        return message(part.body, true);
+    }
+
+    private static Part message(byte[] bytes, boolean withStartLine) {
+        int pos = 0;
+        String startLine = null;
+        if (withStartLine) {
+            int next = skipLine(bytes, pos);
+            startLine = line(bytes, pos, next);
+            pos = next;
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        while (pos < bytes.length) {
+            int next = skipLine(bytes, pos);
+            String line = line(bytes, pos, next);
+            pos = next;
+            if (line.isEmpty()) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        int end = bytes.length;
+        String length = headers.get("content-length");
+        if (length != null) {
+            end = Math.min(end, pos + Integer.parseInt(length));
+        }
+        return new Part(startLine, headers, Arrays.copyOfRange(bytes, Math.min(pos, end), end));
+    }
+
+    private static String line(byte[] bytes, int from, int next) {
+        int to = next;
+        if ((to > from) && (bytes[to - 1] == '\n')) {
+            to--;
+        }
+        if ((to > from) && (bytes[to - 1] == '\r')) {
+            to--;
+        }
+        return new String(bytes, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static int skipLine(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return bytes.length;
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= bytes.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (bytes[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Appends part holding an HTTP response, as in batch responses
+     * @param contentId Content-ID of the request part, may be null
+     * @param status Status code
+     * @param contentType Content type of the response body, null when there is no body
+     * @param body Response body, may be null
+     * @return This body
+     */
+    public MultipartBody addResponse(String contentId, int status, String contentType, byte[] body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: application/http\r\n");
+        if (contentId != null) {
+            sb.append("Content-ID: ").append(contentId.replaceFirst("^<", "<response-")).append("\r\n");
+        }
+        sb.append("\r\nHTTP/1.1 ").append(status).append(' ').append(reason(status)).append("\r\n");
+        if (contentType != null) {
+            sb.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+        if (body != null) {
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        sb.append("\r\n");
+        write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        if (body != null) {
+            write(body);
+        }
+        write(CRLF);
+        return this;
+    }
+
+    private void write(byte[] bytes) {
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return Body with the closing delimiter
+     */
+    public byte[] build() {
+        write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+        return out.toByteArray();
+    }
+
+    public String getContentType() {
+        return "multipart/mixed; boundary=" + boundary;
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 403:
+                return "Forbidden";
+            case 404:
+                return "Not Found";
+            case 409:
+                return "Conflict";
+            case 429:
+                return "Too Many Requests";
+            case 503:
+                return "Service Unavailable";
+            default:
+                return "Status " + status;
+        }
+    }
+}
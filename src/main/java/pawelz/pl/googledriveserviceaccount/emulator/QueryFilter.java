@@ -0,0 +1,393 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import com.google.api.client.util.DateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Parsed {@code q} parameter of files.list. Supports {@code and},
+ * {@code or}, {@code not}, parentheses, {@code 'id' in parents} and
+ * comparisons of name, fullText, mimeType, trashed, starred,
+ * createdTime and modifiedTime. {@code contains} matches case-insensitive
+ * substrings, which is looser than Drive's word prefix matching.
+ * @author p.zachwieja
+ */
+public class QueryFilter {
+
+    /**
+     * Condition of the query
+     */
+    private interface Node {
+
+        boolean test(DriveStore.Entry entry);
+
+        /**
+         * @return Folders every match is a child of, null when not limited
+         */
+        Set<String> parentScope();
+    }
+
+    private static final QueryFilter ALL = new QueryFilter(new Node() {
+        @Override
+        public boolean test(DriveStore.Entry entry) {
+            return true;
+        }
+
+        @Override
+        public Set<String> parentScope() {
+            return null;
+        }
+    });
+
+    private final Node root;
+
+    private QueryFilter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param q Query, null or empty matches every file
+     * @return Filter
+     * @throws DriveApiException 400 when the query is invalid
+     */
+    public static QueryFilter parse(String q) {
+        if ((q == null) || q.trim().isEmpty()) {
+            return ALL;
+        }
+        Parser parser = new Parser(tokenize(q));
+        Node node = parser.or();
+        if (parser.pos < parser.tokens.size()) {
+            throw DriveApiException.invalid("Invalid Value: unexpected '" + parser.tokens.get(parser.pos) + "' in query");
+        }
+        return new QueryFilter(node);
+    }
+
+    public boolean test(DriveStore.Entry entry) {
+        return root.test(entry);
+    }
+
+    /**
+     * @return Folders every matching file is a child of, null when the
+     * query is not limited to some folders
+     */
+    public Set<String> parentScope() {
+        return root.parentScope();
+    }
+
+    private static List<String> tokenize(String q) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < q.length()) {
+            char c = q.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if (c == '\'') {
+                StringBuilder sb = new StringBuilder("'");
+                i++;
+                while ((i < q.length()) && (q.charAt(i) != '\'')) {
+                    if ((q.charAt(i) == '\\') && (i + 1 < q.length())) {
+                        i++;
+                    }
+                    sb.append(q.charAt(i++));
+                }
+                if (i >= q.length()) {
+                    throw DriveApiException.invalid("Invalid Value: unterminated string in query");
+                }
+                i++;
+                tokens.add(sb.toString());
+            }
+            else if ((c == '(') || (c == ')')) {
+                tokens.add(String.valueOf(c));
+                i++;
+            }
+            else if ("=!<>".indexOf(c) >= 0) {
+                int start = i++;
+                if ((i < q.length()) && (q.charAt(i) == '=')) {
+                    i++;
+                }
+                tokens.add(q.substring(start, i));
+            }
+            else {
+                int start = i;
+                while ((i < q.length()) && !Character.isWhitespace(q.charAt(i)) && ("()'=!<>".indexOf(q.charAt(i)) < 0)) {
+                    i++;
+                }
+                tokens.add(q.substring(start, i));
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isString(String token) {
+        return token.startsWith("'");
+    }
+
+    private static String value(String token) {
+        return isString(token) ? token.substring(1) : token;
+    }
+
+    private static class Parser {
+
+        private final List<String> tokens;
+        private int pos;
+
+        Parser(List<String> tokens) {
+            this.tokens = tokens;
+        }
+
+        private String next() {
+            if (pos >= tokens.size()) {
+                throw DriveApiException.invalid("Invalid Value: query ends too early");
+            }
+            return tokens.get(pos++);
+        }
+
+        private boolean accept(String keyword) {
+            if ((pos < tokens.size()) && !isString(tokens.get(pos)) && tokens.get(pos).equalsIgnoreCase(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        Node or() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(and());
+            while (accept("or")) {
+                nodes.add(and());
+            }
+            if (nodes.size() == 1) {
+                return nodes.get(0);
+            }
+            return new Node() {
+                @Override
+                public boolean test(DriveStore.Entry entry) {
+                    for (Node n : nodes) {
+                        if (n.test(entry)) {
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public Set<String> parentScope() {
+                    Set<String> scope = new HashSet<>();
+                    for (Node n : nodes) {
+                        Set<String> s = n.parentScope();
+                        if (s == null) {
+                            return null;
+                        }
+                        scope.addAll(s);
+                    }
+                    return scope;
+                }
+            };
+        }
+
+        Node and() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(factor());
+            while (accept("and")) {
+                nodes.add(factor());
+            }
+            if (nodes.size() == 1) {
+                return nodes.get(0);
+            }
+            return new Node() {
+                @Override
+                public boolean test(DriveStore.Entry entry) {
+                    for (Node n : nodes) {
+                        if (!n.test(entry)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+
+                @Override
+                public Set<String> parentScope() {
+                    for (Node n : nodes) {
+                        Set<String> s = n.parentScope();
+                        if (s != null) {
+                            return s;
+                        }
+                    }
+                    return null;
+                }
+            };
+        }
+
+        Node factor() {
+            if (accept("not")) {
+                Node inner = factor();
+                return new Node() {
+                    @Override
+                    public boolean test(DriveStore.Entry entry) {
+                        return !inner.test(entry);
+                    }
+
+                    @Override
+                    public Set<String> parentScope() {
+                        return null;
+                    }
+                };
+            }
+            if (accept("(")) {
+                Node inner = or();
+                if (!accept(")")) {
+                    throw DriveApiException.invalid("Invalid Value: missing ')' in query");
+                }
+                return inner;
+            }
+            String left = next();
+            if (isString(left)) {
+                return membership(value(left));
+            }
+            return comparison(left, next(), next());
+        }
+
+        private Node membership(String value) {
+            if (!accept("in")) {
+                throw DriveApiException.invalid("Invalid Value: expected 'in' after '" + value + "'");
+            }
+            String collection = next();
+            switch (collection) {
+                case "parents":
+                    return new Node() {
+                        @Override
+                        public boolean test(DriveStore.Entry entry) {
+                            List<String> parents = entry.getFile().getParents();
+                            return (parents != null) && parents.contains(value);
+                        }
+
+                        @Override
+                        public Set<String> parentScope() {
+                            Set<String> scope = new HashSet<>();
+                            scope.add(value);
+                            return scope;
+                        }
+                    };
+                case "owners":
+                case "writers":
+                case "readers":
+                    return leaf(entry -> entry.hasAccess(value, collection));
+                default:
+                    throw DriveApiException.invalid("Invalid Value: unknown collection '" + collection + "'");
+            }
+        }
+
+        private Node comparison(String field, String op, String token) {
+            String value = value(token);
+            String lower = value.toLowerCase(Locale.ROOT);
+            switch (field) {
+                case "name":
+                    return text(op, lower, entry -> entry.getFile().getName());
+                case "mimeType":
+                    return text(op, lower, entry -> entry.getFile().getMimeType());
+                case "fullText":
+                    if (!"contains".equals(op)) {
+                        throw DriveApiException.invalid("Invalid Value: fullText supports only contains");
+                    }
+                    return leaf(entry -> entry.getText().contains(lower));
+                case "trashed":
+                case "starred":
+                    boolean expected = Boolean.parseBoolean(value);
+                    boolean equal = "=".equals(op);
+                    if (!equal && !"!=".equals(op)) {
+                        throw DriveApiException.invalid("Invalid Value: operator " + op + " for " + field);
+                    }
+                    return leaf(entry -> (flag(entry, field) == expected) == equal);
+                case "createdTime":
+                case "modifiedTime":
+                    long millis;
+                    try {
+                        millis = DateTime.parseRfc3339(value).getValue();
+                    } catch (NumberFormatException ex) {
+                        throw DriveApiException.invalid("Invalid Value: bad time '" + value + "'");
+                    }
+                    return leaf(entry -> compare(op, Long.compare(time(entry, field), millis)));
+                default:
+                    throw DriveApiException.invalid("Invalid Value: unknown field '" + field + "'");
+            }
+        }
+    }
+
+    private interface Test {
+
+        boolean test(DriveStore.Entry entry);
+    }
+
+    private interface Text {
+
+        String of(DriveStore.Entry entry);
+    }
+
+    private static Node leaf(Test test) {
+        return new Node() {
+            @Override
+            public boolean test(DriveStore.Entry entry) {
+                return test.test(entry);
+            }
+
+            @Override
+            public Set<String> parentScope() {
+                return null;
+            }
+        };
+    }
+
+    private static Node text(String op, String lower, Text text) {
+        switch (op) {
+            case "contains":
+                return leaf(entry -> {
+                    String t = text.of(entry);
+                    return (t != null) && t.toLowerCase(Locale.ROOT).contains(lower);
+                });
+            case "=":
+                return leaf(entry -> lower.equalsIgnoreCase(text.of(entry)));
+            case "!=":
+                return leaf(entry -> !lower.equalsIgnoreCase(text.of(entry)));
+            default:
+                throw DriveApiException.invalid("Invalid Value: operator " + op + " for text field");
+        }
+    }
+
+    private static boolean flag(DriveStore.Entry entry, String field) {
+        Object value = "trashed".equals(field) ? entry.getFile().getTrashed() : entry.getFile().get("starred");
+        return Boolean.TRUE.equals(value);
+    }
+
+    private static long time(DriveStore.Entry entry, String field) {
+        DateTime value = "createdTime".equals(field) ? entry.getFile().getCreatedTime() : entry.getFile().getModifiedTime();
+        return value == null ? 0 : value.getValue();
+    }
+
+    private static boolean compare(String op, int c) {
+        switch (op) {
+            case "=":
+                return c == 0;
+            case "!=":
+                return c != 0;
+            case "<":
+                return c < 0;
+            case "<=":
+                return c <= 0;
+            case ">":
+                return c > 0;
+            case ">=":
+                return c >= 0;
+            default:
+                throw DriveApiException.invalid("Invalid Value: operator " + op + " for time field");
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Non-blocking facade over {@link GoogleDriveService}. Calls run on a bounded
+ * executor and at most {@code maxInFlight} of them talk to Drive at once.
+ * Below that each account of {@link DriveAccountPool} caps its own requests,
+ * so the cap is set above drive.pool.max-in-flight, leaving room for calls
+ * to other accounts while the calls of a busy one wait for it.
+ * Futures complete exceptionally with the original {@link IOException}
+ * wrapped in a {@link CompletionException}.
+ * @author p.zachwieja
+ */
+@Service
+@ConfigurationProperties(prefix = "drive.async")
+public class AsyncGoogleDriveService {
+
+    @Inject
+    GoogleDriveService googleDriveService;
+
+    private int poolSize = 16;
+    private int maxInFlight = 64;
+    private boolean virtualThreads = true;
+
+    private ExecutorService executor;
+    private Semaphore inFlight;
+    private int permits;
+
+    private static final Logger LOGGER = LogManager.getLogger(AsyncGoogleDriveService.class);
+
+    /**
+     * Drive call that may block on I/O
+     * @param <T> Result type
+     */
+    @FunctionalInterface
+    interface DriveCall<T> {
+
+        T call() throws IOException;
+    }
+
+    @PostConstruct
+    public void init() {
+        permits = Math.max(1, maxInFlight);
+        inFlight = new Semaphore(permits, true);
+        executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        if (executor == null) {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, poolSize), r -> {
+                Thread t = new Thread(r, "drive-async-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Creates virtual thread per task executor when running on a runtime that has one
+     * @return Executor or null when not supported
+     */
+    private ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            LOGGER.info("Using virtual threads for Drive calls");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            LOGGER.debug("Virtual threads not available, using pool of {} threads", poolSize);
+            return null;
+        }
+    }
+
+    <T> CompletableFuture<T> submit(DriveCall<T> call) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(new InterruptedIOException("Interrupted while waiting for Drive slot"));
+            }
+            try {
+                return call.call();
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            } finally {
+                inFlight.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * @see GoogleDriveService#getFile(String, String)
+     */
+    public CompletableFuture<File> getFile(String id, String fields) {
+        return submit(() -> googleDriveService.getFile(id, fields));
+    }
+
+    /**
+     * Gets many files at once
+     * @param ids File ids
+     * @param fields Fields to get, if null default fields are used
+     * @return Found files by id, files that do not exist are left out
+     */
+    public CompletableFuture<Map<String, File>> getFiles(Collection<String> ids, String fields) {
+        List<String> keys = new ArrayList<>(ids);
+        List<CompletableFuture<File>> futures = new ArrayList<>();
+        for (String id : keys) {
+            futures.add(getFile(id, fields));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(v -> {
+                    Map<String, File> result = new LinkedHashMap<>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        File f = futures.get(i).join();
+                        if (f != null) {
+                            result.put(keys.get(i), f);
+                        }
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * @see #getFiles(Collection, String)
+     */
+    public CompletableFuture<Map<String, File>> getFiles(Collection<String> ids) {
+        return getFiles(ids, null);
+    }
+
+    /**
+     * @see GoogleDriveService#childList(String)
+     */
+    public CompletableFuture<List<File>> childList(String parentId) {
+        return submit(() -> googleDriveService.childList(parentId));
+    }
+
+    /**
+     * @see GoogleDriveService#createFolder(String)
+     */
+    public CompletableFuture<File> createFolder(String name) {
+        return submit(() -> googleDriveService.createFolder(name));
+    }
+
+    /**
+     * @see GoogleDriveService#uploadFileOnly(boolean, MultipartFile, String, String)
+     */
+    public CompletableFuture<File> uploadFileOnly(boolean useDirectUpload, MultipartFile multipartFile, String folderId, String desc) {
+        return submit(() -> googleDriveService.uploadFileOnly(useDirectUpload, multipartFile, folderId, desc));
+    }
+
+    /**
+     * @see GoogleDriveService#deleteGoogleFile(String)
+     */
+    public CompletableFuture<Integer> deleteGoogleFile(String fileId) {
+        return submit(() -> googleDriveService.deleteGoogleFile(fileId));
+    }
+
+    /**
+     * Deletes many files at once
+     * @param ids File ids
+     * @return Result code of {@link GoogleDriveService#deleteGoogleFile(String)} by id
+     */
+    public CompletableFuture<Map<String, Integer>> deleteGoogleFiles(Collection<String> ids) {
+        List<String> keys = new ArrayList<>(ids);
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (String id : keys) {
+            futures.add(deleteGoogleFile(id));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .thenApply(v -> {
+                    Map<String, Integer> result = new LinkedHashMap<>();
+                    for (int i = 0; i < keys.size(); i++) {
+                        result.put(keys.get(i), futures.get(i).join());
+                    }
+                    return result;
+                });
+    }
+
+    /**
+     * @see GoogleDriveService#addPermissionForUser(String, String, String, String, boolean, String)
+     */
+    public CompletableFuture<Integer> addPermissionForUser(String fileId, String email, String role, String type, boolean sendEmail, String message) {
+        return submit(() -> googleDriveService.addPermissionForUser(fileId, email, role, type, sendEmail, message));
+    }
+
+    /**
+     * @see GoogleDriveService#addPermissionsForUsers(String, List, String, String, boolean, String)
+     */
+    public CompletableFuture<PermissionBatchResult> addPermissionsForUsers(String fileId, List<String> emails, String role, String type, boolean sendEmail, String message) {
+        return submit(() -> googleDriveService.addPermissionsForUsers(fileId, emails, role, type, sendEmail, message));
+    }
+
+    /**
+     * @see GoogleDriveService#removeRightsForUser(String, String)
+     */
+    public CompletableFuture<Integer> removeRightsForUser(String fileId, String idPermission) {
+        return submit(() -> googleDriveService.removeRightsForUser(fileId, idPermission));
+    }
+
+    /**
+     * @see GoogleDriveService#reconcileReaders(String, List, String)
+     */
+    public CompletableFuture<ReaderReconciliationReport> reconcileReaders(String googleId, List<String> emails, String role) {
+        return submit(() -> googleDriveService.reconcileReaders(googleId, emails, role));
+    }
+
+    /**
+     * @return Number of calls currently talking to Drive
+     */
+    public int getInFlight() {
+        return permits - inFlight.availablePermits();
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param maxInFlight Calls talking to Drive at once, over all accounts
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @param virtualThreads Use virtual thread per task executor when the runtime supports it
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+}
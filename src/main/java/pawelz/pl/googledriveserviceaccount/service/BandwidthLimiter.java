@@ -0,0 +1,55 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Shared bytes per second cap, callers block until their bytes fit in the budget
+ * @author p.zachwieja
+ */
+public class BandwidthLimiter {
+
+    private final long bytesPerSecond;
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Allowed throughput, 0 or less disables limiting
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Blocks until given amount of bytes may be sent
+     * @param bytes Number of bytes about to be sent
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        if ((bytesPerSecond <= 0) || (bytes <= 0)) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, nextFreeNanos);
+            nextFreeNanos = start + bytes * 1000000000L / bytesPerSecond;
+            waitNanos = start - now;
+        }
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+            }
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Uploads a whole tree of entries, e.g. a zip archive, to Drive. Entries are
+ * read on the calling thread and uploaded on the upload pool of
+ * {@link ResumableUploader}; at most {@code maxPendingEntries} of them wait
+ * or run at once, so reading stops while uploads catch up. Content that cannot
+ * be read again later is copied to a buffer taken from a shared budget of
+ * {@code maxBufferedBytes}, entries above {@code memoryThreshold} to a spool
+ * file instead, so memory use does not depend on the size of the source.
+ * @author p.zachwieja
+ */
+@Service
+@ConfigurationProperties(prefix = "drive.ingest")
+public class BulkIngestService {
+
+    @Inject
+    GoogleDriveService googleDriveService;
+
+    @Inject
+    ResumableUploader resumableUploader;
+
+    private int maxPendingEntries = 16;
+    private int maxBufferedBytes = 32 * 1024 * 1024;
+    private int memoryThreshold = 1024 * 1024;
+    private String spoolDir = System.getProperty("java.io.tmpdir") + "/drive-ingest";
+    private boolean useDirectUpload = false;
+
+    private Semaphore memory;
+
+    private static final Logger LOGGER = LogManager.getLogger(BulkIngestService.class);
+
+    @PostConstruct
+    public void init() {
+        memoryThreshold = Math.max(0, Math.min(memoryThreshold, maxBufferedBytes));
+        memory = new Semaphore(Math.max(0, maxBufferedBytes), true);
+    }
+
+    /**
+     * Content of one entry held until its upload ends
+     */
+    private static class Held {
+
+        private final InputStreamSource source;
+        private final long size;
+        private final int reserved;
+        private final Path spool;
+
+        Held(InputStreamSource source, long size, int reserved, Path spool) {
+            this.source = source;
+            this.size = size;
+            this.reserved = reserved;
+            this.spool = spool;
+        }
+    }
+
+    /**
+     * Ingests a zip archive
+     * @param in Archive stream, closed when done
+     * @param folderId Folder to create the tree in
+     * @param desc Description for every file, may be null
+     * @return Manifest of created folders and files
+     * @throws IOException when the archive cannot be read
+     * @see #ingest(IngestSource, String, String)
+     */
+    public IngestManifest ingestZip(InputStream in, String folderId, String desc) throws IOException {
+        try (IngestSource source = IngestSource.zip(in)) {
+            return ingest(source, folderId, desc);
+        }
+    }
+
+    /**
+     * Ingests a local directory
+     * @param root Directory to upload, its content goes directly into the folder
+     * @param folderId Folder to create the tree in
+     * @param desc Description for every file, may be null
+     * @return Manifest of created folders and files
+     * @throws IOException when the directory cannot be read
+     * @see #ingest(IngestSource, String, String)
+     */
+    public IngestManifest ingestDirectory(Path root, String folderId, String desc) throws IOException {
+        try (IngestSource source = IngestSource.directory(root)) {
+            return ingest(source, folderId, desc);
+        }
+    }
+
+    /**
+     * Creates folders of the source, each path once, and uploads its files.
+     * A failed folder or file is recorded in the manifest and ingest goes on;
+     * files under a folder that could not be created fail without a request.
+     * @param source Entries to upload, left open
+     * @param folderId Folder to create the tree in
+     * @param desc Description for every file, may be null
+     * @return Manifest of created folders and files
+     * @throws IOException when the source cannot be read, after uploads already
+     * started have ended
+     */
+    public IngestManifest ingest(IngestSource source, String folderId, String desc) throws IOException {
+        if (memory == null) {
+            init();
+        }
+        long start = System.currentTimeMillis();
+        Map<String, String> folders = new HashMap<>();
+        Map<String, String> created = new LinkedHashMap<>();
+        Map<String, String> folderErrors = new HashMap<>();
+        folders.put("", folderId);
+        List<IngestManifest.Item> items = new ArrayList<>();
+        AtomicInteger spooled = new AtomicInteger();
+        int permits = Math.max(1, maxPendingEntries);
+        Semaphore pending = new Semaphore(permits);
+        try {
+            IngestSource.Entry entry;
+            while ((entry = source.next()) != null) {
+                String path = normalize(entry.getPath());
+                if (entry.isDirectory() && "".equals(path)) {
+                    continue;
+                }
+                if ((path == null) || path.isEmpty()) {
+                    record(items, items.size(), IngestManifest.Item.failure(entry.getPath(), "Invalid path"));
+                    continue;
+                }
+                if (entry.isDirectory()) {
+                    folder(path, folders, created, folderErrors);
+                    continue;
+                }
+                int slash = path.lastIndexOf('/');
+                String parentId = slash < 0 ? folderId : folder(path.substring(0, slash), folders, created, folderErrors);
+                int index = items.size();
+                record(items, index, null);
+                if (parentId == null) {
+                    record(items, index, IngestManifest.Item.failure(path,
+                            "Folder not created: " + folderErrors.get(path.substring(0, slash))));
+                    continue;
+                }
+                acquire(pending, 1);
+                Held held;
+                try {
+                    held = hold(entry);
+                } catch (IOException | RuntimeException ex) {
+                    pending.release();
+                    throw ex;
+                }
+                if (held.spool != null) {
+                    spooled.incrementAndGet();
+                }
+                String name = slash < 0 ? path : path.substring(slash + 1);
+                String contentType = entry.getContentType();
+                try {
+                    resumableUploader.submit(() -> upload(items, index, path, name, contentType, held, parentId, desc, pending));
+                } catch (RejectedExecutionException ex) {
+                    release(held);
+                    pending.release();
+                    throw new IOException("Upload pool is shut down", ex);
+                }
+            }
+        } finally {
+            // wait for uploads already started, also when reading failed
+            acquire(pending, permits);
+        }
+        IngestManifest manifest = new IngestManifest(folderId, created, items, spooled.get(), System.currentTimeMillis() - start);
+        LOGGER.info("Ingest into {} done: {}", folderId, manifest);
+        return manifest;
+    }
+
+    private Void upload(List<IngestManifest.Item> items, int index, String path, String name, String contentType,
+            Held held, String parentId, String desc, Semaphore pending) {
+        try {
+            String id = googleDriveService.uploadContent(useDirectUpload, name, contentType, held.size,
+                    held.source, parentId, desc).getId();
+            record(items, index, IngestManifest.Item.success(path, id, held.size));
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Ingest of {} failed: {}", path, ex.getMessage());
+            record(items, index, IngestManifest.Item.failure(path, ex.getMessage()));
+        } finally {
+            release(held);
+            pending.release();
+        }
+        return null;
+    }
+
+    private static void record(List<IngestManifest.Item> items, int index, IngestManifest.Item item) {
+        synchronized (items) {
+            if (index == items.size()) {
+                items.add(item);
+            }
+            else {
+                items.set(index, item);
+            }
+        }
+    }
+
+    /**
+     * Creates folder and its missing ancestors on the reading thread
+     * @return Folder id, null when it or an ancestor could not be created
+     */
+    private String folder(String path, Map<String, String> folders, Map<String, String> created, Map<String, String> errors) {
+        String id = folders.get(path);
+        if ((id != null) || errors.containsKey(path)) {
+            return id;
+        }
+        int slash = path.lastIndexOf('/');
+        String parentId = slash < 0 ? folders.get("") : folder(path.substring(0, slash), folders, created, errors);
+        if (parentId == null) {
+            errors.put(path, errors.get(path.substring(0, slash)));
+            return null;
+        }
+        try {
+            id = googleDriveService.createFolder(slash < 0 ? path : path.substring(slash + 1), parentId).getId();
+            folders.put(path, id);
+            created.put(path, id);
+            return id;
+        } catch (IOException ex) {
+            LOGGER.error("Creating folder {} failed: {}", path, ex.getMessage());
+            errors.put(path, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param path Entry path
+     * @return Path without empty and . parts and trailing slash, null when it leaves the root
+     */
+    static String normalize(String path) {
+        StringBuilder sb = new StringBuilder();
+        for (String part : path.replace('\\', '/').split("/")) {
+            if (part.isEmpty() || ".".equals(part)) {
+                continue;
+            }
+            if ("..".equals(part)) {
+                return null;
+            }
+            sb.append(sb.length() == 0 ? "" : "/").append(part);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Copies content that is valid only until the next entry to memory or a spool file
+     */
+    private Held hold(IngestSource.Entry entry) throws IOException {
+        if (entry.isReopenable()) {
+            return new Held(entry.getContent(), entry.getSize(), 0, null);
+        }
+        long size = entry.getSize();
+        try (InputStream in = entry.getContent().getInputStream()) {
+            if ((size > memoryThreshold) || (memoryThreshold == 0)) {
+                return spool(in, new byte[0], 0, -1);
+            }
+            int reserved = size >= 0 ? (int) size : memoryThreshold;
+            acquire(memory, reserved);
+            byte[] buffer = new byte[reserved];
+            int n;
+            int next;
+            try {
+                n = readFully(in, buffer);
+                next = n < reserved ? -1 : in.read();
+            } catch (IOException | RuntimeException ex) {
+                memory.release(reserved);
+                throw ex;
+            }
+            if (next == -1) {
+                memory.release(reserved - n);
+                return new Held(() -> new ByteArrayInputStream(buffer, 0, n), n, n, null);
+            }
+            // longer than declared or than the threshold
+            try {
+                return spool(in, buffer, n, next);
+            } finally {
+                memory.release(reserved);
+            }
+        }
+    }
+
+    private Held spool(InputStream in, byte[] head, int headLength, int next) throws IOException {
+        Path dir = Paths.get(spoolDir);
+        Files.createDirectories(dir);
+        Path file = Files.createTempFile(dir, "entry", ".tmp");
+        try (OutputStream out = Files.newOutputStream(file)) {
+            out.write(head, 0, headLength);
+            if (next != -1) {
+                out.write(next);
+            }
+            byte[] buffer = new byte[64 * 1024];
+            int r;
+            while ((r = in.read(buffer)) != -1) {
+                out.write(buffer, 0, r);
+            }
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(file);
+            throw ex;
+        }
+        return new Held(() -> Files.newInputStream(file), Files.size(file), 0, file);
+    }
+
+    private void release(Held held) {
+        if (held.reserved > 0) {
+            memory.release(held.reserved);
+        }
+        if (held.spool != null) {
+            try {
+                Files.deleteIfExists(held.spool);
+            } catch (IOException ex) {
+                LOGGER.warn("Spool file {} not deleted: {}", held.spool, ex.getMessage());
+            }
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int n = 0;
+        int r;
+        while ((n < buffer.length) && ((r = in.read(buffer, n, buffer.length - n)) != -1)) {
+            n += r;
+        }
+        return n;
+    }
+
+    private static void acquire(Semaphore semaphore, int permits) throws InterruptedIOException {
+        try {
+            semaphore.acquire(permits);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for ingest buffer");
+        }
+    }
+
+    /**
+     * @return Bytes of the memory budget currently held by entries
+     */
+    public int getBufferedBytes() {
+        return memory == null ? 0 : maxBufferedBytes - memory.availablePermits();
+    }
+
+    /**
+     * @param maxPendingEntries Entries read but not yet uploaded, per ingest
+     */
+    public void setMaxPendingEntries(int maxPendingEntries) {
+        this.maxPendingEntries = maxPendingEntries;
+    }
+
+    /**
+     * @param maxBufferedBytes Memory for entry content shared by all ingests
+     */
+    public void setMaxBufferedBytes(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * @param memoryThreshold Entries above this size are spooled to disk
+     */
+    public void setMemoryThreshold(int memoryThreshold) {
+        this.memoryThreshold = memoryThreshold;
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    public void setUseDirectUpload(boolean useDirectUpload) {
+        this.useDirectUpload = useDirectUpload;
+    }
+}
@@ -0,0 +1,468 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * On-disk cache of file content. Content is stored once per md5Checksum
+ * under {@code dir}, so files with identical content share one copy; least
+ * recently used content is removed when the total exceeds {@code maxBytes}.
+ * Before cached content is served the file is checked with a metadata-only
+ * get, at most once per {@code revalidateSeconds}; the changes feed drops
+ * the check of a changed file early; a file found not cacheable is
+ * remembered as such just as long. Google Docs formats have no
+ * md5Checksum and are never cached. Content that can not be cached, e.g.
+ * on a full disk, is left to the caller to download from Drive.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.content-cache")
+public class ContentCache {
+
+    static final String FIELDS = "id,md5Checksum,size";
+    private static final Pattern MD5 = Pattern.compile("[0-9a-f]{32}");
+    private static final Pattern LEFTOVER = Pattern.compile("[0-9a-f]{32}\\.(part|segments)");
+
+    @Inject
+    Drive drive;
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    RangedDownloader rangedDownloader;
+
+    private boolean enabled = true;
+    private String dir = System.getProperty("java.io.tmpdir") + "/drive-content";
+    private long maxBytes = 1024L * 1024 * 1024;
+    private long maxEntryBytes = 64L * 1024 * 1024;
+    private long revalidateSeconds = 0;
+    private boolean memoryMapped = false;
+
+    private Path contentDir;
+    private final LinkedHashMap<String, Content> contents = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private final ConcurrentMap<String, Check> checks = new ConcurrentHashMap<>();
+    private final SingleFlight<String, Long> fills = new SingleFlight<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong filledBytes = new AtomicLong();
+    private final AtomicLong fillFailures = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(ContentCache.class);
+
+    /**
+     * Stored content
+     */
+    private static class Content {
+
+        final long size;
+        final String fileId;
+
+        Content(long size, String fileId) {
+            this.size = size;
+            this.fileId = fileId;
+        }
+    }
+
+    /**
+     * Content of a file as of the last metadata check, md5 is null when it
+     * can not be cached
+     */
+    private static class Check {
+
+        final String md5;
+        final long size;
+        final long checkedAt;
+
+        Check(String md5, long size, long checkedAt) {
+            this.md5 = md5;
+            this.size = size;
+            this.checkedAt = checkedAt;
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        contentDir = Paths.get(dir);
+        Files.createDirectories(contentDir);
+        List<Path> files;
+        try (Stream<Path> list = Files.list(contentDir)) {
+            files = list.collect(Collectors.toList());
+        }
+        // downloads cut short leave .part and .segments files behind, anything
+        // else in the directory is not ours and stays where it is
+        for (Iterator<Path> it = files.iterator(); it.hasNext();) {
+            Path p = it.next();
+            String name = p.getFileName().toString();
+            if (!Files.isRegularFile(p, LinkOption.NOFOLLOW_LINKS)) {
+                it.remove();
+            } else if (LEFTOVER.matcher(name).matches()) {
+                Files.deleteIfExists(p);
+                it.remove();
+            } else if (!MD5.matcher(name).matches()) {
+                it.remove();
+            }
+        }
+        files.sort(Comparator.comparing(ContentCache::lastModified));
+        synchronized (this) {
+            for (Path p : files) {
+                long size = Files.size(p);
+                contents.put(p.getFileName().toString(), new Content(size, null));
+                bytes += size;
+            }
+            evict();
+        }
+        LOGGER.info("Content cache in {} holds {} files, {} bytes", contentDir, contents.size(), bytes);
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    /**
+     * Opens cached content of a file, downloading it into the cache first
+     * when it is not there
+     * @param fileId File id
+     * @return Channel positioned at the start of content, the caller closes it;
+     * null when the cache is disabled, the file is not found or its content
+     * can not be cached
+     * @throws IOException when the check fails
+     */
+    public FileChannel open(String fileId) throws IOException {
+        if (!enabled || (fileId == null)) {
+            return null;
+        }
+        Check check = check(fileId);
+        if (check == null) {
+            bypassed.incrementAndGet();
+            return null;
+        }
+        FileChannel channel = openContent(fileId, check, true);
+        if (channel != null) {
+            return channel;
+        }
+        misses.incrementAndGet();
+        try {
+            fills.execute(check.md5, () -> fill(fileId, check));
+        } catch (InterruptedIOException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            fillFailures.incrementAndGet();
+            LOGGER.warn("Caching content of {} failed, reading it from Drive: {}", fileId, ex.getMessage());
+            return null;
+        }
+        // content evicted again by concurrent fills is downloaded by the caller
+        return openContent(fileId, check, false);
+    }
+
+    /**
+     * @return Content of a file, checked against Drive when the last check is
+     * older than revalidateSeconds; null when the file can not be cached
+     */
+    private Check check(String fileId) throws IOException {
+        Check check = checks.get(fileId);
+        long now = System.currentTimeMillis();
+        if ((check != null) && (now - check.checkedAt < TimeUnit.SECONDS.toMillis(revalidateSeconds))) {
+            return check.md5 == null ? null : check;
+        }
+        revalidations.incrementAndGet();
+        File file;
+        try {
+            file = requestExecutor.execute(drive.files().get(fileId).setFields(FIELDS));
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            checks.remove(fileId);
+            return null;
+        }
+        String md5 = file.getMd5Checksum() == null ? null : file.getMd5Checksum().toLowerCase();
+        if ((md5 == null) || !MD5.matcher(md5).matches() || (file.getSize() == null) || (file.getSize() > maxEntryBytes)) {
+            checks.put(fileId, new Check(null, file.getSize() == null ? -1 : file.getSize(), now));
+            return null;
+        }
+        check = new Check(md5, file.getSize(), now);
+        checks.put(fileId, check);
+        return check;
+    }
+
+    /**
+     * Opens stored content under the lock, so eviction can not remove it in between
+     * @param hit False when content was just downloaded for this read
+     * @return Channel or null when content is not stored
+     */
+    private synchronized FileChannel openContent(String fileId, Check check, boolean hit) throws IOException {
+        Content content = contents.get(check.md5);
+        if (content == null) {
+            return null;
+        }
+        Path path = contentDir.resolve(check.md5);
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (NoSuchFileException ex) {
+            LOGGER.warn("Cached content of {} is gone: {}", fileId, path);
+            contents.remove(check.md5);
+            bytes -= content.size;
+            return null;
+        }
+        if (hit) {
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(content.size);
+            if ((content.fileId != null) && !content.fileId.equals(fileId)) {
+                deduplicated.incrementAndGet();
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * Downloads content, checked against its md5Checksum, into the cache
+     * @return Content size
+     */
+    private long fill(String fileId, Check check) throws IOException {
+        synchronized (this) {
+            if (contents.containsKey(check.md5)) {
+                return check.size;
+            }
+        }
+        LOGGER.debug("Caching content of {}", fileId);
+        DownloadReport report = rangedDownloader.download(new File().setId(fileId).setSize(check.size)
+                .setMd5Checksum(check.md5), contentDir.resolve(check.md5));
+        filledBytes.addAndGet(report.getDownloadedBytes());
+        synchronized (this) {
+            if (!contents.containsKey(check.md5)) {
+                contents.put(check.md5, new Content(check.size, fileId));
+                bytes += check.size;
+                evict();
+            }
+        }
+        return check.size;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Content>> it = contents.entrySet().iterator();
+        while ((bytes > maxBytes) && it.hasNext()) {
+            Map.Entry<String, Content> e = it.next();
+            it.remove();
+            bytes -= e.getValue().size;
+            evictions.incrementAndGet();
+            try {
+                // readers that opened it keep reading, the space is freed when they close
+                Files.deleteIfExists(contentDir.resolve(e.getKey()));
+            } catch (IOException ex) {
+                LOGGER.warn("Evicted content {} not deleted: {}", e.getKey(), ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Copies content from an opened channel, through a memory-mapped region
+     * when memoryMapped is set, with {@link FileChannel#transferTo} otherwise
+     * @param source Channel returned by {@link #open(String)}
+     * @param target Channel to write to, left open
+     * @return Number of bytes written
+     * @throws IOException IOException
+     */
+    public long transfer(FileChannel source, WritableByteChannel target) throws IOException {
+        long size = source.size();
+        if (memoryMapped && (size > 0)) {
+            MappedByteBuffer buffer = source.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return size;
+        }
+        long position = 0;
+        while (position < size) {
+            position += source.transferTo(position, size - position, target);
+        }
+        return size;
+    }
+
+    /**
+     * Forgets the last check of a changed file, its next read checks it again
+     * @param fileId File id
+     */
+    public void invalidate(String fileId) {
+        if (fileId != null) {
+            checks.remove(fileId);
+        }
+    }
+
+    /**
+     * Removes all cached content
+     * @throws IOException IOException
+     */
+    public synchronized void clear() throws IOException {
+        checks.clear();
+        for (String md5 : contents.keySet()) {
+            Files.deleteIfExists(contentDir.resolve(md5));
+        }
+        contents.clear();
+        bytes = 0;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Hits divided by hits and misses, 0 before the first read
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return Reads passed to Drive because the file has no md5Checksum, is
+     * above maxEntryBytes or was not found
+     */
+    public long getBypassed() {
+        return bypassed.get();
+    }
+
+    /**
+     * @return Metadata-only gets sent to check cached content
+     */
+    public long getRevalidations() {
+        return revalidations.get();
+    }
+
+    /**
+     * @return Hits on content cached for another file id with the same md5Checksum
+     */
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return Content bytes served from disk instead of downloaded
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return Content bytes downloaded into the cache
+     */
+    public long getFilledBytes() {
+        return filledBytes.get();
+    }
+
+    /**
+     * @return Reads left to Drive because their content could not be cached
+     */
+    public long getFillFailures() {
+        return fillFailures.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getSize() {
+        return contents.size();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setDir(String dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @param maxBytes Disk space taken by cached content
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxEntryBytes Files above this size are downloaded without caching
+     */
+    public void setMaxEntryBytes(long maxEntryBytes) {
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * @param revalidateSeconds Time a metadata check is trusted, 0 checks every read;
+     * with drive.sync enabled changed files are checked again early
+     */
+    public void setRevalidateSeconds(long revalidateSeconds) {
+        this.revalidateSeconds = revalidateSeconds;
+    }
+
+    /**
+     * @param memoryMapped Serve content through memory-mapped regions instead of transferTo
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes or trashes many files with Drive batch requests. Deleting a folder
+ * takes its content with it, so before sending, parents of the files are
+ * looked up, level by level in batches, and files under another file of the
+ * same run are left out. Trashed files can be purged later, by hand or
+ * {@code purgeDelaySeconds} after they were trashed; a purge that does not
+ * run, e.g. after a restart, is left to Drive emptying the trash. With an
+ * account pool a file counts as not found only once every account that may
+ * see it answered 404.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.delete")
+public class DeleteBatcher {
+
+    @Inject
+    Drive drive;
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    DriveAccountPool accounts;
+
+    private int batchSize = PermissionBatcher.MAX_BATCH_SIZE;
+    private int parallelBatches = 4;
+    private String batchUrl;
+    private boolean pruneDescendants = true;
+    private int maxAncestorDepth = 16;
+    private long purgeDelaySeconds = 0;
+
+    private ExecutorService executor;
+    private ScheduledExecutorService purger;
+
+    private static final Logger LOGGER = LogManager.getLogger(DeleteBatcher.class);
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelBatches), r -> {
+            Thread t = new Thread(r, "drive-delete-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        if (purgeDelaySeconds > 0) {
+            purger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "drive-purge");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (purger != null) {
+            purger.shutdownNow();
+        }
+    }
+
+    /**
+     * Builds the call of one file
+     * @param <T> Response type
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+
+        DriveRequest<T> build(String fileId) throws IOException;
+    }
+
+    /**
+     * Receives outcome of one file, called on batch threads
+     * @param <T> Response type
+     */
+    private interface Outcomes<T> {
+
+        void success(String fileId, T response);
+
+        void failure(String fileId, GoogleJsonError e);
+    }
+
+    /**
+     * Deletes or trashes files, leaving out those under another one of them
+     * when drive.delete.prune-descendants is on
+     * @param fileIds Files to delete, repeated ids are sent once
+     * @param trash Move to trash instead of deleting
+     * @return Outcome per file
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public DeleteReport apply(Collection<String> fileIds, boolean trash) throws IOException {
+        return apply(fileIds, trash, pruneDescendants);
+    }
+
+    /**
+     * @param fileIds Files to delete, repeated ids are sent once
+     * @param trash Move to trash instead of deleting
+     * @param prune Look up parents and leave out files under another one of
+     * them, false when none can be, e.g. children of one folder
+     * @return Outcome per file
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public DeleteReport apply(Collection<String> fileIds, boolean trash, boolean prune) throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> targets = new LinkedHashSet<>();
+        for (String id : fileIds) {
+            if ((id != null) && !id.isEmpty()) {
+                targets.add(id);
+            }
+        }
+        Map<String, DeleteReport.Item> items = new ConcurrentHashMap<>();
+        AtomicInteger batches = new AtomicInteger();
+        int lookups = 0;
+        Map<String, String> covered = Collections.emptyMap();
+        if (prune && (targets.size() > 1)) {
+            Map<String, List<String>> parents = new HashMap<>();
+            Set<String> missing = new HashSet<>();
+            lookups = lookupParents(targets, parents, missing, batches);
+            for (String id : missing) {
+                if (targets.contains(id)) {
+                    items.put(id, DeleteReport.Item.success(id, DeleteReport.Outcome.NOT_FOUND));
+                }
+            }
+            Set<String> present = new HashSet<>(targets);
+            present.removeAll(missing);
+            covered = coveredByAncestor(present, parents);
+        }
+        List<String> send = new ArrayList<>();
+        for (String id : targets) {
+            if (!items.containsKey(id) && !covered.containsKey(id)) {
+                send.add(id);
+            }
+        }
+        DeleteReport.Outcome done = trash ? DeleteReport.Outcome.TRASHED : DeleteReport.Outcome.DELETED;
+        Outcomes<Object> outcomes = new Outcomes<Object>() {
+            @Override
+            public void success(String fileId, Object response) {
+                items.put(fileId, DeleteReport.Item.success(fileId, done));
+            }
+
+            @Override
+            public void failure(String fileId, GoogleJsonError e) {
+                items.put(fileId, e.getCode() == 404 ? DeleteReport.Item.success(fileId, DeleteReport.Outcome.NOT_FOUND)
+                        : DeleteReport.Item.failure(fileId, e.getCode(), e.getMessage()));
+            }
+        };
+        if (trash) {
+            execute(send, id -> drive.files().update(id, new File().setTrashed(true)).setFields("id"), outcomes, items, batches);
+        } else {
+            execute(send, id -> drive.files().delete(id), outcomes, items, batches);
+        }
+        List<DeleteReport.Item> result = new ArrayList<>();
+        for (String id : targets) {
+            String ancestor = covered.get(id);
+            DeleteReport.Item item = items.get(ancestor == null ? id : ancestor);
+            if (item == null) {
+                result.add(DeleteReport.Item.failure(id, 0, "No response"));
+            } else if (ancestor == null) {
+                result.add(item);
+            } else if (item.isSuccess()) {
+                result.add(DeleteReport.Item.skipped(id, ancestor));
+            } else {
+                result.add(DeleteReport.Item.failure(id, 0, "Ancestor " + ancestor + " failed"));
+            }
+        }
+        DeleteReport report = new DeleteReport(trash, result, lookups, batches.get(), System.currentTimeMillis() - start);
+        LOGGER.debug("Files {}: {}", trash ? "trashed" : "deleted", report);
+        if (trash && (purger != null)) {
+            schedulePurge(report.getFileIds(DeleteReport.Outcome.TRASHED));
+        }
+        return report;
+    }
+
+    /**
+     * Deletes trashed files for good
+     * @param fileIds Files in trash
+     * @return Outcome per file
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public DeleteReport purge(Collection<String> fileIds) throws IOException {
+        // trashed files of one run are never under each other
+        return apply(fileIds, false, false);
+    }
+
+    private void schedulePurge(List<String> fileIds) {
+        if (fileIds.isEmpty()) {
+            return;
+        }
+        purger.schedule(() -> {
+            try {
+                DeleteReport report = purge(fileIds);
+                LOGGER.info("Purged trashed files: {}", report);
+            } catch (IOException ex) {
+                LOGGER.warn("Purge of {} trashed files failed: {}", fileIds.size(), ex.getMessage());
+            }
+        }, purgeDelaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Gets parents of targets, then of their parents, up to
+     * drive.delete.max-ancestor-depth levels or the root
+     * @return Number of lookups sent
+     */
+    private int lookupParents(Set<String> targets, Map<String, List<String>> parents, Set<String> missing,
+            AtomicInteger batches) throws IOException {
+        ConcurrentMap<String, List<String>> found = new ConcurrentHashMap<>();
+        Set<String> gone = ConcurrentHashMap.newKeySet();
+        Outcomes<File> outcomes = new Outcomes<File>() {
+            @Override
+            public void success(String fileId, File file) {
+                found.put(fileId, (file == null) || (file.getParents() == null) ? Collections.emptyList() : file.getParents());
+            }
+
+            @Override
+            public void failure(String fileId, GoogleJsonError e) {
+                if (e.getCode() == 404) {
+                    gone.add(fileId);
+                }
+            }
+        };
+        int lookups = 0;
+        List<String> level = new ArrayList<>(targets);
+        for (int depth = 0; (depth <= maxAncestorDepth) && !level.isEmpty(); depth++) {
+            lookups += level.size();
+            execute(level, id -> drive.files().get(id).setFields("id,parents"), outcomes, null, batches);
+            Set<String> next = new LinkedHashSet<>();
+            for (String id : level) {
+                for (String parent : found.getOrDefault(id, Collections.emptyList())) {
+                    if (!found.containsKey(parent) && !gone.contains(parent)) {
+                        next.add(parent);
+                    }
+                }
+            }
+            level = new ArrayList<>(next);
+        }
+        parents.putAll(found);
+        missing.addAll(gone);
+        return lookups;
+    }
+
+    /**
+     * Finds files that go with an ancestor that is deleted as well
+     * @param targets Files to delete
+     * @param parents Known parents by file id
+     * @return Topmost ancestor among targets by id of files under one
+     */
+    static Map<String, String> coveredByAncestor(Set<String> targets, Map<String, List<String>> parents) {
+        Map<String, String> tops = new HashMap<>();
+        Map<String, String> covered = new HashMap<>();
+        for (String id : targets) {
+            String top = top(id, targets, parents, tops, new HashSet<>());
+            if ((top != null) && !top.equals(id)) {
+                covered.put(id, top);
+            }
+        }
+        return covered;
+    }
+
+    /**
+     * @return Topmost target above id, null when there is none
+     */
+    private static String top(String id, Set<String> targets, Map<String, List<String>> parents,
+            Map<String, String> tops, Set<String> visiting) {
+        if (tops.containsKey(id)) {
+            return tops.get(id);
+        }
+        if (!visiting.add(id)) {
+            return null;
+        }
+        String top = null;
+        for (String parent : parents.getOrDefault(id, Collections.emptyList())) {
+            String above = top(parent, targets, parents, tops, visiting);
+            top = above != null ? above : targets.contains(parent) ? parent : null;
+            if (top != null) {
+                break;
+            }
+        }
+        visiting.remove(id);
+        tops.put(id, top);
+        return top;
+    }
+
+    /**
+     * Sends calls for files in batches, up to drive.delete.parallel-batches
+     * at once; calls rejected with a rate limit are sent again after a backoff.
+     * With an account pool, files are batched by the account they are pinned
+     * to and sent through it, and a 404 or 403 of a file no account holds is
+     * final only once every account answered so
+     * @param items Outcomes of files, a batch that fails as a whole fails its
+     * files without one; null when failures need no item
+     */
+    private <T> void execute(List<String> fileIds, Call<T> call, Outcomes<? super T> outcomes,
+            Map<String, DeleteReport.Item> items, AtomicInteger batches) throws IOException {
+        int size = Math.max(1, Math.min(batchSize, PermissionBatcher.MAX_BATCH_SIZE));
+        boolean pooled = (accounts != null) && !accounts.isEmpty();
+        Map<String, Set<DriveAccount>> refused = new ConcurrentHashMap<>();
+        List<String> pending = fileIds;
+        while (!pending.isEmpty()) {
+            List<String> again = Collections.synchronizedList(new ArrayList<>());
+            Map<DriveAccount, List<String>> groups = pooled ? group(pending, refused)
+                    : Collections.singletonMap(null, pending);
+            List<List<String>> chunks = new ArrayList<>();
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<DriveAccount, List<String>> group : groups.entrySet()) {
+                List<String> ids = group.getValue();
+                for (int from = 0; from < ids.size(); from += size) {
+                    List<String> chunk = ids.subList(from, Math.min(from + size, ids.size()));
+                    chunks.add(chunk);
+                    futures.add(executor.submit(() -> {
+                        executeBatch(group.getKey(), chunk, call, outcomes, refused, again, batches);
+                        return null;
+                    }));
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    futures.forEach(f -> f.cancel(true));
+                    throw new InterruptedIOException("Interrupted while deleting files");
+                } catch (ExecutionException ex) {
+                    LOGGER.error("Delete batch request failed: {}", ex.getCause().getMessage());
+                    if (items != null) {
+                        for (String id : chunks.get(i)) {
+                            items.putIfAbsent(id, DeleteReport.Item.failure(id, 0, ex.getCause().getMessage()));
+                        }
+                    }
+                }
+            }
+            pending = new ArrayList<>(again);
+        }
+    }
+
+    /**
+     * Groups files by the account they are pinned to, files no account holds
+     * go to the best account that has not refused them yet
+     */
+    private Map<DriveAccount, List<String>> group(List<String> fileIds, Map<String, Set<DriveAccount>> refused) {
+        Map<DriveAccount, List<String>> groups = new LinkedHashMap<>();
+        for (String id : fileIds) {
+            DriveAccount account = accounts.pinnedAccount(id);
+            if (account == null) {
+                account = accounts.select(refused.getOrDefault(id, Collections.<DriveAccount>emptySet()));
+            }
+            groups.computeIfAbsent(account, k -> new ArrayList<>()).add(id);
+        }
+        return groups;
+    }
+
+    /**
+     * @param account Account to send through, null without a pool
+     * @param refused Accounts that answered 404 or 403 by file id
+     * @param again Collects files to send through another account
+     */
+    private <T> void executeBatch(DriveAccount account, List<String> fileIds, Call<T> call, Outcomes<? super T> outcomes,
+            Map<String, Set<DriveAccount>> refused, List<String> again, AtomicInteger batches) throws IOException {
+        List<String> pending = fileIds;
+        for (int attempt = 1;; attempt++) {
+            List<String> limited = Collections.synchronizedList(new ArrayList<>());
+            BatchRequest batch = newBatch();
+            for (String id : pending) {
+                call.build(id).queue(batch, new JsonBatchCallback<T>() {
+                    @Override
+                    public void onSuccess(T response, HttpHeaders responseHeaders) {
+                        if (account != null) {
+                            accounts.pin(id, account);
+                        }
+                        outcomes.success(id, response);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        boolean rateLimit = DriveRequestExecutor.isRateLimit(e.getCode(), e);
+                        if (!rateLimit && askOthers(account, id, e, refused)) {
+                            again.add(id);
+                            return;
+                        }
+                        outcomes.failure(id, e);
+                        if (rateLimit) {
+                            limited.add(id);
+                        }
+                    }
+                });
+            }
+            LOGGER.trace("Sending batch of {} calls", pending.size());
+            requestExecutor.acquire(pending.size() - 1);
+            batches.incrementAndGet();
+            if (account == null) {
+                batch.execute();
+            }
+            else {
+                accounts.through(account, () -> {
+                    batch.execute();
+                    return null;
+                });
+            }
+            if (limited.isEmpty() || !requestExecutor.retryRateLimited(attempt, limited.size())) {
+                return;
+            }
+            LOGGER.debug("Resending {} rate limited calls", limited.size());
+            pending = new ArrayList<>(limited);
+        }
+    }
+
+    /**
+     * Keeps a 404 or 403 of a file no account holds from being final while
+     * another account may see it
+     * @return True when the file is to be sent again through another account
+     */
+    private boolean askOthers(DriveAccount account, String fileId, GoogleJsonError e, Map<String, Set<DriveAccount>> refused) {
+        if ((account == null) || ((e.getCode() != 404) && (e.getCode() != 403))
+                || (accounts.pinnedAccount(fileId) != null)) {
+            return false;
+        }
+        Set<DriveAccount> skip = refused.computeIfAbsent(fileId, k -> ConcurrentHashMap.newKeySet());
+        skip.add(account);
+        if (accounts.select(skip) == null) {
+            return false;
+        }
+        LOGGER.debug("Account {} answered {} for {}, asking another", account.getEmailAddress(), e.getCode(), fileId);
+        return true;
+    }
+
+    private BatchRequest newBatch() {
+        return drive.batch().setBatchUrl(new GenericUrl((batchUrl != null) && !batchUrl.isEmpty()
+                ? batchUrl : drive.getRootUrl() + PermissionBatcher.BATCH_PATH));
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setParallelBatches(int parallelBatches) {
+        this.parallelBatches = parallelBatches;
+    }
+
+    /**
+     * @param batchUrl Batch endpoint, defaults to the one derived from Drive root url
+     */
+    public void setBatchUrl(String batchUrl) {
+        this.batchUrl = batchUrl;
+    }
+
+    /**
+     * @param pruneDescendants Leave out files under another file of the same
+     * run, at the cost of parent lookups
+     */
+    public void setPruneDescendants(boolean pruneDescendants) {
+        this.pruneDescendants = pruneDescendants;
+    }
+
+    public void setMaxAncestorDepth(int maxAncestorDepth) {
+        this.maxAncestorDepth = maxAncestorDepth;
+    }
+
+    /**
+     * @param purgeDelaySeconds Delete trashed files for good this long after
+     * they were trashed, 0 to leave them in trash
+     */
+    public void setPurgeDelaySeconds(long purgeDelaySeconds) {
+        this.purgeDelaySeconds = purgeDelaySeconds;
+    }
+}
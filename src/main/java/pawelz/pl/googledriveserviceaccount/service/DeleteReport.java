@@ -0,0 +1,192 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Per-file outcome of a bulk delete or trash, with throughput of the run
+ * @author p.zachwieja
+ */
+public class DeleteReport {
+
+    public enum Outcome {
+        DELETED,
+        TRASHED,
+        /**
+         * Not sent, an ancestor in the same run takes it with it
+         */
+        SKIPPED,
+        /**
+         * Already gone, counted as success
+         */
+        NOT_FOUND,
+        FAILED
+    }
+
+    /**
+     * Outcome of a single file
+     */
+    public static class Item {
+
+        private final String fileId;
+        private final Outcome outcome;
+        private final String ancestorId;
+        private final int errorCode;
+        private final String errorMessage;
+
+        Item(String fileId, Outcome outcome, String ancestorId, int errorCode, String errorMessage) {
+            this.fileId = fileId;
+            this.outcome = outcome;
+            this.ancestorId = ancestorId;
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+        }
+
+        static Item success(String fileId, Outcome outcome) {
+            return new Item(fileId, outcome, null, 0, null);
+        }
+
+        static Item skipped(String fileId, String ancestorId) {
+            return new Item(fileId, Outcome.SKIPPED, ancestorId, 0, null);
+        }
+
+        static Item failure(String fileId, int errorCode, String errorMessage) {
+            return new Item(fileId, Outcome.FAILED, null, errorCode, errorMessage);
+        }
+
+        public String getFileId() {
+            return fileId;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public boolean isSuccess() {
+            return outcome != Outcome.FAILED;
+        }
+
+        /**
+         * @return Ancestor deleted in its place for skipped files, null otherwise
+         */
+        public String getAncestorId() {
+            return ancestorId;
+        }
+
+        /**
+         * @return HTTP status code of failed call, 0 on success or when no response was received
+         */
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        @Override
+        public String toString() {
+            return fileId + " " + outcome + (ancestorId == null ? "" : " under " + ancestorId)
+                    + (outcome == Outcome.FAILED ? " " + errorCode + " " + errorMessage : "");
+        }
+    }
+
+    private final boolean trash;
+    private final List<Item> items;
+    private final int lookups;
+    private final int batches;
+    private final long elapsedMillis;
+
+    DeleteReport(boolean trash, List<Item> items, int lookups, int batches, long elapsedMillis) {
+        this.trash = trash;
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.lookups = lookups;
+        this.batches = batches;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return True when files were moved to trash instead of deleted
+     */
+    public boolean isTrash() {
+        return trash;
+    }
+
+    /**
+     * @return Results in the order files were given, each file once
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public List<Item> getFailed() {
+        return items.stream().filter(i -> !i.isSuccess()).collect(Collectors.toList());
+    }
+
+    /**
+     * @param outcome Outcome
+     * @return Ids of files with given outcome
+     */
+    public List<String> getFileIds(Outcome outcome) {
+        return items.stream().filter(i -> i.getOutcome() == outcome).map(Item::getFileId).collect(Collectors.toList());
+    }
+
+    public int getCount(Outcome outcome) {
+        return (int) items.stream().filter(i -> i.getOutcome() == outcome).count();
+    }
+
+    public int getSucceededCount() {
+        return items.size() - getFailedCount();
+    }
+
+    public int getFailedCount() {
+        return getCount(Outcome.FAILED);
+    }
+
+    /**
+     * @return True if every file is gone or in trash
+     */
+    public boolean isSuccess() {
+        return items.stream().allMatch(Item::isSuccess);
+    }
+
+    /**
+     * @return Number of parent lookups sent to find files under other files of the run
+     */
+    public int getLookups() {
+        return lookups;
+    }
+
+    /**
+     * @return Number of batch HTTP requests sent, lookups included
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return Files handled per second, skipped ones included
+     */
+    public double getFilesPerSecond() {
+        return items.size() * 1000.0 / Math.max(1, elapsedMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "DeleteReport{trash=" + trash + ", " + (trash ? "trashed=" + getCount(Outcome.TRASHED) : "deleted=" + getCount(Outcome.DELETED))
+                + ", skipped=" + getCount(Outcome.SKIPPED) + ", notFound=" + getCount(Outcome.NOT_FOUND)
+                + ", failed=" + getFailedCount() + ", lookups=" + lookups + ", batches=" + batches
+                + ", elapsedMillis=" + elapsedMillis + ", filesPerSecond=" + String.format("%.1f", getFilesPerSecond()) + "}";
+    }
+}
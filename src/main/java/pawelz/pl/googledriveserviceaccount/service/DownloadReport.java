@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.nio.file.Path;
+
+/**
+ * Outcome of a download to local file
+ * @author p.zachwieja
+ */
+public class DownloadReport {
+
+    private final String fileId;
+    private final Path target;
+    private final long size;
+    private final long downloadedBytes;
+    private final int segments;
+    private final boolean checksumVerified;
+    private final long elapsedMillis;
+
+    DownloadReport(String fileId, Path target, long size, long downloadedBytes, int segments, boolean checksumVerified, long elapsedMillis) {
+        this.fileId = fileId;
+        this.target = target;
+        this.size = size;
+        this.downloadedBytes = downloadedBytes;
+        this.segments = segments;
+        this.checksumVerified = checksumVerified;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    /**
+     * @return File size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Bytes fetched by this call, less than size when download was resumed
+     */
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    /**
+     * @return Bytes taken from an earlier interrupted download
+     */
+    public long getResumedBytes() {
+        return size - downloadedBytes;
+    }
+
+    /**
+     * @return Number of range requests the file was split into
+     */
+    public int getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return True if content matched md5Checksum reported by Drive
+     */
+    public boolean isChecksumVerified() {
+        return checksumVerified;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadReport{fileId=" + fileId + ", target=" + target + ", size=" + size
+                + ", downloadedBytes=" + downloadedBytes + ", segments=" + segments
+                + ", checksumVerified=" + checksumVerified + ", elapsedMillis=" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.auth.oauth2.Credential;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Service account taking part in {@link DriveAccountPool}, with its own
+ * per-user quota limiter, cap on requests in flight and usage counters
+ * @author p.zachwieja
+ */
+public class DriveAccount {
+
+    private final String emailAddress;
+    private final Credential credential;
+    private final RateLimiter limiter;
+    private final Semaphore slots;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttles = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long throttledUntil;
+
+    DriveAccount(String emailAddress, Credential credential, RateLimiter limiter, int maxInFlight) {
+        this.emailAddress = emailAddress;
+        this.credential = credential;
+        this.limiter = limiter;
+        this.slots = new Semaphore(Math.max(1, maxInFlight), true);
+    }
+
+    Credential getCredential() {
+        return credential;
+    }
+
+    RateLimiter getLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Waits for a free request slot of this account and counts the request
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    void started() throws InterruptedIOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a request slot of " + emailAddress);
+        }
+        inFlight.incrementAndGet();
+        requests.incrementAndGet();
+    }
+
+    void finished(boolean failed) {
+        inFlight.decrementAndGet();
+        slots.release();
+        if (failed) {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes account out of rotation for unpinned requests
+     * @param cooldownMillis Time to stay out
+     */
+    void throttle(long cooldownMillis) {
+        throttles.incrementAndGet();
+        throttledUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+        limiter.onThrottle();
+    }
+
+    long getThrottledUntil() {
+        return throttledUntil;
+    }
+
+    boolean isThrottled(long now) {
+        return throttledUntil - now > 0;
+    }
+
+    public String getEmailAddress() {
+        return emailAddress;
+    }
+
+    public boolean isThrottled() {
+        return isThrottled(System.nanoTime());
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottles() {
+        return throttles.get();
+    }
+
+    /**
+     * @return Attempts answered with an error status or failed with I/O error
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return Request rate currently allowed for this account
+     */
+    public double getRequestsPerSecond() {
+        return limiter.getRate();
+    }
+
+    @Override
+    public String toString() {
+        return "DriveAccount{emailAddress=" + emailAddress + ", inFlight=" + inFlight + ", requests=" + requests
+                + ", throttles=" + throttles + ", failures=" + failures + ", throttled=" + isThrottled() + "}";
+    }
+}
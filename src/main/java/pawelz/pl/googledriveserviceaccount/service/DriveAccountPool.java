@@ -0,0 +1,622 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.MultipartContent;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.SecurityUtils;
+import com.google.api.services.drive.DriveScopes;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import pawelz.pl.googledriveserviceaccount.config.DriveTransport;
+
+/**
+ * Spreads Drive traffic over several service accounts, so calls are not
+ * bound by the per-user quota of one account. The Drive client stays a
+ * single bean; each HTTP attempt is signed with the credential of the
+ * account chosen for it. Requests for a file are pinned to the account
+ * that first got a successful answer for it, so it is known to have
+ * access. A request for a file that is not pinned yet, e.g. after a restart,
+ * which is answered with 404 or 403 is sent again through the accounts that
+ * have not answered it, and only the answer of the last one is final. Files
+ * created through the pool belong to the account that created them; files
+ * used by every account should live in a folder shared with all of them.
+ * An account answering with rate limits is left out of rotation
+ * for {@code throttleCooldownMillis}; requests pinned to it, upload
+ * sessions included, wait for the cooldown instead of moving to an account
+ * that may not see the file. Each account sends at most {@code maxInFlight}
+ * requests at once, so a busy pinned account does not take capacity of
+ * the others.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.pool")
+public class DriveAccountPool implements HttpRequestInitializer {
+
+    /**
+     * How unpinned requests pick an account
+     */
+    public enum Balancing {
+        /**
+         * Fewest requests in flight
+         */
+        LEAST_LOADED,
+        /**
+         * Most permits left in the account's quota
+         */
+        QUOTA_AWARE
+    }
+
+    /**
+     * Configured service account key, either P12 with e-mail address or JSON
+     */
+    public static class AccountKey {
+
+        private String emailAddress;
+        private String p12Path;
+        private String jsonKeyPath;
+
+        public String getEmailAddress() {
+            return emailAddress;
+        }
+
+        public void setEmailAddress(String emailAddress) {
+            this.emailAddress = emailAddress;
+        }
+
+        public String getP12Path() {
+            return p12Path;
+        }
+
+        public void setP12Path(String p12Path) {
+            this.p12Path = p12Path;
+        }
+
+        public String getJsonKeyPath() {
+            return jsonKeyPath;
+        }
+
+        public void setJsonKeyPath(String jsonKeyPath) {
+            this.jsonKeyPath = jsonKeyPath;
+        }
+    }
+
+    /**
+     * Work done on the calling thread with requests pinned to one file
+     * @param <T> Result type
+     */
+    @FunctionalInterface
+    public interface PinnedCall<T> {
+
+        T call() throws IOException;
+    }
+
+    private static final String UPLOAD_KEY = "upload:";
+
+    private static final String P12_PASSWORD = "notasecret";
+    private static final Map<String, PrivateKey> P12_KEYS = new ConcurrentHashMap<>();
+
+    @Inject
+    DriveTransport driveTransport;
+
+    @Inject
+    TokenRefresher tokenRefresher;
+
+    private final List<AccountKey> accounts = new ArrayList<>();
+    private Balancing balancing = Balancing.LEAST_LOADED;
+    private double maxRequestsPerSecond = 10;
+    private int burst = 20;
+    private long throttleCooldownMillis = 10000;
+    private int maxPinnedFiles = 100000;
+    private int maxInFlight = 16;
+
+    private final List<DriveAccount> pool = new CopyOnWriteArrayList<>();
+    private Map<String, DriveAccount> pins;
+    private final ThreadLocal<String> pinScope = new ThreadLocal<>();
+    private final ThreadLocal<DriveAccount> current = new ThreadLocal<>();
+    private final ThreadLocal<DriveAccount> forced = new ThreadLocal<>();
+
+    private static final Logger LOGGER = LogManager.getLogger(DriveAccountPool.class);
+
+    @PostConstruct
+    public void init() throws GeneralSecurityException, IOException {
+        pins = Collections.synchronizedMap(new LinkedHashMap<String, DriveAccount>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DriveAccount> eldest) {
+                return size() > maxPinnedFiles;
+            }
+        });
+        JsonFactory jsonFactory = JacksonFactory.getDefaultInstance();
+        for (AccountKey key : accounts) {
+            Credential credential = credential(key, driveTransport.getTransport(), jsonFactory);
+            add(accountId(key, credential), credential);
+        }
+        if (!pool.isEmpty()) {
+            LOGGER.info("Drive account pool: {} accounts, {} balancing", pool.size(), balancing);
+        }
+    }
+
+    /**
+     * Builds credential from P12 or JSON key
+     * @param key Account key
+     * @param transport HTTP transport for token requests
+     * @param jsonFactory JSON factory
+     * @return Credential with Drive scope
+     * @throws GeneralSecurityException when key can not be read
+     * @throws IOException when key file can not be read
+     */
+    public static Credential credential(AccountKey key, HttpTransport transport, JsonFactory jsonFactory) throws GeneralSecurityException, IOException {
+        if ((key.getJsonKeyPath() != null) && !key.getJsonKeyPath().isEmpty()) {
+            try (InputStream in = new FileInputStream(key.getJsonKeyPath())) {
+                return GoogleCredential.fromStream(in, transport, jsonFactory)
+                        .createScoped(Collections.singleton(DriveScopes.DRIVE));
+            }
+        }
+        return new GoogleCredential.Builder()
+                .setTransport(transport)
+                .setJsonFactory(jsonFactory)
+                .setServiceAccountId(key.getEmailAddress())
+                .setServiceAccountPrivateKey(p12Key(key.getP12Path()))
+                .setServiceAccountScopes(Collections.singleton(DriveScopes.DRIVE))
+                .build();
+    }
+
+    /**
+     * @return Configured e-mail address, or the service account id of the
+     * credential for JSON keys that do not name one
+     */
+    static String accountId(AccountKey key, Credential credential) {
+        if ((key.getEmailAddress() != null) && !key.getEmailAddress().isEmpty()) {
+            return key.getEmailAddress();
+        }
+        if (credential instanceof GoogleCredential) {
+            String id = ((GoogleCredential) credential).getServiceAccountId();
+            if (id != null) {
+                return id;
+            }
+        }
+        // tells accounts apart in logs and metrics even without an id
+        return key.getJsonKeyPath() != null ? key.getJsonKeyPath() : key.getP12Path();
+    }
+
+    /**
+     * Parses P12 key file once, credentials built again for the same file
+     * reuse the key
+     * @param path Key file
+     * @return Private key
+     * @throws GeneralSecurityException when key can not be read
+     * @throws IOException when key file can not be read
+     */
+    static PrivateKey p12Key(String path) throws GeneralSecurityException, IOException {
+        String canonical = new File(path).getCanonicalPath();
+        PrivateKey key = P12_KEYS.get(canonical);
+        if (key == null) {
+            try (InputStream in = new FileInputStream(canonical)) {
+                key = SecurityUtils.loadPrivateKeyFromKeyStore(SecurityUtils.getPkcs12KeyStore(), in,
+                        P12_PASSWORD, "privatekey", P12_PASSWORD);
+            }
+            P12_KEYS.put(canonical, key);
+        }
+        return key;
+    }
+
+    /**
+     * Adds account to rotation, its first access token is fetched before
+     * it takes requests
+     * @param emailAddress Service account e-mail, used in logs and metrics
+     * @param credential Credential, requests are sent unsigned if null
+     * @return Added account
+     * @throws IOException when the access token can not be obtained
+     */
+    public DriveAccount add(String emailAddress, Credential credential) throws IOException {
+        if ((credential != null) && (tokenRefresher != null)) {
+            tokenRefresher.warmUp(emailAddress, credential);
+        }
+        DriveAccount account = new DriveAccount(emailAddress, credential,
+                new RateLimiter(maxRequestsPerSecond, Math.min(1, maxRequestsPerSecond), burst, 0.5, 1), maxInFlight);
+        pool.add(account);
+        return account;
+    }
+
+    public boolean isEmpty() {
+        return pool.isEmpty();
+    }
+
+    /**
+     * @return Number of accounts, configured ones when the pool is not built yet, at least 1
+     */
+    public int getAccountCount() {
+        return Math.max(1, Math.max(pool.size(), accounts.size()));
+    }
+
+    /**
+     * @return Accounts with their counters
+     */
+    public List<DriveAccount> getPool() {
+        return Collections.unmodifiableList(pool);
+    }
+
+    public int getPinnedFiles() {
+        return pins.size();
+    }
+
+    /**
+     * Runs call with every request of this thread that does not name a
+     * file routed as if it did, e.g. batches of permission changes
+     * @param <T> Result type
+     * @param fileId File the requests work on
+     * @param call Work to do
+     * @return Result of the call
+     * @throws IOException IOException
+     */
+    public <T> T pinned(String fileId, PinnedCall<T> call) throws IOException {
+        String previous = pinScope.get();
+        pinScope.set(fileId);
+        try {
+            return call.call();
+        } finally {
+            if (previous == null) {
+                pinScope.remove();
+            }
+            else {
+                pinScope.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Runs call with every request of this thread sent through one account,
+     * e.g. batches of calls for files pinned to it
+     * @param <T> Result type
+     * @param account Account to send through
+     * @param call Work to do
+     * @return Result of the call
+     * @throws IOException IOException
+     */
+    public <T> T through(DriveAccount account, PinnedCall<T> call) throws IOException {
+        DriveAccount previous = forced.get();
+        forced.set(account);
+        try {
+            return call.call();
+        } finally {
+            if (previous == null) {
+                forced.remove();
+            }
+            else {
+                forced.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Takes account that sent the last request of this thread out of
+     * rotation, for rate limits found in parsed error bodies
+     */
+    public void throttleCurrent() {
+        DriveAccount account = current.get();
+        if (account != null) {
+            throttle(account);
+        }
+    }
+
+    private void throttle(DriveAccount account) {
+        account.throttle(throttleCooldownMillis);
+        LOGGER.debug("Account {} throttled for {} ms", account.getEmailAddress(), throttleCooldownMillis);
+    }
+
+    /**
+     * Picks account for a request
+     * @param key File or upload session the request works on, may be null
+     * @return Account
+     */
+    DriveAccount select(String key) {
+        DriveAccount pinned = key == null ? null : pins.get(key);
+        return pinned != null ? pinned : choose(System.nanoTime(), Collections.<DriveAccount>emptySet());
+    }
+
+    /**
+     * Picks account for a file the skipped accounts did not find
+     * @param skip Accounts that answered 404 or 403 for it
+     * @return Account, null when every account is skipped
+     */
+    DriveAccount select(Set<DriveAccount> skip) {
+        return choose(System.nanoTime(), skip);
+    }
+
+    /**
+     * @return Account the file is pinned to, null when it is not pinned
+     */
+    DriveAccount pinnedAccount(String fileId) {
+        return pins.get(fileId);
+    }
+
+    /**
+     * Pins file to an account that answered a request for it successfully
+     */
+    void pin(String key, DriveAccount account) {
+        if ((key != null) && !pins.containsKey(key)) {
+            pins.putIfAbsent(key, account);
+        }
+    }
+
+    /**
+     * @param skip Accounts not to pick
+     * @return Best account, a throttled one when all are, null when every account is skipped
+     */
+    private DriveAccount choose(long now, Set<DriveAccount> skip) {
+        DriveAccount best = null;
+        double bestScore = 0;
+        DriveAccount soonest = null;
+        for (DriveAccount a : pool) {
+            if (skip.contains(a)) {
+                continue;
+            }
+            if (a.isThrottled(now)) {
+                if ((soonest == null) || (a.getThrottledUntil() - soonest.getThrottledUntil() < 0)) {
+                    soonest = a;
+                }
+                continue;
+            }
+            double score = balancing == Balancing.QUOTA_AWARE
+                    ? a.getLimiter().available() - a.getInFlight()
+                    : -a.getInFlight();
+            if ((best == null) || (score > bestScore)
+                    || ((score == bestScore) && (a.getRequests() < best.getRequests()))) {
+                best = a;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : soonest;
+    }
+
+    /**
+     * @return File id or upload session of a request, null when it has none
+     */
+    static String key(HttpRequest request) {
+        GenericUrl url = request.getUrl();
+        Object uploadId = url.getFirst("upload_id");
+        if (uploadId != null) {
+            return UPLOAD_KEY + uploadId;
+        }
+        List<String> parts = url.getPathParts();
+        if (parts != null) {
+            int files = parts.indexOf("files");
+            if ((files >= 0) && (files + 1 < parts.size())) {
+                String id = parts.get(files + 1);
+                if (!id.isEmpty() && !"generateIds".equals(id) && !"trash".equals(id)) {
+                    return id;
+                }
+            }
+        }
+        return contentId(request.getContent());
+    }
+
+    /**
+     * @return Id of file sent in JSON body, set when files are created under generated ids
+     */
+    private static String contentId(HttpContent content) {
+        if (content instanceof MultipartContent) {
+            for (MultipartContent.Part part : ((MultipartContent) content).getParts()) {
+                String id = contentId(part.getContent());
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
+        else if (content instanceof JsonHttpContent) {
+            Object data = ((JsonHttpContent) content).getData();
+            if (data instanceof Map) {
+                Object id = ((Map<?, ?>) data).get("id");
+                return id == null ? null : id.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a throttled account may send again, requests end up on one
+     * when it holds their file or every account is throttled
+     */
+    private static void awaitCooldown(DriveAccount account) throws InterruptedIOException {
+        long wait = account.getThrottledUntil() - System.nanoTime();
+        if (wait <= 0) {
+            return;
+        }
+        LOGGER.debug("Waiting {} ms for throttled account {}", TimeUnit.NANOSECONDS.toMillis(wait), account.getEmailAddress());
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for account " + account.getEmailAddress());
+        }
+    }
+
+    @Override
+    public void initialize(HttpRequest request) throws IOException {
+        if (!pool.isEmpty()) {
+            new Routing(request);
+        }
+    }
+
+    /**
+     * Hooks of one HTTP request, every attempt is routed again so a retry
+     * after a rate limit can go out through another account
+     */
+    private class Routing implements HttpExecuteInterceptor, HttpResponseInterceptor,
+            HttpUnsuccessfulResponseHandler, HttpIOExceptionHandler {
+
+        private DriveAccount account;
+        private String key;
+        private boolean active;
+        /**
+         * Accounts that answered an unpinned file request with 404 or 403
+         */
+        private final Set<DriveAccount> refused = new HashSet<>();
+        private DriveAccount next;
+
+        Routing(HttpRequest request) {
+            request.setInterceptor(this);
+            request.setResponseInterceptor(this);
+            request.setUnsuccessfulResponseHandler(this);
+            request.setIOExceptionHandler(this);
+        }
+
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+            String requestKey = key(request);
+            key = requestKey != null ? requestKey : pinScope.get();
+            account = next != null ? next : forced.get() != null ? forced.get() : select(key);
+            next = null;
+            current.set(account);
+            awaitCooldown(account);
+            account.getLimiter().acquire(1);
+            account.started();
+            active = true;
+            if (account.getCredential() != null) {
+                try {
+                    account.getCredential().intercept(request);
+                } catch (IOException | RuntimeException ex) {
+                    // the request is not sent, no handler frees its slot
+                    finished(true);
+                    throw ex;
+                }
+            }
+        }
+
+        private void finished(boolean failed) {
+            if (active) {
+                active = false;
+                account.finished(failed);
+            }
+        }
+
+        @Override
+        public void interceptResponse(HttpResponse response) throws IOException {
+            finished(!response.isSuccessStatusCode() && (response.getStatusCode() != 308));
+            if (response.isSuccessStatusCode()) {
+                account.getLimiter().onSuccess();
+                pin(key, account);
+            }
+            String location = response.getHeaders().getLocation();
+            if ((location != null) && "POST".equals(response.getRequest().getRequestMethod())) {
+                Object uploadId = new GenericUrl(location).getFirst("upload_id");
+                if (uploadId != null) {
+                    pins.put(UPLOAD_KEY + uploadId, account);
+                }
+            }
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+            finished(response.getStatusCode() != 308);
+            if (response.getStatusCode() == 429) {
+                throttle(account);
+            }
+            if ((account.getCredential() != null) && account.getCredential().handleResponse(request, response, supportsRetry)) {
+                return true;
+            }
+            return supportsRetry && askOthers(request, response.getStatusCode());
+        }
+
+        /**
+         * Sends an unpinned file request again through an account that has
+         * not answered it yet, the one asked may just not see the file
+         * @return True when there is such an account
+         */
+        private boolean askOthers(HttpRequest request, int status) {
+            if (((status != 404) && (status != 403)) || (key == null) || key.startsWith(UPLOAD_KEY)
+                    || pins.containsKey(key) || ((request.getContent() != null) && !request.getContent().retrySupported())) {
+                return false;
+            }
+            refused.add(account);
+            next = choose(System.nanoTime(), refused);
+            if (next == null) {
+                return false;
+            }
+            LOGGER.debug("Account {} answered {} for {}, asking {}", account.getEmailAddress(), status, key, next.getEmailAddress());
+            return true;
+        }
+
+        @Override
+        public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+            finished(true);
+            return false;
+        }
+    }
+
+    /**
+     * @return Configured keys, bound from drive.pool.accounts
+     */
+    public List<AccountKey> getAccounts() {
+        return accounts;
+    }
+
+    public void setBalancing(Balancing balancing) {
+        this.balancing = balancing;
+    }
+
+    /**
+     * @param maxRequestsPerSecond Per-user quota of one account
+     */
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public void setThrottleCooldownMillis(long throttleCooldownMillis) {
+        this.throttleCooldownMillis = throttleCooldownMillis;
+    }
+
+    public void setMaxPinnedFiles(int maxPinnedFiles) {
+        this.maxPinnedFiles = maxPinnedFiles;
+    }
+
+    /**
+     * @param maxInFlight Requests one account sends at once, further ones
+     * routed to it wait; applies to accounts added afterwards
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Job of {@link DriveJobQueue}: a list of items, e.g. file ids or e-mails,
+ * run by the handler of its type in batches. Progress is the number of items
+ * done, in order, which is what a job resumes from after a restart.
+ * @author p.zachwieja
+ */
+public class DriveJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String id;
+    private final String type;
+    private final String key;
+    private final Map<String, String> params;
+    private final List<String> items;
+    private final long createdTime;
+
+    private Status status = Status.QUEUED;
+    private int done;
+    private final Map<String, String> results = new LinkedHashMap<>();
+    private final List<String> failedItems = new ArrayList<>();
+    private String error;
+    private long updatedTime;
+
+    DriveJob(String id, String type, String key, Map<String, String> params, List<String> items, long createdTime) {
+        this.id = id;
+        this.type = type;
+        this.key = key;
+        this.params = Collections.unmodifiableMap(new LinkedHashMap<>(params));
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.createdTime = createdTime;
+        this.updatedTime = createdTime;
+    }
+
+    /**
+     * Records a finished batch
+     * @param count Items of the batch
+     * @param batchResults Results of items of the batch that have one
+     * @param batchFailed Items of the batch that failed
+     * @param time Time of the change
+     */
+    synchronized void progress(int count, Map<String, String> batchResults, List<String> batchFailed, long time) {
+        done = Math.min(items.size(), done + count);
+        results.putAll(batchResults);
+        failedItems.addAll(batchFailed);
+        updatedTime = time;
+    }
+
+    synchronized void status(Status status, String error, long time) {
+        this.status = status;
+        this.error = error;
+        updatedTime = time;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * @return Idempotency key given when the job was enqueued, may be null
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public Map<String, String> getParams() {
+        return params;
+    }
+
+    public List<String> getItems() {
+        return items;
+    }
+
+    public int getTotal() {
+        return items.size();
+    }
+
+    public synchronized Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return Number of items done, failed ones included
+     */
+    public synchronized int getDone() {
+        return done;
+    }
+
+    /**
+     * @return Results by item, e.g. id of an uploaded file; items without a result are left out
+     */
+    public synchronized Map<String, String> getResults() {
+        return new LinkedHashMap<>(results);
+    }
+
+    public synchronized List<String> getFailedItems() {
+        return new ArrayList<>(failedItems);
+    }
+
+    /**
+     * @return Reason the job failed, null unless status is FAILED
+     */
+    public synchronized String getError() {
+        return error;
+    }
+
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    public synchronized long getUpdatedTime() {
+        return updatedTime;
+    }
+
+    public synchronized boolean isFinished() {
+        return (status == Status.COMPLETED) || (status == Status.FAILED) || (status == Status.CANCELLED);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DriveJob{id=" + id + ", type=" + type + ", key=" + key + ", status=" + status
+                + ", done=" + done + "/" + items.size() + ", failed=" + failedItems.size()
+                + (error == null ? "" : ", error=" + error) + "}";
+    }
+}
@@ -0,0 +1,694 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ * Runs long Drive operations in the background and survives restarts.
+ * Every enqueued job and every finished batch is appended to a {@link JobLog}
+ * before it takes effect; on start the log is replayed and unfinished jobs go
+ * on from their last finished batch, so an item may run again after a crash
+ * but never gets lost. Jobs run on a shared pool, at most
+ * {@code concurrency.<type>} jobs of a type at once, and go to the back of
+ * their type's queue after each batch, so a large job does not hold up the
+ * ones enqueued after it. A job enqueued with the key of a job still kept is
+ * not enqueued again, the existing one is returned.
+ * @author p.zachwieja
+ */
+@Service
+@ConfigurationProperties(prefix = "drive.jobs")
+public class DriveJobQueue {
+
+    public static final String DELETE = "delete";
+    public static final String SHARE = "share";
+    public static final String UPLOAD = "upload";
+
+    @Inject
+    GoogleDriveService googleDriveService;
+
+    private String logPath = System.getProperty("java.io.tmpdir") + "/drive-jobs/jobs.log";
+    private String spoolDir = System.getProperty("java.io.tmpdir") + "/drive-jobs/spool";
+    private boolean syncWrites = true;
+    private int poolSize = 8;
+    private int defaultConcurrency = 1;
+    private final Map<String, Integer> concurrency = new LinkedHashMap<>();
+    private int deleteBatchSize = 50;
+    private int shareBatchSize = 100;
+    private long retentionHours = 24;
+    private long compactAfterRecords = 10000;
+
+    private JobLog log;
+    private ExecutorService executor;
+    private volatile boolean stopping;
+
+    private final ConcurrentMap<String, Registration> handlers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, DriveJob> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> keys = new ConcurrentHashMap<>();
+    // guarded by this
+    private final Map<String, Deque<DriveJob>> waiting = new HashMap<>();
+    private final Map<String, Integer> running = new HashMap<>();
+
+    private static final Logger LOGGER = LogManager.getLogger(DriveJobQueue.class);
+
+    public DriveJobQueue() {
+        concurrency.put(DELETE, 4);
+        concurrency.put(SHARE, 2);
+        concurrency.put(UPLOAD, 2);
+    }
+
+    /**
+     * Runs items of one type of job
+     */
+    @FunctionalInterface
+    public interface Handler {
+
+        /**
+         * Runs the next items of a job. After a crash the last batch may be
+         * run again, so running an item twice must do no harm.
+         * @param params Parameters of the job
+         * @param items Items of the batch
+         * @return Result of each item in order, empty when an item has no
+         * result worth keeping, null for an item that failed
+         * @throws IOException to stop the job, it fails and can be retried
+         * from this batch
+         */
+        List<String> process(Map<String, String> params, List<String> items) throws IOException;
+    }
+
+    private static class Registration {
+
+        private final Handler handler;
+        private final int batchSize;
+
+        Registration(Handler handler, int batchSize) {
+            this.handler = handler;
+            this.batchSize = Math.max(1, batchSize);
+        }
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, poolSize), r -> {
+            Thread t = new Thread(r, "drive-job-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        register(DELETE, deleteBatchSize, this::delete);
+        register(SHARE, shareBatchSize, this::share);
+        register(UPLOAD, 1, this::upload);
+        log = new JobLog(Paths.get(logPath), syncWrites);
+        replay();
+        compact();
+        dispatch();
+    }
+
+    /**
+     * Stops taking batches; running batches are interrupted and their jobs
+     * go on from their last finished batch on next start
+     */
+    @PreDestroy
+    public void shutdown() throws IOException {
+        stopping = true;
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Adds a job type, or replaces its handler. Jobs of a type with no
+     * handler are kept queued until one is registered.
+     * @param type Job type
+     * @param batchSize Items given to the handler at once, the job is checkpointed after each batch
+     * @param handler Handler
+     */
+    public void register(String type, int batchSize, Handler handler) {
+        handlers.put(type, new Registration(handler, batchSize));
+        if (log != null) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Enqueues a job, it is on disk when this returns
+     * @param type Job type
+     * @param key Idempotency key, null to always enqueue
+     * @param params Parameters passed to the handler
+     * @param items Items to run
+     * @return New job, or the job already kept for the key
+     * @throws IOException when the job cannot be written to the log
+     */
+    public synchronized DriveJob enqueue(String type, String key, Map<String, String> params, List<String> items) throws IOException {
+        if (key != null) {
+            DriveJob existing = getJobByKey(key);
+            if (existing != null) {
+                LOGGER.debug("Job with key {} already enqueued: {}", key, existing);
+                return existing;
+            }
+        }
+        DriveJob job = new DriveJob(UUID.randomUUID().toString(), type, key,
+                params == null ? Collections.emptyMap() : params, items, System.currentTimeMillis());
+        log.append(jobRecord(job));
+        add(job);
+        waiting(type).addLast(job);
+        LOGGER.debug("Enqueued {}", job);
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Deletes files in the background
+     * @param key Idempotency key, may be null
+     * @param fileIds Ids of files to delete
+     * @return Job, files that could not be deleted end up in its failed items
+     * @throws IOException when the job cannot be written to the log
+     * @see GoogleDriveService#deleteFiles(java.util.Collection)
+     */
+    public DriveJob deleteFiles(String key, List<String> fileIds) throws IOException {
+        return enqueue(DELETE, key, null, fileIds);
+    }
+
+    /**
+     * Shares a file with many users in the background
+     * @param key Idempotency key, may be null
+     * @param fileId File to share
+     * @param emails E-mails of users
+     * @param role User role, reader if null
+     * @param type Permission type, user if null
+     * @param sendEmail Send notification e-mail
+     * @param message Notification message, may be null
+     * @return Job with permission id by e-mail as results
+     * @throws IOException when the job cannot be written to the log
+     * @see GoogleDriveService#addPermissionsForUsers(String, List, String, String, boolean, String)
+     */
+    public DriveJob share(String key, String fileId, List<String> emails, String role, String type,
+            boolean sendEmail, String message) throws IOException {
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("fileId", fileId);
+        params.put("role", role);
+        params.put("type", type);
+        params.put("sendEmail", String.valueOf(sendEmail));
+        params.put("message", message);
+        return enqueue(SHARE, key, params, emails);
+    }
+
+    /**
+     * Uploads a file in the background. Content is copied to the spool
+     * directory first, so it outlives the request it came with.
+     * @param key Idempotency key, may be null
+     * @param multipartFile Multipart file from browser
+     * @param folderId Parent folder id
+     * @param desc Description for file
+     * @return Job with id of the uploaded file as result
+     * @throws IOException when content cannot be spooled or the job cannot be written to the log
+     */
+    public DriveJob upload(String key, MultipartFile multipartFile, String folderId, String desc) throws IOException {
+        if (key != null) {
+            DriveJob existing = getJobByKey(key);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        Path spool = Paths.get(spoolDir).resolve(UUID.randomUUID().toString());
+        Files.createDirectories(spool.getParent());
+        try (InputStream in = multipartFile.getInputStream()) {
+            Files.copy(in, spool, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("name", multipartFile.getOriginalFilename());
+        params.put("contentType", multipartFile.getContentType());
+        params.put("folderId", folderId);
+        params.put("desc", desc);
+        params.put("fileId", googleDriveService.generateId());
+        DriveJob job = enqueue(UPLOAD, key, params, Collections.singletonList(spool.toString()));
+        if (!job.getItems().contains(spool.toString())) {
+            // lost a race with an upload of the same key
+            Files.deleteIfExists(spool);
+        }
+        return job;
+    }
+
+    /**
+     * Enqueues a failed job again, it goes on from its last finished batch
+     * @param id Job id
+     * @return Job, null when not found
+     * @throws IOException when the change cannot be written to the log
+     */
+    public synchronized DriveJob retry(String id) throws IOException {
+        DriveJob job = jobs.get(id);
+        if ((job == null) || (job.getStatus() != DriveJob.Status.FAILED)) {
+            return job;
+        }
+        setStatus(job, DriveJob.Status.QUEUED, null);
+        waiting(job.getType()).addLast(job);
+        dispatch();
+        return job;
+    }
+
+    /**
+     * Cancels a job that has not finished; a batch already running ends first
+     * @param id Job id
+     * @return Job, null when not found
+     * @throws IOException when the change cannot be written to the log
+     */
+    public synchronized DriveJob cancel(String id) throws IOException {
+        DriveJob job = jobs.get(id);
+        if ((job == null) || job.isFinished()) {
+            return job;
+        }
+        setStatus(job, DriveJob.Status.CANCELLED, null);
+        waiting(job.getType()).remove(job);
+        return job;
+    }
+
+    /**
+     * @param id Job id
+     * @return Job, null when not found or no longer kept
+     */
+    public DriveJob getJob(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @param key Idempotency key
+     * @return Job enqueued with the key, null when none is kept
+     */
+    public DriveJob getJobByKey(String key) {
+        String id = keys.get(key);
+        return id == null ? null : jobs.get(id);
+    }
+
+    /**
+     * @return Jobs kept, oldest first
+     */
+    public List<DriveJob> getJobs() {
+        return jobs.values().stream()
+                .sorted((a, b) -> Long.compare(a.getCreatedTime(), b.getCreatedTime()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param type Job type
+     * @return Jobs of the type running a batch now
+     */
+    public synchronized int getRunning(String type) {
+        return running.getOrDefault(type, 0);
+    }
+
+    private void add(DriveJob job) {
+        jobs.put(job.getId(), job);
+        if (job.getKey() != null) {
+            keys.put(job.getKey(), job.getId());
+        }
+    }
+
+    private Deque<DriveJob> waiting(String type) {
+        return waiting.computeIfAbsent(type, t -> new ArrayDeque<>());
+    }
+
+    /**
+     * Starts batches of waiting jobs while their types are below their concurrency
+     */
+    private synchronized void dispatch() {
+        if (stopping) {
+            return;
+        }
+        for (Map.Entry<String, Deque<DriveJob>> e : waiting.entrySet()) {
+            String type = e.getKey();
+            if (!handlers.containsKey(type)) {
+                continue;
+            }
+            int limit = Math.max(1, concurrency.getOrDefault(type, defaultConcurrency));
+            while (!e.getValue().isEmpty() && (running.getOrDefault(type, 0) < limit)) {
+                DriveJob job = e.getValue().pollFirst();
+                running.merge(type, 1, Integer::sum);
+                executor.execute(() -> run(job));
+            }
+        }
+    }
+
+    private void run(DriveJob job) {
+        boolean again = false;
+        try {
+            again = step(job);
+        } finally {
+            synchronized (this) {
+                running.merge(job.getType(), -1, Integer::sum);
+                if (again && (job.getStatus() == DriveJob.Status.RUNNING)) {
+                    waiting(job.getType()).addLast(job);
+                }
+                if (job.isFinished() && (log.getAppended() > compactAfterRecords)) {
+                    compactQuietly();
+                }
+            }
+            dispatch();
+        }
+    }
+
+    /**
+     * Runs the next batch of a job and checkpoints it
+     * @return True when the job has more batches to run
+     */
+    private boolean step(DriveJob job) {
+        Registration registration = handlers.get(job.getType());
+        try {
+            synchronized (this) {
+                if (job.getStatus() == DriveJob.Status.QUEUED) {
+                    setStatus(job, DriveJob.Status.RUNNING, null);
+                } else if (job.getStatus() != DriveJob.Status.RUNNING) {
+                    return false;
+                }
+            }
+            int from = job.getDone();
+            List<String> batch = job.getItems().subList(from, Math.min(job.getTotal(), from + registration.batchSize));
+            List<String> results = batch.isEmpty() ? Collections.emptyList()
+                    : registration.handler.process(job.getParams(), batch);
+            Map<String, String> batchResults = new LinkedHashMap<>();
+            List<String> batchFailed = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                String result = (results != null) && (i < results.size()) ? results.get(i) : null;
+                if (result == null) {
+                    batchFailed.add(batch.get(i));
+                } else if (!result.isEmpty()) {
+                    batchResults.put(batch.get(i), result);
+                }
+            }
+            synchronized (log) {
+                log.append(progressRecord(job, batch.size(), batchResults, batchFailed));
+                job.progress(batch.size(), batchResults, batchFailed, System.currentTimeMillis());
+            }
+            if (UPLOAD.equals(job.getType())) {
+                dropSpools(batch);
+            }
+            if (job.getDone() < job.getTotal()) {
+                return true;
+            }
+            synchronized (this) {
+                if (job.getStatus() == DriveJob.Status.RUNNING) {
+                    setStatus(job, DriveJob.Status.COMPLETED, null);
+                    LOGGER.info("Job finished: {}", job);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            if (stopping) {
+                LOGGER.debug("Job {} stopped at {} of {}", job.getId(), job.getDone(), job.getTotal());
+                return false;
+            }
+            LOGGER.error("Job {} failed at {} of {}", job.getId(), job.getDone(), job.getTotal(), ex);
+            try {
+                setStatus(job, DriveJob.Status.FAILED, String.valueOf(ex.getMessage()));
+            } catch (IOException e) {
+                LOGGER.error("Can not record failure of job {}", job.getId(), e);
+                job.status(DriveJob.Status.FAILED, String.valueOf(ex.getMessage()), System.currentTimeMillis());
+            }
+        }
+        return false;
+    }
+
+    private void setStatus(DriveJob job, DriveJob.Status status, String error) throws IOException {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", "status");
+        record.put("id", job.getId());
+        record.put("status", status.name());
+        record.put("error", error);
+        synchronized (log) {
+            log.append(record);
+            job.status(status, error, System.currentTimeMillis());
+        }
+    }
+
+    private List<String> delete(Map<String, String> params, List<String> fileIds) throws IOException {
+        Map<String, DeleteReport.Item> outcomes = new HashMap<>();
+        for (DeleteReport.Item item : googleDriveService.deleteFiles(fileIds).getItems()) {
+            outcomes.put(item.getFileId(), item);
+        }
+        return fileIds.stream().map(id -> outcomes.containsKey(id) && outcomes.get(id).isSuccess() ? "" : null)
+                .collect(Collectors.toList());
+    }
+
+    private List<String> share(Map<String, String> params, List<String> emails) throws IOException {
+        PermissionBatchResult result = googleDriveService.addPermissionsForUsers(params.get("fileId"), emails,
+                params.get("role"), params.get("type"), Boolean.parseBoolean(params.get("sendEmail")), params.get("message"));
+        if (result == null) {
+            throw new IOException("File not found: " + params.get("fileId"));
+        }
+        Map<String, String> permissions = new HashMap<>();
+        for (PermissionBatchResult.Item item : result.getItems()) {
+            if (item.isSuccess()) {
+                permissions.put(item.getChange().getEmail(), item.getPermissionId() == null ? "" : item.getPermissionId());
+            }
+        }
+        return emails.stream().map(permissions::get).collect(Collectors.toList());
+    }
+
+    /**
+     * Uploads with the resumable protocol, so an upload cut by a restart
+     * goes on from its session, under the id reserved when the job was
+     * enqueued, so an upload finished before a crash is not made again
+     */
+    private List<String> upload(Map<String, String> params, List<String> spools) throws IOException {
+        List<String> results = new ArrayList<>(spools.size());
+        for (String spool : spools) {
+            Path path = Paths.get(spool);
+            if (!Files.exists(path)) {
+                throw new IOException("Spooled content is gone: " + spool);
+            }
+            String fileId = googleDriveService.uploadContent(false, params.get("name"), params.get("contentType"),
+                    Files.size(path), () -> Files.newInputStream(path), params.get("folderId"), params.get("desc"),
+                    params.get("fileId")).getId();
+            results.add(fileId);
+        }
+        return results;
+    }
+
+    /**
+     * Deletes spooled content of a checkpointed batch, before that a crash
+     * runs the batch again and needs it
+     */
+    private void dropSpools(List<String> spools) {
+        for (String spool : spools) {
+            try {
+                Files.deleteIfExists(Paths.get(spool));
+            } catch (IOException ex) {
+                LOGGER.warn("Can not delete spooled content {}: {}", spool, ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Rebuilds jobs from the log, unfinished ones are queued again
+     */
+    private synchronized void replay() throws IOException {
+        for (Map<String, Object> record : log.read()) {
+            String op = String.valueOf(record.get("op"));
+            if ("job".equals(op)) {
+                add(job(record));
+                continue;
+            }
+            DriveJob job = jobs.get(String.valueOf(record.get("id")));
+            if (job == null) {
+                continue;
+            }
+            if ("progress".equals(op)) {
+                job.progress(((Number) record.get("count")).intValue(), strings(record.get("results")),
+                        list(record.get("failed")), time(record));
+            } else if ("status".equals(op)) {
+                job.status(DriveJob.Status.valueOf(String.valueOf(record.get("status"))),
+                        (String) record.get("error"), time(record));
+            }
+        }
+        int resumed = 0;
+        for (DriveJob job : getJobs()) {
+            if (!job.isFinished()) {
+                job.status(DriveJob.Status.QUEUED, null, job.getUpdatedTime());
+                waiting(job.getType()).addLast(job);
+                resumed++;
+            }
+        }
+        if (!jobs.isEmpty()) {
+            LOGGER.info("Job log replayed: {} jobs, {} to resume", jobs.size(), resumed);
+        }
+    }
+
+    /**
+     * Rewrites the log with one record per kept job, dropping jobs finished
+     * more than retention-hours ago. Records are appended together with the
+     * change they describe under the log's lock, so none is lost here.
+     */
+    private synchronized void compact() throws IOException {
+        long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours);
+        synchronized (log) {
+            List<Map<String, Object>> records = new ArrayList<>();
+            for (DriveJob job : getJobs()) {
+                if (job.isFinished() && (job.getUpdatedTime() < cutoff)) {
+                    jobs.remove(job.getId());
+                    if (job.getKey() != null) {
+                        keys.remove(job.getKey(), job.getId());
+                    }
+                    continue;
+                }
+                records.add(jobRecord(job));
+            }
+            log.rewrite(records);
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException ex) {
+            LOGGER.warn("Can not compact job log: {}", ex.getMessage());
+        }
+    }
+
+    private static Map<String, Object> jobRecord(DriveJob job) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", "job");
+        record.put("id", job.getId());
+        record.put("type", job.getType());
+        record.put("key", job.getKey());
+        record.put("params", job.getParams());
+        record.put("items", job.getItems());
+        record.put("created", job.getCreatedTime());
+        record.put("status", job.getStatus().name());
+        record.put("error", job.getError());
+        record.put("done", job.getDone());
+        record.put("results", job.getResults());
+        record.put("failed", job.getFailedItems());
+        record.put("time", job.getUpdatedTime());
+        return record;
+    }
+
+    private static Map<String, Object> progressRecord(DriveJob job, int count, Map<String, String> results, List<String> failed) {
+        Map<String, Object> record = new LinkedHashMap<>();
+        record.put("op", "progress");
+        record.put("id", job.getId());
+        record.put("count", count);
+        record.put("results", results);
+        record.put("failed", failed);
+        record.put("time", System.currentTimeMillis());
+        return record;
+    }
+
+    private static DriveJob job(Map<String, Object> record) {
+        DriveJob job = new DriveJob(String.valueOf(record.get("id")), String.valueOf(record.get("type")),
+                (String) record.get("key"), strings(record.get("params")), list(record.get("items")),
+                ((Number) record.get("created")).longValue());
+        job.progress(((Number) record.get("done")).intValue(), strings(record.get("results")),
+                list(record.get("failed")), time(record));
+        job.status(DriveJob.Status.valueOf(String.valueOf(record.get("status"))), (String) record.get("error"), time(record));
+        return job;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, String> strings(Object value) {
+        return value == null ? Collections.emptyMap() : (Map<String, String>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> list(Object value) {
+        return value == null ? Collections.emptyList() : (List<String>) value;
+    }
+
+    private static long time(Map<String, Object> record) {
+        Object time = record.get("time");
+        return time == null ? System.currentTimeMillis() : ((Number) time).longValue();
+    }
+
+    public void setLogPath(String logPath) {
+        this.logPath = logPath;
+    }
+
+    public void setSpoolDir(String spoolDir) {
+        this.spoolDir = spoolDir;
+    }
+
+    /**
+     * @param syncWrites Force every record to disk, a job is then never lost
+     * once enqueue returns; off trades that for speed
+     */
+    public void setSyncWrites(boolean syncWrites) {
+        this.syncWrites = syncWrites;
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * @param defaultConcurrency Jobs of a type not in drive.jobs.concurrency running at once
+     */
+    public void setDefaultConcurrency(int defaultConcurrency) {
+        this.defaultConcurrency = defaultConcurrency;
+    }
+
+    /**
+     * @return Jobs running at once by type, bound from drive.jobs.concurrency
+     */
+    public Map<String, Integer> getConcurrency() {
+        return concurrency;
+    }
+
+    public void setDeleteBatchSize(int deleteBatchSize) {
+        this.deleteBatchSize = deleteBatchSize;
+    }
+
+    public void setShareBatchSize(int shareBatchSize) {
+        this.shareBatchSize = shareBatchSize;
+    }
+
+    /**
+     * @param retentionHours How long finished jobs can be queried and keep their key
+     */
+    public void setRetentionHours(long retentionHours) {
+        this.retentionHours = retentionHours;
+    }
+
+    /**
+     * @param compactAfterRecords Records appended before the log is compacted
+     */
+    public void setCompactAfterRecords(long compactAfterRecords) {
+        this.compactAfterRecords = compactAfterRecords;
+    }
+}
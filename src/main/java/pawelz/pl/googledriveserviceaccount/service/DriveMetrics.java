@@ -0,0 +1,387 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.HttpResponseException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.inject.Inject;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import pawelz.pl.googledriveserviceaccount.config.DriveTransport;
+
+/**
+ * Timers, byte counters and error counters of {@link GoogleDriveService}
+ * operations, published on the actuator metrics endpoint next to counters
+ * of the request executor, connection pool and service accounts.
+ * Latencies go to lock-free histograms with buckets about 12% wide, so
+ * percentiles are approximate; they cover the time since start or the
+ * last {@link #reset()}. When disabled an operation costs one field read.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.metrics")
+public class DriveMetrics implements PublicMetrics {
+
+    public static final String GET_FILE = "getFile";
+    public static final String CHILD_LIST = "childList";
+    public static final String CREATE = "create";
+    public static final String UPLOAD = "upload";
+    public static final String DOWNLOAD = "download";
+    public static final String DELETE = "delete";
+    public static final String PERMISSION_CREATE = "permissionCreate";
+    public static final String PERMISSION_DELETE = "permissionDelete";
+    public static final String PERMISSION_LIST = "permissionList";
+    public static final String SEARCH = "search";
+
+    private static final String PREFIX = "drive.";
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    DriveTransport driveTransport;
+
+    @Inject
+    DriveAccountPool accounts;
+
+    @Inject
+    ContentCache contentCache;
+
+    private boolean enabled = true;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> bytes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> coalesced = new ConcurrentHashMap<>();
+
+    /**
+     * Timed operation
+     * @param <T> Result type
+     */
+    @FunctionalInterface
+    public interface TimedCall<T> {
+
+        T call() throws IOException;
+    }
+
+    /**
+     * Runs call, recording its latency, in-flight count and errors
+     * @param <T> Result type
+     * @param operation Operation name
+     * @param call Work to time
+     * @return Result of the call
+     * @throws IOException thrown by the call
+     */
+    public <T> T time(String operation, TimedCall<T> call) throws IOException {
+        if (!enabled) {
+            return call.call();
+        }
+        Timer timer = timer(operation);
+        timer.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } catch (IOException | RuntimeException ex) {
+            error(operation, ex);
+            throw ex;
+        } finally {
+            timer.inFlight.decrementAndGet();
+            timer.record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Counts failed operation under its HTTP status, "io" for errors without a response
+     * @param operation Operation name
+     * @param ex Error
+     */
+    public void error(String operation, Throwable ex) {
+        if (!enabled) {
+            return;
+        }
+        Throwable cause = ex.getCause() instanceof IOException ? ex.getCause() : ex;
+        String status = cause instanceof HttpResponseException
+                ? String.valueOf(((HttpResponseException) cause).getStatusCode())
+                : cause instanceof IOException ? "io" : "other";
+        counter(errors, operation + ".errors." + status).incrementAndGet();
+        counter(errors, "errors." + status).incrementAndGet();
+    }
+
+    /**
+     * Counts transferred content bytes
+     * @param operation Operation name, usually upload or download
+     * @param count Number of bytes
+     */
+    public void bytes(String operation, long count) {
+        if (enabled && (count > 0)) {
+            counter(bytes, operation + ".bytes").addAndGet(count);
+        }
+    }
+
+    /**
+     * Counts call served by an identical call that was already running
+     * @param operation Operation name
+     */
+    public void coalesced(String operation) {
+        if (enabled) {
+            counter(coalesced, operation + ".coalesced").incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts bytes read from a content stream
+     * @param operation Operation name
+     * @param in Stream to count
+     * @return Counting stream, or the same stream when metrics are disabled
+     */
+    public InputStream counting(String operation, InputStream in) {
+        if (!enabled || (in == null)) {
+            return in;
+        }
+        AtomicLong counter = counter(bytes, operation + ".bytes");
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    counter.incrementAndGet();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    counter.addAndGet(n);
+                }
+                return n;
+            }
+        };
+    }
+
+    private Timer timer(String operation) {
+        Timer timer = timers.get(operation);
+        return timer != null ? timer : timers.computeIfAbsent(operation, o -> new Timer());
+    }
+
+    private static AtomicLong counter(ConcurrentMap<String, AtomicLong> counters, String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter : counters.computeIfAbsent(name, n -> new AtomicLong());
+    }
+
+    /**
+     * @param operation Operation name
+     * @return Timer of an operation, null if it never ran
+     */
+    public Timer getTimer(String operation) {
+        return timers.get(operation);
+    }
+
+    /**
+     * @param name Counter name, e.g. getFile.errors.404 or errors.429
+     * @return Number of errors
+     */
+    public long getErrors(String name) {
+        AtomicLong counter = errors.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @param operation Operation name
+     * @return Content bytes transferred
+     */
+    public long getBytes(String operation) {
+        AtomicLong counter = bytes.get(operation + ".bytes");
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * @param operation Operation name
+     * @return Calls that shared the request of an identical call
+     */
+    public long getCoalesced(String operation) {
+        AtomicLong counter = coalesced.get(operation + ".coalesced");
+        return counter == null ? 0 : counter.get();
+    }
+
+    /**
+     * Clears histograms and counters
+     */
+    public void reset() {
+        timers.clear();
+        errors.clear();
+        bytes.clear();
+        coalesced.clear();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> result = new ArrayList<>();
+        Map<String, Timer> sorted = new TreeMap<>(timers);
+        for (Map.Entry<String, Timer> e : sorted.entrySet()) {
+            String name = PREFIX + e.getKey();
+            Timer t = e.getValue();
+            result.add(new Metric<>(name + ".count", t.getCount()));
+            result.add(new Metric<>(name + ".inFlight", t.getInFlight()));
+            result.add(new Metric<>(name + ".meanMillis", t.getMeanMillis()));
+            result.add(new Metric<>(name + ".p50Millis", t.getPercentileMillis(0.5)));
+            result.add(new Metric<>(name + ".p99Millis", t.getPercentileMillis(0.99)));
+            result.add(new Metric<>(name + ".maxMillis", t.getMaxMillis()));
+        }
+        new TreeMap<>(errors).forEach((k, v) -> result.add(new Metric<>(PREFIX + k, v.get())));
+        new TreeMap<>(bytes).forEach((k, v) -> result.add(new Metric<>(PREFIX + k, v.get())));
+        new TreeMap<>(coalesced).forEach((k, v) -> result.add(new Metric<>(PREFIX + k, v.get())));
+        if (requestExecutor != null) {
+            result.add(new Metric<>(PREFIX + "requests.count", requestExecutor.getRequests()));
+            result.add(new Metric<>(PREFIX + "requests.retries", requestExecutor.getRetries()));
+            result.add(new Metric<>(PREFIX + "requests.throttled", requestExecutor.getThrottled()));
+            result.add(new Metric<>(PREFIX + "requests.exhausted", requestExecutor.getExhausted()));
+            result.add(new Metric<>(PREFIX + "requests.waitedMillis", requestExecutor.getWaitedMillis()));
+            result.add(new Metric<>(PREFIX + "requests.perSecond", requestExecutor.getRequestsPerSecond()));
+        }
+        if (driveTransport != null) {
+            result.add(new Metric<>(PREFIX + "connections.leased", driveTransport.getLeasedConnections()));
+            result.add(new Metric<>(PREFIX + "connections.available", driveTransport.getAvailableConnections()));
+            result.add(new Metric<>(PREFIX + "connections.pending", driveTransport.getPendingConnections()));
+        }
+        if ((contentCache != null) && contentCache.isEnabled()) {
+            result.add(new Metric<>(PREFIX + "contentCache.hits", contentCache.getHits()));
+            result.add(new Metric<>(PREFIX + "contentCache.misses", contentCache.getMisses()));
+            result.add(new Metric<>(PREFIX + "contentCache.hitRatio", contentCache.getHitRatio()));
+            result.add(new Metric<>(PREFIX + "contentCache.bypassed", contentCache.getBypassed()));
+            result.add(new Metric<>(PREFIX + "contentCache.revalidations", contentCache.getRevalidations()));
+            result.add(new Metric<>(PREFIX + "contentCache.deduplicated", contentCache.getDeduplicated()));
+            result.add(new Metric<>(PREFIX + "contentCache.evictions", contentCache.getEvictions()));
+            result.add(new Metric<>(PREFIX + "contentCache.bytesSaved", contentCache.getBytesSaved()));
+            result.add(new Metric<>(PREFIX + "contentCache.filledBytes", contentCache.getFilledBytes()));
+            result.add(new Metric<>(PREFIX + "contentCache.fillFailures", contentCache.getFillFailures()));
+            result.add(new Metric<>(PREFIX + "contentCache.bytes", contentCache.getBytes()));
+            result.add(new Metric<>(PREFIX + "contentCache.files", contentCache.getSize()));
+        }
+        if (accounts != null) {
+            for (DriveAccount a : accounts.getPool()) {
+                String name = PREFIX + "accounts." + a.getEmailAddress();
+                result.add(new Metric<>(name + ".inFlight", a.getInFlight()));
+                result.add(new Metric<>(name + ".requests", a.getRequests()));
+                result.add(new Metric<>(name + ".throttles", a.getThrottles()));
+            }
+        }
+        return result;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Latency histogram of one operation. Values are kept in microseconds,
+     * 8 buckets per power of two.
+     */
+    public static class Timer {
+
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucket(TimeUnit.NANOSECONDS.toMicros(nanos)));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        static int bucket(long micros) {
+            if (micros < SUB_BUCKETS) {
+                return (int) Math.max(0, micros);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(micros);
+            int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        /**
+         * @return Highest value falling into a bucket, in microseconds
+         */
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            long width = 1L << (exponent - 3);
+            return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+        }
+
+        /**
+         * @param quantile Quantile, e.g. 0.99
+         * @return Upper bound of the bucket holding the quantile, 0 when empty
+         */
+        public double getPercentileMillis(double quantile) {
+            long total = 0;
+            long[] snapshot = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = buckets.get(i);
+                total += snapshot[i];
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), TimeUnit.NANOSECONDS.toMicros(maxNanos.get())) / 1000.0;
+                }
+            }
+            return getMaxMillis();
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public double getMeanMillis() {
+            long n = count.get();
+            return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+        }
+
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+    }
+}
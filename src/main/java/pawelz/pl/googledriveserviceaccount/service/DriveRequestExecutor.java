@@ -0,0 +1,425 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shared execution layer for Drive requests. Every HTTP request built by
+ * the Drive client takes a permit from an adaptive {@link RateLimiter};
+ * 429 and 5xx responses and I/O errors of idempotent requests are retried
+ * with jittered exponential backoff. 403 rate limit errors only show up in
+ * the parsed error body, so they are retried by {@link #execute(AbstractGoogleClientRequest)}.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.requests")
+public class DriveRequestExecutor {
+
+    private static final Set<String> IDEMPOTENT_METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "PUT", "DELETE"));
+    private static final Set<String> RATE_LIMIT_REASONS = new HashSet<>(Arrays.asList("rateLimitExceeded", "userRateLimitExceeded"));
+
+    @Inject
+    DriveAccountPool accounts;
+
+    private boolean enabled = true;
+    private double maxRequestsPerSecond = 10;
+    private double minRequestsPerSecond = 1;
+    private int burst = 20;
+    private double decreaseFactor = 0.5;
+    private double increaseStep = 1;
+    private int maxRetries = 6;
+    private long initialBackoffMillis = 500;
+    private long maxBackoffMillis = 32000;
+
+    private RateLimiter limiter;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong serverErrors = new AtomicLong();
+    private final AtomicLong ioErrors = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+    private final AtomicLong waitedNanos = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(DriveRequestExecutor.class);
+
+    @PostConstruct
+    public void init() {
+        // quota is per user, every service account in the pool brings its own
+        int accountCount = accounts == null ? 1 : accounts.getAccountCount();
+        limiter = new RateLimiter(maxRequestsPerSecond * accountCount, minRequestsPerSecond,
+                burst * accountCount, decreaseFactor, increaseStep);
+    }
+
+    /**
+     * Wraps initializer of the Drive client, usually its credential
+     * @param delegate Initializer to run first, may be null
+     * @return Initializer installing rate limiting and retries on every request
+     */
+    public HttpRequestInitializer wrap(HttpRequestInitializer delegate) {
+        return request -> {
+            if (delegate != null) {
+                delegate.initialize(request);
+            }
+            if (enabled) {
+                new RequestHandler(request);
+            }
+        };
+    }
+
+    /**
+     * Executes request, retrying 403 rate limit errors. Requests with
+     * media content are executed once, their content can not be replayed.
+     * @param <T> Response type
+     * @param request Drive request
+     * @return Parsed response
+     * @throws IOException when request fails or retries run out
+     */
+    public <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+        return retry(request, request::execute);
+    }
+
+    /**
+     * Same as {@link #execute(AbstractGoogleClientRequest)}, leaving the
+     * response body to the caller, e.g. to parse it while it is read
+     * @param request Drive request
+     * @return Successful response, its content must be closed by the caller
+     * @throws IOException when request fails or retries run out
+     */
+    public HttpResponse executeUnparsed(AbstractGoogleClientRequest<?> request) throws IOException {
+        return retry(request, request::executeUnparsed);
+    }
+
+    /**
+     * One attempt to send a request
+     * @param <R> Result type
+     */
+    @FunctionalInterface
+    private interface Attempt<R> {
+
+        R send() throws IOException;
+    }
+
+    private <R> R retry(AbstractGoogleClientRequest<?> request, Attempt<R> send) throws IOException {
+        if (!enabled || (request.getMediaHttpUploader() != null)) {
+            return send.send();
+        }
+        for (int attempt = 1;; attempt++) {
+            try {
+                return send.send();
+            } catch (GoogleJsonResponseException ex) {
+                if ((ex.getStatusCode() != 403) || !isRateLimit(403, ex.getDetails()) || !retryRateLimited(attempt, 1)) {
+                    throw ex;
+                }
+                LOGGER.debug("Drive rate limit on {} {}, retry {}", request.getRequestMethod(), request.getUriTemplate(), attempt);
+            }
+        }
+    }
+
+    /**
+     * Records calls rejected with a rate limit and waits before they are sent again
+     * @param attempt Attempt that was rejected, starting from 1
+     * @param calls Number of rejected calls
+     * @return False when retries ran out
+     * @throws InterruptedIOException when interrupted during backoff
+     */
+    public boolean retryRateLimited(int attempt, int calls) throws InterruptedIOException {
+        throttled.addAndGet(calls - 1);
+        throttled();
+        if (accounts != null) {
+            accounts.throttleCurrent();
+        }
+        if (!enabled || (attempt > maxRetries)) {
+            exhausted.addAndGet(calls);
+            return false;
+        }
+        retries.addAndGet(calls);
+        sleep(backoff(attempt, null));
+        return true;
+    }
+
+    /**
+     * Takes permits for requests sent inside a batch, the batch request
+     * itself takes one more
+     * @param permits Number of inner requests
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    public void acquire(int permits) throws InterruptedIOException {
+        if (enabled && (permits > 0)) {
+            waitedNanos.addAndGet(limiter.acquire(permits));
+        }
+    }
+
+    /**
+     * @param status HTTP status
+     * @param details Parsed error, may be null
+     * @return True for 429 and for 403 with a rate limit reason
+     */
+    static boolean isRateLimit(int status, GoogleJsonError details) {
+        if (status == 429) {
+            return true;
+        }
+        if ((status != 403) || (details == null) || (details.getErrors() == null)) {
+            return false;
+        }
+        return details.getErrors().stream().anyMatch(e -> RATE_LIMIT_REASONS.contains(e.getReason()));
+    }
+
+    private void throttled() {
+        throttled.incrementAndGet();
+        if (limiter.onThrottle()) {
+            LOGGER.info("Drive rate limit hit, lowering request rate to {}/s", String.format("%.2f", limiter.getRate()));
+        }
+    }
+
+    /**
+     * Random delay between half and all of the exponential bound, at least
+     * the server's Retry-After
+     */
+    long backoff(int attempt, String retryAfter) {
+        long bound = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        long delay = ThreadLocalRandom.current().nextLong(bound / 2, bound + 1);
+        if (retryAfter != null) {
+            try {
+                delay = Math.max(delay, TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim())));
+            } catch (NumberFormatException ex) {
+                LOGGER.trace("Ignoring Retry-After: {}", retryAfter);
+            }
+        }
+        return delay;
+    }
+
+    private void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted during retry backoff");
+        }
+    }
+
+    /**
+     * Hooks installed on one HTTP request, keeps count of its attempts
+     */
+    private class RequestHandler implements HttpExecuteInterceptor, HttpResponseInterceptor,
+            HttpUnsuccessfulResponseHandler, HttpIOExceptionHandler {
+
+        private final HttpExecuteInterceptor interceptor;
+        private final HttpResponseInterceptor responseInterceptor;
+        private final HttpUnsuccessfulResponseHandler unsuccessfulHandler;
+        private final HttpIOExceptionHandler ioHandler;
+        private int attempt;
+
+        RequestHandler(HttpRequest request) {
+            interceptor = request.getInterceptor();
+            responseInterceptor = request.getResponseInterceptor();
+            unsuccessfulHandler = request.getUnsuccessfulResponseHandler();
+            ioHandler = request.getIOExceptionHandler();
+            request.setNumberOfRetries(maxRetries);
+            request.setInterceptor(this);
+            request.setResponseInterceptor(this);
+            request.setUnsuccessfulResponseHandler(this);
+            request.setIOExceptionHandler(this);
+        }
+
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+            attempt++;
+            requests.incrementAndGet();
+            waitedNanos.addAndGet(limiter.acquire(1));
+            if (interceptor != null) {
+                interceptor.intercept(request);
+            }
+        }
+
+        @Override
+        public void interceptResponse(HttpResponse response) throws IOException {
+            if (response.getStatusCode() < 400) {
+                limiter.onSuccess();
+            }
+            if (responseInterceptor != null) {
+                responseInterceptor.interceptResponse(response);
+            }
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response, boolean supportsRetry) throws IOException {
+            if ((unsuccessfulHandler != null) && unsuccessfulHandler.handleResponse(request, response, supportsRetry)) {
+                return true;
+            }
+            int status = response.getStatusCode();
+            boolean retry;
+            if (status == 429) {
+                throttled();
+                retry = true;
+            }
+            else if ((status >= 500) && (status != 501)) {
+                serverErrors.incrementAndGet();
+                retry = replayable(request);
+            }
+            else {
+                return false;
+            }
+            if (!retry) {
+                return false;
+            }
+            if (attempt > maxRetries) {
+                exhausted.incrementAndGet();
+                return false;
+            }
+            if (!supportsRetry) {
+                return false;
+            }
+            retries.incrementAndGet();
+            long delay = backoff(attempt, response.getHeaders().getFirstHeaderStringValue("Retry-After"));
+            LOGGER.debug("Drive returned {} for {} {}, retry {} in {} ms", status, request.getRequestMethod(), request.getUrl(), attempt, delay);
+            sleep(delay);
+            return true;
+        }
+
+        @Override
+        public boolean handleIOException(HttpRequest request, boolean supportsRetry) throws IOException {
+            ioErrors.incrementAndGet();
+            if ((ioHandler != null) && ioHandler.handleIOException(request, supportsRetry)) {
+                return true;
+            }
+            if (!replayable(request)) {
+                return false;
+            }
+            if (attempt > maxRetries) {
+                exhausted.incrementAndGet();
+                return false;
+            }
+            if (!supportsRetry) {
+                return false;
+            }
+            retries.incrementAndGet();
+            long delay = backoff(attempt, null);
+            LOGGER.debug("I/O error on {} {}, retry {} in {} ms", request.getRequestMethod(), request.getUrl(), attempt, delay);
+            sleep(delay);
+            return true;
+        }
+
+        /**
+         * Only idempotent requests may be sent again after an unknown outcome.
+         * Chunks of resumable uploads are resumed by {@link ResumableUploader}.
+         */
+        private boolean replayable(HttpRequest request) {
+            return IDEMPOTENT_METHODS.contains(request.getRequestMethod())
+                    && (request.getUrl().getFirst("upload_id") == null);
+        }
+    }
+
+    /**
+     * @return Requests sent, including retries
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * @return Rate limit responses, 429 or 403 with a rate limit reason
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    public long getServerErrors() {
+        return serverErrors.get();
+    }
+
+    public long getIoErrors() {
+        return ioErrors.get();
+    }
+
+    /**
+     * @return Requests that failed after all retries
+     */
+    public long getExhausted() {
+        return exhausted.get();
+    }
+
+    /**
+     * @return Total time callers waited for the rate limiter
+     */
+    public long getWaitedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitedNanos.get());
+    }
+
+    /**
+     * @return Current request rate allowed by the limiter
+     */
+    public double getRequestsPerSecond() {
+        return limiter.getRate();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param maxRequestsPerSecond Quota per second, e.g. 1000 per 100 s is 10
+     */
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    public void setMinRequestsPerSecond(double minRequestsPerSecond) {
+        this.minRequestsPerSecond = minRequestsPerSecond;
+    }
+
+    public void setBurst(int burst) {
+        this.burst = burst;
+    }
+
+    public void setDecreaseFactor(double decreaseFactor) {
+        this.decreaseFactor = decreaseFactor;
+    }
+
+    public void setIncreaseStep(double increaseStep) {
+        this.increaseStep = increaseStep;
+    }
+
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+}
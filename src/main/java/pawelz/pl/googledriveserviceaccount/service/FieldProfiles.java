@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Named sets of file fields asked from Drive, so a call gets only what its
+ * caller reads. Wherever {@link GoogleDriveService} takes fields, a profile
+ * name can be given instead. In debug mode every projected call is sent
+ * again with all fields and the difference in JSON size is counted per
+ * operation, which doubles traffic and is meant for tuning only.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.fields")
+public class FieldProfiles {
+
+    public static final String MINIMAL = "minimal";
+    public static final String LISTING = "listing";
+    public static final String SHARING = "sharing";
+    public static final String FULL = "full";
+
+    private final Map<String, String> profiles = new LinkedHashMap<>();
+    private boolean debug;
+
+    private final ConcurrentMap<String, Savings> savings = new ConcurrentHashMap<>();
+
+    private static final Logger LOGGER = LogManager.getLogger(FieldProfiles.class);
+
+    public FieldProfiles() {
+        profiles.put(MINIMAL, "id,name,mimeType,parents");
+        profiles.put(LISTING, "id,name,mimeType,parents,size,modifiedTime");
+        profiles.put(SHARING, "id,name,mimeType,parents,permissions(id,emailAddress,role,type)");
+        profiles.put(FULL, "id,name,mimeType,parents,description,size,createdTime,modifiedTime,md5Checksum,"
+                + "webContentLink,webViewLink,permissions");
+    }
+
+    /**
+     * Response sizes of one operation measured in debug mode
+     */
+    public static class Savings {
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong projectedBytes = new AtomicLong();
+        private final AtomicLong fullBytes = new AtomicLong();
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        public long getProjectedBytes() {
+            return projectedBytes.get();
+        }
+
+        /**
+         * @return Bytes the same calls returned with all fields
+         */
+        public long getFullBytes() {
+            return fullBytes.get();
+        }
+
+        public long getSavedBytes() {
+            return fullBytes.get() - projectedBytes.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Savings{calls=" + getCalls() + ", projectedBytes=" + getProjectedBytes()
+                    + ", fullBytes=" + getFullBytes() + ", savedBytes=" + getSavedBytes() + "}";
+        }
+    }
+
+    /**
+     * @param profileOrFields Profile name or fields selector
+     * @return Fields of the profile, the selector itself when it is not a profile name, null for null
+     */
+    public String fields(String profileOrFields) {
+        if (profileOrFields == null) {
+            return null;
+        }
+        String fields = profiles.get(profileOrFields.trim());
+        return fields != null ? fields : profileOrFields;
+    }
+
+    /**
+     * Counts sizes of a call answered with projected fields and of the same call with all fields
+     * @param operation Operation name
+     * @param fields Fields of the projected call
+     * @param projectedBytes JSON size of projected response
+     * @param fullBytes JSON size of response with all fields
+     */
+    public void record(String operation, String fields, long projectedBytes, long fullBytes) {
+        Savings s = savings.computeIfAbsent(operation, o -> new Savings());
+        s.calls.incrementAndGet();
+        s.projectedBytes.addAndGet(projectedBytes);
+        s.fullBytes.addAndGet(fullBytes);
+        LOGGER.debug("{} with fields {}: {} bytes, {} with all fields, {} saved",
+                operation, fields, projectedBytes, fullBytes, fullBytes - projectedBytes);
+    }
+
+    /**
+     * @return Measured savings by operation, empty unless debug is on
+     */
+    public Map<String, Savings> getSavings() {
+        return new TreeMap<>(savings);
+    }
+
+    public void resetSavings() {
+        savings.clear();
+    }
+
+    /**
+     * @return Profiles by name, bound from drive.fields.profiles, entries there replace or add profiles
+     */
+    public Map<String, String> getProfiles() {
+        return profiles;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public void setDebug(boolean debug) {
+        this.debug = debug;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads a FileList response token by token, handing each file to a consumer
+ * as a {@link FileView} as soon as its object ends. Only the current file is
+ * held in memory; fields other than those of the view are skipped. Works
+ * with the parser of any Google client JsonFactory.
+ * @author p.zachwieja
+ */
+public final class FileListParser {
+
+    private FileListParser() {
+    }
+
+    /**
+     * @param parser Parser positioned before the FileList object
+     * @param consumer Receives files in the order of the response
+     * @return Token of the next page, null on the last page
+     * @throws IOException when reading fails or the response is not a FileList
+     */
+    public static String parse(JsonParser parser, Consumer<FileView> consumer) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("FileList response is not a JSON object");
+        }
+        String nextPageToken = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("nextPageToken".equals(field)) {
+                nextPageToken = text(parser, value);
+            } else if ("files".equals(field) && (value == JsonToken.START_ARRAY)) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    consumer.accept(file(parser));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return nextPageToken;
+    }
+
+    private static FileView file(JsonParser parser) throws IOException {
+        String id = null;
+        String name = null;
+        String mimeType = null;
+        List<String> parents = null;
+        long size = -1;
+        String modifiedTime = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "id":
+                    id = text(parser, value);
+                    break;
+                case "name":
+                    name = text(parser, value);
+                    break;
+                case "mimeType":
+                    mimeType = text(parser, value);
+                    break;
+                case "parents":
+                    parents = parents(parser, value);
+                    break;
+                case "size":
+                    size = size(parser, value);
+                    break;
+                case "modifiedTime":
+                    modifiedTime = text(parser, value);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return new FileView(id, name, mimeType, parents, size, modifiedTime);
+    }
+
+    private static String text(JsonParser parser, JsonToken value) throws IOException {
+        return value == JsonToken.VALUE_NULL ? null : parser.getText();
+    }
+
+    /**
+     * Almost every file has a single parent, which gets a singleton list
+     */
+    private static List<String> parents(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return null;
+        }
+        if (parser.nextToken() != JsonToken.VALUE_STRING) {
+            return null;
+        }
+        String first = parser.getText();
+        if (parser.nextToken() == JsonToken.END_ARRAY) {
+            return Collections.singletonList(first);
+        }
+        List<String> parents = new ArrayList<>(4);
+        parents.add(first);
+        do {
+            parents.add(parser.getText());
+        } while (parser.nextToken() == JsonToken.VALUE_STRING);
+        return parents;
+    }
+
+    /**
+     * Drive sends int64 values as strings
+     */
+    private static long size(JsonParser parser, JsonToken value) throws IOException {
+        switch (value) {
+            case VALUE_NUMBER_INT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                try {
+                    return Long.parseLong(parser.getText());
+                } catch (NumberFormatException ex) {
+                    throw new IOException("Invalid file size: " + parser.getText(), ex);
+                }
+            default:
+                parser.skipChildren();
+                return -1;
+        }
+    }
+}
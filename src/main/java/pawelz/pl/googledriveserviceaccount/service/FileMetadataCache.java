@@ -0,0 +1,291 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded in-memory cache of file metadata keyed by file id and requested
+ * fields. An entry fetched with more fields answers requests for fewer.
+ * Entries expire after {@code ttlSeconds}; least recently used files are
+ * evicted when total weight exceeds {@code maxWeight}.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.cache")
+public class FileMetadataCache {
+
+    private boolean enabled = true;
+    private long ttlSeconds = 60;
+    private long maxWeight = 4 * 1024 * 1024;
+
+    private final LinkedHashMap<String, List<Entry>> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long weight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static class Entry {
+
+        final Set<String> fields;
+        final File file;
+        final long weight;
+        final long expiresAt;
+
+        Entry(Set<String> fields, File file, long weight, long expiresAt) {
+            this.fields = fields;
+            this.file = file;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Gets cached file
+     * @param id File id
+     * @param fields Requested fields
+     * @return Copy of cached file or null
+     */
+    public File get(String id, String fields) {
+        if (!enabled || (id == null)) {
+            return null;
+        }
+        Set<String> requested = parseFields(fields);
+        long now = System.nanoTime();
+        synchronized (this) {
+            List<Entry> list = entries.get(id);
+            if (list != null) {
+                for (Iterator<Entry> it = list.iterator(); it.hasNext();) {
+                    Entry e = it.next();
+                    if (e.expiresAt - now <= 0) {
+                        it.remove();
+                        weight -= e.weight;
+                    }
+                    else if (covers(e.fields, requested)) {
+                        hits.incrementAndGet();
+                        return e.file.clone();
+                    }
+                }
+                if (list.isEmpty()) {
+                    entries.remove(id);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Stores file fetched with given fields
+     * @param id File id
+     * @param fields Fields the file was fetched with
+     * @param file Fetched file, a copy is stored
+     */
+    public void put(String id, String fields, File file) {
+        if (!enabled || (id == null) || (file == null)) {
+            return;
+        }
+        Set<String> fieldSet = parseFields(fields);
+        File copy = file.clone();
+        Entry entry = new Entry(fieldSet, copy, weigh(copy),
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        synchronized (this) {
+            List<Entry> list = entries.get(id);
+            if (list == null) {
+                list = new ArrayList<>(2);
+                entries.put(id, list);
+            }
+            for (Iterator<Entry> it = list.iterator(); it.hasNext();) {
+                Entry e = it.next();
+                if (covers(fieldSet, e.fields)) {
+                    it.remove();
+                    weight -= e.weight;
+                }
+            }
+            list.add(entry);
+            weight += entry.weight;
+            evict();
+        }
+    }
+
+    /**
+     * Drops everything cached for given file
+     * @param id File id
+     */
+    public void invalidate(String id) {
+        if (id == null) {
+            return;
+        }
+        synchronized (this) {
+            List<Entry> list = entries.remove(id);
+            if (list != null) {
+                for (Entry e : list) {
+                    weight -= e.weight;
+                }
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops everything cached for given files
+     * @param ids File ids
+     */
+    public void invalidateAll(Collection<String> ids) {
+        if (ids != null) {
+            ids.forEach(this::invalidate);
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, List<Entry>>> it = entries.entrySet().iterator();
+        while ((weight > maxWeight) && it.hasNext()) {
+            for (Entry e : it.next().getValue()) {
+                weight -= e.weight;
+            }
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Splits fields selector on top level commas, e.g. "id,permissions(id,role)"
+     * @param fields Fields selector, null means default selector
+     * @return Field tokens
+     */
+    static Set<String> parseFields(String fields) {
+        Set<String> result = new LinkedHashSet<>();
+        if ((fields == null) || fields.trim().isEmpty()) {
+            result.add("");
+            return result;
+        }
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < fields.length(); i++) {
+            char c = fields.charAt(i);
+            if (c == '(') {
+                depth++;
+            }
+            else if (c == ')') {
+                depth--;
+            }
+            else if ((c == ',') && (depth == 0)) {
+                add(result, fields.substring(start, i));
+                start = i + 1;
+            }
+        }
+        add(result, fields.substring(start));
+        return result;
+    }
+
+    private static void add(Set<String> result, String token) {
+        String t = token.replace(" ", "");
+        if (!t.isEmpty()) {
+            result.add(t);
+        }
+    }
+
+    /**
+     * @return True if every requested field is present in cached fields;
+     * a whole field covers any sub-selection of it
+     */
+    static boolean covers(Set<String> cached, Set<String> requested) {
+        if (cached.contains("*")) {
+            return true;
+        }
+        for (String r : requested) {
+            if (cached.contains(r)) {
+                continue;
+            }
+            int p = r.indexOf('(');
+            int slash = r.indexOf('/');
+            int cut = p < 0 ? slash : (slash < 0 ? p : Math.min(p, slash));
+            if ((cut < 0) || !cached.contains(r.substring(0, cut))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rough size of a file in characters
+     */
+    private static long weigh(File file) {
+        long result = 16;
+        for (Map.Entry<String, Object> e : file.entrySet()) {
+            result += e.getKey().length();
+            Object v = e.getValue();
+            if (v instanceof CharSequence) {
+                result += ((CharSequence) v).length();
+            }
+            else if (v instanceof Collection) {
+                result += 64L * ((Collection<?>) v).size();
+            }
+            else {
+                result += 16;
+            }
+        }
+        return result;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * @param maxWeight Approximate number of characters of cached metadata
+     */
+    public void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+}
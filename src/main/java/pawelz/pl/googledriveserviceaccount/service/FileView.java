@@ -0,0 +1,111 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Flat, read only view of a listed file with the fields of the
+ * {@link FieldProfiles#LISTING listing} profile. It is built straight from
+ * the JSON of a list response, without the maps behind {@link File}.
+ * @author p.zachwieja
+ */
+public class FileView {
+
+    /**
+     * Fields asked from Drive for a view
+     */
+    public static final String FIELDS = "id,name,mimeType,parents,size,modifiedTime";
+
+    private final String id;
+    private final String name;
+    private final String mimeType;
+    private final List<String> parents;
+    private final long size;
+    private final String modifiedTime;
+
+    FileView(String id, String name, String mimeType, List<String> parents, long size, String modifiedTime) {
+        this.id = id;
+        this.name = name;
+        this.mimeType = mimeType;
+        this.parents = parents == null ? Collections.emptyList() : parents;
+        this.size = size;
+        this.modifiedTime = modifiedTime;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return Parent ids, empty when none were returned
+     */
+    public List<String> getParents() {
+        return parents;
+    }
+
+    /**
+     * @return Size in bytes, -1 for folders and Google documents
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return Modification time as returned by Drive, in RFC 3339, may be null
+     */
+    public String getModifiedTime() {
+        return modifiedTime;
+    }
+
+    /**
+     * @return Modification time in milliseconds since the epoch, -1 when unknown
+     */
+    public long getModifiedTimeMillis() {
+        return modifiedTime == null ? -1 : DateTime.parseRfc3339(modifiedTime).getValue();
+    }
+
+    public boolean isFolder() {
+        return "application/vnd.google-apps.folder".equals(mimeType);
+    }
+
+    /**
+     * @return Drive file with the fields of this view
+     */
+    public File toFile() {
+        File file = new File()
+                .setId(id)
+                .setName(name)
+                .setMimeType(mimeType);
+        if (!parents.isEmpty()) {
+            file.setParents(parents);
+        }
+        if (size >= 0) {
+            file.setSize(size);
+        }
+        if (modifiedTime != null) {
+            file.setModifiedTime(DateTime.parseRfc3339(modifiedTime));
+        }
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return "FileView{id=" + id + ", name=" + name + ", mimeType=" + mimeType + ", parents=" + parents
+                + ", size=" + size + ", modifiedTime=" + modifiedTime + "}";
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Folder ids by parent id and folder name, the steps of resolving a path
+ * like {@code clients/2026/invoices}. Found folders are kept for
+ * {@code ttlSeconds}, names that were not found for
+ * {@code negativeTtlSeconds}. Concurrent lookups or creations of the same
+ * folder share one call to Drive.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.folders")
+public class FolderPathCache {
+
+    /**
+     * Finds or creates a folder
+     */
+    @FunctionalInterface
+    public interface Loader {
+
+        /**
+         * @return Folder id, null when there is no such folder
+         * @throws IOException IOException
+         */
+        String load() throws IOException;
+    }
+
+    private boolean enabled = true;
+    private long ttlSeconds = 300;
+    private long negativeTtlSeconds = 5;
+    private int maxEntries = 100000;
+
+    /**
+     * Children by parent id, least recently used parent first
+     */
+    private final LinkedHashMap<String, Map<String, Entry>> parents = new LinkedHashMap<>(64, 0.75f, true);
+    /**
+     * Entries of found folders by folder id, so a deleted folder is dropped
+     * without scanning every parent
+     */
+    private final Map<String, Set<Entry>> byId = new HashMap<>();
+    private int size;
+
+    private final SingleFlight<String, String> lookups = new SingleFlight<>();
+    private final SingleFlight<String, String> creations = new SingleFlight<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private static class Entry {
+
+        final String id;
+        final long expiresAt;
+        final String name;
+        final Map<String, Entry> siblings;
+
+        Entry(String id, long expiresAt, String name, Map<String, Entry> siblings) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.name = name;
+            this.siblings = siblings;
+        }
+    }
+
+    /**
+     * Finds folder, asking Drive only when nothing fresh is cached
+     * @param parentId Parent folder id
+     * @param name Folder name
+     * @param lookup Finds the folder on Drive
+     * @return Folder id, null when there is no such folder
+     * @throws IOException thrown by lookup
+     */
+    public String lookup(String parentId, String name, Loader lookup) throws IOException {
+        Entry cached = get(parentId, name);
+        if (cached != null) {
+            return cached.id;
+        }
+        return flight(lookups, parentId, name, lookup);
+    }
+
+    /**
+     * Finds folder or creates it when missing. Concurrent calls for the same
+     * folder wait for the first one, so the folder is created once.
+     * @param parentId Parent folder id
+     * @param name Folder name
+     * @param ensure Finds the folder on Drive, skipping this cache, and creates it when missing
+     * @return Folder id
+     * @throws IOException thrown by ensure
+     */
+    public String ensure(String parentId, String name, Loader ensure) throws IOException {
+        Entry cached = get(parentId, name);
+        if ((cached != null) && (cached.id != null)) {
+            return cached.id;
+        }
+        return flight(creations, parentId, name, ensure);
+    }
+
+    private String flight(SingleFlight<String, String> flights, String parentId, String name, Loader loader) throws IOException {
+        return flights.execute(parentId + '/' + name, () -> {
+            String id = loader.load();
+            put(parentId, name, id);
+            return id;
+        });
+    }
+
+    private synchronized Entry get(String parentId, String name) {
+        if (!enabled) {
+            return null;
+        }
+        Map<String, Entry> children = parents.get(parentId);
+        Entry e = children == null ? null : children.get(name);
+        if ((e != null) && (e.expiresAt - System.nanoTime() <= 0)) {
+            children.remove(name);
+            unindex(e);
+            size--;
+            e = null;
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+        }
+        else {
+            hits.incrementAndGet();
+        }
+        return e;
+    }
+
+    /**
+     * Stores result of a lookup
+     * @param parentId Parent folder id
+     * @param name Folder name
+     * @param id Folder id, null when there is no such folder
+     */
+    public synchronized void put(String parentId, String name, String id) {
+        if (!enabled) {
+            return;
+        }
+        long ttl = TimeUnit.SECONDS.toNanos(id == null ? negativeTtlSeconds : ttlSeconds);
+        if (ttl <= 0) {
+            return;
+        }
+        Map<String, Entry> children = parents.get(parentId);
+        if (children == null) {
+            children = new HashMap<>();
+            parents.put(parentId, children);
+        }
+        Entry previous = children.get(name);
+        if ((id == null) && (previous != null) && (previous.id != null)) {
+            // a lookup that started before the folder was created
+            return;
+        }
+        Entry e = new Entry(id, System.nanoTime() + ttl, name, children);
+        children.put(name, e);
+        if (previous == null) {
+            size++;
+        }
+        else {
+            unindex(previous);
+        }
+        if (id != null) {
+            byId.computeIfAbsent(id, k -> new HashSet<>()).add(e);
+        }
+        evict();
+    }
+
+    /**
+     * Drops cached result for one name, e.g. after a folder of that name was created
+     * @param parentId Parent folder id
+     * @param name Folder name
+     */
+    public synchronized void forget(String parentId, String name) {
+        Map<String, Entry> children = parents.get(parentId);
+        Entry e = children == null ? null : children.remove(name);
+        if (e != null) {
+            unindex(e);
+            size--;
+        }
+    }
+
+    /**
+     * Drops a deleted file and everything cached under it
+     * @param id File id
+     */
+    public void invalidate(String id) {
+        if (id != null) {
+            invalidate(Collections.singleton(id));
+        }
+    }
+
+    /**
+     * Drops deleted files and everything cached under them in one pass, work
+     * is proportional to what is removed
+     * @param ids File ids
+     */
+    public synchronized void invalidate(Collection<String> ids) {
+        Deque<String> removed = new ArrayDeque<>();
+        ids.stream().filter(id -> id != null).forEach(removed::add);
+        while (!removed.isEmpty()) {
+            String gone = removed.poll();
+            Map<String, Entry> children = parents.remove(gone);
+            if (children != null) {
+                size -= children.size();
+                for (Entry e : children.values()) {
+                    if (e.id != null) {
+                        unindex(e);
+                        removed.add(e.id);
+                    }
+                }
+            }
+            Set<Entry> entries = byId.remove(gone);
+            if (entries != null) {
+                for (Entry e : entries) {
+                    if (e.siblings.remove(e.name, e)) {
+                        size--;
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        parents.clear();
+        byId.clear();
+        size = 0;
+    }
+
+    private void evict() {
+        Iterator<Map<String, Entry>> it = parents.values().iterator();
+        while ((size > maxEntries) && it.hasNext()) {
+            Map<String, Entry> children = it.next();
+            size -= children.size();
+            children.values().forEach(this::unindex);
+            it.remove();
+        }
+    }
+
+    private void unindex(Entry e) {
+        if (e.id == null) {
+            return;
+        }
+        Set<Entry> entries = byId.get(e.id);
+        if ((entries != null) && entries.remove(e) && entries.isEmpty()) {
+            byId.remove(e.id);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return Calls that waited for a lookup or creation already running
+     */
+    public long getCoalesced() {
+        return lookups.getShared() + creations.getShared();
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setTtlSeconds(long ttlSeconds) {
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    /**
+     * @param negativeTtlSeconds How long a name that was not found stays not found, 0 to not cache misses
+     */
+    public void setNegativeTtlSeconds(long negativeTtlSeconds) {
+        this.negativeTtlSeconds = negativeTtlSeconds;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Crawls a folder hierarchy on a work-stealing pool. Children of up to
+ * {@code parentsPerQuery} folders are listed with one query
+ * ({@code 'a' in parents or 'b' in parents ...}), and the subfolders found
+ * by that query are split into new batches for the next level.
+ * Every file is emitted once, even if it is reachable through several
+ * parents; shortcuts are emitted but not followed.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.walk")
+public class FolderTreeWalker {
+
+    static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    @Inject
+    Drive drive;
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    private int parallelism = 8;
+    private int parentsPerQuery = 20;
+    private int pageSize = 1000;
+    private int queueCapacity = 10000;
+    private String fields = "id,name,mimeType,parents,size,modifiedTime";
+
+    private ForkJoinPool pool;
+
+    private static final Logger LOGGER = LogManager.getLogger(FolderTreeWalker.class);
+
+    @PostConstruct
+    public void init() {
+        pool = new ForkJoinPool(Math.max(1, parallelism), p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("drive-walk-" + t.getPoolIndex());
+            t.setDaemon(true);
+            return t;
+        }, null, false);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts walking with default fields
+     * @see #walk(String, String)
+     */
+    public TreeWalk walk(String rootId) {
+        return walk(rootId, null);
+    }
+
+    /**
+     * Starts walking the tree under given folder. The walked folder itself
+     * is not emitted and trashed files are left out.
+     * @param rootId Id of folder to walk
+     * @param fields File fields to get, id, name, mimeType and parents are always added
+     * @return Running walk, iterate or stream it to get nodes
+     */
+    public TreeWalk walk(String rootId, String fields) {
+        TreeWalk walk = new TreeWalk(rootId, queueCapacity);
+        String selector = "nextPageToken,files(" + withRequired(fields == null ? this.fields : fields) + ")";
+        Map<String, Parent> root = new LinkedHashMap<>();
+        root.put(rootId, new Parent(0, ""));
+        pool.execute(() -> {
+            try {
+                new ListTask(walk, selector, root).invoke();
+            } finally {
+                walk.finish();
+                LOGGER.debug("Finished walk: {}", walk);
+            }
+        });
+        return walk;
+    }
+
+    static String withRequired(String fields) {
+        List<String> result = new ArrayList<>(FileMetadataCache.parseFields(fields));
+        result.remove("");
+        for (String f : new String[]{"id", "name", "mimeType", "parents"}) {
+            if (!result.contains(f)) {
+                result.add(f);
+            }
+        }
+        return String.join(",", result);
+    }
+
+    /**
+     * Builds query matching children of all given folders
+     */
+    static String query(Iterable<String> parentIds) {
+        StringBuilder q = new StringBuilder("(");
+        for (String id : parentIds) {
+            if (q.length() > 1) {
+                q.append(" or ");
+            }
+            q.append('\'').append(GoogleDriveService.escape(id)).append("' in parents");
+        }
+        return q.append(") and trashed = false").toString();
+    }
+
+    /**
+     * Position of an already emitted folder
+     */
+    private static class Parent {
+
+        final int depth;
+        final String path;
+
+        Parent(int depth, String path) {
+            this.depth = depth;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Lists children of one batch of folders and forks batches of the subfolders found
+     */
+    private class ListTask extends RecursiveAction {
+
+        private final TreeWalk walk;
+        private final String selector;
+        private final Map<String, Parent> parents;
+
+        ListTask(TreeWalk walk, String selector, Map<String, Parent> parents) {
+            this.walk = walk;
+            this.selector = selector;
+            this.parents = parents;
+        }
+
+        @Override
+        protected void compute() {
+            Map<String, Parent> found = new LinkedHashMap<>();
+            try {
+                String q = query(parents.keySet());
+                String pageToken = null;
+                do {
+                    if (walk.isStopped()) {
+                        return;
+                    }
+                    FileList page = requestExecutor.execute(drive.files().list()
+                            .setQ(q)
+                            .setFields(selector)
+                            .setPageSize(pageSize)
+                            .setPageToken(pageToken));
+                    walk.queried();
+                    if (page.getFiles() != null) {
+                        for (File f : page.getFiles()) {
+                            accept(f, found);
+                        }
+                    }
+                    pageToken = page.getNextPageToken();
+                } while (pageToken != null);
+            } catch (IOException ex) {
+                LOGGER.error("Listing children of {} failed: {}", parents.keySet(), ex.getMessage());
+                walk.fail(ex);
+                return;
+            }
+            if (!found.isEmpty() && !walk.isStopped()) {
+                invokeAll(batches(found));
+            }
+        }
+
+        private void accept(File f, Map<String, Parent> found) {
+            String parentId = f.getParents() == null ? null
+                    : f.getParents().stream().filter(parents::containsKey).findFirst().orElse(null);
+            if ((parentId == null) || !walk.visit(f.getId())) {
+                return;
+            }
+            Parent parent = parents.get(parentId);
+            TreeNode node = new TreeNode(f, parentId, parent.depth + 1, parent.path + "/" + f.getName());
+            walk.emit(node);
+            if (node.isFolder()) {
+                found.put(f.getId(), new Parent(node.getDepth(), node.getPath()));
+            }
+        }
+
+        private List<ListTask> batches(Map<String, Parent> folders) {
+            List<Map.Entry<String, Parent>> entries = new ArrayList<>(folders.entrySet());
+            int size = Math.max(1, parentsPerQuery);
+            List<ListTask> result = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i += size) {
+                Map<String, Parent> batch = entries.subList(i, Math.min(entries.size(), i + size)).stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> a, LinkedHashMap::new));
+                result.add(new ListTask(walk, selector, batch));
+            }
+            return result;
+        }
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @param parentsPerQuery Folders whose children are listed with one query
+     */
+    public void setParentsPerQuery(int parentsPerQuery) {
+        this.parentsPerQuery = parentsPerQuery;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @param queueCapacity Nodes buffered before the walk waits for the consumer
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setFields(String fields) {
+        this.fields = fields;
+    }
+}
@@ -1,443 +1,1332 @@
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
- */
-package pawelz.pl.googledriveserviceaccount.service;
-
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.InputStreamContent;
-import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.Drive.Permissions.Delete;
-import com.google.api.services.drive.model.File;
-import com.google.api.services.drive.model.FileList;
-import com.google.api.services.drive.model.Permission;
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.StringTokenizer;
-import java.util.stream.Collectors;
-import javax.inject.Inject;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.stereotype.Service;
-import org.springframework.web.multipart.MultipartFile;
-
-/**
- *
- * @author p.zachwieja
- */
-@Service
-@ConfigurationProperties(prefix = "drive")
-public class GoogleDriveService {
-    
-    @Inject
-    Drive drive;
-    
-    private String appFolder;
-    private String fieldsToGet;
-            
-    private final String folderMimeType = "application/vnd.google-apps.folder";
-    private final String spreadsheetMimeType = "application/vnd.google-apps.spreadsheet";
-    
-    private static final Logger LOGGER = LogManager.getLogger(GoogleDriveService.class);
-    
-    /**
-     * Gets file with given id
-     * @param id Id of file to get
-     * @param fields Fields to get, if null fields are id,webContentLink,name,webViewLink,parents,permissions
-     * @return Founded file
-     */
-    public File getFile(String id, String fields) throws IOException {
-        File result = null;
-        Drive.Files.Get get;
-        if(fields == null){
-            fields = fieldsToGet;
-        }
-        try {
-            get = drive.files().get(id);
-            get.setFields(fields);
-            result = get.execute();
-        }
-         catch (GoogleJsonResponseException e){
-                if(e.getStatusCode() == 404){
-                     LOGGER.debug("File not found: " + id);
-                }
-                else {
-                     LOGGER.error("Google sends response error: " + e.getMessage());
-                     e.printStackTrace(System.err);
-                }
-        }
-        return result;
-    }
-    
-    /**
-     * Downloads given file
-     * @param file File from Google Drive
-     * @return InputStream
-     */
-    public InputStream downloadFile(File file) throws IOException {
-        if (file.getWebContentLink() != null && !file.getWebContentLink().isEmpty()) {
-            LOGGER.debug("Getting input stream for file: " + file.getId());
-            return drive.files().get(file.getId()).executeMediaAsInputStream();
-        }
-        else {
-            LOGGER.info("No content");
-            // The file doesn't have any content stored on Drive.
-            return null;
-        }
-    }
-    
-    /**
-     * 
-     * @param parentId Id of a parent
-     * @return Child list
-     */
-    public List<File> childList(String parentId) throws IOException {
-        List<File> result = null;
-        try {
-            FileList files = drive.files().list().setQ("fullText contains \'" +parentId+"\'").execute();
-            if ((files == null) || files.isEmpty()) {
-                LOGGER.warn("No child files found for id: " + parentId);
-            }
-            else
-                result = files.getFiles();
-        } catch (GoogleJsonResponseException e){
-                if(e.getStatusCode() == 404){
-                     LOGGER.debug("Parent file not found: " + parentId);
-                }
-                else {
-                     LOGGER.error("Response error: " + e.getMessage());
-                     e.printStackTrace(System.err);
-                }
-        }
-        return result;
-    }
-    
-    /**
-     * Deletes file from Google Drive
-     * @param fileId Id pliku do usunięcia
-     * @return 0 if success
-     */
-    public int deleteGoogleFile(String fileId) {
-        int result = -1;
-        try {
-            LOGGER.trace("Deleting file id: " + fileId);
-            drive.files().delete(fileId).execute();
-            LOGGER.trace("File deleted successfully: " + fileId);
-            result = 0;
-        } catch (GoogleJsonResponseException e) {
-            if (e.getStatusCode() == 404) {
-                LOGGER.warn("No files found for " + fileId);
-            }
-        } catch (IOException e) {
-            e.printStackTrace(System.err);
-            LOGGER.error("Error occurred: " + e);
-        }
-        return result;
-    }
-    
-    /**
-     * 
-     * @param name Name of folder to create
-     * @return File object
-     */
-    public File createFolder(String name) throws IOException {
-        
-        File fileMetadata = new File();
-        File file = null;
-        fileMetadata.setName(name);
-        
-        fileMetadata = setFolderMimeType(fileMetadata);
-        
-        try {
-            fileMetadata.setParents(Arrays.asList(appFolder));
-            file = drive.files().create(fileMetadata).execute();
-        } 
-        catch (SocketTimeoutException ex) {
-            LOGGER.info("Socket timeout while creating folder " + name);
-            return null;
-        }
-
-        LOGGER.info("Folder " + name + " created! ID: " + file.getId());
-        return file;
-    }
-    
-    /**
-     * 
-     * @param useDirectUpload useDirectUpload
-     * @param multipartFile Multupart file from browser
-     * @param folderId Parent folder id
-     * @param desc Description for file
-     * @return Google file object of uploaded MultiparFile
-     * @throws IOException IOException
-     */
-    public File uploadFileOnly(boolean useDirectUpload, 
-                            MultipartFile multipartFile,
-                            String folderId,
-                            String desc) throws IOException {
-
-        File fileMetadata = new File();
-        fileMetadata.setName(multipartFile.getName());
-        fileMetadata.setMimeType(multipartFile.getContentType());
-        fileMetadata.setOriginalFilename(multipartFile.getOriginalFilename());
-        
-        InputStreamContent mediaContent = new InputStreamContent(multipartFile.getContentType(),
-                                                                new BufferedInputStream(multipartFile.getInputStream()));
-
-        File p = new File();
-        p.setId(folderId);
-        fileMetadata = addParentReference(fileMetadata, p);
-        
-        if ((desc != null) && (!desc.isEmpty())) {
-            fileMetadata.setDescription(desc);
-        }
-        
-        LOGGER.debug("Uploading file to Drive");
-        fileMetadata = drive.files().create(fileMetadata, mediaContent).execute();
-        LOGGER.info("File uploaded, id: " + fileMetadata.getId());
-
-        return fileMetadata;
-    }
-    
-        /**
-     * Inserts new spreadsheet on Drive
-     * @param useDirectUpload useDirectUpload
-     * @param folderId Parent folder id
-     * @param name File name
-     * @return Google file object
-     * @throws IOException IOException
-     */
-    public File insertSpreadSheet(boolean useDirectUpload, 
-                            String folderId,
-                            String name) throws IOException {
-
-        File fileMetadata = new File();
-        fileMetadata.setName(name);
-        fileMetadata.setMimeType(spreadsheetMimeType);
-
-        File p = getFile(folderId, null);
-        fileMetadata = addParentReference(fileMetadata, p);
-        LOGGER.debug("Inserting new spreadsheet");
-        fileMetadata = drive.files().create(fileMetadata).execute();
-        LOGGER.debug("Spreadsheet inserted");
-        return fileMetadata;
-    }
-    
-    /**
-     * Creates permission object
-     * @param email E-mail address
-     * @param role User role, one of: writer, reader. owner is not applicable 
-     * @param type Permission type, on of: user, group. domain, anyone
-     * @return Created Permission object
-     */
-    private Permission setPermForUser(String email, String role, String type) {
-        Permission result = null;
-        if (correct(email)) {
-            result = new Permission();
-            result.set("value", email);
-            result.setEmailAddress(email);
-            result.setRole(role);
-            result.setType(type);
-        }
-        return result;
-    }
-    
-    /**
-     * Adds permission for given file, filemedatada needs to be executed
-     * @param file Google file
-     * @param p Permission object
-     * @return Google file
-     */
-    private File addPermissionForFile(File file, Permission p){
-        List<Permission> list;
-        list = file.getPermissions();
-        if(list != null){
-            list.add(p);
-        }
-        else {
-            list = new ArrayList<>();
-            list.add(p);
-        }
-        file.setPermissions(list);
-        return file;
-    }
-    
-    /**
-     * Adds parent for file
-     * @param file Google file
-     * @param pr Parent file object
-     * @return Google file with included parent
-     */
-    private File addParentReference(File file, File pr){
-        List<String> list;
-            list = file.getParents();
-        if(list != null){
-            list.add(pr.getId());
-        }
-        else{
-            list = new ArrayList<>();
-            list.add(pr.getId());
-        }
-        file.setParents(list);
-        return file;
-    }
-
-    
-    /**
-     * Context search on files on Drive
-     * @param q Text to search
-     * @return List of files containing text
-     */
-    public List<File> searchText(String q) throws IOException {
-        q="fullText contains \'" +q+"\'";
-        FileList result;
-        result = drive.files().list().setQ(q).execute();
-        return result.getFiles();
-    }
-
-    
-    /**
-     * Updates readers for give file id
-     * @param googleId File id
-     * @param emails List of new readers
-     * @return 0 when success
-     * @throws java.io.IOException IOException
-     */
-    public int resolveReaders(String googleId, List<String> emails) throws IOException{
-        List<Permission> pList;
-        if((googleId == null) || googleId.isEmpty() || (emails == null))
-            return -1;
-        File folder = getFile(googleId, null);
-        if(folder == null)
-            return -1;
-        Delete delete;
-        pList = drive.permissions().list(folder.getId()).execute().getPermissions().
-                parallelStream().filter(e -> !e.getRole().equals("owner")).collect(Collectors.toList());
-        LOGGER.debug("Deleting permissions for file: " + googleId);
-        for(Permission p: pList){
-            removeRightsForUser(googleId, p.getId());
-        }
-        LOGGER.debug("Permissions deleted for file: " + googleId);
-        LOGGER.debug("Inserting permissions for file: " + googleId);
-        addPermissionForUsers(googleId, emails, "reader", "user", false, null);
-        LOGGER.debug("Inserted permissions for file: " + googleId);
-        
-        return 0;
-    }
-    
-    /**
-     * Checking if given e-mail is correct
-     * @param address E-mail address to check
-     * @return True if correct gmail address, false otherwise
-     */
-    private boolean correct(String address){
-        if((address == null) || address.isEmpty())
-            return false;
-        String t = null;
-        try {
-            StringTokenizer st = new StringTokenizer(address,"@");
-            st.nextToken();
-            t = st.nextToken();
-        }
-        catch(Exception e){
-            LOGGER.error("Could not validate email: " + e.getLocalizedMessage());
-            return false;
-        }
-        return t.endsWith("gmail.com") || t.endsWith("p-r.com.pl");
-    }
-    
-    /**
-     * Inserts permission for user
-     * @param fileId File id
-     * @param email E-mail address
-     * @param role User role, one of: writer, reader. owner is not applicable 
-     * @param type Permission type, on of: user, group. domain, anyone
-     * @param sendEmail Should user be noticed with e-mail message from Google
-     * @param message Notification e-mail message
-     * @return 0 when success, -1 otherwise
-     * @throws IOException IOException
-     */
-    public int addPermissionForUser(String fileId, String email, String role, String type, boolean sendEmail, String message) throws IOException {
-        int result = -1;
-        if((fileId != null) && !fileId.isEmpty() && correct(email)){
-            type = type == null ? "user" : type;
-            role = role == null ? "reader" : role;
-            File f = getFile(fileId, null);
-            LOGGER.debug("Setting permission for file " + f.getId() + " for user " + email);
-            Drive.Permissions.Create insert = drive.permissions().create(f.getId(), setPermForUser(email, role, type));
-            insert.setSendNotificationEmail(sendEmail);
-            if((sendEmail) && (message != null) && !message.isEmpty())
-                insert.setEmailMessage(message);
-            insert.execute();
-            LOGGER.debug("Inserted permission for file " + f.getId() + " for user " + email);
-            result = 0;
-        }
-        return result;
-    }
-    
-    /**
-     * Inserts permissions for e-mail List
-     * @param fileId File id
-     * @param emails List of e-mails
-     * @param role User role, one of: writer, reader. owner is not applicable 
-     * @param type Permission type, on of: user, group. domain, anyone
-     * @param sendEmail Should user be noticed with e-mail message from Google
-     * @param message Notification e-mail message
-     * @return 0 on success, -1 otherwise
-     * @throws IOException IOException
-     */
-    public int addPermissionForUsers(String fileId, List<String> emails, String role, String type, boolean sendEmail, String message) throws IOException{
-        int result = -1;
-        if((fileId != null) && !fileId.isEmpty() && (emails != null) && !emails.isEmpty()){
-            for(String e: emails){
-                result = addPermissionForUser(fileId, e, role, type, sendEmail, message);
-            }
-        }
-        return result;
-    }
-    
-    
-    /**
-     * 
-     * @param fileId Google file id
-     * @param idPermission Permission id to delete
-     * @return 0 on success
-     * @throws IOException IOException
-     */
-    public int removeRightsForUser(String fileId, String idPermission) throws IOException{
-        File f = getFile(fileId, null);
-        Drive.Permissions.Delete insert = null;
-        LOGGER.debug("Revoking permissions for file " + f.getId());
-        insert = drive.permissions().delete(f.getId(), idPermission);
-        insert.execute();
-        LOGGER.debug("Permissions revoked for file " + f.getId());
-        return 0;
-    }
-
-        
-    /**
-     * 
-     * @param plik Google file to set folder permission
-     * @return  Google file with folder mime type
-     */
-    private File setFolderMimeType(File file){
-        file.setMimeType(folderMimeType);
-        return file;
-    }
-    
-    public void setAppFolder(String appFolder) {
-        this.appFolder = appFolder;
-    }
-
-    public void setFieldsToGet(String fieldsToGet) {
-        this.fieldsToGet = fieldsToGet;
-    }
-    
-    
-}
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.InputStreamContent;
+import com.google.api.client.json.JsonParser;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import com.google.api.services.drive.model.PermissionList;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+@Service
+@ConfigurationProperties(prefix = "drive")
+public class GoogleDriveService {
+    
+    @Inject
+    Drive drive;
+    
+    @Inject
+    PermissionBatcher permissionBatcher;
+    
+    @Inject
+    ResumableUploader resumableUploader;
+    
+    @Inject
+    RangedDownloader rangedDownloader;
+    
+    @Inject
+    FileMetadataCache metadataCache;
+    
+    @Inject
+    FolderTreeWalker treeWalker;
+    
+    @Inject
+    DriveRequestExecutor requestExecutor;
+    
+    @Inject
+    DriveMetrics metrics;
+    
+    @Inject
+    SearchIndex searchIndex;
+    
+    @Inject
+    FolderPathCache folderPaths;
+    
+    @Inject
+    FieldProfiles fieldProfiles;
+    
+    @Inject
+    DeleteBatcher deleteBatcher;
+    
+    @Inject
+    ContentCache contentCache;
+    
+    private String appFolder;
+    private String fieldsToGet;
+    private boolean reconcileReaders = true;
+    private String childFields = "id,name,mimeType,parents";
+    private int childPageSize = 1000;
+    private String createFields = FieldProfiles.MINIMAL;
+    private String searchFields = FieldProfiles.LISTING;
+    private int prefetchThreads = 4;
+    
+    private ExecutorService prefetch;
+            
+    private final Deque<String> generatedIds = new ArrayDeque<>();
+    
+    private boolean coalesceReads = true;
+    private final SingleFlight<List<String>, File> fileReads = new SingleFlight<>(File::clone,
+            () -> metrics.coalesced(DriveMetrics.GET_FILE));
+    private final SingleFlight<List<String>, List<File>> childReads = new SingleFlight<>(GoogleDriveService::copyFiles,
+            () -> metrics.coalesced(DriveMetrics.CHILD_LIST));
+    private final SingleFlight<String, List<Permission>> permissionReads = new SingleFlight<>(ArrayList::new,
+            () -> metrics.coalesced(DriveMetrics.PERMISSION_LIST));
+            
+    private static final int GENERATED_IDS_PER_CALL = 100;
+    private static final int CREATE_ATTEMPTS = 3;
+    private final String folderMimeType = "application/vnd.google-apps.folder";
+    private final String spreadsheetMimeType = "application/vnd.google-apps.spreadsheet";
+    
+    private static final Logger LOGGER = LogManager.getLogger(GoogleDriveService.class);
+    
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        prefetch = Executors.newFixedThreadPool(Math.max(1, prefetchThreads), r -> {
+            Thread t = new Thread(r, "drive-list-prefetch-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (prefetch != null) {
+            prefetch.shutdownNow();
+        }
+    }
+    
+    /**
+     * Gets file with given id
+     * @param id Id of file to get
+     * @param fields Fields or name of a {@link FieldProfiles field profile} to get,
+     * if null drive.fields-to-get are used
+     * @return Founded file
+     */
+    public File getFile(String id, String fields) throws IOException {
+        String f = fieldProfiles.fields(fields == null ? fieldsToGet : fields);
+        return metrics.time(DriveMetrics.GET_FILE, () -> coalesceReads
+                ? fileReads.execute(Arrays.asList(id, f), () -> fetchFile(id, f))
+                : fetchFile(id, f));
+    }
+    
+    private File fetchFile(String id, String fields) throws IOException {
+        File result = null;
+        Drive.Files.Get get;
+        result = metadataCache.get(id, fields);
+        if(result != null){
+            return result;
+        }
+        try {
+            get = drive.files().get(id);
+            get.setFields(fields);
+            result = requestExecutor.execute(get);
+            metadataCache.put(id, fields, result);
+            if (fieldProfiles.isDebug()) {
+                measure(DriveMetrics.GET_FILE, fields, result, get.setFields("*"));
+            }
+        }
+         catch (GoogleJsonResponseException e){
+                if(e.getStatusCode() != 404){
+                     throw e;
+                }
+                LOGGER.debug("File not found: {}", id);
+        }
+        return result;
+    }
+    
+    /**
+     * Downloads given file, from the content cache when it holds current content
+     * @param file File from Google Drive
+     * @return InputStream
+     */
+    public InputStream downloadFile(File file) throws IOException {
+        if (file.getWebContentLink() != null && !file.getWebContentLink().isEmpty()) {
+            return metrics.counting(DriveMetrics.DOWNLOAD, metrics.time(DriveMetrics.DOWNLOAD, () -> {
+                FileChannel cached = contentCache.open(file.getId());
+                if (cached != null) {
+                    LOGGER.debug("Reading file {} from content cache", file.getId());
+                    return Channels.newInputStream(cached);
+                }
+                LOGGER.debug("Getting input stream for file: {}", file.getId());
+                return drive.files().get(file.getId()).executeMediaAsInputStream();
+            }));
+        }
+        else {
+            LOGGER.info("No content");
+            // The file doesn't have any content stored on Drive.
+            return null;
+        }
+    }
+    
+    /**
+     * Downloads given file straight into a channel, from the content cache
+     * when it holds current content
+     * @param file File from Google Drive
+     * @param target Channel to write content to, left open
+     * @return Number of bytes written, -1 if file has no content
+     * @throws IOException IOException
+     */
+    public long downloadFile(File file, WritableByteChannel target) throws IOException {
+        if (file.getWebContentLink() == null || file.getWebContentLink().isEmpty()) {
+            LOGGER.info("No content");
+            return -1;
+        }
+        long bytes = metrics.time(DriveMetrics.DOWNLOAD, () -> {
+            FileChannel cached = contentCache.open(file.getId());
+            if (cached != null) {
+                LOGGER.debug("Streaming file {} to channel from content cache", file.getId());
+                try (FileChannel source = cached) {
+                    return contentCache.transfer(source, target);
+                }
+            }
+            LOGGER.debug("Streaming file {} to channel", file.getId());
+            return rangedDownloader.download(file.getId(), target);
+        });
+        metrics.bytes(DriveMetrics.DOWNLOAD, bytes);
+        return bytes;
+    }
+    
+    /**
+     * Downloads given file to local path. Large files are fetched in parallel
+     * ranges, an interrupted download is resumed and content is checked
+     * against md5Checksum. Content cache holding current content is copied
+     * instead
+     * @param file File from Google Drive
+     * @param target Local file to create or replace
+     * @return Download report, null if file has no content
+     * @throws IOException IOException
+     */
+    public DownloadReport downloadFile(File file, Path target) throws IOException {
+        return metrics.time(DriveMetrics.DOWNLOAD, () -> {
+            long start = System.currentTimeMillis();
+            FileChannel cached = contentCache.open(file.getId());
+            if (cached != null) {
+                long size;
+                try (FileChannel source = cached;
+                        FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    size = contentCache.transfer(source, channel);
+                }
+                metrics.bytes(DriveMetrics.DOWNLOAD, size);
+                return new DownloadReport(file.getId(), target, size, 0, 0, true, System.currentTimeMillis() - start);
+            }
+            File f = file;
+            if ((f.getSize() == null) || (f.getMd5Checksum() == null)) {
+                f = getFile(file.getId(), "id,size,md5Checksum");
+            }
+            if ((f == null) || (f.getSize() == null)) {
+                LOGGER.info("No content");
+                return null;
+            }
+            DownloadReport report = rangedDownloader.download(f, target);
+            metrics.bytes(DriveMetrics.DOWNLOAD, report.getDownloadedBytes());
+            return report;
+        });
+    }
+    
+    /**
+     * 
+     * @param parentId Id of a parent
+     * @return Child list, empty if folder has no children, null if parent was not found
+     */
+    public List<File> childList(String parentId) throws IOException {
+        return childList(parentId, null);
+    }
+    
+    /**
+     * 
+     * @param parentId Id of a parent
+     * @param fields Fields or name of a {@link FieldProfiles field profile} to get,
+     * if null drive.child-fields are used
+     * @return Child list, empty if folder has no children, null if parent was not found
+     */
+    public List<File> childList(String parentId, String fields) throws IOException {
+        String f = fieldProfiles.fields(fields == null ? childFields : fields);
+        return metrics.time(DriveMetrics.CHILD_LIST, () -> coalesceReads
+                ? childReads.execute(Arrays.asList(parentId, f), () -> fetchChildList(parentId, f))
+                : fetchChildList(parentId, f));
+    }
+    
+    private static List<File> copyFiles(List<File> files) {
+        return files.stream().map(File::clone).collect(Collectors.toList());
+    }
+    
+    private List<File> fetchChildList(String parentId, String fields) throws IOException {
+        List<File> result = null;
+        try {
+            result = childStream(parentId, fields, 0).collect(Collectors.toList());
+            if (result.isEmpty()) {
+                LOGGER.debug("No child files found for id: {}", parentId);
+            }
+        } catch (UncheckedIOException ue){
+            if(!(ue.getCause() instanceof GoogleJsonResponseException)
+                    || (((GoogleJsonResponseException) ue.getCause()).getStatusCode() != 404))
+                throw ue.getCause();
+            LOGGER.debug("Parent file not found: {}", parentId);
+        }
+        return result;
+    }
+    
+    /**
+     * Lazily lists all children of a folder, page by page. The next page is
+     * fetched while the current one is consumed, closing the stream cancels
+     * that fetch. Errors are thrown as UncheckedIOException while the stream
+     * is consumed.
+     * @param parentId Id of a parent
+     * @param fields File fields or name of a {@link FieldProfiles field profile} to get,
+     * if null drive.child-fields are used
+     * @param pageSize Files per page, up to 1000; 0 or less for drive.child-page-size
+     * @return Stream of children, trashed files are left out
+     */
+    public Stream<File> childStream(String parentId, String fields, int pageSize) {
+        return PagedFileIterator.stream(childPages(parentId, fields, pageSize), prefetch);
+    }
+    
+    /**
+     * Same as {@link #childStream(String, String, int)} as an Iterator
+     * @param parentId Id of a parent
+     * @param fields File fields to get, if null drive.child-fields are used
+     * @param pageSize Files per page, up to 1000; 0 or less for drive.child-page-size
+     * @return Iterator over children
+     */
+    public Iterator<File> childIterator(String parentId, String fields, int pageSize) {
+        return new PagedFileIterator(childPages(parentId, fields, pageSize), prefetch);
+    }
+    
+    /**
+     * Lists all children of a folder, parsing each page while it is read.
+     * Files are handed to the consumer as flat views, without building
+     * {@link File} objects or whole pages, which keeps allocation low on
+     * very large folders. Pages are fetched one after another.
+     * @param parentId Id of a parent
+     * @param pageSize Files per page, up to 1000; 0 or less for drive.child-page-size
+     * @param consumer Receives children in listing order, trashed files are left out
+     * @return Number of children
+     * @throws IOException when a page can not be fetched or read
+     */
+    public long forEachChild(String parentId, int pageSize, Consumer<FileView> consumer) throws IOException {
+        String q = "'" + escape(parentId) + "' in parents and trashed = false";
+        int size = pageSize > 0 ? Math.min(pageSize, 1000) : childPageSize;
+        return metrics.time(DriveMetrics.CHILD_LIST, () -> forEachFile(q, size, consumer));
+    }
+    
+    private long forEachFile(String q, int pageSize, Consumer<FileView> consumer) throws IOException {
+        long[] count = new long[1];
+        Consumer<FileView> counting = view -> {
+            count[0]++;
+            consumer.accept(view);
+        };
+        String token = null;
+        do {
+            Drive.Files.List list = drive.files().list()
+                    .setQ(q)
+                    .setFields("nextPageToken,files(" + FileView.FIELDS + ")")
+                    .setPageSize(pageSize)
+                    .setPageToken(token);
+            HttpResponse response = requestExecutor.executeUnparsed(list);
+            try {
+                JsonParser parser = drive.getJsonFactory().createJsonParser(response.getContent(), StandardCharsets.UTF_8);
+                try {
+                    token = FileListParser.parse(parser, counting);
+                } finally {
+                    parser.close();
+                }
+            } finally {
+                response.disconnect();
+            }
+        } while (token != null);
+        return count[0];
+    }
+    
+    private PagedFileIterator.PageFetcher childPages(String parentId, String fields, int pageSize) {
+        String q = "'" + escape(parentId) + "' in parents and trashed = false";
+        int size = pageSize > 0 ? Math.min(pageSize, 1000) : childPageSize;
+        return listPages(DriveMetrics.CHILD_LIST, q, fieldProfiles.fields(fields == null ? childFields : fields), size);
+    }
+    
+    /**
+     * @param operation Operation name for debug measurements
+     * @param q Query
+     * @param fields File fields
+     * @param pageSize Files per page
+     * @return Fetcher of pages with given file fields
+     */
+    private PagedFileIterator.PageFetcher listPages(String operation, String q, String fields, int pageSize) {
+        String f = "nextPageToken,files(" + fields + ")";
+        return token -> {
+            Drive.Files.List list = drive.files().list()
+                    .setQ(q)
+                    .setFields(f)
+                    .setPageSize(pageSize)
+                    .setPageToken(token);
+            FileList page = requestExecutor.execute(list);
+            if (fieldProfiles.isDebug()) {
+                measure(operation, fields, page, list.setFields("nextPageToken,files(*)"));
+            }
+            return page;
+        };
+    }
+    
+    /**
+     * Sends a projected request again with all fields and records the difference
+     * @param operation Operation name
+     * @param fields Fields of the projected request
+     * @param projected Response of the projected request
+     * @param full Same request asking for all fields
+     */
+    private void measure(String operation, String fields, Object projected, DriveRequest<?> full) {
+        try {
+            Object all = requestExecutor.execute(full);
+            fieldProfiles.record(operation, fields, jsonLength(projected), jsonLength(all));
+        } catch (IOException e) {
+            LOGGER.debug("Measuring {} with all fields failed: {}", operation, e.getMessage());
+        }
+    }
+    
+    private long jsonLength(Object value) throws IOException {
+        return value == null ? 0 : drive.getJsonFactory().toByteArray(value).length;
+    }
+    
+    /**
+     * Walks the whole tree under a folder
+     * @param folderId Id of folder to walk, if null application folder is walked
+     * @return Running walk with nodes and progress counters
+     * @see FolderTreeWalker#walk(String)
+     */
+    public TreeWalk walkTree(String folderId) {
+        return treeWalker.walk(folderId == null ? appFolder : folderId);
+    }
+    
+    /**
+     * Escapes value for use inside single quotes of a Drive query
+     * @param value Raw value
+     * @return Escaped value
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("'", "\\'");
+    }
+    
+    /**
+     * Deletes file from Google Drive
+     * @param fileId Id pliku do usunięcia
+     * @return 0 if success, -1 otherwise; failures other than a missing file are logged as errors
+     */
+    public int deleteGoogleFile(String fileId) {
+        int result = -1;
+        try {
+            LOGGER.trace("Deleting file id: {}", fileId);
+            requestExecutor.execute(drive.files().delete(fileId));
+            invalidate(fileId);
+            searchIndex.remove(fileId);
+            folderPaths.invalidate(fileId);
+            LOGGER.trace("File deleted successfully: {}", fileId);
+            result = 0;
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() == 404) {
+                LOGGER.warn("No files found for {}", fileId);
+            }
+            else {
+                LOGGER.error("Drive refused to delete file {}: {} {}", fileId, e.getStatusCode(),
+                        e.getDetails() != null ? e.getDetails().getMessage() : e.getStatusMessage());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error occurred while deleting file {}", fileId, e);
+        }
+        return result;
+    }
+    
+    /**
+     * Deletes many files with batch requests. Files under another file of
+     * the same call go with it and are not sent, see {@link DeleteBatcher}.
+     * @param fileIds Ids of files to delete
+     * @return Outcome per file with throughput of the run
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public DeleteReport deleteFiles(Collection<String> fileIds) throws IOException {
+        return bulkDelete(fileIds, false, null);
+    }
+    
+    /**
+     * Moves many files to trash with batch requests, they can be purged
+     * later with {@link #purgeFiles(Collection)}
+     * @param fileIds Ids of files to trash
+     * @return Outcome per file with throughput of the run
+     * @throws IOException when interrupted while waiting for batches
+     * @see #deleteFiles(Collection)
+     */
+    public DeleteReport trashFiles(Collection<String> fileIds) throws IOException {
+        return bulkDelete(fileIds, true, null);
+    }
+    
+    /**
+     * Deletes trashed files for good
+     * @param fileIds Ids of files in trash, e.g. those trashed by {@link #trashFiles(Collection)}
+     * @return Outcome per file with throughput of the run
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public DeleteReport purgeFiles(Collection<String> fileIds) throws IOException {
+        return metrics.time(DriveMetrics.DELETE, () -> deleted(deleteBatcher.purge(fileIds)));
+    }
+    
+    /**
+     * Deletes or trashes everything in a folder, the folder itself stays.
+     * Subfolders go with their content, so only children of the folder are sent.
+     * @param folderId Id of folder to empty
+     * @param trash Move to trash instead of deleting
+     * @return Outcome per child with throughput of the run
+     * @throws IOException when children cannot be listed or when interrupted
+     */
+    public DeleteReport deleteContents(String folderId, boolean trash) throws IOException {
+        List<String> children = new ArrayList<>();
+        forEachChild(folderId, 0, child -> children.add(child.getId()));
+        return bulkDelete(children, trash, false);
+    }
+    
+    /**
+     * @param prune Whether to look up parents, null for drive.delete.prune-descendants
+     */
+    private DeleteReport bulkDelete(Collection<String> fileIds, boolean trash, Boolean prune) throws IOException {
+        return metrics.time(DriveMetrics.DELETE, () -> deleted(prune == null
+                ? deleteBatcher.apply(fileIds, trash)
+                : deleteBatcher.apply(fileIds, trash, prune)));
+    }
+    
+    /**
+     * Drops cached state of files that are gone
+     */
+    private DeleteReport deleted(DeleteReport report) {
+        List<String> gone = new ArrayList<>();
+        for (DeleteReport.Item item : report.getItems()) {
+            if (item.isSuccess()) {
+                invalidate(item.getFileId());
+                searchIndex.remove(item.getFileId());
+                gone.add(item.getFileId());
+            }
+        }
+        folderPaths.invalidate(gone);
+        LOGGER.debug("Bulk {}: {}", report.isTrash() ? "trash" : "delete", report);
+        return report;
+    }
+    
+    /**
+     * 
+     * @param name Name of folder to create
+     * @return File object
+     */
+    public File createFolder(String name) throws IOException {
+        return createFolder(name, appFolder);
+    }
+    
+    /**
+     * 
+     * @param name Name of folder to create
+     * @param parentId Parent folder id
+     * @return File object
+     * @throws IOException IOException
+     */
+    public File createFolder(String name, String parentId) throws IOException {
+        
+        File fileMetadata = new File();
+        fileMetadata.setName(name);
+        
+        fileMetadata = setFolderMimeType(fileMetadata);
+        fileMetadata.setParents(Arrays.asList(parentId));
+        
+        File file = create(fileMetadata);
+        invalidate(parentId);
+        folderPaths.forget(parentId, name);
+        searchIndex.put(fileMetadata, null);
+
+        LOGGER.info("Folder {} created! ID: {}", name, file.getId());
+        return file;
+    }
+    
+    /**
+     * Resolves path of folders under the application folder
+     * @param path Folder names separated with /, e.g. clients/2026/invoices
+     * @return Folder id, null when a folder on the path does not exist
+     * @throws IOException IOException
+     */
+    public String resolveFolderPath(String path) throws IOException {
+        return resolveFolderPath(appFolder, path);
+    }
+    
+    /**
+     * Resolves path of folders under a folder. Each step is answered from
+     * cache when possible; with several folders of the same name the oldest
+     * one is followed.
+     * @param parentId Folder the path starts in
+     * @param path Folder names separated with /
+     * @return Folder id, null when a folder on the path does not exist
+     * @throws IOException IOException
+     */
+    public String resolveFolderPath(String parentId, String path) throws IOException {
+        String id = parentId;
+        for (String name : pathNames(path)) {
+            String parent = id;
+            id = folderPaths.lookup(parent, name, () -> findFolder(parent, name));
+            if (id == null) {
+                return null;
+            }
+        }
+        return id;
+    }
+    
+    /**
+     * Resolves path of folders under the application folder, creating missing ones
+     * @param path Folder names separated with /, e.g. clients/2026/invoices
+     * @return Folder id
+     * @throws IOException IOException
+     */
+    public String ensureFolderPath(String path) throws IOException {
+        return ensureFolderPath(appFolder, path);
+    }
+    
+    /**
+     * Resolves path of folders under a folder, creating missing ones. Calling
+     * it again for the same path, also concurrently, creates nothing new.
+     * @param parentId Folder the path starts in
+     * @param path Folder names separated with /
+     * @return Folder id
+     * @throws IOException IOException
+     */
+    public String ensureFolderPath(String parentId, String path) throws IOException {
+        String id = parentId;
+        for (String name : pathNames(path)) {
+            String parent = id;
+            id = folderPaths.ensure(parent, name, () -> {
+                String found = findFolder(parent, name);
+                return found != null ? found : createFolder(name, parent).getId();
+            });
+        }
+        return id;
+    }
+    
+    private static List<String> pathNames(String path) {
+        List<String> result = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (!name.trim().isEmpty()) {
+                result.add(name.trim());
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * @return Id of the oldest folder with given name, null when there is none
+     */
+    private String findFolder(String parentId, String name) throws IOException {
+        FileList list = requestExecutor.execute(drive.files().list()
+                .setQ("'" + escape(parentId) + "' in parents and name = '" + escape(name)
+                        + "' and mimeType = '" + folderMimeType + "' and trashed = false")
+                .setOrderBy("createdTime")
+                .setFields("files(id)")
+                .setPageSize(1));
+        return (list.getFiles() == null) || list.getFiles().isEmpty() ? null : list.getFiles().get(0).getId();
+    }
+    
+    /**
+     * 
+     * @param useDirectUpload Send content in a single request, when false files above
+     * drive.upload.direct-upload-threshold are sent with resumable protocol
+     * @param multipartFile Multupart file from browser
+     * @param folderId Parent folder id
+     * @param desc Description for file
+     * @return Google file object of uploaded MultiparFile
+     * @throws IOException IOException
+     */
+    public File uploadFileOnly(boolean useDirectUpload, 
+                            MultipartFile multipartFile,
+                            String folderId,
+                            String desc) throws IOException {
+        File uploaded = metrics.time(DriveMetrics.UPLOAD, () -> upload(useDirectUpload, multipartFile, folderId, desc));
+        metrics.bytes(DriveMetrics.UPLOAD, multipartFile.getSize());
+        return uploaded;
+    }
+    
+    private File upload(boolean useDirectUpload, 
+                            MultipartFile multipartFile,
+                            String folderId,
+                            String desc) throws IOException {
+
+        File fileMetadata = new File();
+        fileMetadata.setName(multipartFile.getName());
+        fileMetadata.setMimeType(multipartFile.getContentType());
+        fileMetadata.setOriginalFilename(multipartFile.getOriginalFilename());
+        return upload(useDirectUpload, fileMetadata, multipartFile.getSize(), multipartFile, folderId, desc);
+    }
+    
+    /**
+     * Uploads content that is not a browser upload, e.g. an entry of an archive
+     * @param useDirectUpload Send content in a single request
+     * @param name File name
+     * @param contentType Content mime type
+     * @param size Content length in bytes
+     * @param source Source of content, opened again when an upload is resumed
+     * @param folderId Parent folder id
+     * @param desc Description for file
+     * @return Uploaded file
+     * @throws IOException IOException
+     */
+    File uploadContent(boolean useDirectUpload,
+                            String name,
+                            String contentType,
+                            long size,
+                            InputStreamSource source,
+                            String folderId,
+                            String desc) throws IOException {
+        return uploadContent(useDirectUpload, name, contentType, size, source, folderId, desc, null);
+    }
+    
+    /**
+     * Uploads content under an id reserved up front, so an upload run again
+     * after it finished returns the file instead of creating another one
+     * @param useDirectUpload Send content in a single request
+     * @param name File name
+     * @param contentType Content mime type
+     * @param size Content length in bytes
+     * @param source Source of content, opened again when an upload is resumed
+     * @param folderId Parent folder id
+     * @param desc Description for file
+     * @param fileId Id from {@link #generateId()}, null to let Drive pick one
+     * @return Uploaded file
+     * @throws IOException IOException
+     */
+    File uploadContent(boolean useDirectUpload,
+                            String name,
+                            String contentType,
+                            long size,
+                            InputStreamSource source,
+                            String folderId,
+                            String desc,
+                            String fileId) throws IOException {
+        if (fileId != null) {
+            File existing = getFile(fileId, createFields);
+            if (existing != null) {
+                LOGGER.debug("File {} was uploaded by an earlier attempt", fileId);
+                return existing;
+            }
+        }
+        File fileMetadata = new File();
+        fileMetadata.setId(fileId);
+        fileMetadata.setName(name);
+        fileMetadata.setMimeType(contentType);
+        fileMetadata.setOriginalFilename(name);
+        File uploaded = metrics.time(DriveMetrics.UPLOAD,
+                () -> upload(useDirectUpload, fileMetadata, size, source, folderId, desc));
+        metrics.bytes(DriveMetrics.UPLOAD, size);
+        return uploaded;
+    }
+    
+    private File upload(boolean useDirectUpload,
+                            File fileMetadata,
+                            long size,
+                            InputStreamSource source,
+                            String folderId,
+                            String desc) throws IOException {
+
+        File p = new File();
+        p.setId(folderId);
+        fileMetadata = addParentReference(fileMetadata, p);
+        
+        if ((desc != null) && (!desc.isEmpty())) {
+            fileMetadata.setDescription(desc);
+        }
+        
+        File metadata = fileMetadata.clone();
+        String contentType = fileMetadata.getMimeType();
+        String fields = fieldProfiles.fields(createFields);
+        if (useDirectUpload || resumableUploader.isDirect(size)) {
+            LOGGER.debug("Uploading file to Drive, {} bytes", size);
+            InputStreamContent mediaContent = new InputStreamContent(contentType,
+                                                                    new BufferedInputStream(source.getInputStream()));
+            mediaContent.setLength(size);
+            fileMetadata = resumableUploader.uploadDirect(fileMetadata, mediaContent, size, fields);
+        }
+        else {
+            LOGGER.debug("Uploading file to Drive in chunks, {} bytes", size);
+            // the first and last bytes are part of the key, so a different file of the same name and size
+            // does not resume this session, without reading all of the content before the upload
+            String key = UploadSessionStore.key(folderId, fileMetadata.getName(), fileMetadata.getOriginalFilename(),
+                    size, UploadSessionStore.sample(source, size));
+            fileMetadata = resumableUploader.uploadResumable(fileMetadata, contentType, size, source, key, fields);
+        }
+        if (fieldProfiles.isDebug()) {
+            measure(DriveMetrics.UPLOAD, fields, fileMetadata, drive.files().get(fileMetadata.getId()).setFields("*"));
+        }
+        invalidate(folderId);
+        searchIndex.put(metadata.setId(fileMetadata.getId()), searchIndex.indexesContent(metadata.getMimeType(), size)
+                ? text(source) : null);
+        LOGGER.info("File uploaded, id: {}", fileMetadata.getId());
+
+        return fileMetadata;
+    }
+    
+    private static String text(InputStreamSource source) throws IOException {
+        try (InputStream in = source.getInputStream()) {
+            return StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+        }
+    }
+    
+    /**
+     * Uploads many files at once, running at most drive.upload.max-concurrent-uploads
+     * uploads in parallel
+     * @param useDirectUpload Send content in a single request
+     * @param multipartFiles Multupart files from browser
+     * @param folderId Parent folder id
+     * @param desc Description for every file
+     * @return Uploaded files in the same order, null for files that failed
+     * @throws IOException when interrupted while waiting for uploads
+     */
+    public List<File> uploadFiles(boolean useDirectUpload,
+                            List<MultipartFile> multipartFiles,
+                            String folderId,
+                            String desc) throws IOException {
+        List<Future<File>> futures = new ArrayList<>();
+        for (MultipartFile f : multipartFiles) {
+            futures.add(resumableUploader.submit(() -> uploadFileOnly(useDirectUpload, f, folderId, desc)));
+        }
+        List<File> result = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                result.add(futures.get(i).get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new InterruptedIOException("Interrupted while uploading files");
+            } catch (ExecutionException ex) {
+                LOGGER.error("Upload of {} failed: {}", multipartFiles.get(i).getOriginalFilename(), ex.getCause().getMessage());
+                result.add(null);
+            }
+        }
+        return result;
+    }
+    
+        /**
+     * Inserts new spreadsheet on Drive
+     * @param useDirectUpload useDirectUpload
+     * @param folderId Parent folder id
+     * @param name File name
+     * @return Google file object
+     * @throws IOException IOException
+     */
+    public File insertSpreadSheet(boolean useDirectUpload, 
+                            String folderId,
+                            String name) throws IOException {
+
+        File fileMetadata = new File();
+        fileMetadata.setName(name);
+        fileMetadata.setMimeType(spreadsheetMimeType);
+
+        File p = getFile(folderId, null);
+        fileMetadata = addParentReference(fileMetadata, p);
+        LOGGER.debug("Inserting new spreadsheet");
+        fileMetadata = create(fileMetadata);
+        invalidate(folderId);
+        searchIndex.put(fileMetadata, null);
+        LOGGER.debug("Spreadsheet inserted");
+        return fileMetadata;
+    }
+    
+    /**
+     * Creates permission object
+     * @param email E-mail address
+     * @param role User role, one of: writer, reader. owner is not applicable 
+     * @param type Permission type, on of: user, group. domain, anyone
+     * @return Created Permission object
+     */
+    private Permission setPermForUser(String email, String role, String type) {
+        Permission result = null;
+        if (correct(email)) {
+            result = new Permission();
+            result.set("value", email);
+            result.setEmailAddress(email);
+            result.setRole(role);
+            result.setType(type);
+        }
+        return result;
+    }
+    
+    /**
+     * Adds permission for given file, filemedatada needs to be executed
+     * @param file Google file
+     * @param p Permission object
+     * @return Google file
+     */
+    private File addPermissionForFile(File file, Permission p){
+        List<Permission> list;
+        list = file.getPermissions();
+        if(list != null){
+            list.add(p);
+        }
+        else {
+            list = new ArrayList<>();
+            list.add(p);
+        }
+        file.setPermissions(list);
+        return file;
+    }
+    
+    /**
+     * Adds parent for file
+     * @param file Google file
+     * @param pr Parent file object
+     * @return Google file with included parent
+     */
+    private File addParentReference(File file, File pr){
+        List<String> list;
+            list = file.getParents();
+        if(list != null){
+            list.add(pr.getId());
+        }
+        else{
+            list = new ArrayList<>();
+            list.add(pr.getId());
+        }
+        file.setParents(list);
+        return file;
+    }
+
+    
+    /**
+     * Context search on files on Drive. Answered from the local search
+     * index once it is warm, otherwise Drive is asked for all matches.
+     * @param q Text to search
+     * @return List of files containing text, best matching first when answered locally
+     */
+    public List<File> searchText(String q) throws IOException {
+        return searchText(q, null);
+    }
+    
+    /**
+     * Context search on files on Drive
+     * @param q Text to search
+     * @param fields Fields or name of a {@link FieldProfiles field profile} to get from Drive,
+     * if null drive.search-fields are used; files answered from the local index have indexed fields
+     * @return List of files containing text, best matching first when answered locally
+     * @throws IOException IOException
+     */
+    public List<File> searchText(String q, String fields) throws IOException {
+        if ((q == null) || q.trim().isEmpty()) {
+            return new ArrayList<>();
+        }
+        return metrics.time(DriveMetrics.SEARCH, () -> {
+            if (searchIndex.isWarm()) {
+                return searchIndex.search(q, 0);
+            }
+            String query = "fullText contains '" + escape(q) + "' and trashed = false";
+            List<File> result = new ArrayList<>();
+            new PagedFileIterator(listPages(DriveMetrics.SEARCH, query,
+                    fieldProfiles.fields(fields == null ? searchFields : fields), 1000), prefetch).forEachRemaining(result::add);
+            return result;
+        });
+    }
+
+    
+    /**
+     * Updates readers for give file id
+     * @param googleId File id
+     * @param emails List of new readers
+     * @return 0 when success
+     * @throws java.io.IOException IOException
+     */
+    public int resolveReaders(String googleId, List<String> emails) throws IOException{
+        List<Permission> pList;
+        if((googleId == null) || googleId.isEmpty() || (emails == null))
+            return -1;
+        if(reconcileReaders){
+            ReaderReconciliationReport report = reconcileReaders(googleId, emails, "reader");
+            return (report != null) && report.isSuccess() ? 0 : -1;
+        }
+        File folder = getFile(googleId, null);
+        if(folder == null)
+            return -1;
+        pList = listPermissions(folder.getId()).
+                parallelStream().filter(e -> !e.getRole().equals("owner")).collect(Collectors.toList());
+        LOGGER.debug("Deleting permissions for file: {}", googleId);
+        List<PermissionChange> deletes = pList.stream()
+                .map(p -> PermissionChange.delete(p.getId(), p.getEmailAddress()))
+                .collect(Collectors.toList());
+        PermissionBatchResult deleted = metrics.time(DriveMetrics.PERMISSION_DELETE,
+                () -> permissionBatcher.apply(folder.getId(), deletes, false, null));
+        LOGGER.debug("Permissions deleted for file: {}", googleId);
+        LOGGER.debug("Inserting permissions for file: {}", googleId);
+        PermissionBatchResult inserted = metrics.time(DriveMetrics.PERMISSION_CREATE,
+                () -> permissionBatcher.apply(folder.getId(), toCreateChanges(emails, "reader", "user"), false, null));
+        invalidate(folder.getId());
+        LOGGER.debug("Inserted permissions for file: {}", googleId);
+        
+        return deleted.isSuccess() && inserted.isSuccess() ? 0 : -1;
+    }
+    
+    /**
+     * Makes given e-mails the only non-owner users of a file, issuing only the
+     * additions, role changes and removals that are needed. Additions and role
+     * changes are applied before removals, so kept readers never lose access.
+     * @param googleId File id
+     * @param emails List of readers, incorrect addresses are skipped
+     * @param role Role for every reader, reader if null
+     * @return Change report, null when file id or e-mails are missing or file does not exist
+     * @throws IOException IOException
+     */
+    public ReaderReconciliationReport reconcileReaders(String googleId, List<String> emails, String role) throws IOException{
+        if((googleId == null) || googleId.isEmpty() || (emails == null))
+            return null;
+        role = role == null ? "reader" : role;
+        long start = System.currentTimeMillis();
+        File folder = getFile(googleId, null);
+        if(folder == null)
+            return null;
+        List<Permission> current = listPermissions(folder.getId());
+        ReaderDiff diff = ReaderDiff.compute(current,
+                emails.stream().filter(this::correct).collect(Collectors.toList()), role);
+        long listed = System.currentTimeMillis();
+        List<PermissionBatchResult> results = new ArrayList<>();
+        if(!diff.isEmpty()){
+            List<PermissionChange> grants = new ArrayList<>(diff.getAdditions());
+            grants.addAll(diff.getRoleChanges());
+            results.add(metrics.time(DriveMetrics.PERMISSION_CREATE,
+                    () -> permissionBatcher.apply(folder.getId(), grants, false, null)));
+            results.add(metrics.time(DriveMetrics.PERMISSION_DELETE,
+                    () -> permissionBatcher.apply(folder.getId(), diff.getRemovals(), false, null)));
+        }
+        invalidate(folder.getId());
+        ReaderReconciliationReport report = new ReaderReconciliationReport(folder.getId(), diff, results,
+                listed - start, System.currentTimeMillis() - listed);
+        LOGGER.debug("Readers reconciled: {}", report);
+        return report;
+    }
+    
+    /**
+     * Lists all permissions of a file, following page tokens
+     * @param fileId Google file id
+     * @return Permissions with id, emailAddress, role and type
+     * @throws IOException IOException
+     */
+    private List<Permission> listPermissions(String fileId) throws IOException{
+        return coalesceReads
+                ? permissionReads.execute(fileId, () -> fetchPermissions(fileId))
+                : fetchPermissions(fileId);
+    }
+    
+    private List<Permission> fetchPermissions(String fileId) throws IOException{
+        List<Permission> result = new ArrayList<>();
+        String pageToken = null;
+        do {
+            Drive.Permissions.List list = drive.permissions().list(fileId);
+            list.setFields("nextPageToken,permissions(id,emailAddress,role,type)");
+            // pageSize/pageToken are not modelled by this client revision, they are sent as plain query parameters
+            list.set("pageSize", 100);
+            if(pageToken != null)
+                list.set("pageToken", pageToken);
+            PermissionList page = requestExecutor.execute(list);
+            if(page.getPermissions() != null)
+                result.addAll(page.getPermissions());
+            pageToken = (String) page.get("nextPageToken");
+        } while (pageToken != null);
+        return result;
+    }
+    
+    /**
+     * Checking if given e-mail is correct
+     * @param address E-mail address to check
+     * @return True if correct gmail address, false otherwise
+     */
+    private boolean correct(String address){
+        if((address == null) || address.isEmpty())
+            return false;
+        String t = null;
+        try {
+            StringTokenizer st = new StringTokenizer(address,"@");
+            st.nextToken();
+            t = st.nextToken();
+        }
+        catch(Exception e){
+            LOGGER.error("Could not validate email: {}", e.getLocalizedMessage());
+            return false;
+        }
+        return t.endsWith("gmail.com") || t.endsWith("p-r.com.pl");
+    }
+    
+    /**
+     * Inserts permission for user
+     * @param fileId File id
+     * @param email E-mail address
+     * @param role User role, one of: writer, reader. owner is not applicable 
+     * @param type Permission type, on of: user, group. domain, anyone
+     * @param sendEmail Should user be noticed with e-mail message from Google
+     * @param message Notification e-mail message
+     * @return 0 when success, -1 otherwise
+     * @throws IOException IOException
+     */
+    public int addPermissionForUser(String fileId, String email, String role, String type, boolean sendEmail, String message) throws IOException {
+        int result = -1;
+        if((fileId != null) && !fileId.isEmpty() && correct(email)){
+            type = type == null ? "user" : type;
+            role = role == null ? "reader" : role;
+            File f = getFile(fileId, null);
+            LOGGER.debug("Setting permission for file {} for user {}", f.getId(), email);
+            Drive.Permissions.Create insert = drive.permissions().create(f.getId(), setPermForUser(email, role, type));
+            insert.setFields("id");
+            insert.setSendNotificationEmail(sendEmail);
+            if((sendEmail) && (message != null) && !message.isEmpty())
+                insert.setEmailMessage(message);
+            metrics.time(DriveMetrics.PERMISSION_CREATE, () -> requestExecutor.execute(insert));
+            invalidate(f.getId());
+            LOGGER.debug("Inserted permission for file {} for user {}", f.getId(), email);
+            result = 0;
+        }
+        return result;
+    }
+    
+    /**
+     * Inserts permissions for e-mail List
+     * @param fileId File id
+     * @param emails List of e-mails
+     * @param role User role, one of: writer, reader. owner is not applicable 
+     * @param type Permission type, on of: user, group. domain, anyone
+     * @param sendEmail Should user be noticed with e-mail message from Google
+     * @param message Notification e-mail message
+     * @return 0 on success, -1 otherwise
+     * @throws IOException IOException
+     */
+    public int addPermissionForUsers(String fileId, List<String> emails, String role, String type, boolean sendEmail, String message) throws IOException{
+        PermissionBatchResult result = addPermissionsForUsers(fileId, emails, role, type, sendEmail, message);
+        return (result != null) && result.isSuccess() && (result.getSucceededCount() > 0) ? 0 : -1;
+    }
+    
+    /**
+     * Inserts permissions for e-mail List using Drive batch requests, file is fetched once
+     * @param fileId File id
+     * @param emails List of e-mails, incorrect addresses are skipped
+     * @param role User role, one of: writer, reader. owner is not applicable 
+     * @param type Permission type, on of: user, group. domain, anyone
+     * @param sendEmail Should user be noticed with e-mail message from Google
+     * @param message Notification e-mail message
+     * @return Per-permission result, null when file id or e-mails are missing or file does not exist
+     * @throws IOException IOException
+     */
+    public PermissionBatchResult addPermissionsForUsers(String fileId, List<String> emails, String role, String type, boolean sendEmail, String message) throws IOException{
+        if((fileId == null) || fileId.isEmpty() || (emails == null) || emails.isEmpty())
+            return null;
+        File f = getFile(fileId, null);
+        if(f == null)
+            return null;
+        LOGGER.debug("Setting permissions for file {} for {} users", f.getId(), emails.size());
+        PermissionBatchResult result = metrics.time(DriveMetrics.PERMISSION_CREATE,
+                () -> permissionBatcher.apply(f.getId(), toCreateChanges(emails, role, type), sendEmail, message));
+        invalidate(f.getId());
+        return result;
+    }
+    
+    /**
+     * Builds create changes for correct e-mails
+     * @param emails List of e-mails
+     * @param role User role, reader if null
+     * @param type Permission type, user if null
+     * @return List of changes
+     */
+    private List<PermissionChange> toCreateChanges(List<String> emails, String role, String type){
+        String r = role == null ? "reader" : role;
+        String t = type == null ? "user" : type;
+        return emails.stream().filter(this::correct)
+                .map(e -> PermissionChange.create(e, r, t))
+                .collect(Collectors.toList());
+    }
+    
+    /**
+     * 
+     * @param fileId Google file id
+     * @param idPermission Permission id to delete
+     * @return 0 on success
+     * @throws IOException IOException
+     */
+    public int removeRightsForUser(String fileId, String idPermission) throws IOException{
+        File f = getFile(fileId, null);
+        LOGGER.debug("Revoking permissions for file {}", f.getId());
+        Drive.Permissions.Delete delete = drive.permissions().delete(f.getId(), idPermission);
+        metrics.time(DriveMetrics.PERMISSION_DELETE, () -> requestExecutor.execute(delete));
+        invalidate(f.getId());
+        LOGGER.debug("Permissions revoked for file {}", f.getId());
+        return 0;
+    }
+
+        
+    /**
+     * Creates file without content under an id generated up front, so a
+     * request that timed out can be sent again without creating a duplicate
+     * @param metadata File metadata
+     * @return Created file
+     * @throws IOException when all attempts fail
+     */
+    private File create(File metadata) throws IOException {
+        metadata.setId(generateId());
+        String fields = fieldProfiles.fields(createFields);
+        for (int attempt = 1;; attempt++) {
+            try {
+                File created = requestExecutor.execute(drive.files().create(metadata).setFields(fields));
+                if (fieldProfiles.isDebug()) {
+                    measure(DriveMetrics.CREATE, fields, created, drive.files().get(created.getId()).setFields("*"));
+                }
+                return created;
+            } catch (GoogleJsonResponseException e) {
+                if ((attempt > 1) && (e.getStatusCode() == 409)) {
+                    LOGGER.debug("File {} was created by an earlier attempt", metadata.getId());
+                    return getFile(metadata.getId(), fields);
+                }
+                throw e;
+            } catch (IOException e) {
+                if (((e instanceof InterruptedIOException) && !(e instanceof SocketTimeoutException))
+                        || (attempt >= CREATE_ATTEMPTS)) {
+                    throw e;
+                }
+                LOGGER.info("Creating {} failed, trying again: {}", metadata.getName(), e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Drops cached metadata of a changed file. Reads of it that are already
+     * running may not see the change, so later callers do not join them.
+     * @param id File id
+     */
+    private void invalidate(String id) {
+        metadataCache.invalidate(id);
+        contentCache.invalidate(id);
+        fileReads.forget(k -> k.get(0).equals(id));
+        childReads.forget(k -> k.get(0).equals(id));
+        permissionReads.forget(id::equals);
+    }
+    
+    /**
+     * @return File id reserved on Drive, fetched in packs
+     * @throws IOException IOException
+     */
+    String generateId() throws IOException {
+        synchronized (generatedIds) {
+            if (generatedIds.isEmpty()) {
+                generatedIds.addAll(requestExecutor.execute(drive.files().generateIds()
+                        .setCount(GENERATED_IDS_PER_CALL)
+                        .setSpace("drive")).getIds());
+            }
+            return generatedIds.poll();
+        }
+    }
+    
+    /**
+     * 
+     * @param plik Google file to set folder permission
+     * @return  Google file with folder mime type
+     */
+    private File setFolderMimeType(File file){
+        file.setMimeType(folderMimeType);
+        return file;
+    }
+    
+    public String getAppFolder() {
+        return appFolder;
+    }
+
+    public void setAppFolder(String appFolder) {
+        this.appFolder = appFolder;
+    }
+
+    public void setFieldsToGet(String fieldsToGet) {
+        this.fieldsToGet = fieldsToGet;
+    }
+
+    public void setReconcileReaders(boolean reconcileReaders) {
+        this.reconcileReaders = reconcileReaders;
+    }
+
+    public void setChildFields(String childFields) {
+        this.childFields = childFields;
+    }
+
+    /**
+     * @param coalesceReads Let identical concurrent getFile, childList and permission
+     * list calls share one request to Drive
+     */
+    public void setCoalesceReads(boolean coalesceReads) {
+        this.coalesceReads = coalesceReads;
+    }
+
+    /**
+     * @param createFields Fields or profile name returned by createFolder, insertSpreadSheet and uploads
+     */
+    public void setCreateFields(String createFields) {
+        this.createFields = createFields;
+    }
+
+    /**
+     * @param searchFields Fields or profile name returned by searchText when Drive is asked
+     */
+    public void setSearchFields(String searchFields) {
+        this.searchFields = searchFields;
+    }
+
+    public void setChildPageSize(int childPageSize) {
+        this.childPageSize = childPageSize;
+    }
+
+    /**
+     * @param prefetchThreads Threads fetching the next page of listings ahead,
+     * shared by all streams and iterators
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = prefetchThreads;
+    }
+    
+    
+}
@@ -0,0 +1,164 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Outcome of a bulk ingest: created folders and per-entry results
+ * @author p.zachwieja
+ */
+public class IngestManifest {
+
+    /**
+     * Outcome of single file entry
+     */
+    public static class Item {
+
+        private final String path;
+        private final String fileId;
+        private final long size;
+        private final String errorMessage;
+
+        Item(String path, String fileId, long size, String errorMessage) {
+            this.path = path;
+            this.fileId = fileId;
+            this.size = size;
+            this.errorMessage = errorMessage;
+        }
+
+        static Item success(String path, String fileId, long size) {
+            return new Item(path, fileId, size, null);
+        }
+
+        static Item failure(String path, String errorMessage) {
+            return new Item(path, null, -1, errorMessage);
+        }
+
+        /**
+         * @return Path of the entry in the source
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * @return Id of created file, null on failure
+         */
+        public String getFileId() {
+            return fileId;
+        }
+
+        /**
+         * @return Uploaded bytes, -1 on failure
+         */
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isSuccess() {
+            return fileId != null;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        @Override
+        public String toString() {
+            return path + (isSuccess() ? " " + fileId : " FAILED " + errorMessage);
+        }
+    }
+
+    private final String folderId;
+    private final Map<String, String> folders;
+    private final List<Item> items;
+    private final int spooled;
+    private final long elapsedMillis;
+
+    IngestManifest(String folderId, Map<String, String> folders, List<Item> items, int spooled, long elapsedMillis) {
+        this.folderId = folderId;
+        this.folders = Collections.unmodifiableMap(new LinkedHashMap<>(folders));
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.spooled = spooled;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return Id of the folder entries were ingested into
+     */
+    public String getFolderId() {
+        return folderId;
+    }
+
+    /**
+     * @return Ids of created folders by path, in creation order
+     */
+    public Map<String, String> getFolders() {
+        return folders;
+    }
+
+    /**
+     * @return Results of file entries in the order they were read
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * @return Ids of created files by path
+     */
+    public Map<String, String> getFileIds() {
+        Map<String, String> result = new LinkedHashMap<>();
+        items.stream().filter(Item::isSuccess).forEach(i -> result.put(i.getPath(), i.getFileId()));
+        return result;
+    }
+
+    public List<Item> getFailed() {
+        return items.stream().filter(i -> !i.isSuccess()).collect(Collectors.toList());
+    }
+
+    public int getSucceededCount() {
+        return (int) items.stream().filter(Item::isSuccess).count();
+    }
+
+    public int getFailedCount() {
+        return items.size() - getSucceededCount();
+    }
+
+    /**
+     * @return True if every entry was uploaded
+     */
+    public boolean isSuccess() {
+        return items.stream().allMatch(Item::isSuccess);
+    }
+
+    public long getUploadedBytes() {
+        return items.stream().filter(Item::isSuccess).mapToLong(Item::getSize).sum();
+    }
+
+    /**
+     * @return Number of entries too big for the memory buffer, copied to a spool file first
+     */
+    public int getSpooled() {
+        return spooled;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "IngestManifest{folderId=" + folderId + ", folders=" + folders.size() + ", succeeded=" + getSucceededCount()
+                + ", failed=" + getFailedCount() + ", spooled=" + spooled + ", elapsedMillis=" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import org.springframework.core.io.InputStreamSource;
+
+/**
+ * Entries read one after another for {@link BulkIngestService}, e.g. a zip
+ * archive or a local directory
+ * @author p.zachwieja
+ */
+public interface IngestSource extends Closeable {
+
+    /**
+     * File or folder of a source
+     */
+    class Entry {
+
+        private final String path;
+        private final boolean directory;
+        private final long size;
+        private final InputStreamSource content;
+        private final boolean reopenable;
+
+        /**
+         * @param path Path relative to the root of the source, parts separated with /
+         * @param directory True for a folder
+         * @param size Content length in bytes, negative when unknown
+         * @param content Content, null for a folder
+         * @param reopenable True if content can be read again after the next entry
+         * is taken, false when it is a view of the source stream
+         */
+        public Entry(String path, boolean directory, long size, InputStreamSource content, boolean reopenable) {
+            this.path = path;
+            this.directory = directory;
+            this.size = size;
+            this.content = content;
+            this.reopenable = reopenable;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public InputStreamSource getContent() {
+            return content;
+        }
+
+        public boolean isReopenable() {
+            return reopenable;
+        }
+
+        /**
+         * @return Mime type guessed from the file name
+         */
+        public String getContentType() {
+            String type = URLConnection.guessContentTypeFromName(path);
+            return type == null ? "application/octet-stream" : type;
+        }
+    }
+
+    /**
+     * @return Next entry, null when there are no more
+     * @throws IOException when the source cannot be read
+     */
+    Entry next() throws IOException;
+
+    /**
+     * Reads a zip archive as a stream, entries are not kept in memory
+     * @param in Archive stream, closed with the source
+     * @return Source
+     */
+    static IngestSource zip(InputStream in) {
+        ZipInputStream zip = new ZipInputStream(in);
+        // content of an entry is the archive stream itself, consumers must not close it
+        InputStream shared = new FilterInputStream(zip) {
+            @Override
+            public void close() {
+            }
+        };
+        return new IngestSource() {
+            @Override
+            public Entry next() throws IOException {
+                ZipEntry e = zip.getNextEntry();
+                if (e == null) {
+                    return null;
+                }
+                return e.isDirectory()
+                        ? new Entry(e.getName(), true, 0, null, false)
+                        : new Entry(e.getName(), false, e.getSize(), () -> shared, false);
+            }
+
+            @Override
+            public void close() throws IOException {
+                zip.close();
+            }
+        };
+    }
+
+    /**
+     * Walks a local directory, folders come before their content
+     * @param root Directory to read
+     * @return Source
+     * @throws IOException when the directory cannot be read
+     */
+    static IngestSource directory(Path root) throws IOException {
+        Stream<Path> paths = Files.walk(root);
+        Iterator<Path> it = paths.iterator();
+        return new IngestSource() {
+            @Override
+            public Entry next() throws IOException {
+                try {
+                    while (it.hasNext()) {
+                        Path p = it.next();
+                        if (p.equals(root)) {
+                            continue;
+                        }
+                        String path = root.relativize(p).toString().replace(p.getFileSystem().getSeparator(), "/");
+                        if (Files.isDirectory(p)) {
+                            return new Entry(path, true, 0, null, true);
+                        }
+                        return new Entry(path, false, Files.size(p), () -> Files.newInputStream(p), true);
+                    }
+                    return null;
+                } catch (UncheckedIOException ex) {
+                    throw ex.getCause();
+                }
+            }
+
+            @Override
+            public void close() {
+                paths.close();
+            }
+        };
+    }
+}
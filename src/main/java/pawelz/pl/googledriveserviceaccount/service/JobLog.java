@@ -0,0 +1,159 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only log of job records on local disk, one JSON object per line.
+ * A line torn by a crash is skipped when the log is read; the log is
+ * rewritten atomically when it is compacted.
+ * @author p.zachwieja
+ */
+public class JobLog implements Closeable {
+
+    private static final TypeReference<Map<String, Object>> RECORD = new TypeReference<Map<String, Object>>() {
+    };
+
+    private final Path file;
+    private final boolean sync;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private FileChannel channel;
+    private long appended;
+
+    private static final Logger LOGGER = LogManager.getLogger(JobLog.class);
+
+    /**
+     * @param file Log file, created with its directory when missing
+     * @param sync Force every record to disk before append returns
+     */
+    public JobLog(Path file, boolean sync) {
+        this.file = file;
+        this.sync = sync;
+    }
+
+    /**
+     * @return Records in the order they were appended
+     * @throws IOException when the log cannot be read
+     */
+    public synchronized List<Map<String, Object>> read() throws IOException {
+        List<Map<String, Object>> records = new ArrayList<>();
+        if (!Files.exists(file)) {
+            return records;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    records.add(mapper.readValue(line, RECORD));
+                } catch (JsonProcessingException ex) {
+                    LOGGER.warn("Skipping unreadable job record in {}: {}", file, ex.getOriginalMessage());
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * @param record Record to add at the end of the log
+     * @throws IOException when the record cannot be written
+     */
+    public synchronized void append(Map<String, Object> record) throws IOException {
+        if (channel == null) {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            channel.position(channel.size());
+            endTornLine();
+        }
+        ByteBuffer line = ByteBuffer.wrap(line(record));
+        while (line.hasRemaining()) {
+            channel.write(line);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        appended++;
+    }
+
+    /**
+     * Replaces the whole log with given records
+     * @param records Records of the new log
+     * @throws IOException when the log cannot be written
+     */
+    public synchronized void rewrite(List<Map<String, Object>> records) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(tmp)) {
+            for (Map<String, Object> record : records) {
+                out.write(line(record));
+            }
+        }
+        if (sync) {
+            try (FileChannel c = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                c.force(true);
+            }
+        }
+        close();
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appended = 0;
+    }
+
+    /**
+     * Ends a line torn by a crash, so the next record is not glued to it
+     */
+    private void endTornLine() throws IOException {
+        long size = channel.size();
+        if (size == 0) {
+            return;
+        }
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        if (last.get(0) != '\n') {
+            channel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        }
+    }
+
+    private byte[] line(Map<String, Object> record) throws IOException {
+        return (mapper.writeValueAsString(record) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Records appended since the log was opened or rewritten
+     */
+    public synchronized long getAppended() {
+        return appended;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
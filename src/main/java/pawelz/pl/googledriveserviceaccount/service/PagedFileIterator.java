@@ -0,0 +1,172 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Iterates over all pages of a files.list query. The first page is
+ * requested by the first call to hasNext. Given an executor, the next page
+ * is fetched on it while the caller works through the current one, and at
+ * most two pages are held in memory; without one pages are fetched on the
+ * calling thread when needed. {@link #close()} cancels a pending fetch.
+ * Fetch errors are thrown as {@link UncheckedIOException}.
+ * @author p.zachwieja
+ */
+public class PagedFileIterator implements Iterator<File>, AutoCloseable {
+
+    /**
+     * Fetches one page of results
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+
+        /**
+         * @param pageToken Token of page to fetch, null for the first page
+         * @return Page of files
+         * @throws IOException IOException
+         */
+        FileList fetch(String pageToken) throws IOException;
+    }
+
+    private final PageFetcher fetcher;
+    private final ExecutorService prefetch;
+    private Iterator<File> current = Collections.emptyIterator();
+    private RunnableFuture<FileList> next;
+    private boolean started;
+    private int pages;
+
+    /**
+     * @param fetcher Page source, pages are fetched on the calling thread
+     */
+    public PagedFileIterator(PageFetcher fetcher) {
+        this(fetcher, null);
+    }
+
+    /**
+     * @param fetcher Page source
+     * @param prefetch Executor fetching the next page ahead, null to fetch
+     * pages on the calling thread
+     */
+    public PagedFileIterator(PageFetcher fetcher, ExecutorService prefetch) {
+        this.fetcher = fetcher;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @param fetcher Page source
+     * @return Sequential lazy stream of files
+     */
+    public static Stream<File> stream(PageFetcher fetcher) {
+        return stream(fetcher, null);
+    }
+
+    /**
+     * @param fetcher Page source
+     * @param prefetch Executor fetching the next page ahead, null to fetch
+     * pages on the calling thread
+     * @return Sequential lazy stream of files, closing it cancels a pending fetch
+     */
+    public static Stream<File> stream(PageFetcher fetcher, ExecutorService prefetch) {
+        PagedFileIterator it = new PagedFileIterator(fetcher, prefetch);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it,
+                Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(it::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) {
+            started = true;
+            next = fetch(null);
+        }
+        while (!current.hasNext()) {
+            if (next == null) {
+                return false;
+            }
+            FileList page = await();
+            String token = page.getNextPageToken();
+            next = token == null ? null : fetch(token);
+            current = page.getFiles() == null ? Collections.emptyIterator() : page.getFiles().iterator();
+        }
+        return true;
+    }
+
+    /**
+     * Cancels the pending fetch, the iterator has no more files afterwards
+     */
+    @Override
+    public void close() {
+        started = true;
+        if (next != null) {
+            next.cancel(true);
+            next = null;
+        }
+        current = Collections.emptyIterator();
+    }
+
+    /**
+     * @return Fetch of a page, already submitted to the prefetch executor if any
+     */
+    private RunnableFuture<FileList> fetch(String token) {
+        RunnableFuture<FileList> task = new FutureTask<>(() -> fetcher.fetch(token));
+        if (prefetch != null) {
+            prefetch.execute(task);
+        }
+        return task;
+    }
+
+    @Override
+    public File next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    private FileList await() {
+        if (prefetch == null) {
+            next.run();
+        }
+        try {
+            FileList page = next.get();
+            pages++;
+            return page;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            next.cancel(true);
+            next = null;
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while listing files"));
+        } catch (ExecutionException ex) {
+            next = null;
+            if (ex.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) ex.getCause());
+            }
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * @return Number of pages received so far
+     */
+    public int getPages() {
+        return pages;
+    }
+}
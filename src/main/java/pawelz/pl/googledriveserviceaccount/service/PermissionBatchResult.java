@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Per-permission outcome of a batched permission operation
+ * @author p.zachwieja
+ */
+public class PermissionBatchResult {
+
+    /**
+     * Outcome of single permission change
+     */
+    public static class Item {
+
+        private final PermissionChange change;
+        private final boolean success;
+        private final String permissionId;
+        private final int errorCode;
+        private final String errorMessage;
+
+        Item(PermissionChange change, boolean success, String permissionId, int errorCode, String errorMessage) {
+            this.change = change;
+            this.success = success;
+            this.permissionId = permissionId;
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+        }
+
+        static Item success(PermissionChange change, String permissionId) {
+            return new Item(change, true, permissionId, 0, null);
+        }
+
+        static Item failure(PermissionChange change, int errorCode, String errorMessage) {
+            return new Item(change, false, change.getPermissionId(), errorCode, errorMessage);
+        }
+
+        public PermissionChange getChange() {
+            return change;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        /**
+         * @return Id of created or deleted permission
+         */
+        public String getPermissionId() {
+            return permissionId;
+        }
+
+        /**
+         * @return HTTP status code of failed call, 0 on success or when no response was received
+         */
+        public int getErrorCode() {
+            return errorCode;
+        }
+
+        public String getErrorMessage() {
+            return errorMessage;
+        }
+
+        @Override
+        public String toString() {
+            return change + (success ? " OK" : " FAILED " + errorCode + " " + errorMessage);
+        }
+    }
+
+    private final String fileId;
+    private final List<Item> items;
+    private final int batches;
+    private final long elapsedMillis;
+
+    PermissionBatchResult(String fileId, List<Item> items, int batches, long elapsedMillis) {
+        this.fileId = fileId;
+        this.items = Collections.unmodifiableList(new ArrayList<>(items));
+        this.batches = batches;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * Empty result, for operations where nothing had to be sent
+     * @param fileId Google file id
+     * @return Result without items
+     */
+    static PermissionBatchResult empty(String fileId) {
+        return new PermissionBatchResult(fileId, Collections.emptyList(), 0, 0);
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return Results in the same order as requested changes
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    public List<Item> getFailed() {
+        return items.stream().filter(i -> !i.isSuccess()).collect(Collectors.toList());
+    }
+
+    public int getSucceededCount() {
+        return (int) items.stream().filter(Item::isSuccess).count();
+    }
+
+    public int getFailedCount() {
+        return items.size() - getSucceededCount();
+    }
+
+    /**
+     * @return True if every change succeeded
+     */
+    public boolean isSuccess() {
+        return items.stream().allMatch(Item::isSuccess);
+    }
+
+    /**
+     * @return Number of batch HTTP requests sent
+     */
+    public int getBatches() {
+        return batches;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "PermissionBatchResult{fileId=" + fileId + ", succeeded=" + getSucceededCount()
+                + ", failed=" + getFailedCount() + ", batches=" + batches + ", elapsedMillis=" + elapsedMillis + "}";
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Permission;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Sends permission changes for a single file as Drive batch requests.
+ * Changes are split into batches of at most {@code batchSize} calls and
+ * up to {@code parallelBatches} batches are in flight at once.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.batch")
+public class PermissionBatcher {
+
+    /**
+     * Drive rejects batch requests with more than 100 calls
+     */
+    public static final int MAX_BATCH_SIZE = 100;
+
+    /**
+     * Drive batch endpoint under the API root url; the global one the
+     * client uses by default is shut down
+     */
+    static final String BATCH_PATH = "batch/drive/v3";
+
+    @Inject
+    Drive drive;
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    DriveAccountPool accounts;
+
+    private int batchSize = MAX_BATCH_SIZE;
+    private int parallelBatches = 4;
+    private String batchUrl;
+
+    private ExecutorService executor;
+
+    private static final Logger LOGGER = LogManager.getLogger(PermissionBatcher.class);
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelBatches), r -> {
+            Thread t = new Thread(r, "drive-batch-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Applies permission changes to given file
+     * @param fileId Google file id, file has to exist
+     * @param changes Changes to apply, executed in no particular order
+     * @param sendEmail Should user be noticed with e-mail message from Google
+     * @param message Notification e-mail message
+     * @return Per-change result, in the same order as changes
+     * @throws IOException when interrupted while waiting for batches
+     */
+    public PermissionBatchResult apply(String fileId, List<PermissionChange> changes, boolean sendEmail, String message) throws IOException {
+        if ((changes == null) || changes.isEmpty()) {
+            return PermissionBatchResult.empty(fileId);
+        }
+        long start = System.currentTimeMillis();
+        int size = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        PermissionBatchResult.Item[] items = new PermissionBatchResult.Item[changes.size()];
+        List<Future<?>> futures = new ArrayList<>();
+        for (int from = 0; from < changes.size(); from += size) {
+            int first = from;
+            int last = Math.min(from + size, changes.size());
+            futures.add(executor.submit(() -> {
+                executeBatch(fileId, changes, first, last, items, sendEmail, message);
+                return null;
+            }));
+        }
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new InterruptedIOException("Interrupted while applying permissions for file " + fileId);
+            } catch (ExecutionException ex) {
+                LOGGER.error("Batch request failed for file {}: {}", fileId, ex.getCause().getMessage());
+                int first = i * size;
+                int last = Math.min(first + size, changes.size());
+                for (int j = first; j < last; j++) {
+                    if (items[j] == null) {
+                        items[j] = PermissionBatchResult.Item.failure(changes.get(j), 0, ex.getCause().getMessage());
+                    }
+                }
+            }
+        }
+        for (int j = 0; j < items.length; j++) {
+            if (items[j] == null) {
+                items[j] = PermissionBatchResult.Item.failure(changes.get(j), 0, "No response");
+            }
+        }
+        PermissionBatchResult result = new PermissionBatchResult(fileId, Arrays.asList(items), futures.size(),
+                System.currentTimeMillis() - start);
+        LOGGER.debug("Permissions applied: {}", result);
+        return result;
+    }
+
+    /**
+     * Sends one batch; calls rejected with a rate limit are sent again in a
+     * smaller batch after a backoff
+     */
+    private void executeBatch(String fileId, List<PermissionChange> changes, int first, int last,
+            PermissionBatchResult.Item[] items, boolean sendEmail, String message) throws IOException {
+        List<Integer> pending = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            pending.add(i);
+        }
+        for (int attempt = 1;; attempt++) {
+            List<Integer> limited = new ArrayList<>();
+            sendBatch(fileId, changes, pending, items, limited, sendEmail, message);
+            if (limited.isEmpty() || !requestExecutor.retryRateLimited(attempt, limited.size())) {
+                return;
+            }
+            LOGGER.debug("Resending {} rate limited permission changes for file {}", limited.size(), fileId);
+            pending = limited;
+        }
+    }
+
+    private void sendBatch(String fileId, List<PermissionChange> changes, List<Integer> pending,
+            PermissionBatchResult.Item[] items, List<Integer> limited, boolean sendEmail, String message) throws IOException {
+        BatchRequest batch = newBatch();
+        for (int index : pending) {
+            PermissionChange change = changes.get(index);
+            if (change.getKind() == PermissionChange.Kind.CREATE) {
+                Drive.Permissions.Create create = drive.permissions().create(fileId,
+                        toPermission(change));
+                create.setFields("id");
+                create.setSendNotificationEmail(sendEmail);
+                if ((sendEmail) && (message != null) && !message.isEmpty()) {
+                    create.setEmailMessage(message);
+                }
+                create.queue(batch, new JsonBatchCallback<Permission>() {
+                    @Override
+                    public void onSuccess(Permission permission, HttpHeaders responseHeaders) {
+                        items[index] = PermissionBatchResult.Item.success(change, permission == null ? null : permission.getId());
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        failure(items, index, change, e, limited);
+                    }
+                });
+            }
+            else if (change.getKind() == PermissionChange.Kind.UPDATE) {
+                Permission role = new Permission();
+                role.setRole(change.getRole());
+                drive.permissions().update(fileId, change.getPermissionId(), role).queue(batch, new JsonBatchCallback<Permission>() {
+                    @Override
+                    public void onSuccess(Permission permission, HttpHeaders responseHeaders) {
+                        items[index] = PermissionBatchResult.Item.success(change, change.getPermissionId());
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        failure(items, index, change, e, limited);
+                    }
+                });
+            }
+            else {
+                drive.permissions().delete(fileId, change.getPermissionId()).queue(batch, new JsonBatchCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void v, HttpHeaders responseHeaders) {
+                        items[index] = PermissionBatchResult.Item.success(change, change.getPermissionId());
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        failure(items, index, change, e, limited);
+                    }
+                });
+            }
+        }
+        LOGGER.trace("Sending batch of {} permission changes for file {}", pending.size(), fileId);
+        requestExecutor.acquire(pending.size() - 1);
+        if (accounts == null) {
+            batch.execute();
+            return;
+        }
+        // the batch endpoint does not name the file, keep it on the account that owns the file's other calls
+        accounts.pinned(fileId, () -> {
+            batch.execute();
+            return null;
+        });
+    }
+
+    private void failure(PermissionBatchResult.Item[] items, int index, PermissionChange change, GoogleJsonError e, List<Integer> limited) {
+        items[index] = PermissionBatchResult.Item.failure(change, e.getCode(), e.getMessage());
+        if (DriveRequestExecutor.isRateLimit(e.getCode(), e)) {
+            limited.add(index);
+        }
+    }
+
+    private BatchRequest newBatch() {
+        return drive.batch().setBatchUrl(new GenericUrl((batchUrl != null) && !batchUrl.isEmpty()
+                ? batchUrl : drive.getRootUrl() + BATCH_PATH));
+    }
+
+    private Permission toPermission(PermissionChange change) {
+        Permission result = new Permission();
+        result.setEmailAddress(change.getEmail());
+        result.setRole(change.getRole());
+        result.setType(change.getType());
+        return result;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setParallelBatches(int parallelBatches) {
+        this.parallelBatches = parallelBatches;
+    }
+
+    /**
+     * @param batchUrl Batch endpoint, defaults to the one derived from Drive root url
+     */
+    public void setBatchUrl(String batchUrl) {
+        this.batchUrl = batchUrl;
+    }
+}
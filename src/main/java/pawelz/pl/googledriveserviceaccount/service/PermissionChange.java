@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+/**
+ * Single permission change on a Drive file, queued by {@link PermissionBatcher}
+ * @author p.zachwieja
+ */
+public class PermissionChange {
+
+    public enum Kind {
+        CREATE, UPDATE, DELETE
+    }
+
+    private final Kind kind;
+    private final String email;
+    private final String role;
+    private final String type;
+    private final String permissionId;
+
+    private PermissionChange(Kind kind, String email, String role, String type, String permissionId) {
+        this.kind = kind;
+        this.email = email;
+        this.role = role;
+        this.type = type;
+        this.permissionId = permissionId;
+    }
+
+    /**
+     * Creates change granting permission for given e-mail
+     * @param email E-mail address
+     * @param role User role, one of: writer, reader. owner is not applicable
+     * @param type Permission type, on of: user, group. domain, anyone
+     * @return Permission change
+     */
+    public static PermissionChange create(String email, String role, String type) {
+        return new PermissionChange(Kind.CREATE, email, role, type, null);
+    }
+
+    /**
+     * Creates change setting new role on existing permission
+     * @param permissionId Permission id to update
+     * @param email E-mail address of permission owner, informational only
+     * @param role New role
+     * @return Permission change
+     */
+    public static PermissionChange update(String permissionId, String email, String role) {
+        return new PermissionChange(Kind.UPDATE, email, role, null, permissionId);
+    }
+
+    /**
+     * Creates change revoking given permission
+     * @param permissionId Permission id to delete
+     * @param email E-mail address of permission owner, informational only
+     * @return Permission change
+     */
+    public static PermissionChange delete(String permissionId, String email) {
+        return new PermissionChange(Kind.DELETE, email, null, null, permissionId);
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getPermissionId() {
+        return permissionId;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "(" + (kind == Kind.DELETE ? permissionId : email + ":" + role) + ")";
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Downloads file content straight into channels. Files above
+ * {@code parallelThreshold} are split into HTTP Range segments fetched in
+ * parallel and written at their offsets. Content goes to
+ * {@code <target>.part} first; finished segments are recorded in
+ * {@code <target>.segments} so a later call only fetches what is missing.
+ * The state starts with md5 and size of the file, a download of another
+ * version starts over. A range the server does not serve as asked fails.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.download")
+public class RangedDownloader {
+
+    @Inject
+    Drive drive;
+
+    private long segmentSize = 16 * 1024 * 1024;
+    private int parallelSegments = 4;
+    private long parallelThreshold = 32 * 1024 * 1024;
+    private int bufferSize = 64 * 1024;
+    private boolean memoryMapped = false;
+    private boolean verifyChecksum = true;
+
+    private ExecutorService executor;
+
+    private static final Logger LOGGER = LogManager.getLogger(RangedDownloader.class);
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelSegments), r -> {
+            Thread t = new Thread(r, "drive-download-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Streams content into given channel with a single request
+     * @param fileId Google file id
+     * @param target Channel to write to, left open
+     * @return Number of bytes written
+     * @throws IOException IOException
+     */
+    public long download(String fileId, WritableByteChannel target) throws IOException {
+        try (InputStream in = drive.files().get(fileId).executeMediaAsInputStream();
+                ReadableByteChannel source = Channels.newChannel(in)) {
+            if (target instanceof FileChannel) {
+                FileChannel channel = (FileChannel) target;
+                long position = channel.position();
+                long written = channel.transferFrom(source, position, Long.MAX_VALUE);
+                channel.position(position + written);
+                return written;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            long written = 0;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+                buffer.clear();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Downloads content into local file, resuming an earlier interrupted download
+     * @param file Google file with id, size and md5Checksum
+     * @param target Local file, replaced when download completes
+     * @return Download report
+     * @throws IOException when download fails or content does not match md5Checksum
+     */
+    public DownloadReport download(File file, Path target) throws IOException {
+        long start = System.currentTimeMillis();
+        long size = file.getSize();
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Path state = target.resolveSibling(target.getFileName() + ".segments");
+        int segments = size > parallelThreshold ? (int) ((size + segmentSize - 1) / segmentSize) : 1;
+        long downloaded;
+        String header = file.getMd5Checksum() + " " + size + " " + segments + " " + segmentSize;
+        if (!header.equals(readHeader(state))) {
+            // bytes in part belong to another version of the file or another split
+            Files.deleteIfExists(part);
+            Files.write(state, (header + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+        }
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (segments == 1) {
+                long have = Math.min(channel.size(), size);
+                if (have > 0) {
+                    LOGGER.debug("Resuming download of {} at byte {}", file.getId(), have);
+                }
+                downloaded = have < size ? fetchRange(file.getId(), channel, have, size - 1) : 0;
+            }
+            else {
+                downloaded = fetchSegments(file.getId(), channel, size, segments, state);
+            }
+            channel.force(false);
+        }
+        boolean verified = false;
+        if (verifyChecksum && (file.getMd5Checksum() != null)) {
+            String md5 = md5(part);
+            if (!md5.equalsIgnoreCase(file.getMd5Checksum())) {
+                Files.deleteIfExists(part);
+                Files.deleteIfExists(state);
+                throw new IOException("Checksum mismatch for " + file.getId() + ": expected " + file.getMd5Checksum() + ", got " + md5);
+            }
+            verified = true;
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(state);
+        DownloadReport report = new DownloadReport(file.getId(), target, size, downloaded, segments, verified,
+                System.currentTimeMillis() - start);
+        LOGGER.debug("Downloaded: {}", report);
+        return report;
+    }
+
+    private long fetchSegments(String fileId, FileChannel channel, long size, int segments, Path state) throws IOException {
+        Set<Integer> done = readState(state);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (int i = 0; i < segments; i++) {
+            if (done.contains(i)) {
+                continue;
+            }
+            int index = i;
+            long from = i * segmentSize;
+            long to = Math.min(from + segmentSize, size) - 1;
+            futures.add(executor.submit(() -> {
+                long n = fetchRange(fileId, channel, from, to);
+                channel.force(false);
+                markDone(state, index);
+                return n;
+            }));
+        }
+        LOGGER.debug("Downloading {} of {} segments of {}", futures.size(), segments, fileId);
+        long downloaded = 0;
+        IOException failure = null;
+        for (Future<Long> f : futures) {
+            try {
+                downloaded += f.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                futures.forEach(x -> x.cancel(true));
+                throw new InterruptedIOException("Interrupted while downloading " + fileId);
+            } catch (ExecutionException ex) {
+                if (failure == null) {
+                    failure = ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return downloaded;
+    }
+
+    /**
+     * Fetches bytes from..to (inclusive) and writes them at the same offset
+     * @throws IOException when the answer is not a 206 starting at from
+     */
+    private long fetchRange(String fileId, FileChannel channel, long from, long to) throws IOException {
+        Drive.Files.Get get = drive.files().get(fileId);
+        get.getRequestHeaders().setRange("bytes=" + from + "-" + to);
+        // ranges refer to stored bytes, a gzip-encoded response would break offsets
+        get.getRequestHeaders().setAcceptEncoding("identity");
+        long count = to - from + 1;
+        HttpResponse response = get.executeMedia();
+        String contentRange = response.getHeaders().getContentRange();
+        if ((response.getStatusCode() != 206) || (contentRange == null) || !contentRange.startsWith("bytes " + from + "-")) {
+            response.disconnect();
+            throw new IOException("Range " + from + "-" + to + " of " + fileId + " not served, got "
+                    + response.getStatusCode() + " " + contentRange);
+        }
+        try (InputStream in = response.getContent();
+                ReadableByteChannel source = Channels.newChannel(in)) {
+            if (memoryMapped && (count <= Integer.MAX_VALUE)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, from, count);
+                while (map.hasRemaining()) {
+                    if (source.read(map) == -1) {
+                        throw new EOFException("Range " + from + "-" + to + " of " + fileId + " ended early");
+                    }
+                }
+                map.force();
+            }
+            else {
+                long position = from;
+                while (position <= to) {
+                    long n = channel.transferFrom(source, position, to - position + 1);
+                    if (n == 0) {
+                        throw new EOFException("Range " + from + "-" + to + " of " + fileId + " ended at byte " + position);
+                    }
+                    position += n;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return First line of the state, null when there is none
+     */
+    private static String readHeader(Path state) throws IOException {
+        if (!Files.exists(state)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+        return lines.isEmpty() ? null : lines.get(0);
+    }
+
+    private Set<Integer> readState(Path state) throws IOException {
+        Set<Integer> result = new HashSet<>();
+        if (Files.exists(state)) {
+            List<String> lines = Files.readAllLines(state, StandardCharsets.UTF_8);
+            for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+                if (!line.trim().isEmpty()) {
+                    result.add(Integer.valueOf(line.trim()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private synchronized void markDone(Path state, int index) throws IOException {
+        Files.write(state, (index + "\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+    /**
+     * @param path Local file
+     * @return Hex md5 of file content
+     * @throws IOException IOException
+     */
+    static String md5(Path path) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param segmentSize Bytes per range request
+     */
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public void setParallelSegments(int parallelSegments) {
+        this.parallelSegments = parallelSegments;
+    }
+
+    /**
+     * @param parallelThreshold Files above this size are fetched in parallel segments
+     */
+    public void setParallelThreshold(long parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param memoryMapped Write segments through memory-mapped regions of the target file
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public void setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket whose refill rate adapts to the server: it is cut by
+ * {@code decreaseFactor} when Drive reports a rate limit and grows back by
+ * {@code increaseStep} per second of successful calls (AIMD), never above
+ * the configured quota.
+ * @author p.zachwieja
+ */
+public class RateLimiter {
+
+    private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final double decreaseFactor;
+    private final double increaseStep;
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long lastDecrease;
+    private long lastIncrease;
+
+    /**
+     * @param maxRate Permits per second allowed by quota
+     * @param minRate Lowest rate the limiter backs off to
+     * @param burst Permits that may be taken at once after idle time
+     * @param decreaseFactor Rate multiplier applied on rate limit, e.g. 0.5
+     * @param increaseStep Permits per second added back for every second without rate limits
+     */
+    public RateLimiter(double maxRate, double minRate, double burst, double decreaseFactor, double increaseStep) {
+        this.maxRate = maxRate;
+        this.minRate = Math.min(minRate, maxRate);
+        this.burst = Math.max(1, burst);
+        this.decreaseFactor = decreaseFactor;
+        this.increaseStep = increaseStep;
+        this.rate = maxRate;
+        this.tokens = this.burst;
+        long now = System.nanoTime();
+        this.lastRefill = now;
+        this.lastDecrease = now - ADJUST_INTERVAL_NANOS;
+        this.lastIncrease = now;
+    }
+
+    /**
+     * Waits until given number of permits is available. Requests larger
+     * than the bucket are let through once it is full and leave it in debt.
+     * @param permits Permits to take
+     * @return Nanoseconds spent waiting
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    public long acquire(int permits) throws InterruptedIOException {
+        long start = System.nanoTime();
+        while (true) {
+            long wait;
+            synchronized (this) {
+                refill(System.nanoTime());
+                double needed = Math.min(permits, burst);
+                if (tokens >= needed) {
+                    tokens -= permits;
+                    return System.nanoTime() - start;
+                }
+                wait = (long) ((needed - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(Math.max(wait, TimeUnit.MILLISECONDS.toNanos(1)));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rate limiter");
+            }
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+
+    /**
+     * Drive rejected a call with a rate limit. Several rejections within
+     * one second count as one, they are usually caused by the same burst.
+     * @return True if the rate was lowered
+     */
+    public synchronized boolean onThrottle() {
+        long now = System.nanoTime();
+        lastIncrease = now;
+        if (now - lastDecrease < ADJUST_INTERVAL_NANOS) {
+            return false;
+        }
+        refill(now);
+        rate = Math.max(minRate, rate * decreaseFactor);
+        lastDecrease = now;
+        return true;
+    }
+
+    /**
+     * A call went through without a rate limit
+     */
+    public synchronized void onSuccess() {
+        if (rate >= maxRate) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - lastIncrease;
+        if (elapsed >= ADJUST_INTERVAL_NANOS) {
+            refill(now);
+            rate = Math.min(maxRate, rate + increaseStep * elapsed / ADJUST_INTERVAL_NANOS);
+            lastIncrease = now;
+        }
+    }
+
+    /**
+     * @return Permits that can be taken now without waiting
+     */
+    public synchronized double available() {
+        refill(System.nanoTime());
+        return Math.max(0, tokens);
+    }
+
+    /**
+     * @return Current permits per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.Permission;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Difference between current permissions of a file and desired set of readers
+ * @author p.zachwieja
+ */
+public class ReaderDiff {
+
+    private final List<PermissionChange> additions = new ArrayList<>();
+    private final List<PermissionChange> roleChanges = new ArrayList<>();
+    private final List<PermissionChange> removals = new ArrayList<>();
+    private int unchanged;
+
+    private ReaderDiff() {
+    }
+
+    /**
+     * Computes changes needed to make given e-mails the only non-owner users of a file
+     * @param current Current permissions of the file
+     * @param emails Desired e-mails, compared case insensitive
+     * @param role Desired role for every e-mail
+     * @return Computed difference
+     */
+    public static ReaderDiff compute(Collection<Permission> current, Collection<String> emails, String role) {
+        ReaderDiff diff = new ReaderDiff();
+        Map<String, String> desired = new LinkedHashMap<>();
+        for (String e : emails) {
+            desired.putIfAbsent(e.toLowerCase(Locale.ROOT), e);
+        }
+        for (Permission p : current) {
+            if ("owner".equals(p.getRole())) {
+                if (p.getEmailAddress() != null) {
+                    desired.remove(p.getEmailAddress().toLowerCase(Locale.ROOT));
+                }
+                continue;
+            }
+            String key = ("user".equals(p.getType()) && (p.getEmailAddress() != null))
+                    ? p.getEmailAddress().toLowerCase(Locale.ROOT) : null;
+            if ((key == null) || !desired.containsKey(key)) {
+                diff.removals.add(PermissionChange.delete(p.getId(), p.getEmailAddress()));
+            }
+            else {
+                desired.remove(key);
+                if (role.equals(p.getRole())) {
+                    diff.unchanged++;
+                }
+                else {
+                    diff.roleChanges.add(PermissionChange.update(p.getId(), p.getEmailAddress(), role));
+                }
+            }
+        }
+        for (String e : desired.values()) {
+            diff.additions.add(PermissionChange.create(e, role, "user"));
+        }
+        return diff;
+    }
+
+    public List<PermissionChange> getAdditions() {
+        return Collections.unmodifiableList(additions);
+    }
+
+    public List<PermissionChange> getRoleChanges() {
+        return Collections.unmodifiableList(roleChanges);
+    }
+
+    public List<PermissionChange> getRemovals() {
+        return Collections.unmodifiableList(removals);
+    }
+
+    /**
+     * @return Number of permissions that already match
+     */
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    public boolean isEmpty() {
+        return additions.isEmpty() && roleChanges.isEmpty() && removals.isEmpty();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of reconciling readers of a file
+ * @author p.zachwieja
+ */
+public class ReaderReconciliationReport {
+
+    private final String fileId;
+    private final int added;
+    private final int roleChanged;
+    private final int removed;
+    private final int unchanged;
+    private final List<PermissionBatchResult.Item> failures;
+    private final long listMillis;
+    private final long applyMillis;
+
+    ReaderReconciliationReport(String fileId, ReaderDiff diff, List<PermissionBatchResult> results,
+            long listMillis, long applyMillis) {
+        this.fileId = fileId;
+        this.added = diff.getAdditions().size();
+        this.roleChanged = diff.getRoleChanges().size();
+        this.removed = diff.getRemovals().size();
+        this.unchanged = diff.getUnchanged();
+        List<PermissionBatchResult.Item> failed = new ArrayList<>();
+        for (PermissionBatchResult r : results) {
+            failed.addAll(r.getFailed());
+        }
+        this.failures = Collections.unmodifiableList(failed);
+        this.listMillis = listMillis;
+        this.applyMillis = applyMillis;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return Number of permissions requested to be created
+     */
+    public int getAdded() {
+        return added;
+    }
+
+    /**
+     * @return Number of permissions requested to change role
+     */
+    public int getRoleChanged() {
+        return roleChanged;
+    }
+
+    /**
+     * @return Number of permissions requested to be deleted
+     */
+    public int getRemoved() {
+        return removed;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * @return Changes that Drive rejected
+     */
+    public List<PermissionBatchResult.Item> getFailures() {
+        return failures;
+    }
+
+    public boolean isSuccess() {
+        return failures.isEmpty();
+    }
+
+    /**
+     * @return Time spent listing current permissions
+     */
+    public long getListMillis() {
+        return listMillis;
+    }
+
+    /**
+     * @return Time spent applying changes
+     */
+    public long getApplyMillis() {
+        return applyMillis;
+    }
+
+    public long getTotalMillis() {
+        return listMillis + applyMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "ReaderReconciliationReport{fileId=" + fileId + ", added=" + added + ", roleChanged=" + roleChanged
+                + ", removed=" + removed + ", unchanged=" + unchanged + ", failed=" + failures.size()
+                + ", listMillis=" + listMillis + ", applyMillis=" + applyMillis + "}";
+    }
+}
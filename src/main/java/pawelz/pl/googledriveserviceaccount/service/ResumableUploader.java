@@ -0,0 +1,415 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Uploads file content to Drive. Large files use the resumable protocol in
+ * chunks of {@code chunkSize} bytes; the session URI is kept in
+ * {@link UploadSessionStore} so an interrupted upload continues from the
+ * last byte acknowledged by Drive. Session files are deleted when the
+ * upload completes or its session expired, and once older than
+ * {@code sessionTtlHours}. Uploads with the same key never share a
+ * session at the same time. All uploads share one concurrency and
+ * bandwidth cap.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.upload")
+public class ResumableUploader {
+
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+
+    @Inject
+    Drive drive;
+
+    private int chunkSize = 8 * 1024 * 1024;
+    private long directUploadThreshold = 5 * 1024 * 1024;
+    private String sessionDir = System.getProperty("java.io.tmpdir") + "/drive-upload-sessions";
+    private int maxConcurrentUploads = 4;
+    private long maxBytesPerSecond = 0;
+    private int maxResumeAttempts = 3;
+    private long sessionTtlHours = 7 * 24;
+
+    private UploadSessionStore sessions;
+    private BandwidthLimiter bandwidth;
+    private Semaphore slots;
+    private ExecutorService executor;
+    private final Set<String> keysInUse = new HashSet<>();
+
+    private static final Logger LOGGER = LogManager.getLogger(ResumableUploader.class);
+
+    @PostConstruct
+    public void init() {
+        sessions = new UploadSessionStore(sessionDir);
+        purgeSessions();
+        bandwidth = new BandwidthLimiter(maxBytesPerSecond);
+        slots = new Semaphore(Math.max(1, maxConcurrentUploads), true);
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentUploads), r -> {
+            Thread t = new Thread(r, "drive-upload-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @param length Content length in bytes, negative when unknown
+     * @return True if content should go in a single request
+     */
+    public boolean isDirect(long length) {
+        return (length >= 0) && (length <= directUploadThreshold);
+    }
+
+    /**
+     * Queues upload on the upload pool
+     * @param <T> Result type
+     * @param upload Upload to run
+     * @return Future of the result
+     */
+    public <T> Future<T> submit(Callable<T> upload) {
+        return executor.submit(upload);
+    }
+
+    /**
+     * Uploads content in a single request
+     * @param metadata File metadata
+     * @param content Content to send
+     * @param length Content length in bytes
+     * @return Created file
+     * @throws IOException IOException
+     */
+    public File uploadDirect(File metadata, AbstractInputStreamContent content, long length) throws IOException {
+        return uploadDirect(metadata, content, length, null);
+    }
+
+    /**
+     * Uploads content in a single request
+     * @param metadata File metadata
+     * @param content Content to send
+     * @param length Content length in bytes
+     * @param fields Fields of created file to return, null for Drive defaults
+     * @return Created file
+     * @throws IOException IOException
+     */
+    public File uploadDirect(File metadata, AbstractInputStreamContent content, long length, String fields) throws IOException {
+        acquireSlot();
+        try {
+            bandwidth.acquire(length);
+            Drive.Files.Create create = drive.files().create(metadata, content);
+            if (fields != null) {
+                create.setFields(fields);
+            }
+            create.getMediaHttpUploader().setDirectUploadEnabled(true);
+            return create.execute();
+        } finally {
+            slots.release();
+        }
+    }
+
+    /**
+     * Uploads content with resumable protocol, resuming a stored session for the same key
+     * @param metadata File metadata
+     * @param contentType Content mime type
+     * @param length Content length in bytes
+     * @param source Source of content, reopened on resume
+     * @param key Stable key of this upload including a sample of content, see
+     * {@link UploadSessionStore#key(Object...)}; uploads with the same key run one at a time
+     * @return Created file
+     * @throws IOException when upload fails after {@code maxResumeAttempts} resumes
+     */
+    public File uploadResumable(File metadata, String contentType, long length, InputStreamSource source, String key) throws IOException {
+        return uploadResumable(metadata, contentType, length, source, key, null);
+    }
+
+    /**
+     * Uploads content with resumable protocol, resuming a stored session for the same key
+     * @param metadata File metadata
+     * @param contentType Content mime type
+     * @param length Content length in bytes
+     * @param source Source of content, reopened on resume
+     * @param key Stable key of this upload including a sample of content, see
+     * {@link UploadSessionStore#key(Object...)}; uploads with the same key run one at a time
+     * @param fields Fields of created file to return, null for Drive defaults
+     * @return Created file
+     * @throws IOException when upload fails after {@code maxResumeAttempts} resumes
+     */
+    public File uploadResumable(File metadata, String contentType, long length, InputStreamSource source, String key,
+            String fields) throws IOException {
+        lockKey(key);
+        try {
+            acquireSlot();
+            try {
+                int attempt = 0;
+                while (true) {
+                    try {
+                        return uploadSession(metadata, contentType, length, source, key, fields);
+                    } catch (GoogleJsonResponseException | InterruptedIOException ex) {
+                        throw ex;
+                    } catch (IOException ex) {
+                        if (++attempt > maxResumeAttempts) {
+                            throw ex;
+                        }
+                        LOGGER.warn("Upload of {} interrupted, resuming (attempt {}): {}", metadata.getName(), attempt, ex.getMessage());
+                    }
+                }
+            } finally {
+                slots.release();
+            }
+        } finally {
+            unlockKey(key);
+        }
+    }
+
+    /**
+     * Waits until no other upload uses the session of given key
+     */
+    private void lockKey(String key) throws InterruptedIOException {
+        synchronized (keysInUse) {
+            while (!keysInUse.add(key)) {
+                try {
+                    keysInUse.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for upload session " + key);
+                }
+            }
+        }
+    }
+
+    private void unlockKey(String key) {
+        synchronized (keysInUse) {
+            keysInUse.remove(key);
+            keysInUse.notifyAll();
+        }
+    }
+
+    private File uploadSession(File metadata, String contentType, long length, InputStreamSource source, String key,
+            String fields) throws IOException {
+        String sessionUri = sessions.get(key);
+        long offset = 0;
+        if (sessionUri != null) {
+            HttpResponse status = send(sessionUri, new EmptyContent(), "bytes */" + length);
+            try {
+                if (status.isSuccessStatusCode()) {
+                    sessions.remove(key);
+                    return status.parseAs(File.class);
+                }
+                if (status.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                    offset = nextByte(status.getHeaders().getRange());
+                    LOGGER.debug("Resuming upload of {} at byte {}", metadata.getName(), offset);
+                }
+                else if ((status.getStatusCode() == 404) || (status.getStatusCode() == 410)) {
+                    LOGGER.debug("Upload session of {} expired, starting again", metadata.getName());
+                    sessions.remove(key);
+                    sessionUri = null;
+                }
+                else {
+                    throw new IOException("Unexpected status " + status.getStatusCode() + " of upload session for " + metadata.getName());
+                }
+            } finally {
+                status.disconnect();
+            }
+        }
+        if (sessionUri == null) {
+            purgeSessions();
+            sessionUri = startSession(metadata, contentType, length, fields);
+            sessions.put(key, sessionUri);
+        }
+        int size = Math.max(MediaHttpUploader.MINIMUM_CHUNK_SIZE,
+                chunkSize / MediaHttpUploader.MINIMUM_CHUNK_SIZE * MediaHttpUploader.MINIMUM_CHUNK_SIZE);
+        byte[] buffer = new byte[(int) Math.min(size, Math.max(1, length - offset))];
+        try (InputStream in = source.getInputStream()) {
+            UploadSessionStore.skipFully(in, offset);
+            long bufferStart = offset;
+            int buffered = 0;
+            while (true) {
+                int n;
+                while ((buffered < buffer.length) && ((n = in.read(buffer, buffered, buffer.length - buffered)) != -1)) {
+                    buffered += n;
+                }
+                if (buffered == 0) {
+                    throw new EOFException("Content of " + metadata.getName() + " ended at byte " + bufferStart + " of " + length);
+                }
+                bandwidth.acquire(buffered);
+                long end = bufferStart + buffered - 1;
+                HttpResponse response = send(sessionUri, new ByteArrayContent(contentType, buffer, 0, buffered),
+                        "bytes " + bufferStart + "-" + end + "/" + length);
+                try {
+                    if (response.isSuccessStatusCode()) {
+                        sessions.remove(key);
+                        return response.parseAs(File.class);
+                    }
+                    if (response.getStatusCode() >= 500) {
+                        throw new IOException("Drive returned " + response.getStatusCode() + " for chunk at byte " + bufferStart);
+                    }
+                    if (response.getStatusCode() != STATUS_RESUME_INCOMPLETE) {
+                        if ((response.getStatusCode() == 404) || (response.getStatusCode() == 410)) {
+                            sessions.remove(key);
+                        }
+                        throw GoogleJsonResponseException.from(drive.getJsonFactory(), response);
+                    }
+                    long next = nextByte(response.getHeaders().getRange());
+                    int consumed = (int) (next - bufferStart);
+                    System.arraycopy(buffer, consumed, buffer, 0, buffered - consumed);
+                    buffered -= consumed;
+                    bufferStart = next;
+                    LOGGER.trace("Uploaded {} of {} bytes of {}", next, length, metadata.getName());
+                } finally {
+                    response.disconnect();
+                }
+            }
+        }
+    }
+
+    private String startSession(File metadata, String contentType, long length, String fields) throws IOException {
+        GenericUrl url = new GenericUrl(drive.getRootUrl() + "upload/" + drive.getServicePath() + "files");
+        url.set("uploadType", "resumable");
+        if (fields != null) {
+            // the session URI keeps query parameters, so the final chunk is answered with these fields
+            url.set("fields", fields);
+        }
+        HttpRequest request = drive.getRequestFactory().buildPostRequest(url, new JsonHttpContent(drive.getJsonFactory(), metadata));
+        request.getHeaders().set("X-Upload-Content-Type", contentType);
+        request.getHeaders().set("X-Upload-Content-Length", length);
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("Drive did not return upload session for " + metadata.getName());
+            }
+            LOGGER.debug("Started upload session for {} ({} bytes)", metadata.getName(), length);
+            return location;
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private HttpResponse send(String sessionUri, HttpContent content, String contentRange) throws IOException {
+        HttpRequest request = drive.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), content);
+        request.getHeaders().setContentRange(contentRange);
+        request.setParser(drive.getObjectParser());
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        return request.execute();
+    }
+
+    /**
+     * @param range Range header of 308 response, e.g. bytes=0-1048575
+     * @return First byte Drive has not received yet
+     */
+    static long nextByte(String range) {
+        if ((range == null) || range.isEmpty()) {
+            return 0;
+        }
+        return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+    }
+
+    /**
+     * Deletes session files older than sessionTtlHours, left by uploads that
+     * were never resumed
+     */
+    private void purgeSessions() {
+        try {
+            int deleted = sessions.purge(TimeUnit.HOURS.toMillis(sessionTtlHours));
+            if (deleted > 0) {
+                LOGGER.debug("Deleted {} expired upload session files", deleted);
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Expired upload sessions not deleted: {}", ex.getMessage());
+        }
+    }
+
+    private void acquireSlot() throws InterruptedIOException {
+        try {
+            slots.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upload slot");
+        }
+    }
+
+    /**
+     * @param chunkSize Bytes per resumable request, rounded down to a multiple of 256 KB
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param directUploadThreshold Files up to this size go in a single request
+     */
+    public void setDirectUploadThreshold(long directUploadThreshold) {
+        this.directUploadThreshold = directUploadThreshold;
+    }
+
+    public void setSessionDir(String sessionDir) {
+        this.sessionDir = sessionDir;
+    }
+
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    /**
+     * @param maxBytesPerSecond Upload bandwidth shared by all uploads, 0 for unlimited
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void setMaxResumeAttempts(int maxResumeAttempts) {
+        this.maxResumeAttempts = maxResumeAttempts;
+    }
+
+    /**
+     * @param sessionTtlHours Delete stored sessions not written for this long,
+     * Drive expires them after a week
+     */
+    public void setSessionTtlHours(long sessionTtlHours) {
+        this.sessionTtlHours = sessionTtlHours;
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local inverted index over names, descriptions and, optionally, text
+ * content of files under the application folder. Files are added as they
+ * are uploaded or created and as the changes feed reports them. Every
+ * query word matches indexed words it is a prefix of, so the index can
+ * answer on every keystroke; results are ranked by tf-idf with name
+ * matches weighted above description and content matches.
+ * <p>
+ * The index is warm once it holds the whole folder and the changes feed
+ * keeps it current, see ChangeSyncService, which loads it from its
+ * snapshot or fills it by a full scan. Until then callers should ask
+ * Drive instead.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.search")
+public class SearchIndex {
+
+    private static final float NAME_WEIGHT = 3;
+    private static final float DESCRIPTION_WEIGHT = 2;
+    private static final float CONTENT_WEIGHT = 1;
+    private static final float PREFIX_FACTOR = 0.5f;
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    private boolean enabled = true;
+    private String stateFile = System.getProperty("java.io.tmpdir") + "/drive-sync/search.json";
+    private boolean indexContent = false;
+    private int maxContentBytes = 1024 * 1024;
+    private int maxResults = 100;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Document> documents = new HashMap<>();
+    private final TreeMap<String, Map<String, Float>> postings = new TreeMap<>();
+    private volatile boolean warm;
+
+    /**
+     * Indexed file with its weighted words
+     */
+    public static class Document {
+
+        private String id;
+        private String name;
+        private String description;
+        private String mimeType;
+        private List<String> parents = new ArrayList<>();
+        private long modifiedTime;
+        private Map<String, Float> contentTerms = new HashMap<>();
+        private transient Map<String, Float> terms;
+
+        public Document() {
+        }
+
+        File toFile() {
+            File f = new File().setId(id).setName(name).setMimeType(mimeType).setParents(new ArrayList<>(parents));
+            if (description != null) {
+                f.setDescription(description);
+            }
+            if (modifiedTime > 0) {
+                f.setModifiedTime(new DateTime(modifiedTime));
+            }
+            return f;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public void setDescription(String description) {
+            this.description = description;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public List<String> getParents() {
+            return parents;
+        }
+
+        public void setParents(List<String> parents) {
+            this.parents = parents;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public void setModifiedTime(long modifiedTime) {
+            this.modifiedTime = modifiedTime;
+        }
+
+        /**
+         * @return Number of times every word occurs in the text content
+         */
+        public Map<String, Float> getContentTerms() {
+            return contentTerms;
+        }
+
+        public void setContentTerms(Map<String, Float> contentTerms) {
+            this.contentTerms = contentTerms;
+        }
+
+        /**
+         * @return Weight of every word of the name, description and content
+         */
+        Map<String, Float> terms() {
+            if (terms == null) {
+                terms = new HashMap<>();
+                addTerms(terms, name, NAME_WEIGHT);
+                addTerms(terms, description, DESCRIPTION_WEIGHT);
+                contentTerms.forEach((t, n) -> terms.merge(t, n * CONTENT_WEIGHT, Float::sum));
+            }
+            return terms;
+        }
+    }
+
+    /**
+     * Splits text into lower case words without diacritics
+     * @param text Text
+     * @return Words in order, empty for null
+     */
+    static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD))
+                .replaceAll("").replace('\u0142', 'l');
+        int start = -1;
+        for (int i = 0; i <= folded.length(); i++) {
+            boolean letter = (i < folded.length()) && Character.isLetterOrDigit(folded.charAt(i));
+            if (letter && (start < 0)) {
+                start = i;
+            }
+            else if (!letter && (start >= 0)) {
+                result.add(folded.substring(start, i));
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param mimeType Mime type of a file
+     * @param size Size of the content
+     * @return Whether content of such file is indexed
+     */
+    public boolean indexesContent(String mimeType, long size) {
+        return enabled && indexContent && (size <= maxContentBytes) && (mimeType != null)
+                && (mimeType.startsWith("text/") || mimeType.endsWith("json") || mimeType.endsWith("xml"));
+    }
+
+    /**
+     * Adds or replaces file
+     * @param file File with id, name, mimeType and parents
+     * @param content Extracted text, null keeps words of the content indexed before
+     */
+    public void put(File file, String content) {
+        if (!enabled || (file == null) || (file.getId() == null)) {
+            return;
+        }
+        Document doc = new Document();
+        doc.id = file.getId();
+        doc.name = file.getName();
+        doc.description = file.getDescription();
+        doc.mimeType = file.getMimeType();
+        doc.parents = file.getParents() == null ? new ArrayList<>() : new ArrayList<>(file.getParents());
+        doc.modifiedTime = file.getModifiedTime() == null ? 0 : file.getModifiedTime().getValue();
+        if (content != null) {
+            addTerms(doc.contentTerms, content, 1);
+        }
+        lock.writeLock().lock();
+        try {
+            Document old = documents.get(doc.id);
+            if (old != null) {
+                if (content == null) {
+                    doc.contentTerms = old.contentTerms;
+                }
+                unlink(old);
+            }
+            link(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void addTerms(Map<String, Float> terms, String text, float weight) {
+        for (String w : words(text)) {
+            terms.merge(w, weight, Float::sum);
+        }
+    }
+
+    private void link(Document doc) {
+        documents.put(doc.id, doc);
+        doc.terms().forEach((t, w) -> postings.computeIfAbsent(t, k -> new HashMap<>()).put(doc.id, w));
+    }
+
+    private void unlink(Document doc) {
+        documents.remove(doc.id);
+        for (String t : doc.terms().keySet()) {
+            Map<String, Float> p = postings.get(t);
+            if (p != null) {
+                p.remove(doc.id);
+                if (p.isEmpty()) {
+                    postings.remove(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id File id
+     */
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            Document old = documents.get(id);
+            if (old != null) {
+                unlink(old);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds files containing every word of the query, the last word may be
+     * incomplete
+     * @param query Words to find
+     * @param limit Maximal number of results, 0 for drive.search.max-results
+     * @return Files best matching first, with id, name, mimeType, parents,
+     * description and modifiedTime
+     */
+    public List<File> search(String query, int limit) {
+        List<String> words = new ArrayList<>(new LinkedHashSet<>(words(query)));
+        if (words.isEmpty()) {
+            return Collections.emptyList();
+        }
+        int max = limit > 0 ? limit : maxResults;
+        List<File> result = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Map<String, Float> scores = null;
+            for (String word : words) {
+                Map<String, Float> matches = match(word);
+                if (scores == null) {
+                    scores = matches;
+                }
+                else {
+                    scores.keySet().retainAll(matches.keySet());
+                    for (Map.Entry<String, Float> e : scores.entrySet()) {
+                        e.setValue(e.getValue() + matches.get(e.getKey()));
+                    }
+                }
+                if (scores.isEmpty()) {
+                    return result;
+                }
+            }
+            scores.entrySet().stream()
+                    .sorted((a, b) -> {
+                        int c = Float.compare(b.getValue(), a.getValue());
+                        return c != 0 ? c : a.getKey().compareTo(b.getKey());
+                    })
+                    .limit(max)
+                    .forEach(e -> result.add(documents.get(e.getKey()).toFile()));
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    /**
+     * @return Score of every document having a word starting with given one
+     */
+    private Map<String, Float> match(String word) {
+        Map<String, Float> scores = new HashMap<>();
+        int total = Math.max(1, documents.size());
+        for (Map.Entry<String, Map<String, Float>> e : postings.subMap(word, true, word + Character.MAX_VALUE, false).entrySet()) {
+            Map<String, Float> docs = e.getValue();
+            float idf = (float) Math.log(1 + (double) total / docs.size());
+            float factor = e.getKey().equals(word) ? 1 : PREFIX_FACTOR;
+            for (Map.Entry<String, Float> d : docs.entrySet()) {
+                float score = idf * factor * (float) (1 + Math.log(d.getValue()));
+                scores.merge(d.getKey(), score, Math::max);
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Drops every file, the index becomes cold
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            documents.clear();
+            postings.clear();
+            warm = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks index as holding the whole folder
+     */
+    public void markWarm() {
+        warm = true;
+    }
+
+    /**
+     * @return Whether searches can be answered locally
+     */
+    public boolean isWarm() {
+        return enabled && warm;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documents.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes snapshot of the index, replacing the previous one atomically
+     * @throws IOException IOException
+     */
+    public void save() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        List<Document> snapshot;
+        lock.readLock().lock();
+        try {
+            snapshot = new ArrayList<>(documents.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+        Path file = Paths.get(stateFile);
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        new ObjectMapper().writeValue(tmp.toFile(), snapshot);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces content with the snapshot
+     * @return False when there is no snapshot, true also when the index is disabled
+     * @throws IOException IOException
+     */
+    public boolean load() throws IOException {
+        if (!enabled) {
+            return true;
+        }
+        Path file = Paths.get(stateFile);
+        if (!Files.exists(file)) {
+            return false;
+        }
+        List<Document> snapshot = new ObjectMapper().readValue(file.toFile(), new TypeReference<List<Document>>() {
+        });
+        lock.writeLock().lock();
+        try {
+            documents.clear();
+            postings.clear();
+            snapshot.forEach(this::link);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setStateFile(String stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public void setIndexContent(boolean indexContent) {
+        this.indexContent = indexContent;
+    }
+
+    public void setMaxContentBytes(int maxContentBytes) {
+        this.maxContentBytes = maxContentBytes;
+    }
+
+    public int getMaxResults() {
+        return maxResults;
+    }
+
+    public void setMaxResults(int maxResults) {
+        this.maxResults = maxResults;
+    }
+}
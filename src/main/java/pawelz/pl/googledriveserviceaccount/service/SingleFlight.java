@@ -0,0 +1,143 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs at most one call per key at a time. Callers that ask for a key while
+ * its call is running wait for it and share its result or error instead of
+ * making their own; nothing is kept after the call ends.
+ * @param <K> Key type
+ * @param <V> Result type
+ * @author p.zachwieja
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * Call that may block on I/O
+     * @param <V> Result type
+     */
+    @FunctionalInterface
+    public interface Call<V> {
+
+        V call() throws IOException;
+    }
+
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final UnaryOperator<V> copy;
+    private final Runnable onShared;
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+
+    /**
+     * Shares results as they are
+     */
+    public SingleFlight() {
+        this(null, null);
+    }
+
+    /**
+     * @param copy Copies a result for each waiting caller and once for them
+     * to copy from, so callers that change their result do not affect each
+     * other; null to share as is
+     * @param onShared Run each time a caller is served by a call already running, may be null
+     */
+    public SingleFlight(UnaryOperator<V> copy, Runnable onShared) {
+        this.copy = copy;
+        this.onShared = onShared;
+    }
+
+    /**
+     * Runs call for the key, or waits for the one already running
+     * @param key Key identifying identical calls
+     * @param call Call to run
+     * @return Result of the call
+     * @throws IOException thrown by the call, or when interrupted while waiting;
+     * runtime exceptions and errors of the call reach waiting callers as they are
+     */
+    public V execute(K key, Call<V> call) throws IOException {
+        CompletableFuture<V> mine = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, mine);
+        if (running != null) {
+            shared.incrementAndGet();
+            if (onShared != null) {
+                onShared.run();
+            }
+            V result = join(running);
+            return (copy == null) || (result == null) ? result : copy.apply(result);
+        }
+        calls.incrementAndGet();
+        try {
+            V result = call.call();
+            // waiters copy from a private copy, the caller may change its result while they do
+            mine.complete((copy == null) || (result == null) ? result : copy.apply(result));
+            return result;
+        } catch (Throwable ex) {
+            // waiters must not outlive the caller, whatever it threw
+            mine.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            flights.remove(key, mine);
+        }
+    }
+
+    private static <V> V join(CompletableFuture<V> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a shared call");
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            if (ex.getCause() instanceof Error) {
+                throw (Error) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /**
+     * Lets running calls for matching keys finish without new callers joining
+     * them, e.g. after a write that they may not see
+     * @param keys Keys to forget
+     */
+    public void forget(Predicate<K> keys) {
+        flights.keySet().removeIf(keys);
+    }
+
+    /**
+     * @return Calls that were run
+     */
+    public long getCalls() {
+        return calls.get();
+    }
+
+    /**
+     * @return Callers served by a call already running
+     */
+    public long getShared() {
+        return shared.get();
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+}
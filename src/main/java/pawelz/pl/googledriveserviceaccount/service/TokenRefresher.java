@@ -0,0 +1,146 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.auth.oauth2.Credential;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps access tokens of service accounts fresh. The first token is
+ * fetched while the context starts, so a broken key stops the application
+ * instead of the first Drive call; later tokens are fetched on a
+ * background thread {@code refreshAheadSeconds} before expiry, so request
+ * threads never wait for the token endpoint. A failed background refresh
+ * is retried every {@code retrySeconds}; the credential still refreshes
+ * inline once its token has expired.
+ * @author p.zachwieja
+ */
+@Component
+@ConfigurationProperties(prefix = "drive.credentials")
+public class TokenRefresher {
+
+    private boolean eager = true;
+    private long refreshAheadSeconds = 300;
+    private long retrySeconds = 30;
+
+    private ScheduledExecutorService scheduler;
+
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private static final Logger LOGGER = LogManager.getLogger(TokenRefresher.class);
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "drive-token-refresh");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Fetches first token and schedules the next refresh. Does nothing
+     * when eager refresh is disabled, tokens are then fetched by the
+     * first request.
+     * @param name Account name for logs
+     * @param credential Credential to keep fresh
+     * @throws IOException when the token can not be obtained
+     */
+    public void warmUp(String name, Credential credential) throws IOException {
+        if (!eager) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (!credential.refreshToken()) {
+            throw new IOException("Could not obtain access token for " + name);
+        }
+        refreshes.incrementAndGet();
+        LOGGER.info("Access token for {} obtained in {} ms", name,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        schedule(name, credential, nextRefresh(credential));
+    }
+
+    /**
+     * @return Seconds until the token should be refreshed
+     */
+    long nextRefresh(Credential credential) {
+        Long expiresIn = credential.getExpiresInSeconds();
+        if (expiresIn == null) {
+            return retrySeconds;
+        }
+        return Math.max(retrySeconds, expiresIn - refreshAheadSeconds);
+    }
+
+    private void schedule(String name, Credential credential, long delaySeconds) {
+        if (scheduler.isShutdown()) {
+            return;
+        }
+        LOGGER.debug("Next token refresh for {} in {} s", name, delaySeconds);
+        scheduler.schedule(() -> refresh(name, credential), delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void refresh(String name, Credential credential) {
+        long delay;
+        try {
+            if (credential.refreshToken()) {
+                refreshes.incrementAndGet();
+                delay = nextRefresh(credential);
+            }
+            else {
+                failures.incrementAndGet();
+                LOGGER.warn("Token endpoint returned no token for {}, retry in {} s", name, retrySeconds);
+                delay = retrySeconds;
+            }
+        } catch (IOException | RuntimeException ex) {
+            failures.incrementAndGet();
+            LOGGER.warn("Token refresh for {} failed, retry in {} s: {}", name, retrySeconds, ex.getMessage());
+            delay = retrySeconds;
+        }
+        schedule(name, credential, delay);
+    }
+
+    /**
+     * @return Tokens obtained, at startup and in the background
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return Background refreshes that failed
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    public void setEager(boolean eager) {
+        this.eager = eager;
+    }
+
+    public void setRefreshAheadSeconds(long refreshAheadSeconds) {
+        this.refreshAheadSeconds = refreshAheadSeconds;
+    }
+
+    public void setRetrySeconds(long retrySeconds) {
+        this.retrySeconds = retrySeconds;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+
+/**
+ * File found while walking a folder tree
+ * @author p.zachwieja
+ */
+public class TreeNode {
+
+    static final String SHORTCUT_MIME_TYPE = "application/vnd.google-apps.shortcut";
+
+    private final File file;
+    private final String parentId;
+    private final int depth;
+    private final String path;
+
+    TreeNode(File file, String parentId, int depth, String path) {
+        this.file = file;
+        this.parentId = parentId;
+        this.depth = depth;
+        this.path = path;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Id of the parent the file was reached through
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    /**
+     * @return 1 for direct children of the walked folder
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * @return Slash separated names from the walked folder, e.g. /a/b
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isFolder() {
+        return FolderTreeWalker.FOLDER_MIME_TYPE.equals(file.getMimeType());
+    }
+
+    /**
+     * @return True for shortcuts, their targets are not followed
+     */
+    public boolean isShortcut() {
+        return SHORTCUT_MIME_TYPE.equals(file.getMimeType());
+    }
+
+    @Override
+    public String toString() {
+        return "TreeNode{id=" + file.getId() + ", depth=" + depth + ", path=" + path + "}";
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Running walk started by {@link FolderTreeWalker}. Nodes are handed over
+ * through a bounded queue, so a slow consumer holds back the crawl.
+ * Counters can be read at any time to follow progress.
+ * @author p.zachwieja
+ */
+public class TreeWalk implements Iterator<TreeNode>, AutoCloseable {
+
+    private static final Object END = new Object();
+
+    private final String rootId;
+    private final BlockingQueue<Object> queue;
+    private final Set<String> visited = ConcurrentHashMap.newKeySet();
+    private final long startNanos = System.nanoTime();
+    private volatile long endNanos;
+    private volatile boolean closed;
+    private volatile IOException error;
+    private Object next;
+
+    private final AtomicLong folders = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong shortcuts = new AtomicLong();
+
+    TreeWalk(String rootId, int capacity) {
+        this.rootId = rootId;
+        this.queue = new LinkedBlockingQueue<>(Math.max(1, capacity));
+        visited.add(rootId);
+    }
+
+    /**
+     * @return Lazy stream of nodes, closing it stops the walk
+     */
+    public Stream<TreeNode> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                Spliterator.NONNULL | Spliterator.DISTINCT), false).onClose(this::close);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new UncheckedIOException(new InterruptedIOException("Interrupted while walking folder tree"));
+            }
+        }
+        if (next == END) {
+            if (error != null) {
+                throw new UncheckedIOException(error);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public TreeNode next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        TreeNode result = (TreeNode) next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Stops the walk, queries in progress are finished but their results dropped
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+
+    /**
+     * Marks id as seen
+     * @return False if id was reached before, through another parent or a cycle
+     */
+    boolean visit(String id) {
+        if (visited.add(id)) {
+            return true;
+        }
+        duplicates.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Hands node to the consumer, waits while the queue is full
+     */
+    void emit(TreeNode node) {
+        if (node.isFolder()) {
+            folders.incrementAndGet();
+        }
+        else {
+            files.incrementAndGet();
+            if (node.isShortcut()) {
+                shortcuts.incrementAndGet();
+            }
+        }
+        try {
+            while (!closed && !queue.offer(node, 100, TimeUnit.MILLISECONDS)) {
+                // consumer is behind
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            fail(new InterruptedIOException("Interrupted while walking folder tree"));
+        }
+    }
+
+    void queried() {
+        queries.incrementAndGet();
+    }
+
+    void fail(IOException ex) {
+        if (error == null) {
+            error = ex;
+        }
+        closed = true;
+    }
+
+    void finish() {
+        endNanos = System.nanoTime();
+        try {
+            while (!queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    queue.clear();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            queue.clear();
+            queue.offer(END);
+        }
+    }
+
+    /**
+     * @return True once the walk was closed or failed
+     */
+    boolean isStopped() {
+        return closed;
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    public boolean isDone() {
+        return endNanos != 0;
+    }
+
+    public long getFolders() {
+        return folders.get();
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    /**
+     * @return Number of files.list requests sent
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return Files reached again through another parent or a cycle, emitted only once
+     */
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getShortcuts() {
+        return shortcuts.get();
+    }
+
+    public long getElapsedMillis() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return TimeUnit.NANOSECONDS.toMillis(end - startNanos);
+    }
+
+    public double getFoldersPerSecond() {
+        long millis = getElapsedMillis();
+        return millis == 0 ? 0 : folders.get() * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString() {
+        return "TreeWalk{rootId=" + rootId + ", folders=" + folders + ", files=" + files + ", queries=" + queries
+                + ", duplicates=" + duplicates + ", shortcuts=" + shortcuts + ", elapsedMillis=" + getElapsedMillis()
+                + ", foldersPerSecond=" + String.format("%.1f", getFoldersPerSecond()) + "}";
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.springframework.core.io.InputStreamSource;
+
+/**
+ * Keeps resumable upload session URIs on local disk, one file per upload key
+ * @author p.zachwieja
+ */
+public class UploadSessionStore {
+
+    static final int SAMPLE_BYTES = 64 * 1024;
+
+    private final Path directory;
+
+    /**
+     * @param directory Directory for session files, created when missing
+     */
+    public UploadSessionStore(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    /**
+     * Builds stable key of an upload
+     * @param parts Values identifying uploaded content, e.g. parent, name, size
+     * and {@link #sample(InputStreamSource, long) sample} of content
+     * @return Hex digest of given values
+     */
+    public static String key(Object... parts) {
+        MessageDigest md = sha1();
+        for (Object p : parts) {
+            md.update(String.valueOf(p).getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        return hex(md.digest());
+    }
+
+    /**
+     * Tells apart uploads of the same name and size without reading all of
+     * the content: only the first and last {@value #SAMPLE_BYTES} bytes are
+     * read, the middle is skipped. Content changed only in between gets the
+     * same sample.
+     * @param source Source of content
+     * @param length Content length in bytes
+     * @return Hex SHA-1 of the first and last bytes of content
+     * @throws IOException IOException
+     */
+    public static String sample(InputStreamSource source, long length) throws IOException {
+        MessageDigest md = sha1();
+        byte[] buffer = new byte[SAMPLE_BYTES];
+        try (InputStream in = source.getInputStream()) {
+            int head = (int) Math.min(SAMPLE_BYTES, length);
+            readFully(in, buffer, head);
+            md.update(buffer, 0, head);
+            long tailStart = Math.max(head, length - SAMPLE_BYTES);
+            skipFully(in, tailStart - head);
+            int tail = (int) (length - tailStart);
+            readFully(in, buffer, tail);
+            md.update(buffer, 0, tail);
+        }
+        return hex(md.digest());
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Content ended at byte " + read + " of " + length);
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * Skips given number of bytes, reading when the stream does not skip
+     * @param in Stream to skip
+     * @param bytes Number of bytes to skip
+     * @throws IOException when content ends before
+     */
+    static void skipFully(InputStream in, long bytes) throws IOException {
+        long left = bytes;
+        while (left > 0) {
+            long skipped = in.skip(left);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    throw new EOFException("Content ended while skipping " + bytes + " bytes");
+                }
+                skipped = 1;
+            }
+            left -= skipped;
+        }
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param key Upload key
+     * @return Stored session URI or null
+     * @throws IOException IOException
+     */
+    public String get(String key) throws IOException {
+        Path p = directory.resolve(key + ".session");
+        if (!Files.exists(p)) {
+            return null;
+        }
+        String uri = new String(Files.readAllBytes(p), StandardCharsets.UTF_8).trim();
+        return uri.isEmpty() ? null : uri;
+    }
+
+    /**
+     * Stores session URI, replacing previous one atomically
+     * @param key Upload key
+     * @param uri Session URI returned by Drive
+     * @throws IOException IOException
+     */
+    public void put(String key, String uri) throws IOException {
+        Files.createDirectories(directory);
+        Path tmp = directory.resolve(key + ".tmp");
+        Files.write(tmp, uri.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, directory.resolve(key + ".session"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param key Upload key
+     * @throws IOException IOException
+     */
+    public void remove(String key) throws IOException {
+        Files.deleteIfExists(directory.resolve(key + ".session"));
+    }
+
+    /**
+     * Deletes session files not written for given time, Drive forgets their
+     * sessions anyway
+     * @param maxAgeMillis Age of the last write of a session file
+     * @return Number of deleted files
+     * @throws IOException IOException
+     */
+    public int purge(long maxAgeMillis) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long oldest = System.currentTimeMillis() - maxAgeMillis;
+        int deleted = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.{session,tmp}")) {
+            for (Path p : files) {
+                if ((Files.getLastModifiedTime(p).toMillis() < oldest) && Files.deleteIfExists(p)) {
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Service;
+import pawelz.pl.googledriveserviceaccount.service.ContentCache;
+import pawelz.pl.googledriveserviceaccount.service.DriveRequestExecutor;
+import pawelz.pl.googledriveserviceaccount.service.FileMetadataCache;
+import pawelz.pl.googledriveserviceaccount.service.GoogleDriveService;
+import pawelz.pl.googledriveserviceaccount.service.SearchIndex;
+
+/**
+ * Keeps a local index of the application folder in sync using the Drive
+ * changes feed. The page token and an index snapshot are stored under
+ * {@code stateDir}, so after restart only changes since the last
+ * checkpoint are fetched. A folder moved into the tree is scanned the same
+ * way, with a CREATED event for each file under it. The search index is
+ * filled by the same scan, follows the same changes and is saved at the
+ * same checkpoints.
+ * @author p.zachwieja
+ */
+@Service
+@ConfigurationProperties(prefix = "drive.sync")
+public class ChangeSyncService {
+
+    static final String FILE_FIELDS = "id,name,description,mimeType,size,parents,trashed,modifiedTime,permissions(id,role)";
+    private static final String CHANGE_FIELDS = "nextPageToken,newStartPageToken,changes(fileId,removed,time,file(" + FILE_FIELDS + "))";
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    @Inject
+    Drive drive;
+
+    @Inject
+    GoogleDriveService googleDriveService;
+
+    @Inject
+    FileMetadataCache metadataCache;
+
+    @Inject
+    ContentCache contentCache;
+
+    @Inject
+    DriveRequestExecutor requestExecutor;
+
+    @Inject
+    SearchIndex searchIndex;
+
+    private boolean enabled = false;
+    private long pollIntervalSeconds = 30;
+    private String stateDir = System.getProperty("java.io.tmpdir") + "/drive-sync";
+    private int pageSize = 1000;
+    private int queueCapacity = 10000;
+    private int batchSize = 100;
+    private long maxBatchDelayMillis = 500;
+
+    private FileTreeIndex index;
+    private String pageToken;
+    private PageTokenStore tokenStore;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger subscriptionCounter = new AtomicInteger();
+    private ScheduledExecutorService scheduler;
+
+    private static final Logger LOGGER = LogManager.getLogger(ChangeSyncService.class);
+
+    @PostConstruct
+    public void init() {
+        tokenStore = new PageTokenStore(Paths.get(stateDir, "page-token"));
+        if (enabled) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "drive-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::pollQuietly, 0, pollIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        subscriptions.forEach(Subscription::close);
+    }
+
+    private void pollQuietly() {
+        try {
+            sync();
+        } catch (IOException | RuntimeException ex) {
+            LOGGER.error("Drive sync failed: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Fetches and applies changes since the last checkpoint
+     * @return Number of events published
+     * @throws IOException IOException
+     */
+    public synchronized int sync() throws IOException {
+        ensureIndex();
+        int published = 0;
+        String token = pageToken;
+        while (token != null) {
+            ChangeList page = requestExecutor.execute(drive.changes().list(token)
+                    .setPageSize(pageSize)
+                    .setSpaces("drive")
+                    .setIncludeRemoved(true)
+                    .setFields(CHANGE_FIELDS));
+            if (page.getChanges() != null) {
+                for (Change c : page.getChanges()) {
+                    metadataCache.invalidate(c.getFileId());
+                    contentCache.invalidate(c.getFileId());
+                    for (DriveChangeEvent e : index.apply(c)) {
+                        search(e);
+                        publish(e);
+                        published++;
+                        if ((e.getType() == DriveChangeEvent.Type.CREATED) && FOLDER_MIME_TYPE.equals(e.getFile().getMimeType())) {
+                            published += publishSubtree(e);
+                        }
+                    }
+                }
+            }
+            String next = page.getNextPageToken() != null ? page.getNextPageToken() : page.getNewStartPageToken();
+            if (next != null) {
+                checkpoint(next);
+            }
+            token = page.getNextPageToken();
+        }
+        LOGGER.debug("Drive sync published {} events, index holds {} files", published, index.size());
+        return published;
+    }
+
+    /**
+     * Loads index and token from disk, or builds index from scratch
+     */
+    private void ensureIndex() throws IOException {
+        if (index != null) {
+            return;
+        }
+        FileTreeIndex idx = new FileTreeIndex(googleDriveService.getAppFolder());
+        String token = tokenStore.load();
+        boolean searchReady = (searchIndex == null) || searchIndex.load();
+        if ((token == null) || !idx.load(indexFile()) || !searchReady) {
+            LOGGER.info("Building index of folder {}", idx.getRootId());
+            token = requestExecutor.execute(drive.changes().getStartPageToken()).getStartPageToken();
+            if (searchIndex != null) {
+                searchIndex.clear();
+            }
+            scan(idx, idx.getRootId(), f -> {
+                if ((searchIndex != null) && !Boolean.TRUE.equals(f.getTrashed())) {
+                    searchIndex.put(f, content(f));
+                }
+            });
+            idx.save(indexFile());
+            if (searchIndex != null) {
+                searchIndex.save();
+            }
+            tokenStore.save(token);
+            LOGGER.info("Indexed {} files", idx.size());
+        }
+        if (searchIndex != null) {
+            searchIndex.markWarm();
+        }
+        index = idx;
+        pageToken = token;
+    }
+
+    /**
+     * Adds files under a folder to the index, level by level
+     * @param each Called for every file not indexed before
+     */
+    private void scan(FileTreeIndex idx, String folderId, Consumer<File> each) throws IOException {
+        Deque<String> folders = new ArrayDeque<>();
+        folders.add(folderId);
+        while (!folders.isEmpty()) {
+            String parent = folders.poll();
+            String pageToken = null;
+            do {
+                FileList page = requestExecutor.execute(drive.files().list()
+                        .setQ("'" + parent + "' in parents")
+                        .setPageSize(pageSize)
+                        .setPageToken(pageToken)
+                        .setFields("nextPageToken,files(" + FILE_FIELDS + ")"));
+                if (page.getFiles() != null) {
+                    for (File f : page.getFiles()) {
+                        boolean known = idx.contains(f.getId());
+                        if (!known && FOLDER_MIME_TYPE.equals(f.getMimeType())) {
+                            folders.add(f.getId());
+                        }
+                        idx.put(f);
+                        if (!known) {
+                            each.accept(f);
+                        }
+                    }
+                }
+                pageToken = page.getNextPageToken();
+            } while (pageToken != null);
+        }
+    }
+
+    /**
+     * Indexes content of a folder that came into the tree, e.g. moved in from
+     * outside; its files have no changes of their own
+     * @param folder CREATED event of the folder
+     * @return Number of events published
+     */
+    private int publishSubtree(DriveChangeEvent folder) throws IOException {
+        List<DriveChangeEvent> created = new ArrayList<>();
+        scan(index, folder.getFileId(), f -> created.add(
+                new DriveChangeEvent(DriveChangeEvent.Type.CREATED, f.getId(), f, null, folder.getTime())));
+        for (DriveChangeEvent e : created) {
+            search(e);
+            publish(e);
+        }
+        return created.size();
+    }
+
+    private void checkpoint(String token) throws IOException {
+        index.save(indexFile());
+        if (searchIndex != null) {
+            searchIndex.save();
+        }
+        tokenStore.save(token);
+        pageToken = token;
+    }
+
+    /**
+     * Applies event to the search index
+     */
+    private void search(DriveChangeEvent event) {
+        if (searchIndex == null) {
+            return;
+        }
+        switch (event.getType()) {
+            case REMOVED:
+                event.getRemovedIds().forEach(searchIndex::remove);
+                break;
+            case TRASHED:
+                searchIndex.remove(event.getFileId());
+                break;
+            case CREATED:
+            case MODIFIED:
+            case RESTORED:
+                searchIndex.put(event.getFile(), content(event.getFile()));
+                break;
+            default:
+                searchIndex.put(event.getFile(), null);
+        }
+    }
+
+    /**
+     * @return Text content of a file for the search index, null when not indexed or not readable
+     */
+    private String content(File f) {
+        if ((f.getSize() == null) || !searchIndex.indexesContent(f.getMimeType(), f.getSize())) {
+            return null;
+        }
+        try (InputStream in = drive.files().get(f.getId()).executeMediaAsInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            LOGGER.warn("Content of {} not indexed: {}", f.getId(), ex.getMessage());
+            return null;
+        }
+    }
+
+    private Path indexFile() {
+        return Paths.get(stateDir, "index.json");
+    }
+
+    private void publish(DriveChangeEvent event) throws IOException {
+        for (Subscription s : subscriptions) {
+            s.offer(event);
+        }
+    }
+
+    /**
+     * Subscribes listener with default queue capacity and batch size
+     * @param listener Listener
+     * @return Subscription, close it to stop receiving events
+     */
+    public Subscription subscribe(DriveChangeListener listener) {
+        return subscribe(listener, queueCapacity, batchSize);
+    }
+
+    /**
+     * Subscribes listener for change events
+     * @param listener Listener
+     * @param capacity Events buffered for this listener before sync waits
+     * @param batchSize Maximal number of events per call
+     * @return Subscription, close it to stop receiving events
+     */
+    public Subscription subscribe(DriveChangeListener listener, int capacity, int batchSize) {
+        Subscription s = new Subscription("drive-sync-subscriber-" + subscriptionCounter.incrementAndGet(),
+                listener, capacity, batchSize, maxBatchDelayMillis);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /**
+     * @param subscription Subscription to close and forget
+     */
+    public void unsubscribe(Subscription subscription) {
+        subscription.close();
+        subscriptions.remove(subscription);
+    }
+
+    /**
+     * @return Local index, null before first sync
+     */
+    public FileTreeIndex getIndex() {
+        return index;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public void setPollIntervalSeconds(long pollIntervalSeconds) {
+        this.pollIntervalSeconds = pollIntervalSeconds;
+    }
+
+    public void setStateDir(String stateDir) {
+        this.stateDir = stateDir;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaxBatchDelayMillis(long maxBatchDelayMillis) {
+        this.maxBatchDelayMillis = maxBatchDelayMillis;
+    }
+}
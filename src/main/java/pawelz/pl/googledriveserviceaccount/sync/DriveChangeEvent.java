@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import com.google.api.services.drive.model.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Typed change of a file under the application folder
+ * @author p.zachwieja
+ */
+public class DriveChangeEvent {
+
+    public enum Type {
+        CREATED, MODIFIED, MOVED, TRASHED, RESTORED, PERMISSIONS_CHANGED, REMOVED
+    }
+
+    private final Type type;
+    private final String fileId;
+    private final File file;
+    private final List<String> previousParents;
+    private final long time;
+    private final List<String> removedIds;
+
+    DriveChangeEvent(Type type, String fileId, File file, List<String> previousParents, long time) {
+        this(type, fileId, file, previousParents, time, null);
+    }
+
+    DriveChangeEvent(Type type, String fileId, File file, List<String> previousParents, long time, List<String> removedIds) {
+        this.type = type;
+        this.fileId = fileId;
+        this.file = file;
+        this.previousParents = previousParents == null ? Collections.emptyList() : previousParents;
+        this.time = time;
+        this.removedIds = removedIds == null ? Collections.emptyList() : removedIds;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getFileId() {
+        return fileId;
+    }
+
+    /**
+     * @return Current file metadata, null for REMOVED
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return Parents before the change, for MOVED and REMOVED
+     */
+    public List<String> getPreviousParents() {
+        return previousParents;
+    }
+
+    /**
+     * @return Time of change in milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return Ids of the file and of every file under it that left the
+     * index, for REMOVED
+     */
+    public List<String> getRemovedIds() {
+        return removedIds;
+    }
+
+    @Override
+    public String toString() {
+        return type + "(" + fileId + ")";
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import java.util.List;
+
+/**
+ * Receives batches of changes, see {@link ChangeSyncService#subscribe}
+ * @author p.zachwieja
+ */
+@FunctionalInterface
+public interface DriveChangeListener {
+
+    /**
+     * Called on subscription thread, never concurrently for one subscription
+     * @param events Changes in the order they were applied
+     */
+    void onChanges(List<DriveChangeEvent> events);
+}
@@ -0,0 +1,332 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.Permission;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Local copy of the file tree under one root folder, kept up to date by
+ * applying entries of the Drive changes feed
+ * @author p.zachwieja
+ */
+public class FileTreeIndex {
+
+    /**
+     * Indexed file
+     */
+    public static class Node {
+
+        private String id;
+        private String name;
+        private String mimeType;
+        private List<String> parents = new ArrayList<>();
+        private boolean trashed;
+        private long modifiedTime;
+        private String permissions;
+
+        public Node() {
+        }
+
+        static Node of(File f) {
+            Node n = new Node();
+            n.id = f.getId();
+            n.name = f.getName();
+            n.mimeType = f.getMimeType();
+            n.parents = f.getParents() == null ? new ArrayList<>() : new ArrayList<>(f.getParents());
+            n.trashed = Boolean.TRUE.equals(f.getTrashed());
+            n.modifiedTime = f.getModifiedTime() == null ? 0 : f.getModifiedTime().getValue();
+            n.permissions = fingerprint(f.getPermissions());
+            return n;
+        }
+
+        private static String fingerprint(List<Permission> permissions) {
+            if (permissions == null) {
+                return null;
+            }
+            return permissions.stream().map(p -> p.getId() + ":" + p.getRole()).sorted()
+                    .collect(Collectors.joining(","));
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public void setMimeType(String mimeType) {
+            this.mimeType = mimeType;
+        }
+
+        public List<String> getParents() {
+            return parents;
+        }
+
+        public void setParents(List<String> parents) {
+            this.parents = parents;
+        }
+
+        public boolean isTrashed() {
+            return trashed;
+        }
+
+        public void setTrashed(boolean trashed) {
+            this.trashed = trashed;
+        }
+
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public void setModifiedTime(long modifiedTime) {
+            this.modifiedTime = modifiedTime;
+        }
+
+        /**
+         * @return Sorted id:role pairs, null when permissions were not visible
+         */
+        public String getPermissions() {
+            return permissions;
+        }
+
+        public void setPermissions(String permissions) {
+            this.permissions = permissions;
+        }
+    }
+
+    private final String rootId;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final Map<String, Set<String>> children = new HashMap<>();
+
+    /**
+     * @param rootId Id of indexed folder
+     */
+    public FileTreeIndex(String rootId) {
+        this.rootId = rootId;
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    /**
+     * Adds or replaces file, used while building the index
+     * @param file Drive file
+     */
+    public synchronized void put(File file) {
+        put(Node.of(file));
+    }
+
+    private void put(Node node) {
+        Node old = nodes.put(node.getId(), node);
+        if (old != null) {
+            unlink(old);
+        }
+        for (String p : node.getParents()) {
+            children.computeIfAbsent(p, k -> new LinkedHashSet<>()).add(node.getId());
+        }
+    }
+
+    private void unlink(Node node) {
+        for (String p : node.getParents()) {
+            Set<String> c = children.get(p);
+            if (c != null) {
+                c.remove(node.getId());
+                if (c.isEmpty()) {
+                    children.remove(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id File id
+     * @return True if file is the root or lies under it
+     */
+    public synchronized boolean contains(String id) {
+        return rootId.equals(id) || nodes.containsKey(id);
+    }
+
+    public synchronized Node get(String id) {
+        return nodes.get(id);
+    }
+
+    /**
+     * @param id Folder id
+     * @return Direct children
+     */
+    public synchronized List<Node> children(String id) {
+        Set<String> c = children.get(id);
+        if (c == null) {
+            return Collections.emptyList();
+        }
+        return c.stream().map(nodes::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+
+    /**
+     * @param id File id
+     * @return Slash separated names from the root, null when not indexed
+     */
+    public synchronized String path(String id) {
+        Deque<String> names = new ArrayDeque<>();
+        Set<String> seen = new LinkedHashSet<>();
+        String current = id;
+        while ((current != null) && !rootId.equals(current)) {
+            Node n = nodes.get(current);
+            if ((n == null) || !seen.add(current)) {
+                return null;
+            }
+            names.addFirst(n.getName());
+            current = n.getParents().stream().filter(this::contains).findFirst().orElse(null);
+        }
+        return current == null ? null : "/" + String.join("/", names);
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Applies one entry of the changes feed
+     * @param change Change from changes.list
+     * @return Resulting events, empty when change is outside the tree
+     */
+    public synchronized List<DriveChangeEvent> apply(Change change) {
+        long time = change.getTime() == null ? System.currentTimeMillis() : change.getTime().getValue();
+        String id = change.getFileId();
+        Node old = nodes.get(id);
+        File file = change.getFile();
+        if (Boolean.TRUE.equals(change.getRemoved()) || (file == null)) {
+            if (old == null) {
+                return Collections.emptyList();
+            }
+            List<String> removed = removeSubtree(id);
+            return Collections.singletonList(new DriveChangeEvent(DriveChangeEvent.Type.REMOVED, id, null, old.getParents(), time, removed));
+        }
+        Node node = Node.of(file);
+        boolean inTree = node.getParents().stream().anyMatch(this::contains);
+        if (old == null) {
+            if (!inTree) {
+                return Collections.emptyList();
+            }
+            put(node);
+            return Collections.singletonList(new DriveChangeEvent(DriveChangeEvent.Type.CREATED, id, file, null, time));
+        }
+        if (!inTree) {
+            List<String> removed = removeSubtree(id);
+            return Collections.singletonList(new DriveChangeEvent(DriveChangeEvent.Type.REMOVED, id, file, old.getParents(), time, removed));
+        }
+        put(node);
+        DriveChangeEvent.Type type;
+        if (node.isTrashed() != old.isTrashed()) {
+            type = node.isTrashed() ? DriveChangeEvent.Type.TRASHED : DriveChangeEvent.Type.RESTORED;
+        }
+        else if (!new LinkedHashSet<>(node.getParents()).equals(new LinkedHashSet<>(old.getParents()))) {
+            type = DriveChangeEvent.Type.MOVED;
+        }
+        else if ((node.getPermissions() != null) && !node.getPermissions().equals(old.getPermissions())) {
+            type = DriveChangeEvent.Type.PERMISSIONS_CHANGED;
+        }
+        else if ((node.getModifiedTime() != old.getModifiedTime()) || !Objects.equals(node.getName(), old.getName())) {
+            type = DriveChangeEvent.Type.MODIFIED;
+        }
+        else {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new DriveChangeEvent(type, id, file, old.getParents(), time));
+    }
+
+    /**
+     * @return Ids of removed files, the file first
+     */
+    private List<String> removeSubtree(String id) {
+        List<String> removed = new ArrayList<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(id);
+        while (!pending.isEmpty()) {
+            String current = pending.poll();
+            Node n = nodes.remove(current);
+            if (n != null) {
+                unlink(n);
+                removed.add(current);
+            }
+            Set<String> c = children.remove(current);
+            if (c != null) {
+                pending.addAll(c);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Writes snapshot of the index
+     * @param file Target file, replaced atomically
+     * @throws IOException IOException
+     */
+    public void save(Path file) throws IOException {
+        Collection<Node> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(nodes.values());
+        }
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        new ObjectMapper().writeValue(tmp.toFile(), snapshot);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces content with snapshot written by {@link #save(Path)}
+     * @param file Snapshot file
+     * @return False when snapshot does not exist
+     * @throws IOException IOException
+     */
+    public boolean load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        List<Node> snapshot = new ObjectMapper().readValue(file.toFile(), new TypeReference<List<Node>>() {
+        });
+        synchronized (this) {
+            nodes.clear();
+            children.clear();
+            snapshot.forEach(this::put);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Changes feed page token kept in a local file
+ * @author p.zachwieja
+ */
+public class PageTokenStore {
+
+    private final Path file;
+
+    public PageTokenStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return Stored token or null
+     * @throws IOException IOException
+     */
+    public String load() throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        String token = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+        return token.isEmpty() ? null : token;
+    }
+
+    /**
+     * Replaces stored token atomically
+     * @param token Page token
+     * @throws IOException IOException
+     */
+    public void save(String token) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, token.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded queue of change events delivered to one listener in batches.
+ * When the queue is full the sync loop waits, so a slow listener slows
+ * down polling instead of growing memory.
+ * @author p.zachwieja
+ */
+public class Subscription implements AutoCloseable {
+
+    private final DriveChangeListener listener;
+    private final BlockingQueue<DriveChangeEvent> queue;
+    private final int batchSize;
+    private final long maxDelayMillis;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    private static final Logger LOGGER = LogManager.getLogger(Subscription.class);
+
+    Subscription(String name, DriveChangeListener listener, int capacity, int batchSize, long maxDelayMillis) {
+        this.listener = listener;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.batchSize = Math.max(1, batchSize);
+        this.maxDelayMillis = maxDelayMillis;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queues event, blocking while the queue is full
+     * @param event Change event
+     * @throws InterruptedIOException when interrupted while waiting
+     */
+    void offer(DriveChangeEvent event) throws InterruptedIOException {
+        if (closed) {
+            return;
+        }
+        try {
+            queue.put(event);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for slow subscriber");
+        }
+    }
+
+    private void run() {
+        List<DriveChangeEvent> batch = new ArrayList<>(batchSize);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                DriveChangeEvent first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelayMillis;
+                while (batch.size() < batchSize) {
+                    long wait = deadline - System.currentTimeMillis();
+                    DriveChangeEvent next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                listener.onChanges(new ArrayList<>(batch));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException ex) {
+                LOGGER.error("Change listener failed: {}", ex.getMessage(), ex);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @return Number of events waiting for the listener
+     */
+    public int getPending() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting events, queued events are still delivered
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
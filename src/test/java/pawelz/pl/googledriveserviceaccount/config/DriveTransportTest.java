@@ -0,0 +1,55 @@
+package pawelz.pl.googledriveserviceaccount.config;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+public class DriveTransportTest {
+
+    private DriveTransport transport;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException {
+        transport = new DriveTransport();
+        transport.setMaxConnections(5);
+        transport.setReadTimeoutMillis(1234);
+        transport.init();
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+    }
+
+    @Test
+    public void testPooledTransport() {
+        assertTrue(transport.getTransport() instanceof ApacheHttpTransport);
+        assertEquals(5, transport.getMaxConnections());
+        assertEquals(0, transport.getLeasedConnections());
+    }
+
+    @Test
+    public void testRequestsGetTimeouts() throws IOException {
+        HttpRequest request = transport.getTransport().createRequestFactory(transport.wrap(null))
+                .buildGetRequest(new GenericUrl("http://localhost/"));
+        assertEquals(1234, request.getReadTimeout());
+        assertEquals("gzip", request.getHeaders().getAcceptEncoding());
+    }
+
+    @Test
+    public void testGzipUserAgent() {
+        assertEquals("app (gzip)", transport.applicationName("app"));
+        transport.setGzip(false);
+        assertEquals("app", transport.applicationName("app"));
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.emulator;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.ChangeList;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.Permission;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Drives {@link DriveEmulator} through the Drive client
+ * @author p.zachwieja
+ */
+public class DriveEmulatorTest {
+
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private DriveEmulator emulator;
+    private Drive drive;
+
+    @Before
+    public void setUp() {
+        emulator = new DriveEmulator();
+        emulator.setFolders(Arrays.asList("root", "app"));
+        emulator.init();
+        drive = new Drive.Builder(emulator, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+    }
+
+    private File folder(String name, String parent) throws IOException {
+        return drive.files().create(new File().setName(name).setMimeType(FOLDER_MIME_TYPE)
+                .setParents(Arrays.asList(parent))).execute();
+    }
+
+    private File upload(String name, String parent, String text) throws IOException {
+        return drive.files().create(new File().setName(name).setParents(Arrays.asList(parent)),
+                new ByteArrayContent("text/plain", text.getBytes(StandardCharsets.UTF_8)))
+                .setFields("id,name,size,parents")
+                .execute();
+    }
+
+    @Test
+    public void testCreateAndGetFolder() throws IOException {
+        File created = folder("docs", "app");
+        File fetched = drive.files().get(created.getId()).setFields("id,name,mimeType,parents,permissions").execute();
+        assertEquals("docs", fetched.getName());
+        assertEquals(FOLDER_MIME_TYPE, fetched.getMimeType());
+        assertEquals(Arrays.asList("app"), fetched.getParents());
+        assertEquals("owner", fetched.getPermissions().get(0).getRole());
+    }
+
+    @Test
+    public void testDefaultFieldsLeaveOutParents() throws IOException {
+        File created = folder("docs", "app");
+        File fetched = drive.files().get(created.getId()).execute();
+        assertEquals("docs", fetched.getName());
+        assertNull(fetched.getParents());
+    }
+
+    @Test
+    public void testMissingFileIs404() throws IOException {
+        try {
+            drive.files().get("nope").execute();
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+            assertEquals("notFound", ex.getDetails().getErrors().get(0).getReason());
+        }
+    }
+
+    @Test
+    public void testDuplicateIdIs409() throws IOException {
+        String id = drive.files().generateIds().setCount(1).execute().getIds().get(0);
+        drive.files().create(new File().setId(id).setName("a").setParents(Arrays.asList("app"))).execute();
+        try {
+            drive.files().create(new File().setId(id).setName("a").setParents(Arrays.asList("app"))).execute();
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(409, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testListPagesThroughChildren() throws IOException {
+        File parent = folder("many", "app");
+        for (int i = 0; i < 25; i++) {
+            folder("child" + i, parent.getId());
+        }
+        folder("elsewhere", "app");
+        Set<String> names = new HashSet<>();
+        String token = null;
+        int pages = 0;
+        do {
+            FileList page = drive.files().list()
+                    .setQ("'" + parent.getId() + "' in parents and trashed = false")
+                    .setPageSize(10)
+                    .setPageToken(token)
+                    .setFields("nextPageToken,files(id,name)")
+                    .execute();
+            page.getFiles().forEach(f -> names.add(f.getName()));
+            token = page.getNextPageToken();
+            pages++;
+        } while (token != null);
+        assertEquals(3, pages);
+        assertEquals(25, names.size());
+        assertFalse(names.contains("elsewhere"));
+    }
+
+    @Test
+    public void testFullTextAndMimeTypeQueries() throws IOException {
+        upload("notes.txt", "app", "needle in a haystack");
+        upload("other.txt", "app", "nothing here");
+        folder("needle folder", "app");
+        assertEquals(2, drive.files().list().setQ("fullText contains 'needle'").execute().getFiles().size());
+        assertEquals(1, drive.files().list()
+                .setQ("fullText contains 'needle' and mimeType != '" + FOLDER_MIME_TYPE + "'")
+                .execute().getFiles().size());
+        assertEquals(0, drive.files().list().setQ("fullText contains 'missing'").execute().getFiles().size());
+    }
+
+    @Test
+    public void testInvalidQueryIs400() throws IOException {
+        try {
+            drive.files().list().setQ("color = 'red'").execute();
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(400, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testUploadAndRangedDownload() throws IOException {
+        File file = upload("a.txt", "app", "0123456789");
+        assertEquals(Long.valueOf(10), file.getSize());
+        Drive.Files.Get get = drive.files().get(file.getId());
+        get.getRequestHeaders().setRange("bytes=2-5");
+        assertEquals("2345", read(get.executeMediaAsInputStream()));
+        assertEquals("0123456789", read(drive.files().get(file.getId()).executeMediaAsInputStream()));
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDeleteRemovesChildren() throws IOException {
+        File parent = folder("tmp", "app");
+        File child = upload("a.txt", parent.getId(), "x");
+        drive.files().delete(parent.getId()).execute();
+        try {
+            drive.files().get(child.getId()).execute();
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testPermissions() throws IOException {
+        File file = folder("shared", "app");
+        Permission p = drive.permissions().create(file.getId(),
+                new Permission().setEmailAddress("a@b.com").setRole("reader").setType("user")).execute();
+        assertEquals(2, drive.permissions().list(file.getId()).execute().getPermissions().size());
+        assertEquals(1, drive.files().list().setQ("'a@b.com' in readers").execute().getFiles().size());
+        drive.permissions().delete(file.getId(), p.getId()).execute();
+        assertEquals(1, drive.permissions().list(file.getId()).execute().getPermissions().size());
+        assertEquals(0, drive.files().list().setQ("'a@b.com' in readers").execute().getFiles().size());
+    }
+
+    @Test
+    public void testChangesFollowStartPageToken() throws IOException {
+        String token = drive.changes().getStartPageToken().execute().getStartPageToken();
+        File file = folder("watched", "app");
+        drive.files().delete(file.getId()).execute();
+        ChangeList changes = drive.changes().list(token).execute();
+        assertEquals(2, changes.getChanges().size());
+        assertFalse(changes.getChanges().get(0).getRemoved());
+        assertTrue(changes.getChanges().get(1).getRemoved());
+        assertNotNull(changes.getNewStartPageToken());
+        assertEquals(0, drive.changes().list(changes.getNewStartPageToken()).execute().getChanges().size());
+    }
+
+    @Test
+    public void testBatchOnDriveEndpoint() throws IOException {
+        File docs = folder("docs", "app");
+        List<String> names = new ArrayList<>();
+        BatchRequest batch = drive.batch().setBatchUrl(new GenericUrl(drive.getRootUrl() + "batch/drive/v3"));
+        for (String id : Arrays.asList(docs.getId(), "app")) {
+            drive.files().get(id).queue(batch, new JsonBatchCallback<File>() {
+                @Override
+                public void onSuccess(File file, HttpHeaders responseHeaders) {
+                    names.add(file.getName());
+                }
+
+                @Override
+                public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                    fail(e.getMessage());
+                }
+            });
+        }
+        batch.execute();
+        assertEquals(Arrays.asList("docs", "app"), names);
+    }
+
+    @Test
+    public void testGlobalBatchEndpointIsGone() throws IOException {
+        BatchRequest batch = drive.batch();
+        drive.files().get("app").queue(batch, new JsonBatchCallback<File>() {
+            @Override
+            public void onSuccess(File file, HttpHeaders responseHeaders) {
+                fail();
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                fail();
+            }
+        });
+        try {
+            batch.execute();
+            fail();
+        } catch (HttpResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testInjectedRateLimit() throws IOException {
+        emulator.getFaults().setRateLimitRate(1);
+        try {
+            drive.files().get("root").execute();
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(429, ex.getStatusCode());
+        }
+        assertEquals(1, emulator.getFaults().getRateLimited());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testInjectedTimeout() throws IOException {
+        emulator.getFaults().setTimeoutRate(1);
+        emulator.getFaults().setTimeoutMillis(1);
+        drive.files().get("root").execute();
+    }
+}
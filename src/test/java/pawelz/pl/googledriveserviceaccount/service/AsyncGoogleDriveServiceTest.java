@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Async facade against a slow stand-in of {@link GoogleDriveService}
+ * @author p.zachwieja
+ */
+public class AsyncGoogleDriveServiceTest {
+
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private final IOException failure = new IOException("broken");
+    private AsyncGoogleDriveService async;
+
+    @Before
+    public void setUp() {
+        async = new AsyncGoogleDriveService();
+        async.googleDriveService = new SlowService();
+        async.setVirtualThreads(false);
+        async.setPoolSize(8);
+        async.setMaxInFlight(2);
+        async.init();
+    }
+
+    @After
+    public void tearDown() {
+        async.shutdown();
+    }
+
+    @Test
+    public void testInFlightIsBounded() {
+        List<CompletableFuture<File>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(async.getFile("f" + i, null));
+        }
+        for (CompletableFuture<File> f : futures) {
+            assertNotNull(f.join());
+        }
+        assertEquals(2, maxConcurrent.get());
+        assertEquals(0, async.getInFlight());
+    }
+
+    @Test
+    public void testGetFilesLeavesOutMissing() {
+        Map<String, File> files = async.getFiles(Arrays.asList("a", "missing", "b")).join();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(files.keySet()));
+        assertEquals("a", files.get("a").getId());
+    }
+
+    @Test
+    public void testDeleteGoogleFilesKeepsResultById() {
+        Map<String, Integer> results = async.deleteGoogleFiles(Arrays.asList("a", "missing", "b")).join();
+        assertEquals(Arrays.asList("a", "missing", "b"), new ArrayList<>(results.keySet()));
+        assertEquals(Integer.valueOf(0), results.get("a"));
+        assertEquals(Integer.valueOf(-1), results.get("missing"));
+    }
+
+    @Test
+    public void testFailureKeepsOriginalException() {
+        try {
+            async.getFiles(Arrays.asList("a", "broken")).join();
+            fail();
+        } catch (CompletionException ex) {
+            assertSame(failure, ex.getCause());
+        }
+    }
+
+    /**
+     * Answers after a short delay, counting calls at once
+     */
+    private class SlowService extends GoogleDriveService {
+
+        private void slowly() throws IOException {
+            maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+
+        @Override
+        public File getFile(String id, String fields) throws IOException {
+            slowly();
+            if ("broken".equals(id)) {
+                throw failure;
+            }
+            return "missing".equals(id) ? null : new File().setId(id);
+        }
+
+        @Override
+        public int deleteGoogleFile(String fileId) {
+            try {
+                slowly();
+            } catch (IOException ex) {
+                return -1;
+            }
+            return "missing".equals(fileId) ? -1 : 0;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.util.StreamUtils;
+import static org.junit.Assert.*;
+
+/**
+ * Bulk ingest against a recording stand-in of {@link GoogleDriveService}
+ * @author p.zachwieja
+ */
+public class BulkIngestServiceTest {
+
+    private final List<String> folderCalls = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, String> uploaded = new ConcurrentHashMap<>();
+    private final AtomicInteger read = new AtomicInteger();
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger maxAhead = new AtomicInteger();
+    private ResumableUploader uploader;
+    private BulkIngestService ingest;
+
+    @Before
+    public void setUp() throws IOException {
+        uploader = new ResumableUploader();
+        uploader.setSessionDir(Files.createTempDirectory("sessions").toString());
+        uploader.init();
+        ingest = new BulkIngestService();
+        ingest.resumableUploader = uploader;
+        ingest.googleDriveService = new RecordingService();
+        ingest.setSpoolDir(Files.createTempDirectory("spool").toString());
+        ingest.setMaxPendingEntries(4);
+        ingest.setMaxBufferedBytes(64);
+        ingest.setMemoryThreshold(16);
+        ingest.init();
+    }
+
+    @After
+    public void tearDown() {
+        uploader.shutdown();
+    }
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                out.putNextEntry(new ZipEntry(namesAndContents[i]));
+                if (namesAndContents[i + 1] != null) {
+                    out.write(namesAndContents[i + 1].getBytes(StandardCharsets.UTF_8));
+                }
+                out.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void testZipCreatesEachFolderOnce() throws IOException {
+        String big = "a file that is longer than the memory threshold";
+        IngestManifest manifest = ingest.ingestZip(new ByteArrayInputStream(zip(
+                "a/", null,
+                "a/b/x.txt", "x",
+                "a/y.txt", "y",
+                "a/b/big.txt", big,
+                "c/z.txt", "z",
+                "../evil.txt", "no")), "root", null);
+        assertEquals(Arrays.asList("a@root", "b@id:a", "c@root"), folderCalls);
+        assertEquals(Arrays.asList("a", "a/b", "c"), new ArrayList<>(manifest.getFolders().keySet()));
+        assertEquals(5, manifest.getItems().size());
+        assertEquals(4, manifest.getSucceededCount());
+        assertEquals("../evil.txt", manifest.getFailed().get(0).getPath());
+        assertEquals("a/b/x.txt", manifest.getItems().get(0).getPath());
+        assertEquals(1, manifest.getSpooled());
+        assertEquals("x", uploaded.get(manifest.getFileIds().get("a/b/x.txt")));
+        assertEquals(big, uploaded.get(manifest.getFileIds().get("a/b/big.txt")));
+        assertEquals(0, ingest.getBufferedBytes());
+    }
+
+    @Test
+    public void testReadingWaitsForUploads() throws IOException {
+        IngestSource source = new IngestSource() {
+            @Override
+            public IngestSource.Entry next() {
+                if (read.get() == 100) {
+                    return null;
+                }
+                int i = read.incrementAndGet();
+                maxAhead.accumulateAndGet(i - done.get(), Math::max);
+                byte[] data = ("entry " + i).getBytes(StandardCharsets.UTF_8);
+                return new IngestSource.Entry("dir/" + i + ".txt", false, -1, () -> new ByteArrayInputStream(data), false);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        IngestManifest manifest = ingest.ingest(source, "root", "desc");
+        assertTrue(manifest.isSuccess());
+        assertEquals(100, manifest.getFileIds().size());
+        assertEquals(1, folderCalls.size());
+        assertTrue("read " + maxAhead.get() + " entries ahead", maxAhead.get() <= 5);
+    }
+
+    @Test
+    public void testNormalize() {
+        assertEquals("a/b", BulkIngestService.normalize("./a//b/"));
+        assertNull(BulkIngestService.normalize("a/../../b"));
+    }
+
+    /**
+     * Creates folders and keeps uploaded content by generated id
+     */
+    private class RecordingService extends GoogleDriveService {
+
+        @Override
+        public File createFolder(String name, String parentId) {
+            folderCalls.add(name + "@" + parentId);
+            return new File().setId("id:" + name);
+        }
+
+        @Override
+        File uploadContent(boolean useDirectUpload, String name, String contentType, long size,
+                InputStreamSource source, String folderId, String desc) throws IOException {
+            try (InputStream in = source.getInputStream()) {
+                String id = folderId + "/" + name;
+                uploaded.put(id, StreamUtils.copyToString(in, StandardCharsets.UTF_8));
+                Thread.sleep(2);
+                done.incrementAndGet();
+                return new File().setId(id);
+            } catch (InterruptedException ex) {
+                throw new IOException(ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pawelz.pl.googledriveserviceaccount.emulator.DriveEmulator;
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ContentCache} against {@link DriveEmulator} with content in a temporary directory
+ * @author p.zachwieja
+ */
+public class ContentCacheTest {
+
+    private Path dir;
+    private DriveEmulator emulator;
+    private Drive drive;
+    private RangedDownloader downloader;
+    private ContentCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("drive-content");
+        emulator = new DriveEmulator();
+        emulator.setFolders(Arrays.asList("root", "app"));
+        emulator.init();
+        drive = new Drive.Builder(emulator, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        downloader = new RangedDownloader();
+        downloader.drive = drive;
+        downloader.init();
+        cache = start(1024);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.shutdown();
+        for (Path p : Files.walk(dir).sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    private ContentCache start(long maxBytes) throws IOException {
+        ContentCache c = new ContentCache();
+        c.drive = drive;
+        c.requestExecutor = new DriveRequestExecutor();
+        c.requestExecutor.init();
+        c.rangedDownloader = downloader;
+        c.setDir(dir.toString());
+        c.setMaxBytes(maxBytes);
+        c.init();
+        return c;
+    }
+
+    private String upload(String text) throws IOException {
+        return drive.files().create(new File().setName("a.txt").setParents(Arrays.asList("app")),
+                new ByteArrayContent("text/plain", text.getBytes(StandardCharsets.UTF_8))).execute().getId();
+    }
+
+    private String read(String fileId) throws IOException {
+        FileChannel channel = cache.open(fileId);
+        assertNotNull(channel);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FileChannel source = channel) {
+            cache.transfer(source, Channels.newChannel(out));
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSecondReadIsServedFromDisk() throws IOException {
+        String id = upload("template");
+        assertEquals("template", read(id));
+        assertEquals("template", read(id));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getRevalidations());
+        assertEquals(8, cache.getBytesSaved());
+        assertEquals(8, cache.getFilledBytes());
+    }
+
+    @Test
+    public void testChangedContentIsFetchedAgain() throws IOException {
+        String id = upload("version one");
+        assertEquals("version one", read(id));
+        drive.files().update(id, new File(), new ByteArrayContent("text/plain",
+                "version two".getBytes(StandardCharsets.UTF_8))).execute();
+        assertEquals("version two", read(id));
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testCheckIsTrustedForRevalidateSeconds() throws IOException {
+        cache.setRevalidateSeconds(60);
+        String id = upload("template");
+        read(id);
+        long requests = emulator.getRequests();
+        read(id);
+        assertEquals(requests, emulator.getRequests());
+        cache.invalidate(id);
+        read(id);
+        assertEquals(requests + 1, emulator.getRequests());
+    }
+
+    @Test
+    public void testIdenticalContentIsStoredOnce() throws IOException {
+        String first = upload("same bytes");
+        String second = upload("same bytes");
+        read(first);
+        read(second);
+        assertEquals(1, cache.getSize());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getDeduplicated());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedContentIsEvicted() throws IOException {
+        cache = start(20);
+        String a = upload("aaaaaaaaaa");
+        String b = upload("bbbbbbbbbb");
+        String c = upload("cccccccccc");
+        read(a);
+        read(b);
+        read(a);
+        read(c);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(20, cache.getBytes());
+        read(a);
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testContentIsKeptAcrossRestart() throws IOException {
+        String id = upload("template");
+        read(id);
+        cache = start(1024);
+        assertEquals(1, cache.getSize());
+        assertEquals("template", read(id));
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testStartupRemovesOnlyOwnLeftovers() throws IOException {
+        String md5 = "0123456789abcdef0123456789abcdef";
+        Files.write(dir.resolve(md5 + ".part"), new byte[3]);
+        Files.write(dir.resolve(md5 + ".segments"), new byte[3]);
+        Files.write(dir.resolve("notes.txt"), new byte[3]);
+        Files.createDirectories(dir.resolve("other"));
+        Files.write(dir.resolve("other").resolve("kept.bin"), new byte[3]);
+        cache = start(1024);
+        assertFalse(Files.exists(dir.resolve(md5 + ".part")));
+        assertFalse(Files.exists(dir.resolve(md5 + ".segments")));
+        assertTrue(Files.exists(dir.resolve("notes.txt")));
+        assertTrue(Files.exists(dir.resolve("other").resolve("kept.bin")));
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testFilesWithoutChecksumAreNotCached() throws IOException {
+        String folder = drive.files().create(new File().setName("docs")
+                .setMimeType("application/vnd.google-apps.folder").setParents(Arrays.asList("app"))).execute().getId();
+        assertNull(cache.open(folder));
+        assertNull(cache.open("missing"));
+        assertEquals(2, cache.getBypassed());
+    }
+
+    @Test
+    public void testBypassIsTrustedForRevalidateSeconds() throws IOException {
+        cache.setRevalidateSeconds(60);
+        cache.setMaxEntryBytes(4);
+        String id = upload("too large");
+        assertNull(cache.open(id));
+        long requests = emulator.getRequests();
+        assertNull(cache.open(id));
+        assertEquals(requests, emulator.getRequests());
+        assertEquals(2, cache.getBypassed());
+    }
+
+    @Test
+    public void testFailedFillIsLeftToCaller() throws IOException {
+        String id = upload("template");
+        for (Path p : Files.walk(dir).sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+            Files.deleteIfExists(p);
+        }
+        assertNull(cache.open(id));
+        assertEquals(1, cache.getFillFailures());
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import pawelz.pl.googledriveserviceaccount.emulator.DriveEmulator;
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link DeleteBatcher} against {@link DriveEmulator}
+ * @author p.zachwieja
+ */
+public class DeleteBatcherTest {
+
+    private static final String FOLDER_MIME_TYPE = "application/vnd.google-apps.folder";
+
+    private DriveEmulator emulator;
+    private Drive drive;
+    private DeleteBatcher batcher;
+
+    @Before
+    public void setUp() {
+        emulator = new DriveEmulator();
+        emulator.setFolders(Arrays.asList("root", "app"));
+        emulator.init();
+        drive = new Drive.Builder(emulator, JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        batcher = new DeleteBatcher();
+        batcher.drive = drive;
+        batcher.requestExecutor = new DriveRequestExecutor();
+        batcher.requestExecutor.setInitialBackoffMillis(1);
+        batcher.requestExecutor.init();
+        batcher.setBatchSize(2);
+        batcher.setParallelBatches(2);
+        batcher.init();
+    }
+
+    @After
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    private String create(String name, String parent, boolean folder) throws IOException {
+        return drive.files().create(new File().setName(name).setParents(Arrays.asList(parent))
+                .setMimeType(folder ? FOLDER_MIME_TYPE : "text/plain")).execute().getId();
+    }
+
+    private boolean exists(String fileId) throws IOException {
+        try {
+            drive.files().get(fileId).execute();
+            return true;
+        } catch (GoogleJsonResponseException ex) {
+            if (ex.getStatusCode() == 404) {
+                return false;
+            }
+            throw ex;
+        }
+    }
+
+    @Test
+    public void testFilesUnderDeletedFolderAreSkipped() throws IOException {
+        String docs = create("docs", "app", true);
+        String inner = create("inner", docs, true);
+        String a = create("a.txt", docs, false);
+        String b = create("b.txt", inner, false);
+        String c = create("c.txt", "app", false);
+
+        DeleteReport report = batcher.apply(Arrays.asList(b, a, inner, docs, c), false);
+        assertTrue(report.toString(), report.isSuccess());
+        assertEquals(Arrays.asList(docs, c), report.getFileIds(DeleteReport.Outcome.DELETED));
+        assertEquals(Arrays.asList(b, a, inner), report.getFileIds(DeleteReport.Outcome.SKIPPED));
+        assertEquals(docs, report.getItems().get(0).getAncestorId());
+        for (String id : Arrays.asList(docs, inner, a, b, c)) {
+            assertFalse(id, exists(id));
+        }
+    }
+
+    @Test
+    public void testMissingFilesCountAsGone() throws IOException {
+        String a = create("a.txt", "app", false);
+        DeleteReport report = batcher.apply(Arrays.asList(a, "missing"), false);
+        assertTrue(report.isSuccess());
+        assertEquals(Collections.singletonList("missing"), report.getFileIds(DeleteReport.Outcome.NOT_FOUND));
+        assertEquals(1, report.getCount(DeleteReport.Outcome.DELETED));
+    }
+
+    @Test
+    public void testTrashThenPurge() throws IOException {
+        String a = create("a.txt", "app", false);
+        String b = create("b.txt", "app", false);
+        String c = create("c.txt", "app", false);
+        DeleteReport report = batcher.apply(Arrays.asList(a, b, c), true);
+        assertEquals(3, report.getCount(DeleteReport.Outcome.TRASHED));
+        assertEquals(2, report.getBatches());
+        assertTrue(drive.files().get(a).setFields("trashed").execute().getTrashed());
+
+        report = batcher.purge(Arrays.asList(a, b, c));
+        assertEquals(3, report.getCount(DeleteReport.Outcome.DELETED));
+        assertFalse(exists(b));
+    }
+
+    private DriveAccountPool pool() throws Exception {
+        DriveAccountPool pool = new DriveAccountPool();
+        pool.setMaxRequestsPerSecond(1000);
+        pool.init();
+        pool.add("a@test", null);
+        pool.add("b@test", null);
+        batcher.accounts = pool;
+        batcher.drive = new Drive.Builder(emulator, JacksonFactory.getDefaultInstance(), pool)
+                .setApplicationName("test")
+                .build();
+        return pool;
+    }
+
+    @Test
+    public void testPinnedFilesAreBatchedThroughTheirAccount() throws Exception {
+        String a = create("a.txt", "app", false);
+        String b = create("b.txt", "app", false);
+        DriveAccountPool pool = pool();
+        DriveAccount owner = pool.getPool().get(1);
+        pool.pin(a, owner);
+        pool.pin(b, owner);
+        DeleteReport report = batcher.apply(Arrays.asList(a, b), false, false);
+        assertEquals(2, report.getCount(DeleteReport.Outcome.DELETED));
+        assertEquals(1, owner.getRequests());
+        assertEquals(0, pool.getPool().get(0).getRequests());
+    }
+
+    @Test
+    public void testMissingFileIsAskedOfEveryAccount() throws Exception {
+        DriveAccountPool pool = pool();
+        DeleteReport report = batcher.apply(Arrays.asList("missing"), false, false);
+        assertEquals(Collections.singletonList("missing"), report.getFileIds(DeleteReport.Outcome.NOT_FOUND));
+        assertEquals(2, report.getBatches());
+        for (DriveAccount account : pool.getPool()) {
+            assertEquals(1, account.getRequests());
+        }
+    }
+
+    @Test
+    public void testCoveredByAncestor() {
+        Map<String, List<String>> parents = new HashMap<>();
+        parents.put("f1", Arrays.asList("d2"));
+        parents.put("d2", Arrays.asList("d1"));
+        parents.put("d1", Arrays.asList("app"));
+        parents.put("f2", Arrays.asList("other"));
+        parents.put("x", Arrays.asList("y"));
+        parents.put("y", Arrays.asList("x"));
+        Map<String, String> covered = DeleteBatcher.coveredByAncestor(
+                new HashSet<>(Arrays.asList("f1", "d2", "d1", "f2", "x")), parents);
+        assertEquals("d1", covered.get("f1"));
+        assertEquals("d1", covered.get("d2"));
+        assertFalse(covered.containsKey("d1"));
+        assertFalse(covered.containsKey("f2"));
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Routing of requests over two service accounts, told apart by their
+ * bearer tokens
+ * @author p.zachwieja
+ */
+public class DriveAccountPoolTest {
+
+    private final Deque<Integer> statuses = new ArrayDeque<>();
+    private final List<String> tokens = new ArrayList<>();
+    private final Map<String, Integer> refusing = new HashMap<>();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private volatile long delayMillis;
+    private DriveAccountPool pool;
+    private DriveRequestExecutor executor;
+    private Drive drive;
+
+    @Before
+    public void setUp() throws GeneralSecurityException, IOException {
+        pool = new DriveAccountPool();
+        pool.setThrottleCooldownMillis(60000);
+        pool.setMaxRequestsPerSecond(1000);
+        pool.init();
+        pool.add("a@test", bearer("a"));
+        pool.add("b@test", bearer("b"));
+        executor = new DriveRequestExecutor();
+        executor.setInitialBackoffMillis(1);
+        executor.setMaxRequestsPerSecond(1000);
+        executor.setBurst(1000);
+        executor.init();
+        drive = new Drive.Builder(new TokenEndpoint(), JacksonFactory.getDefaultInstance(), executor.wrap(pool))
+                .setApplicationName("test")
+                .build();
+    }
+
+    private static Credential bearer(String token) {
+        return new Credential(BearerToken.authorizationHeaderAccessMethod()).setAccessToken(token);
+    }
+
+    @Test
+    public void testFilesStickToTheirAccount() throws IOException {
+        executor.execute(drive.files().get("x"));
+        executor.execute(drive.files().get("x"));
+        executor.execute(drive.files().get("y"));
+        executor.execute(drive.files().get("x"));
+        assertEquals(Arrays.asList("Bearer a", "Bearer a", "Bearer b", "Bearer a"), tokens);
+        assertEquals(2, pool.getPinnedFiles());
+    }
+
+    @Test
+    public void testThrottledAccountLeavesRotation() throws IOException {
+        statuses.add(429);
+        executor.execute(drive.files().get("x"));
+        executor.execute(drive.files().get("y"));
+        assertEquals(Arrays.asList("Bearer a", "Bearer b", "Bearer b"), tokens);
+        DriveAccount a = pool.getPool().get(0);
+        assertTrue(a.isThrottled());
+        assertEquals(1, a.getThrottles());
+        assertEquals(1, a.getFailures());
+        assertEquals(0, a.getInFlight());
+    }
+
+    @Test
+    public void testPinnedFileWaitsForItsThrottledAccount() throws IOException {
+        pool.setThrottleCooldownMillis(50);
+        executor.execute(drive.files().get("x"));
+        statuses.add(429);
+        long start = System.nanoTime();
+        executor.execute(drive.files().get("x"));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(40));
+        assertEquals(Arrays.asList("Bearer a", "Bearer a", "Bearer a"), tokens);
+    }
+
+    @Test
+    public void testFileIsPinnedOnlyAfterSuccess() throws IOException {
+        statuses.add(404);
+        statuses.add(404);
+        try {
+            executor.execute(drive.files().get("x"));
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+        assertEquals(0, pool.getPinnedFiles());
+        executor.execute(drive.files().get("x"));
+        assertEquals(1, pool.getPinnedFiles());
+    }
+
+    @Test
+    public void testAccountCapsRequestsInFlight() throws Exception {
+        pool = new DriveAccountPool();
+        pool.setMaxRequestsPerSecond(1000);
+        pool.setMaxInFlight(2);
+        pool.init();
+        pool.add("a@test", bearer("a"));
+        pool.add("b@test", bearer("b"));
+        drive = new Drive.Builder(new TokenEndpoint(), JacksonFactory.getDefaultInstance(), executor.wrap(pool))
+                .setApplicationName("test")
+                .build();
+        executor.execute(drive.files().get("x"));
+        delayMillis = 20;
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                // all pinned to account a
+                futures.add(threads.submit(() -> executor.execute(drive.files().get("x"))));
+            }
+            for (Future<?> f : futures) {
+                f.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(2, maxConcurrent.get());
+        assertEquals(0, pool.getPool().get(0).getInFlight());
+        assertEquals(9, pool.getPool().get(0).getRequests());
+        assertEquals(0, pool.getPool().get(1).getRequests());
+    }
+
+    @Test
+    public void testNotFoundIsAskedOfOtherAccounts() throws IOException {
+        refusing.put("Bearer a", 404);
+        executor.execute(drive.files().get("x"));
+        assertEquals(Arrays.asList("Bearer a", "Bearer b"), tokens);
+        executor.execute(drive.files().get("x"));
+        assertEquals("Bearer b", tokens.get(2));
+        assertEquals(1, pool.getPinnedFiles());
+    }
+
+    @Test
+    public void testNotFoundByEveryAccountIsFinal() throws IOException {
+        refusing.put("Bearer a", 403);
+        refusing.put("Bearer b", 404);
+        try {
+            executor.execute(drive.files().get("x"));
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(404, ex.getStatusCode());
+        }
+        assertEquals(Arrays.asList("Bearer a", "Bearer b"), tokens);
+        assertEquals(0, pool.getPinnedFiles());
+    }
+
+    @Test
+    public void testPinnedScopeRoutesRequestsWithoutFileId() throws IOException {
+        executor.execute(drive.files().get("x"));
+        executor.execute(drive.files().get("y"));
+        pool.pinned("y", () -> executor.execute(drive.files().list()));
+        assertEquals("Bearer b", tokens.get(2));
+    }
+
+    @Test
+    public void testAccountIdOfJsonKeyWithoutEmail() throws GeneralSecurityException {
+        DriveAccountPool.AccountKey key = new DriveAccountPool.AccountKey();
+        key.setJsonKeyPath("keys/one.json");
+        GoogleCredential credential = new GoogleCredential.Builder()
+                .setServiceAccountId("one@project.iam.gserviceaccount.com")
+                .setServiceAccountPrivateKey(KeyPairGenerator.getInstance("RSA").generateKeyPair().getPrivate())
+                .build();
+        assertEquals("one@project.iam.gserviceaccount.com", DriveAccountPool.accountId(key, credential));
+        assertEquals("keys/one.json", DriveAccountPool.accountId(key, bearer("a")));
+        key.setEmailAddress("named@test");
+        assertEquals("named@test", DriveAccountPool.accountId(key, credential));
+    }
+
+    @Test
+    public void testRequestKey() throws IOException {
+        HttpRequest get = drive.getRequestFactory()
+                .buildGetRequest(new GenericUrl("https://www.googleapis.com/drive/v3/files/abc?fields=id"));
+        assertEquals("abc", DriveAccountPool.key(get));
+        HttpRequest upload = drive.getRequestFactory()
+                .buildPutRequest(new GenericUrl("https://www.googleapis.com/upload/drive/v3/files?uploadType=resumable&upload_id=u1"), null);
+        assertEquals("upload:u1", DriveAccountPool.key(upload));
+        HttpRequest ids = drive.getRequestFactory()
+                .buildGetRequest(new GenericUrl("https://www.googleapis.com/drive/v3/files/generateIds"));
+        assertNull(DriveAccountPool.key(ids));
+    }
+
+    /**
+     * Records bearer token of every attempt and answers with the next
+     * queued status, then with a file
+     */
+    private class TokenEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    synchronized (tokens) {
+                        tokens.add(getFirstHeaderValue("Authorization"));
+                    }
+                    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                    try {
+                        Thread.sleep(delayMillis);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        concurrent.decrementAndGet();
+                    }
+                    Integer status = refusing.get(getFirstHeaderValue("Authorization"));
+                    if (status == null) {
+                        status = statuses.poll();
+                    }
+                    if (status == null) {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json")
+                                .setContent("{\"id\":\"x\",\"files\":[]}");
+                    }
+                    return new MockLowLevelHttpResponse()
+                            .setStatusCode(status)
+                            .setContentType("application/json")
+                            .setContent("{\"error\":{\"code\":" + status + ",\"message\":\"error\"}}");
+                }
+            };
+        }
+    }
+}
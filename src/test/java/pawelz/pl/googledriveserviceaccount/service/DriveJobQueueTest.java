@@ -0,0 +1,210 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Jobs with test handlers on a log in a temporary directory
+ * @author p.zachwieja
+ */
+public class DriveJobQueueTest {
+
+    private Path dir;
+    private DriveJobQueue queue;
+    private final List<String> processed = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("drive-jobs");
+        queue = start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        queue.shutdown();
+        for (Path p : Files.walk(dir).sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList())) {
+            Files.deleteIfExists(p);
+        }
+    }
+
+    private DriveJobQueue start() throws IOException {
+        DriveJobQueue q = new DriveJobQueue();
+        q.setLogPath(dir.resolve("jobs.log").toString());
+        q.setSpoolDir(dir.resolve("spool").toString());
+        q.setSyncWrites(false);
+        q.init();
+        return q;
+    }
+
+    private List<String> upper(Map<String, String> params, List<String> items) {
+        processed.addAll(items);
+        return items.stream().map(i -> i.startsWith("x") ? null : i.toUpperCase()).collect(Collectors.toList());
+    }
+
+    private static void await(DriveJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!job.isFinished() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(5);
+        }
+        assertTrue(job.toString(), job.isFinished());
+    }
+
+    @Test
+    public void testJobRunsInBatches() throws Exception {
+        queue.register("upper", 2, this::upper);
+        DriveJob job = queue.enqueue("upper", null, null, Arrays.asList("a", "b", "x1", "c"));
+        await(job);
+        assertEquals(DriveJob.Status.COMPLETED, job.getStatus());
+        assertEquals(4, job.getDone());
+        assertEquals("C", job.getResults().get("c"));
+        assertEquals(Collections.singletonList("x1"), job.getFailedItems());
+        assertEquals(Arrays.asList("a", "b", "x1", "c"), processed);
+    }
+
+    @Test
+    public void testKeyDeduplicatesAcrossRestart() throws Exception {
+        queue.register("upper", 10, this::upper);
+        DriveJob job = queue.enqueue("upper", "k1", null, Arrays.asList("a"));
+        assertSame(job, queue.enqueue("upper", "k1", null, Arrays.asList("b")));
+        await(job);
+        queue.shutdown();
+        queue = start();
+        assertEquals(job.getId(), queue.enqueue("upper", "k1", null, Arrays.asList("c")).getId());
+        assertEquals(DriveJob.Status.COMPLETED, queue.getJobByKey("k1").getStatus());
+        assertEquals(Collections.singletonList("a"), processed);
+    }
+
+    @Test
+    public void testResumesFromCheckpointAfterRestart() throws Exception {
+        CountDownLatch firstBatch = new CountDownLatch(1);
+        CountDownLatch never = new CountDownLatch(1);
+        queue.register("upper", 2, (params, items) -> {
+            if (items.contains("c")) {
+                firstBatch.countDown();
+                try {
+                    never.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+            }
+            return upper(params, items);
+        });
+        DriveJob job = queue.enqueue("upper", null, null, Arrays.asList("a", "b", "c", "d"));
+        assertTrue(firstBatch.await(5, TimeUnit.SECONDS));
+        queue.shutdown();
+        assertEquals(Arrays.asList("a", "b"), processed);
+
+        queue = start();
+        DriveJob resumed = queue.getJob(job.getId());
+        assertEquals(2, resumed.getDone());
+        queue.register("upper", 2, this::upper);
+        await(resumed);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), processed);
+        assertEquals(Arrays.asList("a", "b", "c", "d"), new ArrayList<>(resumed.getResults().keySet()));
+    }
+
+    @Test
+    public void testFailedJobIsRetriedFromItsBatch() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        queue.register("flaky", 1, (params, items) -> {
+            if (calls.incrementAndGet() == 2) {
+                throw new IOException("503");
+            }
+            return upper(params, items);
+        });
+        DriveJob job = queue.enqueue("flaky", null, null, Arrays.asList("a", "b"));
+        await(job);
+        assertEquals(DriveJob.Status.FAILED, job.getStatus());
+        assertEquals("503", job.getError());
+        assertEquals(1, job.getDone());
+        queue.retry(job.getId());
+        await(job);
+        assertEquals(DriveJob.Status.COMPLETED, job.getStatus());
+        assertEquals(Arrays.asList("a", "b"), processed);
+    }
+
+    @Test
+    public void testSpoolIsKeptUntilUploadIsCheckpointed() throws Exception {
+        Path spool = Files.createDirectories(dir.resolve("spool")).resolve("content");
+        Files.write(spool, "data".getBytes(StandardCharsets.UTF_8));
+        AtomicInteger calls = new AtomicInteger();
+        queue.register(DriveJobQueue.UPLOAD, 1, (params, items) -> {
+            assertTrue(Files.exists(spool));
+            if (calls.incrementAndGet() == 1) {
+                throw new IOException("503");
+            }
+            return Collections.singletonList("fileId");
+        });
+        DriveJob job = queue.enqueue(DriveJobQueue.UPLOAD, null, null, Collections.singletonList(spool.toString()));
+        await(job);
+        assertEquals(DriveJob.Status.FAILED, job.getStatus());
+        assertTrue(Files.exists(spool));
+        queue.retry(job.getId());
+        await(job);
+        assertEquals(DriveJob.Status.COMPLETED, job.getStatus());
+        assertEquals("fileId", job.getResults().get(spool.toString()));
+        assertFalse(Files.exists(spool));
+    }
+
+    @Test
+    public void testConcurrencyPerType() throws Exception {
+        queue.getConcurrency().put("serial", 1);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        queue.register("serial", 1, (params, items) -> {
+            max.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            running.decrementAndGet();
+            return items;
+        });
+        List<DriveJob> jobs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            jobs.add(queue.enqueue("serial", null, null, Arrays.asList("a", "b", "c")));
+        }
+        for (DriveJob job : jobs) {
+            await(job);
+        }
+        assertEquals(1, max.get());
+    }
+
+    @Test
+    public void testTornRecordIsSkipped() throws IOException {
+        Path file = dir.resolve("torn.log");
+        JobLog log = new JobLog(file, false);
+        log.append(Collections.singletonMap("op", "first"));
+        log.close();
+        Files.write(file, "{\"op\":\"tor".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        log = new JobLog(file, false);
+        log.append(Collections.singletonMap("op", "second"));
+        log.close();
+        List<Object> ops = log.read().stream().map(r -> r.get("op")).collect(Collectors.toList());
+        assertEquals(Arrays.asList("first", "second"), ops);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Histogram buckets, percentiles and error counting
+ * @author p.zachwieja
+ */
+public class DriveMetricsTest {
+
+    private DriveMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new DriveMetrics();
+    }
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        int previous = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = DriveMetrics.Timer.bucket(micros);
+            assertTrue(bucket == previous || bucket == previous + 1);
+            assertTrue(DriveMetrics.Timer.upperBound(bucket) >= micros);
+            previous = bucket;
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        DriveMetrics.Timer timer = new DriveMetrics.Timer();
+        for (int i = 1; i <= 100; i++) {
+            timer.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(100, timer.getCount());
+        assertEquals(50, timer.getPercentileMillis(0.5), 50 * 0.13);
+        assertEquals(99, timer.getPercentileMillis(0.99), 99 * 0.13);
+        assertEquals(100, timer.getMaxMillis(), 0.001);
+        assertEquals(50.5, timer.getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void testErrorsAreCountedByStatus() {
+        try {
+            metrics.time(DriveMetrics.GET_FILE, () -> {
+                throw new HttpResponseException.Builder(503, "Unavailable", new HttpHeaders()).build();
+            });
+            fail();
+        } catch (IOException ex) {
+            assertEquals(1, metrics.getErrors("getFile.errors.503"));
+            assertEquals(1, metrics.getErrors("errors.503"));
+        }
+        assertEquals(1, metrics.getTimer(DriveMetrics.GET_FILE).getCount());
+        assertEquals(0, metrics.getTimer(DriveMetrics.GET_FILE).getInFlight());
+    }
+
+    @Test
+    public void testCountingStream() throws IOException {
+        try (InputStream in = metrics.counting(DriveMetrics.DOWNLOAD, new ByteArrayInputStream(new byte[1000]))) {
+            while (in.read(new byte[64]) >= 0) {
+            }
+        }
+        assertEquals(1000, metrics.getBytes(DriveMetrics.DOWNLOAD));
+    }
+
+    @Test
+    public void testDisabledMetricsRecordNothing() throws IOException {
+        metrics.setEnabled(false);
+        assertEquals("a", metrics.time(DriveMetrics.SEARCH, () -> "a"));
+        metrics.bytes(DriveMetrics.UPLOAD, 10);
+        assertNull(metrics.getTimer(DriveMetrics.SEARCH));
+        assertEquals(0, metrics.getBytes(DriveMetrics.UPLOAD));
+        assertTrue(metrics.metrics().isEmpty());
+    }
+}
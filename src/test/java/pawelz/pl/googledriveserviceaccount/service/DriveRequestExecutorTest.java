@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Retries and rate limiting against a stand-in endpoint answering with
+ * queued statuses
+ * @author p.zachwieja
+ */
+public class DriveRequestExecutorTest {
+
+    private static final String RATE_LIMIT_BODY = "{\"error\":{\"code\":403,\"message\":\"User Rate Limit Exceeded\","
+            + "\"errors\":[{\"reason\":\"userRateLimitExceeded\"}]}}";
+
+    private final Deque<Integer> statuses = new ArrayDeque<>();
+    private DriveRequestExecutor executor;
+    private Drive drive;
+    private int calls;
+
+    @Before
+    public void setUp() {
+        executor = new DriveRequestExecutor();
+        executor.setInitialBackoffMillis(1);
+        executor.setMaxRetries(3);
+        executor.setMaxRequestsPerSecond(1000);
+        executor.setBurst(1000);
+        executor.init();
+        drive = new Drive.Builder(new StatusEndpoint(), JacksonFactory.getDefaultInstance(), executor.wrap(null))
+                .setApplicationName("test")
+                .build();
+    }
+
+    @Test
+    public void testServerErrorsOfGetAreRetried() throws IOException {
+        statuses.addAll(Arrays.asList(503, 500));
+        File f = executor.execute(drive.files().get("a"));
+        assertEquals("a", f.getId());
+        assertEquals(3, calls);
+        assertEquals(2, executor.getRetries());
+        assertEquals(2, executor.getServerErrors());
+    }
+
+    @Test
+    public void testServerErrorOfCreateIsNotRetried() throws IOException {
+        statuses.add(503);
+        try {
+            executor.execute(drive.files().create(new File().setName("x")));
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        assertEquals(1, calls);
+        assertEquals(0, executor.getRetries());
+    }
+
+    @Test
+    public void testTooManyRequestsIsRetriedForAnyMethod() throws IOException {
+        statuses.add(429);
+        executor.execute(drive.files().create(new File().setName("x")));
+        assertEquals(2, calls);
+        assertEquals(1, executor.getThrottled());
+        assertEquals(500, executor.getRequestsPerSecond(), 0.001);
+    }
+
+    @Test
+    public void testForbiddenRateLimitIsRetried() throws IOException {
+        statuses.addAll(Arrays.asList(403, 403));
+        executor.execute(drive.files().get("a"));
+        assertEquals(3, calls);
+        assertEquals(2, executor.getThrottled());
+    }
+
+    @Test
+    public void testRetriesRunOut() throws IOException {
+        statuses.addAll(Arrays.asList(503, 503, 503, 503, 503));
+        try {
+            executor.execute(drive.files().get("a"));
+            fail();
+        } catch (GoogleJsonResponseException ex) {
+            assertEquals(503, ex.getStatusCode());
+        }
+        assertEquals(4, calls);
+        assertEquals(1, executor.getExhausted());
+    }
+
+    @Test
+    public void testRateLimiterBacksOffOncePerBurst() {
+        RateLimiter limiter = new RateLimiter(10, 1, 10, 0.5, 1);
+        assertTrue(limiter.onThrottle());
+        assertFalse(limiter.onThrottle());
+        assertEquals(5, limiter.getRate(), 0.001);
+        limiter.onSuccess();
+        assertEquals(5, limiter.getRate(), 0.001);
+    }
+
+    /**
+     * Answers with the next queued status, then with a file
+     */
+    private class StatusEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    calls++;
+                    Integer status = statuses.poll();
+                    if (status == null) {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json")
+                                .setContent("{\"id\":\"a\"}");
+                    }
+                    return new MockLowLevelHttpResponse()
+                            .setStatusCode(status)
+                            .setContentType("application/json")
+                            .setContent(status == 403 ? RATE_LIMIT_BODY
+                                    : "{\"error\":{\"code\":" + status + ",\"message\":\"error\"}}");
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author p.zachwieja
+ */
+public class FieldProfilesTest {
+
+    private FieldProfiles profiles;
+
+    @Before
+    public void setUp() {
+        profiles = new FieldProfiles();
+    }
+
+    @Test
+    public void testProfileNamesAndSelectors() {
+        assertEquals("id,name,mimeType,parents", profiles.fields(FieldProfiles.MINIMAL));
+        assertEquals("id,name,mimeType,parents", profiles.fields(" minimal "));
+        assertEquals("id,size", profiles.fields("id,size"));
+        assertNull(profiles.fields(null));
+    }
+
+    @Test
+    public void testConfiguredProfilesReplaceDefaults() {
+        profiles.getProfiles().put(FieldProfiles.MINIMAL, "id");
+        profiles.getProfiles().put("audit", "id,modifiedTime,lastModifyingUser");
+        assertEquals("id", profiles.fields(FieldProfiles.MINIMAL));
+        assertEquals("id,modifiedTime,lastModifyingUser", profiles.fields("audit"));
+    }
+
+    @Test
+    public void testSavingsAddUpPerOperation() {
+        profiles.record(DriveMetrics.CHILD_LIST, "id", 100, 900);
+        profiles.record(DriveMetrics.CHILD_LIST, "id", 50, 450);
+        profiles.record(DriveMetrics.GET_FILE, "id", 10, 10);
+        FieldProfiles.Savings s = profiles.getSavings().get(DriveMetrics.CHILD_LIST);
+        assertEquals(2, s.getCalls());
+        assertEquals(1200, s.getSavedBytes());
+        assertEquals(0, profiles.getSavings().get(DriveMetrics.GET_FILE).getSavedBytes());
+        profiles.resetSavings();
+        assertTrue(profiles.getSavings().isEmpty());
+    }
+}
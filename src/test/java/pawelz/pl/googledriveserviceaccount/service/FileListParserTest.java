@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author p.zachwieja
+ */
+public class FileListParserTest {
+
+    private final List<FileView> files = new ArrayList<>();
+
+    private String parse(String json) throws IOException {
+        return FileListParser.parse(JacksonFactory.getDefaultInstance().createJsonParser(json), files::add);
+    }
+
+    @Test
+    public void testFilesAndNextPageToken() throws IOException {
+        String token = parse("{\"kind\":\"drive#fileList\",\"files\":["
+                + "{\"id\":\"a\",\"name\":\"a.txt\",\"mimeType\":\"text/plain\",\"parents\":[\"root\"],"
+                + "\"size\":\"1234\",\"modifiedTime\":\"2016-11-20T10:15:30.000Z\"},"
+                + "{\"id\":\"b\",\"name\":\"b\",\"mimeType\":\"application/vnd.google-apps.folder\",\"parents\":[\"root\",\"other\"]}"
+                + "],\"nextPageToken\":\"page2\"}");
+        assertEquals("page2", token);
+        assertEquals(2, files.size());
+        FileView a = files.get(0);
+        assertEquals("a", a.getId());
+        assertEquals("a.txt", a.getName());
+        assertEquals(Collections.singletonList("root"), a.getParents());
+        assertEquals(1234, a.getSize());
+        assertEquals(1479636930000L, a.getModifiedTimeMillis());
+        FileView b = files.get(1);
+        assertTrue(b.isFolder());
+        assertEquals(Arrays.asList("root", "other"), b.getParents());
+        assertEquals(-1, b.getSize());
+        assertEquals(-1, b.getModifiedTimeMillis());
+    }
+
+    @Test
+    public void testUnknownFieldsAreSkipped() throws IOException {
+        String token = parse("{\"files\":[{\"id\":\"a\",\"owners\":[{\"emailAddress\":\"x@y.z\"}],"
+                + "\"capabilities\":{\"canEdit\":true},\"size\":42,\"name\":\"a\"}],\"incompleteSearch\":false}");
+        assertNull(token);
+        assertEquals(1, files.size());
+        assertEquals("a", files.get(0).getName());
+        assertEquals(42, files.get(0).getSize());
+    }
+
+    @Test
+    public void testEmptyPage() throws IOException {
+        assertNull(parse("{\"files\":[]}"));
+        assertTrue(files.isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAFileList() throws IOException {
+        parse("[]");
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+public class FileMetadataCacheTest {
+
+    private FileMetadataCache cache;
+
+    @Before
+    public void setUp() {
+        cache = new FileMetadataCache();
+    }
+
+    private File file(String id) {
+        File f = new File();
+        f.setId(id);
+        f.setName("name-" + id);
+        f.setParents(Arrays.asList("parent"));
+        return f;
+    }
+
+    @Test
+    public void testWiderEntryAnswersNarrowerRequest() {
+        cache.put("a", "id,name,parents,permissions", file("a"));
+        assertNotNull(cache.get("a", "id,name"));
+        assertNotNull(cache.get("a", "id,permissions(id,role)"));
+        assertNull(cache.get("a", "id,size"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testReturnedFileIsCopy() {
+        cache.put("a", "id,name", file("a"));
+        cache.get("a", "id").setName("changed");
+        assertEquals("name-a", cache.get("a", "name").getName());
+    }
+
+    @Test
+    public void testInvalidate() {
+        cache.put("a", "id", file("a"));
+        cache.invalidate("a");
+        assertNull(cache.get("a", "id"));
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void testExpiry() {
+        cache.setTtlSeconds(0);
+        cache.put("a", "id", file("a"));
+        assertNull(cache.get("a", "id"));
+    }
+
+    @Test
+    public void testWeightEviction() {
+        cache.setMaxWeight(200);
+        for (int i = 0; i < 10; i++) {
+            cache.put("f" + i, "id,name,parents", file("f" + i));
+        }
+        assertTrue(cache.getWeight() <= 200);
+        assertTrue(cache.getEvictions() > 0);
+        assertNotNull(cache.get("f9", "id"));
+        assertNull(cache.get("f0", "id"));
+    }
+
+    @Test
+    public void testParseFields() {
+        assertEquals(2, FileMetadataCache.parseFields("id, permissions(id,role)").size());
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author p.zachwieja
+ */
+public class FolderPathCacheTest {
+
+    private FolderPathCache cache;
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        cache = new FolderPathCache();
+    }
+
+    @Test
+    public void testConcurrentEnsureCreatesOnce() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(pool.submit(() -> cache.ensure("root", "clients", () -> {
+                    calls.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        throw new InterruptedIOException();
+                    }
+                    return "created";
+                })));
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // let the other callers reach the running creation
+            Thread.sleep(100);
+            release.countDown();
+            for (Future<String> f : futures) {
+                assertEquals("created", f.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertEquals("created", cache.lookup("root", "clients", () -> "other"));
+    }
+
+    @Test
+    public void testMissIsCachedUntilEnsure() throws IOException {
+        assertNull(cache.lookup("root", "a", () -> {
+            calls.incrementAndGet();
+            return null;
+        }));
+        assertNull(cache.lookup("root", "a", () -> "never"));
+        assertEquals(1, calls.get());
+        assertEquals("a1", cache.ensure("root", "a", () -> "a1"));
+        assertEquals("a1", cache.lookup("root", "a", () -> "never"));
+    }
+
+    @Test
+    public void testNoNegativeCaching() throws IOException {
+        cache.setNegativeTtlSeconds(0);
+        assertNull(cache.lookup("root", "a", () -> null));
+        assertEquals("a1", cache.lookup("root", "a", () -> "a1"));
+    }
+
+    @Test
+    public void testFailureIsNotCached() throws IOException {
+        try {
+            cache.ensure("root", "a", () -> {
+                throw new IOException("quota");
+            });
+            fail();
+        } catch (IOException ex) {
+            assertEquals("quota", ex.getMessage());
+        }
+        assertEquals("a1", cache.ensure("root", "a", () -> "a1"));
+    }
+
+    @Test
+    public void testInvalidateDropsSubtree() throws IOException {
+        cache.put("root", "a", "a1");
+        cache.put("a1", "b", "b1");
+        cache.put("b1", "c", "c1");
+        cache.put("root", "d", "d1");
+        assertEquals(4, cache.getSize());
+        cache.invalidate("a1");
+        assertEquals(1, cache.getSize());
+        assertEquals("b2", cache.lookup("a1", "b", () -> "b2"));
+        assertEquals("d1", cache.lookup("root", "d", () -> "never"));
+    }
+
+    @Test
+    public void testInvalidateDropsEveryPlaceOfFolder() throws IOException {
+        cache.put("root", "a", "a1");
+        cache.put("shared", "a", "a1");
+        cache.put("root", "renamed", "a1");
+        cache.put("a1", "b", "b1");
+        cache.put("root", "d", "d1");
+        cache.invalidate("a1");
+        assertEquals(1, cache.getSize());
+        assertEquals("a2", cache.lookup("shared", "a", () -> "a2"));
+        assertEquals("a2", cache.lookup("root", "renamed", () -> "a2"));
+        // replaced entries do not take the new id with them
+        cache.invalidate("a1");
+        assertEquals(3, cache.getSize());
+    }
+
+    @Test
+    public void testInvalidateManyInOnePass() throws IOException {
+        cache.put("root", "a", "a1");
+        cache.put("a1", "b", "b1");
+        cache.put("root", "c", "c1");
+        cache.put("root", "d", "d1");
+        cache.put("root", "missing", null);
+        cache.invalidate(Arrays.asList("b1", "a1", "c1", null));
+        assertEquals(2, cache.getSize());
+        assertEquals("d1", cache.lookup("root", "d", () -> "never"));
+        cache.clear();
+        cache.invalidate("d1");
+        assertEquals(0, cache.getSize());
+    }
+}
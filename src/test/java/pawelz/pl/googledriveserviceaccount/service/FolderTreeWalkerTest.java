@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Tree walk against a stand-in files.list endpoint
+ * @author p.zachwieja
+ */
+public class FolderTreeWalkerTest {
+
+    private static final Pattern PARENT = Pattern.compile("'([^']+)' in parents");
+
+    private final List<File> files = new ArrayList<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private FolderTreeWalker walker;
+
+    @Before
+    public void setUp() {
+        walker = new FolderTreeWalker();
+        walker.drive = new Drive.Builder(new ListEndpoint(), JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        walker.requestExecutor = new DriveRequestExecutor();
+        walker.requestExecutor.init();
+        walker.setParallelism(2);
+        walker.setParentsPerQuery(2);
+        walker.init();
+        // a is reachable from root and from c, b from root and from a
+        add("a", FolderTreeWalker.FOLDER_MIME_TYPE, "root", "c");
+        add("b", "text/plain", "root", "a");
+        add("s", TreeNode.SHORTCUT_MIME_TYPE, "root");
+        add("c", FolderTreeWalker.FOLDER_MIME_TYPE, "a");
+        add("d", FolderTreeWalker.FOLDER_MIME_TYPE, "a");
+        add("e", "text/plain", "d");
+    }
+
+    @After
+    public void tearDown() {
+        walker.shutdown();
+    }
+
+    private void add(String id, String mimeType, String... parents) {
+        files.add(new File().setId(id).setName(id).setMimeType(mimeType).setParents(Arrays.asList(parents)));
+    }
+
+    @Test
+    public void testWalk() {
+        TreeWalk walk = walker.walk("root");
+        Map<String, TreeNode> nodes = walk.stream().collect(Collectors.toMap(n -> n.getFile().getId(), n -> n));
+        assertEquals(6, nodes.size());
+        assertEquals("/a/d/e", nodes.get("e").getPath());
+        assertEquals(3, nodes.get("e").getDepth());
+        assertEquals("/b", nodes.get("b").getPath());
+        assertTrue(nodes.get("s").isShortcut());
+        assertTrue(walk.isDone());
+        assertEquals(3, walk.getFolders());
+        assertEquals(3, walk.getFiles());
+        assertEquals(1, walk.getShortcuts());
+        assertEquals(2, walk.getDuplicates());
+        // root, then a, then c and d in one query
+        assertEquals(3, walk.getQueries());
+        assertEquals(3, requests.get());
+    }
+
+    @Test
+    public void testQuery() {
+        assertEquals("('a' in parents or 'it\\'s' in parents) and trashed = false",
+                FolderTreeWalker.query(Arrays.asList("a", "it's")));
+    }
+
+    @Test
+    public void testRequiredFields() {
+        assertEquals("size,id,name,mimeType,parents", FolderTreeWalker.withRequired("size,id"));
+    }
+
+    /**
+     * Answers files.list with children of all folders named in the query
+     */
+    private class ListEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    requests.incrementAndGet();
+                    List<String> parents = new ArrayList<>();
+                    Matcher m = PARENT.matcher((String) new GenericUrl(url).getFirst("q"));
+                    while (m.find()) {
+                        parents.add(m.group(1));
+                    }
+                    FileList page = new FileList().setFiles(files.stream()
+                            .filter(f -> f.getParents().stream().anyMatch(parents::contains))
+                            .collect(Collectors.toList()));
+                    return new MockLowLevelHttpResponse()
+                            .setContentType("application/json")
+                            .setContent(JacksonFactory.getDefaultInstance().toString(page));
+                }
+            };
+        }
+    }
+}
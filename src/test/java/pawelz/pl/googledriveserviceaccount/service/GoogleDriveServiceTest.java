@@ -10,6 +10,7 @@ import com.google.api.services.drive.model.Permission;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 import javax.inject.Inject;
@@ -33,7 +34,7 @@ import org.springframework.web.multipart.MultipartFile;
  * @author pawelz
  */
 @RunWith(SpringJUnit4ClassRunner.class)
-@ActiveProfiles("dev")
+@ActiveProfiles("emulator")
 @ContextConfiguration(locations = {
     "/TestContext.xml", 
 }, initializers = ConfigFileApplicationContextInitializer.class)
@@ -84,6 +85,38 @@ public class GoogleDriveServiceTest {
         assertNotNull(files);
     }
 
+    /**
+     * Test of childList method with field profiles, of class GoogleDriveService.
+     * @throws java.lang.Exception
+     */
+    @Test
+    public void testChildListProfile() throws Exception {
+        MultipartFile multipartFile = new MockMultipartFile("data", "filename.txt", "text/plain", "some xml".getBytes());
+        File uploaded = googleDriveService.uploadFileOnly(true, multipartFile, myTestFolder, "");
+        assertNull(uploaded.getWebViewLink());
+        List<File> files = googleDriveService.childList(myTestFolder, FieldProfiles.MINIMAL);
+        assertEquals("data", files.get(0).getName());
+        assertNull(files.get(0).getSize());
+        files = googleDriveService.childList(myTestFolder, FieldProfiles.LISTING);
+        assertEquals(Long.valueOf(8), files.get(0).getSize());
+        files = googleDriveService.childList(myTestFolder, "id");
+        assertNull(files.get(0).getName());
+        googleDriveService.deleteGoogleFile(uploaded.getId());
+    }
+
+    @Test
+    public void testForEachChild() throws Exception {
+        MultipartFile multipartFile = new MockMultipartFile("data", "filename.txt", "text/plain", "some xml".getBytes());
+        File uploaded = googleDriveService.uploadFileOnly(true, multipartFile, myTestFolder, "");
+        List<FileView> views = new ArrayList<>();
+        assertEquals(1, googleDriveService.forEachChild(myTestFolder, 0, views::add));
+        assertEquals(uploaded.getId(), views.get(0).getId());
+        assertEquals("data", views.get(0).getName());
+        assertEquals(8, views.get(0).getSize());
+        assertEquals(Collections.singletonList(myTestFolder), views.get(0).getParents());
+        googleDriveService.deleteGoogleFile(uploaded.getId());
+    }
+
     /**
      * Test of createFolder method, of class GoogleDriveService.
      */
@@ -118,6 +151,23 @@ public class GoogleDriveServiceTest {
         googleDriveService.deleteGoogleFile(result.getId());
     }
 
+    /**
+     * Test of ensureFolderPath method, of class GoogleDriveService.
+     * @throws java.io.IOException
+     */
+    @Test
+    public void testEnsureFolderPath() throws IOException {
+        assertNull(googleDriveService.resolveFolderPath(myTestFolder, "clients/2026"));
+        String id = googleDriveService.ensureFolderPath(myTestFolder, "clients/2026/invoices");
+        assertNotNull(id);
+        assertEquals(id, googleDriveService.ensureFolderPath(myTestFolder, "/clients/2026/invoices/"));
+        assertEquals(id, googleDriveService.resolveFolderPath(myTestFolder, "clients/2026/invoices"));
+        assertEquals(1, googleDriveService.childList(myTestFolder).size());
+        String clients = googleDriveService.resolveFolderPath(myTestFolder, "clients");
+        googleDriveService.deleteGoogleFile(clients);
+        assertNull(googleDriveService.resolveFolderPath(myTestFolder, "clients/2026/invoices"));
+    }
+
     /**
      * Test of searchText method, of class GoogleDriveService.
      */
@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+public class PagedFileIteratorTest {
+
+    private static FileList page(String nextPageToken, String... ids) {
+        List<File> files = new ArrayList<>();
+        for (String id : ids) {
+            files.add(new File().setId(id));
+        }
+        return new FileList().setFiles(files).setNextPageToken(nextPageToken);
+    }
+
+    @Test
+    public void testReadsAllPages() {
+        List<String> tokens = Collections.synchronizedList(new ArrayList<>());
+        PagedFileIterator.PageFetcher fetcher = token -> {
+            tokens.add(String.valueOf(token));
+            if (token == null) {
+                return page("p2", "a", "b");
+            }
+            if ("p2".equals(token)) {
+                return page("p3");
+            }
+            return page(null, "c");
+        };
+        List<String> ids = PagedFileIterator.stream(fetcher).map(File::getId).collect(Collectors.toList());
+        assertEquals(Arrays.asList("a", "b", "c"), ids);
+        assertEquals(Arrays.asList("null", "p2", "p3"), tokens);
+    }
+
+    @Test
+    public void testEmptyResult() {
+        PagedFileIterator it = new PagedFileIterator(token -> new FileList());
+        assertFalse(it.hasNext());
+        assertEquals(1, it.getPages());
+    }
+
+    @Test
+    public void testFirstPageIsFetchedOnFirstHasNext() {
+        AtomicInteger fetched = new AtomicInteger();
+        PagedFileIterator it = new PagedFileIterator(token -> {
+            fetched.incrementAndGet();
+            return page(null, "a");
+        });
+        assertEquals(0, fetched.get());
+        assertTrue(it.hasNext());
+        assertEquals(1, fetched.get());
+    }
+
+    @Test
+    public void testClosingStreamCancelsPrefetch() throws InterruptedException {
+        ExecutorService prefetch = Executors.newFixedThreadPool(1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        try {
+            try (Stream<File> files = PagedFileIterator.stream(token -> {
+                if (token == null) {
+                    return page("p2", "a");
+                }
+                started.countDown();
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException ex) {
+                    interrupted.countDown();
+                }
+                return page(null, "b");
+            }, prefetch)) {
+                assertEquals("a", files.findFirst().get().getId());
+                assertTrue(started.await(5, TimeUnit.SECONDS));
+            }
+            assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        } finally {
+            prefetch.shutdownNow();
+        }
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testErrorIsThrownWhileConsuming() {
+        PagedFileIterator.stream(token -> {
+            if (token == null) {
+                return page("p2", "a");
+            }
+            throw new IOException("failed");
+        }).count();
+    }
+
+    @Test
+    public void testEscape() {
+        assertEquals("it\\'s", GoogleDriveService.escape("it's"));
+        assertEquals("a\\\\b", GoogleDriveService.escape("a\\b"));
+    }
+}
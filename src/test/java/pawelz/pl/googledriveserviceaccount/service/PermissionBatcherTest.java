@@ -0,0 +1,181 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link PermissionBatcher} against a local stand-in batch endpoint
+ * @author p.zachwieja
+ */
+public class PermissionBatcherTest {
+
+    private static final String BATCH_URL = "http://localhost/batch";
+    private static final Pattern REQUEST_LINE = Pattern.compile("^(POST|DELETE) (\\S+) HTTP/1\\.1", Pattern.MULTILINE);
+    private static final Pattern EMAIL = Pattern.compile("\"emailAddress\":\"([^\"]+)\"");
+
+    private final AtomicInteger batchCalls = new AtomicInteger();
+    private PermissionBatcher batcher;
+
+    @Before
+    public void setUp() {
+        Drive drive = new Drive.Builder(new BatchEndpoint(), JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        batcher = new PermissionBatcher();
+        batcher.drive = drive;
+        batcher.requestExecutor = new DriveRequestExecutor();
+        batcher.requestExecutor.setInitialBackoffMillis(1);
+        batcher.requestExecutor.init();
+        batcher.setBatchSize(10);
+        batcher.setParallelBatches(3);
+        batcher.setBatchUrl(BATCH_URL);
+        batcher.init();
+    }
+
+    @After
+    public void tearDown() {
+        batcher.shutdown();
+    }
+
+    @Test
+    public void testCreatesAreSplitIntoBatches() throws IOException {
+        List<PermissionChange> changes = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            changes.add(PermissionChange.create("user" + i + "@gmail.com", "reader", "user"));
+        }
+        PermissionBatchResult result = batcher.apply("folder", changes, false, null);
+        assertEquals(3, batchCalls.get());
+        assertEquals(3, result.getBatches());
+        assertEquals(25, result.getSucceededCount());
+        assertTrue(result.isSuccess());
+        assertEquals("perm-user7@gmail.com", result.getItems().get(7).getPermissionId());
+    }
+
+    @Test
+    public void testFailuresAreReportedPerPermission() throws IOException {
+        List<PermissionChange> changes = new ArrayList<>();
+        changes.add(PermissionChange.create("ok@gmail.com", "reader", "user"));
+        changes.add(PermissionChange.create("fail@gmail.com", "reader", "user"));
+        changes.add(PermissionChange.delete("perm-1", "old@gmail.com"));
+        changes.add(PermissionChange.delete("missing", "gone@gmail.com"));
+        PermissionBatchResult result = batcher.apply("folder", changes, false, null);
+        assertEquals(1, batchCalls.get());
+        assertFalse(result.isSuccess());
+        assertEquals(2, result.getFailedCount());
+        assertTrue(result.getItems().get(0).isSuccess());
+        assertEquals(400, result.getItems().get(1).getErrorCode());
+        assertTrue(result.getItems().get(2).isSuccess());
+        assertEquals(404, result.getItems().get(3).getErrorCode());
+    }
+
+    @Test
+    public void testRateLimitedCallsAreResent() throws IOException {
+        List<PermissionChange> changes = new ArrayList<>();
+        changes.add(PermissionChange.create("ok@gmail.com", "reader", "user"));
+        changes.add(PermissionChange.create("limited@gmail.com", "reader", "user"));
+        PermissionBatchResult result = batcher.apply("folder", changes, false, null);
+        assertEquals(2, batchCalls.get());
+        assertTrue(result.isSuccess());
+        assertEquals("perm-limited@gmail.com", result.getItems().get(1).getPermissionId());
+        assertEquals(1, batcher.requestExecutor.getThrottled());
+        assertEquals(1, batcher.requestExecutor.getRetries());
+    }
+
+    @Test
+    public void testChangesWithoutAnswerFail() throws IOException {
+        List<PermissionChange> changes = new ArrayList<>();
+        changes.add(PermissionChange.create("ok@gmail.com", "reader", "user"));
+        changes.add(PermissionChange.create("dropped@gmail.com", "reader", "user"));
+        PermissionBatchResult result = batcher.apply("folder", changes, false, null);
+        assertTrue(result.getItems().get(0).isSuccess());
+        assertFalse(result.getItems().get(1).isSuccess());
+        assertEquals("No response", result.getItems().get(1).getErrorMessage());
+    }
+
+    @Test
+    public void testNothingIsSentForEmptyChanges() throws IOException {
+        PermissionBatchResult result = batcher.apply("folder", new ArrayList<>(), false, null);
+        assertEquals(0, batchCalls.get());
+        assertTrue(result.isSuccess());
+    }
+
+    /**
+     * Answers multipart/mixed batch requests, creates for e-mails containing "fail"
+     * and deletes of permission "missing" are rejected, creates for e-mails
+     * containing "limited" are rate limited in the first batch, creates for
+     * e-mails containing "dropped" get no answer
+     */
+    private class BatchEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            assertEquals(BATCH_URL, url);
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    batchCalls.incrementAndGet();
+                    String body = getContentAsString();
+                    StringBuilder response = new StringBuilder();
+                    Matcher request = REQUEST_LINE.matcher(body);
+                    Matcher email = EMAIL.matcher(body);
+                    while (request.find()) {
+                        boolean create = "POST".equals(request.group(1)) && email.find();
+                        if (create && email.group(1).contains("dropped")) {
+                            continue;
+                        }
+                        response.append("--batch_response\r\n")
+                                .append("Content-Type: application/http\r\n\r\n");
+                        if (create) {
+                            if (email.group(1).contains("limited") && (batchCalls.get() == 1)) {
+                                part(response, "403 Forbidden", "{\"error\":{\"code\":403,\"message\":\"User Rate Limit Exceeded\","
+                                        + "\"errors\":[{\"reason\":\"userRateLimitExceeded\"}]}}");
+                            }
+                            else if (email.group(1).contains("fail")) {
+                                part(response, "400 Bad Request", "{\"error\":{\"code\":400,\"message\":\"Invalid sharing request\"}}");
+                            }
+                            else {
+                                part(response, "200 OK", "{\"id\":\"perm-" + email.group(1) + "\"}");
+                            }
+                        }
+                        else if (request.group(2).endsWith("/missing")) {
+                            part(response, "404 Not Found", "{\"error\":{\"code\":404,\"message\":\"Permission not found\"}}");
+                        }
+                        else {
+                            response.append("HTTP/1.1 204 No Content\r\n\r\n\r\n");
+                        }
+                    }
+                    response.append("--batch_response--\r\n");
+                    return new MockLowLevelHttpResponse()
+                            .setContentType("multipart/mixed; boundary=batch_response")
+                            .setContent(response.toString());
+                }
+            };
+        }
+
+        private void part(StringBuilder response, String status, String json) {
+            response.append("HTTP/1.1 ").append(status).append("\r\n")
+                    .append("Content-Type: application/json; charset=UTF-8\r\n\r\n")
+                    .append(json).append("\r\n\r\n");
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Ranged parallel download against a stand-in media endpoint
+ * @author p.zachwieja
+ */
+public class RangedDownloaderTest {
+
+    private static final int SEGMENT = 16 * 1024;
+
+    private final byte[] data = new byte[100 * 1024];
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private volatile boolean ignoreRange;
+    private RangedDownloader downloader;
+    private Path dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(3).nextBytes(data);
+        downloader = new RangedDownloader();
+        downloader.drive = new Drive.Builder(new MediaEndpoint(), JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        downloader.setSegmentSize(SEGMENT);
+        downloader.setParallelThreshold(2 * SEGMENT);
+        downloader.setParallelSegments(3);
+        downloader.init();
+        dir = Files.createTempDirectory("download");
+        Path reference = dir.resolve("reference");
+        Files.write(reference, data);
+        file = new File();
+        file.setId("big");
+        file.setSize((long) data.length);
+        file.setMd5Checksum(RangedDownloader.md5(reference));
+    }
+
+    @After
+    public void tearDown() {
+        downloader.shutdown();
+    }
+
+    @Test
+    public void testParallelSegments() throws IOException {
+        Path target = dir.resolve("big.bin");
+        DownloadReport report = downloader.download(file, target);
+        assertEquals(7, report.getSegments());
+        assertEquals(7, rangeRequests.get());
+        assertTrue(report.isChecksumVerified());
+        assertArrayEquals(data, Files.readAllBytes(target));
+        assertFalse(Files.exists(dir.resolve("big.bin.segments")));
+    }
+
+    @Test
+    public void testResumeSkipsFinishedSegments() throws IOException {
+        Path target = dir.resolve("big.bin");
+        Files.write(dir.resolve("big.bin.part"), Arrays.copyOf(data, 3 * SEGMENT));
+        Files.write(dir.resolve("big.bin.segments"), (file.getMd5Checksum() + " " + data.length + " 7 " + SEGMENT
+                + "\n0\n1\n2\n").getBytes(StandardCharsets.UTF_8));
+        DownloadReport report = downloader.download(file, target);
+        assertEquals(4, rangeRequests.get());
+        assertEquals(3 * SEGMENT, report.getResumedBytes());
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testStateOfAnotherVersionIsDiscarded() throws IOException {
+        Path target = dir.resolve("big.bin");
+        Files.write(dir.resolve("big.bin.part"), new byte[3 * SEGMENT]);
+        Files.write(dir.resolve("big.bin.segments"), ("0123456789abcdef0123456789abcdef " + data.length + " 7 " + SEGMENT
+                + "\n0\n1\n2\n").getBytes(StandardCharsets.UTF_8));
+        DownloadReport report = downloader.download(file, target);
+        assertEquals(7, rangeRequests.get());
+        assertEquals(0, report.getResumedBytes());
+        assertArrayEquals(data, Files.readAllBytes(target));
+    }
+
+    @Test(expected = IOException.class)
+    public void testIgnoredRangeFails() throws IOException {
+        ignoreRange = true;
+        downloader.download(file, dir.resolve("whole.bin"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChecksumMismatch() throws IOException {
+        file.setMd5Checksum("00000000000000000000000000000000");
+        downloader.download(file, dir.resolve("bad.bin"));
+    }
+
+    /**
+     * Serves Range requests of alt=media downloads, or the whole content
+     * with 200 when ranges are ignored
+     */
+    private class MediaEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    assertTrue(url.contains("alt=media"));
+                    String range = getFirstHeaderValue("Range");
+                    int from = Integer.parseInt(range.substring(6, range.indexOf('-')));
+                    int to = Integer.parseInt(range.substring(range.indexOf('-') + 1));
+                    rangeRequests.incrementAndGet();
+                    if (ignoreRange) {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/octet-stream")
+                                .setContent(data);
+                    }
+                    return new MockLowLevelHttpResponse()
+                            .setStatusCode(206)
+                            .setContentType("application/octet-stream")
+                            .addHeader("Content-Range", "bytes " + from + "-" + to + "/" + data.length)
+                            .setContent(Arrays.copyOfRange(data, from, to + 1));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.Permission;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+public class ReaderDiffTest {
+
+    private Permission permission(String id, String email, String role, String type) {
+        Permission p = new Permission();
+        p.setId(id);
+        p.setEmailAddress(email);
+        p.setRole(role);
+        p.setType(type);
+        return p;
+    }
+
+    @Test
+    public void testOneUserChangeTouchesOnePermission() {
+        List<Permission> current = Arrays.asList(
+                permission("0", "owner@gmail.com", "owner", "user"),
+                permission("1", "a@gmail.com", "reader", "user"),
+                permission("2", "b@gmail.com", "reader", "user"));
+        ReaderDiff diff = ReaderDiff.compute(current, Arrays.asList("a@gmail.com", "B@gmail.com", "c@gmail.com"), "reader");
+        assertEquals(1, diff.getAdditions().size());
+        assertEquals("c@gmail.com", diff.getAdditions().get(0).getEmail());
+        assertTrue(diff.getRemovals().isEmpty());
+        assertTrue(diff.getRoleChanges().isEmpty());
+        assertEquals(2, diff.getUnchanged());
+    }
+
+    @Test
+    public void testRemovalsAndRoleChanges() {
+        List<Permission> current = Arrays.asList(
+                permission("1", "a@gmail.com", "writer", "user"),
+                permission("2", "b@gmail.com", "reader", "user"),
+                permission("3", null, "reader", "anyone"));
+        ReaderDiff diff = ReaderDiff.compute(current, Collections.singletonList("a@gmail.com"), "reader");
+        assertTrue(diff.getAdditions().isEmpty());
+        assertEquals(1, diff.getRoleChanges().size());
+        assertEquals("1", diff.getRoleChanges().get(0).getPermissionId());
+        assertEquals(2, diff.getRemovals().size());
+        assertEquals(0, diff.getUnchanged());
+    }
+
+    @Test
+    public void testOwnerIsNeverTouched() {
+        List<Permission> current = Collections.singletonList(permission("0", "owner@gmail.com", "owner", "user"));
+        ReaderDiff diff = ReaderDiff.compute(current, Collections.singletonList("owner@gmail.com"), "reader");
+        assertTrue(diff.isEmpty());
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Resumable upload against a stand-in upload endpoint that drops one chunk
+ * and keeps content of the latest session only
+ * @author p.zachwieja
+ */
+public class ResumableUploaderTest {
+
+    private static final String SESSION = "http://localhost/upload/session-1";
+    private static final int LENGTH = 600 * 1024;
+
+    private final byte[] data = new byte[LENGTH];
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private int sessionsStarted;
+    private int dropsLeft = 1;
+    private Path sessionDir;
+    private ResumableUploader uploader;
+
+    @Before
+    public void setUp() throws IOException {
+        new Random(7).nextBytes(data);
+        uploader = new ResumableUploader();
+        uploader.drive = new Drive.Builder(new UploadEndpoint(), JacksonFactory.getDefaultInstance(), null)
+                .setApplicationName("test")
+                .build();
+        uploader.setChunkSize(256 * 1024);
+        sessionDir = Files.createTempDirectory("sessions");
+        uploader.setSessionDir(sessionDir.toString());
+        uploader.init();
+    }
+
+    @After
+    public void tearDown() {
+        uploader.shutdown();
+    }
+
+    @Test
+    public void testDroppedChunkResumesAtAcknowledgedByte() throws IOException {
+        File metadata = new File();
+        metadata.setName("big.bin");
+        File result = uploader.uploadResumable(metadata, "application/octet-stream", LENGTH,
+                () -> new ByteArrayInputStream(data), UploadSessionStore.key("folder", "big.bin", LENGTH));
+        assertEquals("uploaded", result.getId());
+        assertEquals(1, sessionsStarted);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void testUploadsWithSameKeyDoNotShareSession() throws Exception {
+        dropsLeft = 0;
+        String key = UploadSessionStore.key("folder", "big.bin", LENGTH,
+                UploadSessionStore.sample(() -> new ByteArrayInputStream(data), LENGTH));
+        Callable<File> upload = () -> uploader.uploadResumable(new File().setName("big.bin"), "application/octet-stream",
+                LENGTH, () -> new ByteArrayInputStream(data), key);
+        Future<File> first = uploader.submit(upload);
+        Future<File> second = uploader.submit(upload);
+        assertEquals("uploaded", first.get().getId());
+        assertEquals("uploaded", second.get().getId());
+        assertEquals(2, sessionsStarted);
+        assertArrayEquals(data, received.toByteArray());
+    }
+
+    @Test
+    public void testKeyChangesWithContent() throws IOException {
+        byte[] other = data.clone();
+        other[LENGTH - 1]++;
+        String sample = UploadSessionStore.sample(() -> new ByteArrayInputStream(data), LENGTH);
+        assertEquals(sample, UploadSessionStore.sample(() -> new ByteArrayInputStream(data.clone()), LENGTH));
+        String key = UploadSessionStore.key("folder", "big.bin", LENGTH, sample);
+        assertFalse(key.equals(UploadSessionStore.key("folder", "big.bin", LENGTH,
+                UploadSessionStore.sample(() -> new ByteArrayInputStream(other), LENGTH))));
+    }
+
+    @Test
+    public void testSampleSkipsMiddleOfContent() throws IOException {
+        AtomicLong read = new AtomicLong();
+        UploadSessionStore.sample(() -> new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int n = super.read(b, off, len);
+                read.addAndGet(Math.max(0, n));
+                return n;
+            }
+        }, LENGTH);
+        assertEquals(2 * UploadSessionStore.SAMPLE_BYTES, read.get());
+        byte[] small = Arrays.copyOf(data, 100);
+        assertEquals(UploadSessionStore.sample(() -> new ByteArrayInputStream(small), 100),
+                UploadSessionStore.sample(() -> new ByteArrayInputStream(small.clone()), 100));
+    }
+
+    @Test
+    public void testCompletedUploadLeavesNoSessionFile() throws IOException {
+        uploader.uploadResumable(new File().setName("big.bin"), "application/octet-stream", LENGTH,
+                () -> new ByteArrayInputStream(data), UploadSessionStore.key("folder", "big.bin", LENGTH));
+        try (Stream<Path> files = Files.list(sessionDir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    public void testExpiredSessionFilesArePurged() throws IOException {
+        UploadSessionStore store = new UploadSessionStore(sessionDir.toString());
+        store.put("old", SESSION);
+        store.put("new", SESSION);
+        Files.setLastModifiedTime(sessionDir.resolve("old.session"),
+                FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(8)));
+        assertEquals(1, store.purge(TimeUnit.DAYS.toMillis(7)));
+        assertNull(store.get("old"));
+        assertEquals(SESSION, store.get("new"));
+    }
+
+    @Test
+    public void testNextByte() {
+        assertEquals(0, ResumableUploader.nextByte(null));
+        assertEquals(262144, ResumableUploader.nextByte("bytes=0-262143"));
+    }
+
+    /**
+     * Accepts whole chunks only and fails the second chunk once with an I/O error
+     */
+    private class UploadEndpoint extends MockHttpTransport {
+
+        @Override
+        public LowLevelHttpRequest buildRequest(String method, String url) throws IOException {
+            return new MockLowLevelHttpRequest(url) {
+                @Override
+                public LowLevelHttpResponse execute() throws IOException {
+                    if ("POST".equals(method)) {
+                        assertTrue(url.contains("/upload/drive/v3/files"));
+                        sessionsStarted++;
+                        received.reset();
+                        return new MockLowLevelHttpResponse().addHeader("Location", SESSION);
+                    }
+                    assertEquals(SESSION, url);
+                    String range = getFirstHeaderValue("Content-Range");
+                    if (!range.startsWith("bytes */")) {
+                        long start = Long.parseLong(range.substring(6, range.indexOf('-')));
+                        assertEquals(received.size(), start);
+                        if ((start > 0) && (dropsLeft-- > 0)) {
+                            throw new IOException("Connection reset");
+                        }
+                        getStreamingContent().writeTo(received);
+                    }
+                    if (received.size() == LENGTH) {
+                        return new MockLowLevelHttpResponse()
+                                .setContentType("application/json; charset=UTF-8")
+                                .setContent("{\"id\":\"uploaded\"}");
+                    }
+                    return new MockLowLevelHttpResponse()
+                            .setStatusCode(308)
+                            .addHeader("Range", "bytes=0-" + (received.size() - 1));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author p.zachwieja
+ */
+public class SearchIndexTest {
+
+    private SearchIndex index;
+    private Path stateFile;
+
+    @Before
+    public void setUp() throws IOException {
+        stateFile = Files.createTempDirectory("search").resolve("search.json");
+        index = new SearchIndex();
+        index.setStateFile(stateFile.toString());
+        index.setIndexContent(true);
+    }
+
+    private static File file(String id, String name, String description) {
+        return new File().setId(id).setName(name).setDescription(description)
+                .setMimeType("text/plain").setParents(Arrays.asList("app"));
+    }
+
+    private static String ids(List<File> files) {
+        StringBuilder sb = new StringBuilder();
+        files.forEach(f -> sb.append(sb.length() == 0 ? "" : ",").append(f.getId()));
+        return sb.toString();
+    }
+
+    @Test
+    public void testWords() {
+        assertEquals(Arrays.asList("zolta", "lodz", "2017", "raport"), SearchIndex.words("Żółta Łódź, 2017-raport!"));
+    }
+
+    @Test
+    public void testPrefixAndAllWordsMatch() {
+        index.put(file("1", "Annual report 2016", null), null);
+        index.put(file("2", "Annual budget", null), null);
+        index.put(file("3", "Report draft", null), null);
+        assertEquals("1,3", ids(index.search("rep", 0)));
+        assertEquals("1", ids(index.search("annual rep", 0)));
+        assertEquals("", ids(index.search("annual missing", 0)));
+        assertEquals("", ids(index.search("  ", 0)));
+    }
+
+    @Test
+    public void testNameRanksAboveContent() {
+        index.put(file("1", "notes", null), "the invoice is attached");
+        index.put(file("2", "invoice", null), "nothing else");
+        index.put(file("3", "misc", "old invoice"), null);
+        assertEquals("2,3,1", ids(index.search("invoice", 0)));
+        assertEquals("2", ids(index.search("invoice", 1)));
+    }
+
+    @Test
+    public void testPutKeepsContentAndRemoveDrops() {
+        index.put(file("1", "notes", null), "quarterly numbers");
+        index.put(file("1", "renamed", null), null);
+        assertEquals("1", ids(index.search("quarterly", 0)));
+        assertEquals("", ids(index.search("notes", 0)));
+        index.remove("1");
+        assertEquals("", ids(index.search("quarterly", 0)));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        index.put(file("1", "Annual report", "for the board"), "numbers");
+        index.save();
+        SearchIndex restored = new SearchIndex();
+        restored.setStateFile(stateFile.toString());
+        assertFalse(restored.isWarm());
+        assertTrue(restored.load());
+        assertEquals("1", ids(restored.search("board numb", 0)));
+        assertEquals("for the board", restored.search("annual", 0).get(0).getDescription());
+    }
+
+    @Test
+    public void testContentIndexedOnlyForSmallTextFiles() {
+        assertTrue(index.indexesContent("text/plain", 10));
+        assertTrue(index.indexesContent("application/json", 10));
+        assertFalse(index.indexesContent("image/png", 10));
+        assertFalse(index.indexesContent("text/plain", 10 * 1024 * 1024));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Identical concurrent calls held on a latch until all callers arrived
+ * @author p.zachwieja
+ */
+public class SingleFlightTest {
+
+    private static final int CALLERS = 8;
+
+    private final AtomicInteger calls = new AtomicInteger();
+    private final AtomicInteger sharedEvents = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService pool;
+
+    @Before
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(CALLERS);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private <V> List<Future<V>> callConcurrently(SingleFlight<String, V> flight, String key, SingleFlight.Call<V> call)
+            throws InterruptedException {
+        List<Future<V>> futures = new ArrayList<>();
+        for (int i = 0; i < CALLERS; i++) {
+            futures.add(pool.submit(() -> flight.execute(key, () -> {
+                calls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new InterruptedIOException();
+                }
+                return call.call();
+            })));
+        }
+        // wait until every caller either runs the call or waits for it
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((flight.getCalls() + flight.getShared() < CALLERS) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(5);
+        }
+        release.countDown();
+        return futures;
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        SingleFlight<String, List<String>> flight = new SingleFlight<>(ArrayList::new, sharedEvents::incrementAndGet);
+        List<Future<List<String>>> futures = callConcurrently(flight, "file", () -> new ArrayList<>(Arrays.asList("a", "b")));
+        List<List<String>> results = new ArrayList<>();
+        for (Future<List<String>> f : futures) {
+            results.add(f.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, calls.get());
+        assertEquals(CALLERS - 1, flight.getShared());
+        assertEquals(CALLERS - 1, sharedEvents.get());
+        results.get(0).add("c");
+        assertEquals(Arrays.asList("a", "b"), results.get(1));
+        assertEquals(0, flight.getInFlight());
+    }
+
+    @Test
+    public void testCallerChangingItsResultDoesNotReachWaiters() throws Exception {
+        Thread caller = Thread.currentThread();
+        CountDownLatch joined = new CountDownLatch(1);
+        CountDownLatch changed = new CountDownLatch(1);
+        // the waiter copies only after the caller changed its result
+        SingleFlight<String, List<String>> flight = new SingleFlight<>(v -> {
+            if (Thread.currentThread() != caller) {
+                try {
+                    changed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+            return new ArrayList<>(v);
+        }, joined::countDown);
+        AtomicReference<Future<List<String>>> waiter = new AtomicReference<>();
+        List<String> result = flight.execute("file", () -> {
+            waiter.set(pool.submit(() -> flight.execute("file", () -> {
+                throw new IOException("not shared");
+            })));
+            try {
+                assertTrue(joined.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            return new ArrayList<>(Arrays.asList("a", "b"));
+        });
+        result.add("c");
+        changed.countDown();
+        assertEquals(Arrays.asList("a", "b"), waiter.get().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testErrorIsShared() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        List<Future<String>> futures = callConcurrently(flight, "file", () -> {
+            throw new IOException("503");
+        });
+        for (Future<String> f : futures) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertEquals("503", ex.getCause().getMessage());
+            }
+        }
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testErrorDoesNotStrandWaiters() throws Exception {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        List<Future<String>> futures = callConcurrently(flight, "file", () -> {
+            throw new StackOverflowError("deep");
+        });
+        for (Future<String> f : futures) {
+            try {
+                f.get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof StackOverflowError);
+            }
+        }
+        assertEquals(1, calls.get());
+        assertEquals(0, flight.getInFlight());
+    }
+
+    @Test
+    public void testNothingIsKeptAfterCall() throws IOException {
+        SingleFlight<String, String> flight = new SingleFlight<>();
+        assertEquals("1", flight.execute("k", () -> String.valueOf(calls.incrementAndGet())));
+        assertEquals("2", flight.execute("k", () -> String.valueOf(calls.incrementAndGet())));
+        assertEquals(0, flight.getShared());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.service;
+
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.Credential;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Scheduling of token refresh and failing fast on credentials without a token
+ * @author p.zachwieja
+ */
+public class TokenRefresherTest {
+
+    private TokenRefresher refresher;
+
+    @Before
+    public void setUp() {
+        refresher = new TokenRefresher();
+        refresher.setRefreshAheadSeconds(300);
+        refresher.setRetrySeconds(30);
+        refresher.init();
+    }
+
+    @After
+    public void tearDown() {
+        refresher.shutdown();
+    }
+
+    @Test
+    public void testRefreshIsScheduledAheadOfExpiry() {
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setAccessToken("a")
+                .setExpiresInSeconds(3600L);
+        long next = refresher.nextRefresh(credential);
+        assertTrue(next > 3200 && next <= 3300);
+        credential.setExpiresInSeconds(60L);
+        assertEquals(30, refresher.nextRefresh(credential));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWarmUpFailsWithoutToken() throws IOException {
+        refresher.warmUp("a@test", new Credential(BearerToken.authorizationHeaderAccessMethod()));
+    }
+
+    @Test
+    public void testLazyModeSkipsWarmUp() throws IOException {
+        refresher.setEager(false);
+        refresher.warmUp("a@test", new Credential(BearerToken.authorizationHeaderAccessMethod()));
+        assertEquals(0, refresher.getRefreshes());
+    }
+}
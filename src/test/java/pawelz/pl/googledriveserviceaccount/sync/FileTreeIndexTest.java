@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package pawelz.pl.googledriveserviceaccount.sync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author p.zachwieja
+ */
+public class FileTreeIndexTest {
+
+    private FileTreeIndex index;
+
+    @Before
+    public void setUp() {
+        index = new FileTreeIndex("root");
+        index.put(file("clients", "root", 1));
+        index.put(file("invoice", "clients", 1));
+    }
+
+    private File file(String id, String parent, long modified) {
+        File f = new File();
+        f.setId(id);
+        f.setName(id);
+        f.setParents(Arrays.asList(parent));
+        f.setModifiedTime(new DateTime(modified));
+        return f;
+    }
+
+    private Change change(File f) {
+        Change c = new Change();
+        c.setFileId(f.getId());
+        c.setFile(f);
+        c.setRemoved(false);
+        return c;
+    }
+
+    private DriveChangeEvent.Type single(List<DriveChangeEvent> events) {
+        assertEquals(1, events.size());
+        return events.get(0).getType();
+    }
+
+    @Test
+    public void testCreatedOnlyInsideTree() {
+        assertEquals(DriveChangeEvent.Type.CREATED, single(index.apply(change(file("new", "clients", 1)))));
+        assertTrue(index.apply(change(file("other", "elsewhere", 1))).isEmpty());
+        assertEquals("/clients/new", index.path("new"));
+    }
+
+    @Test
+    public void testModifiedMovedTrashed() {
+        assertEquals(DriveChangeEvent.Type.MODIFIED, single(index.apply(change(file("invoice", "clients", 2)))));
+        assertEquals(DriveChangeEvent.Type.MOVED, single(index.apply(change(file("invoice", "root", 2)))));
+        File trashed = file("invoice", "root", 2);
+        trashed.setTrashed(true);
+        assertEquals(DriveChangeEvent.Type.TRASHED, single(index.apply(change(trashed))));
+    }
+
+    @Test
+    public void testRemovingFolderDropsSubtree() {
+        Change removed = new Change();
+        removed.setFileId("clients");
+        removed.setRemoved(true);
+        List<DriveChangeEvent> events = index.apply(removed);
+        assertEquals(DriveChangeEvent.Type.REMOVED, single(events));
+        assertEquals(Arrays.asList("clients", "invoice"), events.get(0).getRemovedIds());
+        assertFalse(index.contains("invoice"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        Path file = Files.createTempDirectory("index").resolve("index.json");
+        index.save(file);
+        FileTreeIndex loaded = new FileTreeIndex("root");
+        assertTrue(loaded.load(file));
+        assertEquals(2, loaded.size());
+        assertEquals("/clients/invoice", loaded.path("invoice"));
+    }
+}